@@ -0,0 +1,405 @@
+package edu.mit.mobile.android.content.benchmark.provider;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.ParameterizedRobolectricTestRunner.Parameters;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import edu.mit.mobile.android.content.ForeignKeyDBHelper;
+import edu.mit.mobile.android.content.GenericDBHelper;
+import edu.mit.mobile.android.content.QuerystringWrapper;
+import edu.mit.mobile.android.content.dbhelper.SearchDBHelper;
+import edu.mit.mobile.android.content.query.QueryBuilder;
+import edu.mit.mobile.android.content.test.SampleProvider2;
+import edu.mit.mobile.android.content.test.sample2.BlogPost;
+import edu.mit.mobile.android.content.test.sample2.Comment;
+
+/**
+ * <p>
+ * Runs {@link SampleProvider2} from many threads at once, the way an app does when a sync adapter
+ * writes while the UI reads and searches. Each thread has one role, which goes through one of the
+ * provider's DBHelpers, and runs it as fast as it can for a while. For each mix of threads, the
+ * throughput, p50/p99/p99.9 latency and the time the threads of each role spent blocked or
+ * waiting are reported. Comparing the throughput of mixes with more threads of a role shows how it
+ * scales.
+ * </p>
+ *
+ * <p>
+ * The blocked/waited time is the thread's total time blocked on monitors or waiting to be
+ * signalled, as reported by {@link ThreadMXBean}, while measuring. It isn't the lock wait of the
+ * role's DBHelper: it also covers SQLite's connection pool, the helpers' own locks such as
+ * {@link QuerystringWrapper}'s query cache, and Robolectric handing calls to its main looper. It's
+ * only a hint of where the threads of a mix queue up, to compare between mixes.
+ * </p>
+ *
+ * <p>
+ * The mixes are set using {@code benchmark.concurrency.mixes}, a comma-separated list of
+ * <var>writers</var>:<var>readers</var>:<var>childReaders</var>:<var>searchers</var>. Each mix
+ * runs for {@code benchmark.concurrency.warmup} seconds before being measured for
+ * {@code benchmark.concurrency.seconds}, on tables of {@code benchmark.concurrency.rows} posts and
+ * comments. If {@code benchmark.concurrency.results} is set, the results are also written there as
+ * a JSON array.
+ * </p>
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ConcurrencyBenchmark {
+
+    private static final int ROWS = Integer.getInteger("benchmark.concurrency.rows", 10000);
+
+    private static final String MIXES = System.getProperty("benchmark.concurrency.mixes",
+            "1:0:0:0,0:1:0:0,0:4:0:0,1:1:1:1,1:4:2:1,2:8:4:2,4:16:8:4");
+
+    private static final int WARMUP_SECONDS = Integer.getInteger("benchmark.concurrency.warmup", 2);
+
+    private static final int SECONDS = Integer.getInteger("benchmark.concurrency.seconds", 10);
+
+    private static final String RESULTS = System.getProperty("benchmark.concurrency.results");
+
+    /**
+     * The number of comments on each of the first posts.
+     */
+    private static final int CHILDREN = 10;
+
+    private static final List<String> RESULT_LIST = new ArrayList<String>();
+
+    /**
+     * What a thread does. Each role goes through a different DBHelper.
+     */
+    private static enum Role {
+        /**
+         * Inserts posts, through the {@link GenericDBHelper} wrapped by a
+         * {@link QuerystringWrapper}.
+         */
+        WRITER("QuerystringWrapper(GenericDBHelper) insert") {
+            @Override
+            public void run(ContentResolver cr, SampleData data, int thread, int i) {
+                final ContentValues cv = new ContentValues();
+                // titles must be unique, as they make the slug
+                cv.put(BlogPost.TITLE, "post " + thread + " " + i);
+                cv.put(BlogPost.BODY, data.sentence());
+                cr.insert(BlogPost.CONTENT_URI, cv);
+            }
+        },
+
+        /**
+         * Reads a page of posts using a querystring.
+         */
+        READER("QuerystringWrapper(GenericDBHelper) query") {
+            @Override
+            public void run(ContentResolver cr, SampleData data, int thread, int i) {
+                SampleData.drain(cr.query(
+                        new QueryBuilder(BlogPost.CONTENT_URI)
+                                .startsWith(BlogPost.TITLE, "post " + data.nextInt(ROWS))
+                                .sortBy(BlogPost.TITLE).limit(20).build(), null, null, null,
+                        null));
+            }
+        },
+
+        /**
+         * Reads the comments of a post, through the {@link ForeignKeyDBHelper}.
+         */
+        CHILD_READER("QuerystringWrapper(ForeignKeyDBHelper) query") {
+            @Override
+            public void run(ContentResolver cr, SampleData data, int thread, int i) {
+                SampleData.drain(cr.query(BlogPost.COMMENTS.getUri(ContentUris.withAppendedId(
+                        BlogPost.CONTENT_URI, data.randomId(ROWS / CHILDREN))), null, null,
+                        null, null));
+            }
+        },
+
+        /**
+         * Searches posts and comments, through the {@link SearchDBHelper}.
+         */
+        SEARCHER("SearchDBHelper query") {
+            @Override
+            public void run(ContentResolver cr, SampleData data, int thread, int i) {
+                SampleData.drain(cr.query(
+                        Uri.withAppendedPath(SampleProvider2.SEARCH, data.randomWord())
+                                .buildUpon().appendQueryParameter("limit", "20").build(), null,
+                        null, null, null));
+            }
+        };
+
+        private final String mHelper;
+
+        private Role(String helper) {
+            mHelper = helper;
+        }
+
+        public String getHelper() {
+            return mHelper;
+        }
+
+        public abstract void run(ContentResolver cr, SampleData data, int thread, int i);
+    }
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> mixes() {
+        final List<Object[]> mixes = new ArrayList<Object[]>();
+        for (final String mix : MIXES.split(",")) {
+            mixes.add(new Object[] { mix.trim() });
+        }
+        return mixes;
+    }
+
+    private final String mMix;
+    private final int[] mThreads = new int[Role.values().length];
+    private ContentResolver mResolver;
+
+    public ConcurrencyBenchmark(String mix) {
+        mMix = mix;
+        final String[] counts = mix.split(":");
+        if (counts.length != mThreads.length) {
+            throw new IllegalArgumentException("mix '" + mix + "' must have " + mThreads.length
+                    + " thread counts");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            mThreads[i] = Integer.parseInt(counts[i]);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(SampleProvider2.class, SampleProvider2.AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads.isThreadContentionMonitoringSupported()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+
+        final SampleData data = new SampleData(mResolver, 42);
+        data.populate(BlogPost.CONTENT_URI, 0, ROWS, new SampleData.Rows() {
+            @Override
+            public ContentValues get(int i) {
+                final ContentValues cv = new ContentValues();
+                cv.put(BlogPost.TITLE, "post " + i);
+                cv.put(BlogPost.BODY, data.sentence());
+                return cv;
+            }
+        });
+        final SampleData.Rows comments = new SampleData.Rows() {
+            @Override
+            public ContentValues get(int i) {
+                final ContentValues cv = new ContentValues();
+                cv.put(Comment.BODY, data.sentence());
+                return cv;
+            }
+        };
+        for (int post = 1; post <= ROWS / CHILDREN; post++) {
+            data.populate(BlogPost.COMMENTS.getUri(ContentUris.withAppendedId(
+                    BlogPost.CONTENT_URI, post)), 0, CHILDREN, comments);
+        }
+    }
+
+    @Test
+    public void run() throws Throwable {
+        final List<Worker> workers = new ArrayList<Worker>();
+        for (final Role role : Role.values()) {
+            for (int i = 0; i < mThreads[role.ordinal()]; i++) {
+                workers.add(new Worker(role, workers.size()));
+            }
+        }
+
+        final CountDownLatch ready = new CountDownLatch(workers.size());
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (final Worker worker : workers) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        start.await();
+                        worker.run();
+                    } catch (final Throwable e) {
+                        worker.mError = e;
+                    }
+                }
+            }, worker.mRole + "-" + worker.mIndex);
+            threads.add(thread);
+            thread.start();
+        }
+
+        ready.await();
+        final long now = System.nanoTime();
+        final long measureStart = now + WARMUP_SECONDS * 1000000000L;
+        final long measureEnd = measureStart + SECONDS * 1000000000L;
+        for (final Worker worker : workers) {
+            worker.mMeasureStart = measureStart;
+            worker.mMeasureEnd = measureEnd;
+        }
+        start.countDown();
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        for (final Worker worker : workers) {
+            if (worker.mError != null) {
+                throw worker.mError;
+            }
+        }
+
+        for (final Role role : Role.values()) {
+            final LatencyRecorder latency = new LatencyRecorder(role.name(), ROWS);
+            long blockedWaited = 0;
+            int count = 0;
+            for (final Worker worker : workers) {
+                if (worker.mRole == role) {
+                    latency.addAll(worker.mLatency);
+                    blockedWaited += worker.mBlockedWaited;
+                    count++;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            report(role, count, latency, blockedWaited);
+        }
+    }
+
+    private void report(Role role, int threads, LatencyRecorder latency, long blockedWaitedMs) {
+        final double throughput = latency.getCount() / (double) SECONDS;
+        final double blockedWaitedPerOp = latency.getCount() == 0 ? 0 : blockedWaitedMs * 1e3
+                / latency.getCount();
+
+        System.out.println(String.format(Locale.US,
+                "%s %-9s %-12s %-45s %3d threads %10.1f ops/s  p50 %9.1f us  p99 %9.1f us  "
+                        + "p99.9 %9.1f us  blocked/waited %8d ms (%.1f us/op)",
+                getClass().getSimpleName(), mMix, role, role.getHelper(), threads, throughput,
+                latency.getPercentile(50) / 1e3, latency.getPercentile(99) / 1e3,
+                latency.getPercentile(99.9) / 1e3, blockedWaitedMs, blockedWaitedPerOp));
+
+        RESULT_LIST.add(String.format(Locale.US,
+                "{\"mix\": \"%s\", \"role\": \"%s\", \"helper\": \"%s\", \"threads\": %d, "
+                        + "\"rows\": %d, \"ops\": %d, \"throughput\": %.3f, \"p50\": %d, "
+                        + "\"p99\": %d, \"p999\": %d, \"blockedWaitedMs\": %d, \"unit\": \"ns\"}",
+                mMix, role, role.getHelper(), threads, ROWS, latency.getCount(), throughput,
+                latency.getPercentile(50), latency.getPercentile(99),
+                latency.getPercentile(99.9), blockedWaitedMs));
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        if (RESULTS == null) {
+            return;
+        }
+        final Writer out = new FileWriter(RESULTS);
+        try {
+            out.write("[\n");
+            for (int i = 0; i < RESULT_LIST.size(); i++) {
+                out.write("  ");
+                out.write(RESULT_LIST.get(i));
+                out.write(i < RESULT_LIST.size() - 1 ? ",\n" : "\n");
+            }
+            out.write("]\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * One thread of a role. Operations are only recorded between the end of the warm-up and the
+     * end of the run.
+     */
+    private class Worker {
+        final Role mRole;
+        final int mIndex;
+        final LatencyRecorder mLatency;
+        final SampleData mData;
+
+        volatile long mMeasureStart;
+        volatile long mMeasureEnd;
+
+        /**
+         * The time spent blocked or waiting while measuring, in milliseconds.
+         */
+        long mBlockedWaited;
+        volatile Throwable mError;
+
+        Worker(Role role, int index) {
+            mRole = role;
+            mIndex = index;
+            mLatency = new LatencyRecorder(role.name(), ROWS);
+            mData = new SampleData(mResolver, index);
+        }
+
+        void run() {
+            final long measureStart = mMeasureStart;
+            final long measureEnd = mMeasureEnd;
+            long blockedWaitedStart = -1;
+
+            for (int i = 0;; i++) {
+                final long start = System.nanoTime();
+                if (start >= measureEnd) {
+                    break;
+                }
+                final boolean measuring = start >= measureStart;
+                if (measuring && blockedWaitedStart == -1) {
+                    blockedWaitedStart = getBlockedWaited();
+                }
+
+                mRole.run(mResolver, mData, mIndex, i);
+
+                if (measuring) {
+                    mLatency.record(System.nanoTime() - start);
+                }
+            }
+            if (blockedWaitedStart != -1) {
+                mBlockedWaited = getBlockedWaited() - blockedWaitedStart;
+            }
+        }
+
+        /**
+         * @return the total time the current thread has spent blocked or waiting, in
+         *         milliseconds, or 0 if that isn't available
+         */
+        private long getBlockedWaited() {
+            final ThreadInfo info = ManagementFactory.getThreadMXBean().getThreadInfo(
+                    Thread.currentThread().getId());
+            final long blocked = info.getBlockedTime();
+            final long waited = info.getWaitedTime();
+            return Math.max(blocked, 0) + Math.max(waited, 0);
+        }
+    }
+}
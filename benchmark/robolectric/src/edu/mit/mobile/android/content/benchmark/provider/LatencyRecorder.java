@@ -0,0 +1,128 @@
+package edu.mit.mobile.android.content.benchmark.provider;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records the latency of each operation of a benchmark and summarizes them as throughput and
+ * percentiles.
+ */
+class LatencyRecorder {
+    private final String mName;
+    private final int mRows;
+    private long[] mLatencies = new long[1024];
+    private int mCount;
+    private long mStart;
+
+    public LatencyRecorder(String name, int rows) {
+        mName = name;
+        mRows = rows;
+    }
+
+    /**
+     * Marks the start of an operation.
+     */
+    public void start() {
+        mStart = System.nanoTime();
+    }
+
+    /**
+     * Marks the end of the operation started by {@link #start()}.
+     */
+    public void stop() {
+        record(System.nanoTime() - mStart);
+    }
+
+    /**
+     * Records the latency of an operation that was timed elsewhere.
+     *
+     * @param latency
+     *            in nanoseconds
+     */
+    public void record(long latency) {
+        if (mCount == mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+        }
+        mLatencies[mCount++] = latency;
+    }
+
+    /**
+     * Adds the latencies recorded by another recorder, eg. one per thread.
+     */
+    public void addAll(LatencyRecorder other) {
+        if (mCount + other.mCount > mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mCount + other.mCount);
+        }
+        System.arraycopy(other.mLatencies, 0, mLatencies, mCount, other.mCount);
+        mCount += other.mCount;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the number of operations per second, counting only the time spent in them
+     */
+    public double getThroughput() {
+        long total = 0;
+        for (int i = 0; i < mCount; i++) {
+            total += mLatencies[i];
+        }
+        return total == 0 ? 0 : mCount * 1e9 / total;
+    }
+
+    /**
+     * @param percentile
+     *            between 0 and 100
+     * @return the latency in nanoseconds that the given percentage of operations were at or under
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(mLatencies, mCount);
+        Arrays.sort(sorted);
+        // nearest-rank
+        final int rank = (int) Math.ceil(percentile / 100 * mCount);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%-24s %9d rows %8d ops %12.1f ops/s  p50 %9.1f us  p99 %9.1f us", mName,
+                mRows, mCount, getThroughput(), getPercentile(50) / 1e3, getPercentile(99) / 1e3);
+    }
+
+    /**
+     * @return the summary as a JSON object
+     */
+    public String toJson() {
+        return String.format(Locale.US,
+                "{\"benchmark\": \"%s\", \"rows\": %d, \"ops\": %d, \"throughput\": %.3f, "
+                        + "\"p50\": %d, \"p99\": %d, \"unit\": \"ns\"}", mName, mRows, mCount,
+                getThroughput(), getPercentile(50), getPercentile(99));
+    }
+}
@@ -0,0 +1,389 @@
+package edu.mit.mobile.android.content.benchmark.provider;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.ParameterizedRobolectricTestRunner.Parameters;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import edu.mit.mobile.android.content.query.QueryBuilder;
+import edu.mit.mobile.android.content.test.SampleProvider1;
+import edu.mit.mobile.android.content.test.SampleProvider2;
+import edu.mit.mobile.android.content.test.SampleProvider3;
+import edu.mit.mobile.android.content.test.SampleProvider4;
+import edu.mit.mobile.android.content.test.sample1.Message;
+import edu.mit.mobile.android.content.test.sample2.BlogPost;
+import edu.mit.mobile.android.content.test.sample2.Comment;
+import edu.mit.mobile.android.content.test.sample3.Project;
+
+/**
+ * <p>
+ * Runs the sample providers from the tests end to end, through a {@link ContentResolver}, on a
+ * desktop JVM. Robolectric provides the framework, backed by a real SQLite, so the numbers include
+ * URI matching, SQL generation, the helpers and the database itself.
+ * </p>
+ *
+ * <p>
+ * Each sample's tables are first filled to the given number of rows, then every operation is run
+ * {@code benchmark.ops} times and its throughput and p50/p99 latency are reported. Reads are run
+ * before writes, so that they're measured on tables of the given size. The row counts
+ * are set using {@code benchmark.rows}, a comma-separated list (1000, 100000 and 1000000 by
+ * default). If {@code benchmark.results} is set, the results are also written there as a JSON
+ * array.
+ * </p>
+ *
+ * <p>
+ * This is a JUnit test so that it can use Robolectric's runner. It isn't part of the test suite,
+ * as filling the largest tables takes a while.
+ * </p>
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ProviderBenchmark {
+
+    private static final int OPS = Integer.getInteger("benchmark.ops", 1000);
+
+    private static final String ROWS = System.getProperty("benchmark.rows", "1000,100000,1000000");
+
+    private static final String RESULTS = System.getProperty("benchmark.results");
+
+    /**
+     * The number of rows inserted by each bulkInsert and applyBatch operation.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * The number of children each parent has in the FK and M2M relationships.
+     */
+    private static final int CHILDREN = 10;
+
+    private static final List<LatencyRecorder> RESULT_LIST = new ArrayList<LatencyRecorder>();
+
+    @Parameters(name = "{0} rows")
+    public static Collection<Object[]> rows() {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        for (final String count : ROWS.split(",")) {
+            rows.add(new Object[] { Integer.valueOf(count.trim()) });
+        }
+        return rows;
+    }
+
+    private final int mRows;
+    private ContentResolver mResolver;
+    // the same sequence of operations each run
+    private SampleData mData;
+    private LatencyRecorder mCurrent;
+
+    public ProviderBenchmark(int rows) {
+        mRows = rows;
+    }
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(SampleProvider1.class, SampleProvider1.AUTHORITY);
+        Robolectric.setupContentProvider(SampleProvider2.class, SampleProvider2.AUTHORITY);
+        Robolectric.setupContentProvider(SampleProvider3.class, SampleProvider3.AUTHORITY);
+        Robolectric.setupContentProvider(SampleProvider4.class, SampleProvider4.AUTHORITY);
+
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mData = new SampleData(mResolver, 42);
+    }
+
+    /**
+     * Inserts and queries on a plain table.
+     */
+    @Test
+    public void sampleProvider1() throws Exception {
+        mData.populate(Message.CONTENT_URI, 0, mRows, new SampleData.Rows() {
+            @Override
+            public ContentValues get(int i) {
+                return message(i);
+            }
+        });
+
+        // reads are measured first, on the table as it was filled
+        LatencyRecorder r = newRecorder("sample1.queryItem");
+        for (int i = 0; i < OPS; i++) {
+            final Uri item = ContentUris.withAppendedId(Message.CONTENT_URI,
+                    mData.randomId(mRows));
+            r.start();
+            SampleData.drain(mResolver.query(item, null, null, null, null));
+            r.stop();
+        }
+
+        r = newRecorder("sample1.insert");
+        for (int i = 0; i < OPS; i++) {
+            final ContentValues cv = message(i);
+            r.start();
+            mResolver.insert(Message.CONTENT_URI, cv);
+            r.stop();
+        }
+
+        r = newRecorder("sample1.bulkInsert");
+        for (int i = 0; i < OPS; i++) {
+            final ContentValues[] cvs = new ContentValues[BATCH_SIZE];
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                cvs[j] = message(j);
+            }
+            r.start();
+            mResolver.bulkInsert(Message.CONTENT_URI, cvs);
+            r.stop();
+        }
+
+        r = newRecorder("sample1.applyBatch");
+        for (int i = 0; i < OPS; i++) {
+            final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(
+                    BATCH_SIZE);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                ops.add(ContentProviderOperation.newInsert(Message.CONTENT_URI)
+                        .withValues(message(j)).build());
+            }
+            r.start();
+            mResolver.applyBatch(SampleProvider1.AUTHORITY, ops);
+            r.stop();
+        }
+    }
+
+    /**
+     * Querystring queries, foreign key children and search.
+     */
+    @Test
+    public void sampleProvider2() throws Exception {
+        mData.populate(BlogPost.CONTENT_URI, 0, mRows, new SampleData.Rows() {
+            @Override
+            public ContentValues get(int i) {
+                final ContentValues cv = new ContentValues();
+                cv.put(BlogPost.TITLE, "post " + i);
+                cv.put(BlogPost.BODY, mData.sentence());
+                return cv;
+            }
+        });
+
+        // the first posts each get a few comments, for as many comments as there are posts
+        final SampleData.Rows comments = new SampleData.Rows() {
+            @Override
+            public ContentValues get(int i) {
+                final ContentValues cv = new ContentValues();
+                cv.put(Comment.BODY, mData.sentence());
+                return cv;
+            }
+        };
+        final int parents = Math.max(mRows / CHILDREN, 1);
+        for (int post = 1; post <= parents; post++) {
+            mData.populate(BlogPost.COMMENTS.getUri(ContentUris.withAppendedId(
+                    BlogPost.CONTENT_URI, post)), 0, CHILDREN, comments);
+        }
+
+        LatencyRecorder r = newRecorder("sample2.queryDir");
+        for (int i = 0; i < OPS; i++) {
+            final Uri page = new QueryBuilder(BlogPost.CONTENT_URI)
+                    .startsWith(BlogPost.TITLE, "post " + mData.nextInt(mRows))
+                    .sortBy(BlogPost.TITLE).limit(20).build();
+            r.start();
+            SampleData.drain(mResolver.query(page, null, null, null, null));
+            r.stop();
+        }
+
+        r = newRecorder("sample2.queryItem");
+        for (int i = 0; i < OPS; i++) {
+            final Uri item = ContentUris.withAppendedId(BlogPost.CONTENT_URI,
+                    mData.randomId(mRows));
+            r.start();
+            SampleData.drain(mResolver.query(item, null, null, null, null));
+            r.stop();
+        }
+
+        r = newRecorder("sample2.fkChildren");
+        for (int i = 0; i < OPS; i++) {
+            final Uri children = BlogPost.COMMENTS.getUri(ContentUris.withAppendedId(
+                    BlogPost.CONTENT_URI, mData.randomId(parents)));
+            r.start();
+            SampleData.drain(mResolver.query(children, null, null, null, null));
+            r.stop();
+        }
+
+        r = newRecorder("sample2.search");
+        for (int i = 0; i < OPS; i++) {
+            final Uri search = Uri.withAppendedPath(SampleProvider2.SEARCH, mData.randomWord())
+                    .buildUpon().appendQueryParameter("limit", "20").build();
+            r.start();
+            SampleData.drain(mResolver.query(search, null, null, null, null));
+            r.stop();
+        }
+    }
+
+    /**
+     * Many-to-many relationships, in both directions.
+     */
+    @Test
+    public void sampleProvider3() throws Exception {
+        final SampleData.Rows people = new SampleData.Rows() {
+            @Override
+            public ContentValues get(int i) {
+                return edu.mit.mobile.android.content.test.sample3.Person.toCv("person " + i);
+            }
+        };
+
+        // each project has a few people, for as many people as there are rows
+        final int projects = Math.max(mRows / CHILDREN, 1);
+        mData.populate(Project.CONTENT_URI, 0, projects, new SampleData.Rows() {
+            @Override
+            public ContentValues get(int i) {
+                final ContentValues cv = new ContentValues();
+                cv.put(Project.NAME, "project " + i);
+                return cv;
+            }
+        });
+        for (int project = 1; project <= projects; project++) {
+            mData.populate(Project.PEOPLE.getUri(ContentUris.withAppendedId(
+                    Project.CONTENT_URI, project)), (project - 1) * CHILDREN, CHILDREN, people);
+        }
+
+        // reads are measured first, on the tables as they were filled
+        LatencyRecorder r = newRecorder("sample3.m2mQueryTo");
+        for (int i = 0; i < OPS; i++) {
+            final Uri dir = Project.PEOPLE.getUri(ContentUris.withAppendedId(Project.CONTENT_URI,
+                    mData.randomId(projects)));
+            r.start();
+            SampleData.drain(mResolver.query(dir, null, null, null, null));
+            r.stop();
+        }
+
+        r = newRecorder("sample3.m2mQueryFrom");
+        for (int i = 0; i < OPS; i++) {
+            final Uri dir = edu.mit.mobile.android.content.test.sample3.Person.PROJECTS
+                    .getUri(ContentUris.withAppendedId(
+                            edu.mit.mobile.android.content.test.sample3.Person.CONTENT_URI,
+                            mData.randomId(mRows)));
+            r.start();
+            SampleData.drain(mResolver.query(dir, null, null, null, null));
+            r.stop();
+        }
+
+        r = newRecorder("sample3.m2mInsert");
+        for (int i = 0; i < OPS; i++) {
+            final Uri dir = Project.PEOPLE.getUri(ContentUris.withAppendedId(Project.CONTENT_URI,
+                    mData.randomId(projects)));
+            final ContentValues cv = people.get(mRows + i);
+            r.start();
+            mResolver.insert(dir, cv);
+            r.stop();
+        }
+    }
+
+    /**
+     * A table with a foreign key to itself.
+     */
+    @Test
+    public void sampleProvider4() throws Exception {
+        // every person but the first few has a supervisor
+        mData.populate(edu.mit.mobile.android.content.test.sample4.Person.CONTENT_URI, 0, mRows,
+                new SampleData.Rows() {
+                    @Override
+                    public ContentValues get(int i) {
+                        final ContentValues cv = edu.mit.mobile.android.content.test.sample4.Person
+                                .toCv("person " + i);
+                        if (i >= CHILDREN) {
+                            cv.put(edu.mit.mobile.android.content.test.sample4.Person.SUPERVISOR,
+                                    i / CHILDREN);
+                        }
+                        return cv;
+                    }
+                });
+
+        final LatencyRecorder r = newRecorder("sample4.fkSelfChildren");
+        final int supervisors = Math.max(mRows / CHILDREN, 1);
+        for (int i = 0; i < OPS; i++) {
+            final Uri dir = edu.mit.mobile.android.content.test.sample4.Person.SUBORDINATES
+                    .getUri(ContentUris.withAppendedId(
+                            edu.mit.mobile.android.content.test.sample4.Person.CONTENT_URI,
+                            mData.randomId(supervisors)));
+            r.start();
+            SampleData.drain(mResolver.query(dir, null, null, null, null));
+            r.stop();
+        }
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        if (RESULTS == null) {
+            return;
+        }
+        final Writer out = new FileWriter(RESULTS);
+        try {
+            out.write("[\n");
+            for (int i = 0; i < RESULT_LIST.size(); i++) {
+                out.write("  ");
+                out.write(RESULT_LIST.get(i).toJson());
+                out.write(i < RESULT_LIST.size() - 1 ? ",\n" : "\n");
+            }
+            out.write("]\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates a recorder for an operation. It's printed, and kept for the results, once the next
+     * recorder is created or the test finishes.
+     *
+     * @param name
+     *            the sample and operation, eg. {@code sample1.queryItem}, as several samples
+     *            measure the same operations
+     */
+    private LatencyRecorder newRecorder(String name) {
+        flushRecorder();
+        final LatencyRecorder r = new LatencyRecorder(name, mRows);
+        mCurrent = r;
+        return r;
+    }
+
+    @After
+    public void flushRecorder() {
+        if (mCurrent != null) {
+            System.out.println(getClass().getSimpleName() + " " + mCurrent);
+            RESULT_LIST.add(mCurrent);
+            mCurrent = null;
+        }
+    }
+
+    private ContentValues message(int i) {
+        final ContentValues cv = new ContentValues();
+        cv.put(Message.BODY, "message " + i + " " + mData.sentence());
+        return cv;
+    }
+}
@@ -0,0 +1,113 @@
+package edu.mit.mobile.android.content.benchmark.provider;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.Random;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Fills the sample providers with rows and picks random rows and words to query for. The same
+ * seed gives the same sequence each run.
+ */
+class SampleData {
+
+    /**
+     * The number of rows in each bulkInsert used to fill the tables.
+     */
+    private static final int POPULATE_BATCH_SIZE = 1000;
+
+    private static final String[] WORDS = { "robot", "kitten", "android", "content", "provider",
+            "database", "query", "sqlite", "cursor", "table", "column", "index", "search",
+            "benchmark", "latency", "throughput" };
+
+    /**
+     * Generates the values of a row of a table.
+     */
+    public static abstract class Rows {
+        public abstract ContentValues get(int i);
+    }
+
+    private final ContentResolver mResolver;
+    private final Random mRandom;
+
+    public SampleData(ContentResolver resolver, long seed) {
+        mResolver = resolver;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Inserts {@code count} rows into dir, starting with the row {@code first}.
+     */
+    public void populate(Uri dir, int first, int count, Rows rows) {
+        for (int i = 0; i < count; i += POPULATE_BATCH_SIZE) {
+            final ContentValues[] cvs = new ContentValues[Math.min(POPULATE_BATCH_SIZE, count - i)];
+            for (int j = 0; j < cvs.length; j++) {
+                cvs[j] = rows.get(first + i + j);
+            }
+            mResolver.bulkInsert(dir, cvs);
+        }
+    }
+
+    /**
+     * Reads every row of the cursor, so that lazily-run queries are included, then closes it.
+     */
+    public static int drain(Cursor c) {
+        int count = 0;
+        try {
+            while (c.moveToNext()) {
+                count++;
+            }
+        } finally {
+            c.close();
+        }
+        return count;
+    }
+
+    public int nextInt(int n) {
+        return mRandom.nextInt(n);
+    }
+
+    /**
+     * @return a random ID of a table with {@code count} rows
+     */
+    public long randomId(int count) {
+        return 1 + mRandom.nextInt(count);
+    }
+
+    public String randomWord() {
+        return WORDS[mRandom.nextInt(WORDS.length)];
+    }
+
+    /**
+     * @return a few random words
+     */
+    public String sentence() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(randomWord());
+        }
+        return sb.toString();
+    }
+}
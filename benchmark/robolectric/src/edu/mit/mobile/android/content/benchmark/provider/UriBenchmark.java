@@ -0,0 +1,64 @@
+package edu.mit.mobile.android.content.benchmark.provider;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.net.Uri;
+import edu.mit.mobile.android.content.ProviderUtils;
+
+/**
+ * <p>
+ * The {@link ProviderUtils} methods that take a {@link Uri}, which need the framework's
+ * implementation and so can't be run by the JMH benchmarks against the SDK's stubs.
+ * </p>
+ *
+ * <p>
+ * A single call is too short to time on its own, so each sample times {@link #CALLS} calls and
+ * records their average. {@code benchmark.ops} sets the number of samples.
+ * </p>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UriBenchmark {
+
+    private static final int OPS = Integer.getInteger("benchmark.ops", 1000);
+
+    private static final int CALLS = 1000;
+
+    private static final Uri CHILD_ITEM = Uri
+            .parse("content://edu.mit.mobile.android.content.benchmark/posts/42/comment/7");
+
+    @Test
+    public void removeLastPathSegments() {
+        final LatencyRecorder r = new LatencyRecorder("ProviderUtils.removeLastPathSegments", 0);
+        // keeps the calls from being optimized away
+        int length = 0;
+        for (int i = 0; i < OPS; i++) {
+            final long start = System.nanoTime();
+            for (int j = 0; j < CALLS; j++) {
+                length += ProviderUtils.removeLastPathSegments(CHILD_ITEM, 2).getPath().length();
+            }
+            r.record((System.nanoTime() - start) / CALLS);
+        }
+        System.out.println(getClass().getSimpleName() + " " + r + " (" + length + ")");
+    }
+}
@@ -0,0 +1,62 @@
+package edu.mit.mobile.android.content.benchmark;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import edu.mit.mobile.android.content.ContentItem;
+import edu.mit.mobile.android.content.DBTable;
+import edu.mit.mobile.android.content.column.BooleanColumn;
+import edu.mit.mobile.android.content.column.DBColumn;
+import edu.mit.mobile.android.content.column.DBColumn.CollationName;
+import edu.mit.mobile.android.content.column.DatetimeColumn;
+import edu.mit.mobile.android.content.column.IntegerColumn;
+import edu.mit.mobile.android.content.column.TextColumn;
+
+/**
+ * The item that the benchmarks query, with the columns used by {@link Queries}. It has no
+ * foreign keys or plain string default values, as generating their SQL needs the Android
+ * framework.
+ */
+@DBTable(BenchmarkItem.TABLE)
+public class BenchmarkItem implements ContentItem {
+
+    public static final String TABLE = "articles";
+
+    @DBColumn(type = TextColumn.class, notnull = true, flags = TextColumn.FLAG_TRIGRAM_INDEX)
+    public static final String TITLE = "title";
+
+    @DBColumn(type = TextColumn.class)
+    public static final String BODY = "body";
+
+    @DBColumn(type = BooleanColumn.class, notnull = true, defaultValueInt = 0)
+    public static final String DRAFT = "draft";
+
+    @DBColumn(type = TextColumn.class, collate = CollationName.NOCASE)
+    public static final String AUTHOR = "author";
+
+    @DBColumn(type = DatetimeColumn.class, defaultValue = DatetimeColumn.NOW_IN_MILLISECONDS)
+    public static final String CREATED = "created";
+
+    @DBColumn(type = DatetimeColumn.class, defaultValue = DatetimeColumn.NOW_IN_MILLISECONDS, flags = DatetimeColumn.FLAG_AUTO_NOW)
+    public static final String MODIFIED = "modified";
+
+    @DBColumn(type = TextColumn.class)
+    public static final String TAG = "tag";
+
+    @DBColumn(type = IntegerColumn.class)
+    public static final String RATING = "rating";
+}
@@ -0,0 +1,91 @@
+package edu.mit.mobile.android.content.benchmark;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.mit.mobile.android.content.ProviderUtils;
+import edu.mit.mobile.android.content.SelectionBuilder;
+
+/**
+ * The throughput of the {@link ProviderUtils} methods that every provider call goes through.
+ * {@link #addExtraWhereChain} and {@link #selectionBuilderChain} compare the two ways that a child
+ * item query adds its parent's and its own ID to the caller's selection. The methods that take a
+ * {@link android.net.Uri} need the framework, so they're measured by the Robolectric benchmarks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProviderUtilsBenchmark {
+
+    private static final String AUTHORITY = "edu.mit.mobile.android.content.benchmark";
+
+    // a ForeignKeyDBHelper restriction added to a caller's selection
+    private String mWhere = "\"title\" LIKE ? AND \"draft\" IS ?";
+    private String[] mWhereArgs = new String[] { "%hello%", "0" };
+    private String mExtraWhere = "\"post\"=?";
+    private String mParentId = "42";
+    private String mIdWhere = "_id=?";
+    private String mId = "7";
+
+    @Benchmark
+    public String addExtraWhere() {
+        return ProviderUtils.addExtraWhere(mWhere, mExtraWhere);
+    }
+
+    @Benchmark
+    public String[] addExtraWhereArgs() {
+        return ProviderUtils.addExtraWhereArgs(mWhereArgs, mParentId);
+    }
+
+    @Benchmark
+    public void addExtraWhereChain(Blackhole bh) {
+        final String where = ProviderUtils.addExtraWhere(mWhere, mExtraWhere);
+        final String[] whereArgs = ProviderUtils.addExtraWhereArgs(mWhereArgs, mParentId);
+        bh.consume(ProviderUtils.addExtraWhere(where, mIdWhere));
+        bh.consume(ProviderUtils.addExtraWhereArgs(whereArgs, mId));
+    }
+
+    @Benchmark
+    public void selectionBuilderChain(Blackhole bh) {
+        final SelectionBuilder selection = new SelectionBuilder(mWhere, mWhereArgs);
+        selection.add(mExtraWhere, mParentId);
+        selection.add(mIdWhere, mId);
+        bh.consume(selection.getSelection());
+        bh.consume(selection.getSelectionArgs());
+    }
+
+    @Benchmark
+    public String toDirType() {
+        return ProviderUtils.toDirType(AUTHORITY, "comment");
+    }
+}
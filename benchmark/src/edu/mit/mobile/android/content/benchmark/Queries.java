@@ -0,0 +1,46 @@
+package edu.mit.mobile.android.content.benchmark;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+/**
+ * Queries like those built by {@link edu.mit.mobile.android.content.query.QueryBuilder}, shared by
+ * the querystring benchmarks. The columns are those of {@link BenchmarkItem}.
+ */
+class Queries {
+
+    /**
+     * The query types, for use in {@code @Param}.
+     */
+    static final String SIMPLE = "simple", LIKE = "like", ESCAPED = "escaped", LONG = "long";
+
+    static String get(String type) {
+        if (SIMPLE.equals(type)) {
+            return "draft=0";
+        } else if (LIKE.equals(type)) {
+            return "title~=content+provider&draft=0";
+        } else if (ESCAPED.equals(type)) {
+            return "(author=steve%40example.com|author=caf%C3%A9+au+lait)&created>=1356998400000";
+        } else if (LONG.equals(type)) {
+            return "title~=hello&body!~=spam&draft=0&(author=steve|author=alice|author=bob)"
+                    + "&created>=1356998400000&created<1359676800000&modified!=0"
+                    + "&(tag=android|tag=java|tag=sqlite)&rating>3&body~=%22quoted%22";
+        }
+        throw new IllegalArgumentException("unknown query type " + type);
+    }
+}
@@ -0,0 +1,70 @@
+package edu.mit.mobile.android.content.benchmark;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.mobile.android.content.query.QueryBuilder;
+
+/**
+ * The throughput of assembling queries using {@link QueryBuilder}. The query string is built
+ * without a base URI, as {@link android.net.Uri} is only a stub outside of Android.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuilderBenchmark {
+
+    @Benchmark
+    public String simple() {
+        return new QueryBuilder().is(BenchmarkItem.DRAFT, "0").toQueryString();
+    }
+
+    /**
+     * The same query as {@link Queries#LONG}, with paging.
+     */
+    @Benchmark
+    public String full() {
+        return new QueryBuilder()
+                .like(BenchmarkItem.TITLE, "hello")
+                .andNotLike(BenchmarkItem.BODY, "spam")
+                .andIs(BenchmarkItem.DRAFT, "0")
+                .andChild(
+                        new QueryBuilder().is(BenchmarkItem.AUTHOR, "steve")
+                                .orIs(BenchmarkItem.AUTHOR, "alice")
+                                .orIs(BenchmarkItem.AUTHOR, "bob"))
+                .andGreaterEquals(BenchmarkItem.CREATED, "1356998400000")
+                .andLess(BenchmarkItem.CREATED, "1359676800000")
+                .andIsNot(BenchmarkItem.MODIFIED, "0")
+                .andIn(BenchmarkItem.TAG, "android", "java", "sqlite")
+                .andGreater(BenchmarkItem.RATING, "3")
+                .andLike(BenchmarkItem.BODY, "\"quoted\"")
+                .sortByDescending(BenchmarkItem.CREATED).limit(20).offset(40)
+                .toQueryString();
+    }
+}
@@ -0,0 +1,97 @@
+package edu.mit.mobile.android.content.benchmark;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.mobile.android.content.query.QuerystringLexer;
+import edu.mit.mobile.android.content.query.QuerystringParser;
+
+/**
+ * Compares {@link QuerystringLexer} with the {@link StreamTokenizerLexer} it replaced. Each
+ * benchmark scans a whole query and decodes and collects its words, which is the work the parser
+ * leaves to the scanner.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QuerystringLexerBenchmark {
+
+    @Param({ "simple", "like", "escaped", "long" })
+    public String queryType;
+
+    private String mQuery;
+
+    @Setup
+    public void setup() {
+        mQuery = Queries.get(queryType);
+    }
+
+    @Benchmark
+    public Object streamTokenizer() throws IOException {
+        final StreamTokenizerLexer lexer = new StreamTokenizerLexer(mQuery);
+        final LinkedList<String> words = new LinkedList<String>();
+
+        for (int token = lexer.yylex(); token != QuerystringParser.EOF; token = lexer.yylex()) {
+            if (token == QuerystringParser.STR) {
+                words.add(URLDecoder.decode(lexer.getLVal(), "utf-8"));
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    @Benchmark
+    public Object handWritten() {
+        final QuerystringLexer lexer = new QuerystringLexer(mQuery);
+        String[] words = new String[4];
+        int wordCount = 0;
+
+        for (int token = lexer.yylex(); token != QuerystringParser.EOF; token = lexer.yylex()) {
+            if (token == QuerystringParser.STR) {
+                if (wordCount == words.length) {
+                    final String[] words2 = new String[wordCount * 2];
+                    System.arraycopy(words, 0, words2, 0, wordCount);
+                    words = words2;
+                }
+                words[wordCount++] = QuerystringLexer.decode(lexer.getLVal());
+            }
+        }
+        final String[] result = new String[wordCount];
+        System.arraycopy(words, 0, result, 0, wordCount);
+        return result;
+    }
+}
@@ -0,0 +1,82 @@
+package edu.mit.mobile.android.content.benchmark;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.mobile.android.content.TrigramIndex;
+import edu.mit.mobile.android.content.query.QuerystringParser;
+import edu.mit.mobile.android.content.query.QuerystringSchema;
+
+/**
+ * The throughput of {@link QuerystringParser}, both on its own and as set up by
+ * {@link edu.mit.mobile.android.content.QuerystringWrapper QuerystringWrapper}, with the schema
+ * and trigram index of the wrapped item.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QuerystringParserBenchmark {
+
+    @Param({ Queries.SIMPLE, Queries.LIKE, Queries.ESCAPED, Queries.LONG })
+    public String queryType;
+
+    private String mQuery;
+    private QuerystringSchema mSchema;
+    private Set<String> mTrigramColumns;
+
+    @Setup
+    public void setup() {
+        mQuery = Queries.get(queryType);
+        mSchema = new QuerystringSchema(BenchmarkItem.class);
+        mTrigramColumns = TrigramIndex.getIndexedColumns(BenchmarkItem.class);
+    }
+
+    @Benchmark
+    public Object parse() throws IOException {
+        final QuerystringParser parser = new QuerystringParser(mQuery);
+        parser.parse();
+        return parser.getSelectionArgs();
+    }
+
+    @Benchmark
+    public Object parseWithSchema() throws IOException {
+        final QuerystringParser parser = new QuerystringParser(mQuery);
+        parser.setSchema(mSchema);
+        parser.setTrigramIndex(BenchmarkItem.TABLE, mTrigramColumns);
+        parser.parse();
+        return parser.getSelectionArgs();
+    }
+}
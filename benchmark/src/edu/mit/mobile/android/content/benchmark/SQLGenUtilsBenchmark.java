@@ -0,0 +1,62 @@
+package edu.mit.mobile.android.content.benchmark;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.mobile.android.content.SQLGenUtils;
+
+/**
+ * The throughput of {@link SQLGenUtils}. {@link SQLGenUtils#isValidName(String)} is called for
+ * every key of every query.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SQLGenUtilsBenchmark {
+
+    @Benchmark
+    public boolean isValidName() {
+        return SQLGenUtils.isValidName("modified_date");
+    }
+
+    @Benchmark
+    public boolean isValidNameInvalid() {
+        return SQLGenUtils.isValidName("Robert%27%29%3B+DROP+TABLE+Students%3B+--");
+    }
+
+    @Benchmark
+    public String toValidName() {
+        return SQLGenUtils.toValidName(BenchmarkItem.class);
+    }
+
+    @Benchmark
+    public String escapeTableName() {
+        return SQLGenUtils.escapeTableName("my \"quoted\" table");
+    }
+}
@@ -0,0 +1,81 @@
+package edu.mit.mobile.android.content.benchmark;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+import java.io.IOException;
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+
+import edu.mit.mobile.android.content.query.QuerystringLexer;
+import edu.mit.mobile.android.content.query.QuerystringParser;
+import edu.mit.mobile.android.content.query.QuerystringParser.ParseException;
+
+/**
+ * The {@link StreamTokenizer}-based scanner that {@link QuerystringParser} used before
+ * {@link QuerystringLexer}. This is only kept to compare the two.
+ */
+public class StreamTokenizerLexer implements QuerystringParser.Lexer {
+    private final StreamTokenizer mTokenizer;
+    private String mLVal;
+
+    public StreamTokenizerLexer(String str) {
+        mTokenizer = new StreamTokenizer(new StringReader(str));
+        mTokenizer.resetSyntax();
+        mTokenizer.eolIsSignificant(false);
+        mTokenizer.lowerCaseMode(false);
+
+        // standard words, no symbols.
+        mTokenizer.wordChars('A', 'Z');
+        mTokenizer.wordChars('a', 'z');
+        mTokenizer.wordChars('0', '9');
+        mTokenizer.wordChars('%', '%');
+        mTokenizer.wordChars('.', '.');
+        mTokenizer.wordChars('-', '-');
+        mTokenizer.wordChars('*', '*');
+        mTokenizer.wordChars('_', '_');
+        mTokenizer.wordChars('+', '+');
+        mTokenizer.wordChars('\u00A0', '\u00FF');
+    }
+
+    @Override
+    public String getLVal() {
+        return mLVal;
+    }
+
+    @Override
+    public int yylex() throws IOException {
+        final int ttype = mTokenizer.nextToken();
+        switch (ttype) {
+            case StreamTokenizer.TT_WORD:
+                mLVal = mTokenizer.sval;
+                return QuerystringParser.STR;
+
+            case StreamTokenizer.TT_EOF:
+                return QuerystringParser.EOF;
+
+            default:
+                return mTokenizer.ttype;
+        }
+    }
+
+    @Override
+    public void yyerror(String s) throws ParseException {
+        throw new ParseException(s + " near '" + mLVal + "'");
+    }
+}
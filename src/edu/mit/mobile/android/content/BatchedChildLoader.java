@@ -0,0 +1,569 @@
+package edu.mit.mobile.android.content;
+
+/*
+ * Copyright (C) 2011-2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * <p>
+ * Loads the children of many parents using a single query through a {@link BatchedManager}, then
+ * splits the result back out per parent. This is useful for adapters which need to show the
+ * children of each row they bind, as it avoids issuing one nearly identical query per row.
+ * </p>
+ *
+ * <p>
+ * Parent IDs can either be given all at once using {@link #load(long[])} or be requested one by
+ * one using {@link #request(long, OnChildrenLoadedListener)}. Requests made within
+ * {@link #setBatchWindow(long) the batch window} of the first request are collected and loaded
+ * together in the background, then handed to their listeners on the requesting thread.
+ * </p>
+ *
+ * <p>
+ * {@link #load(long[])} blocks and can be called from any thread. The request methods must all be
+ * called from the same thread, which needs a {@link Looper}; usually this is the UI thread. The
+ * loader is bound to the thread of its first request and throws an {@link IllegalStateException}
+ * if used from another one.
+ * </p>
+ *
+ * <p>
+ * The per-parent cursors are views onto one shared cursor. The shared cursor is closed once all
+ * the views (and the {@link Result}, if {@link #load(long[])} was used) have been closed.
+ * </p>
+ *
+ * <pre>
+ * final BatchedChildLoader loader = new BatchedChildLoader(getContentResolver(),
+ *         BlogPost.COMMENTS, BlogPost.CONTENT_URI, PROJECTION);
+ *
+ * final BatchedChildLoader.Result result = loader.load(postIds);
+ * final Cursor post1Comments = result.getChildren(postIds[0]);
+ * </pre>
+ *
+ */
+public class BatchedChildLoader {
+
+    /**
+     * The default amount of time, in milliseconds, that
+     * {@link #request(long, OnChildrenLoadedListener)} waits for more requests.
+     */
+    public static final long DEFAULT_BATCH_WINDOW = 20;
+
+    private final ContentResolver mCr;
+    private final BatchedManager mManager;
+    private final Uri mParentDir;
+    private final String[] mProjection;
+
+    private long mBatchWindow = DEFAULT_BATCH_WINDOW;
+    private Executor mExecutor;
+
+    private static Executor sDefaultExecutor;
+
+    // these are only used on the thread of mHandler
+    private Handler mHandler;
+    private final HashMap<Long, ArrayList<OnChildrenLoadedListener>> mPending = new HashMap<Long, ArrayList<OnChildrenLoadedListener>>();
+    private int mGeneration;
+
+    /**
+     * @param cr
+     * @param manager
+     *            the manager for the relationship between the parent and children
+     * @param parentDir
+     *            the dir URI of the parents, eg. {@code content://AUTHORITY/parent}
+     * @param projection
+     *            the projection of the children. The manager's
+     *            {@link BatchedManager#getParentIdColumn() parent ID column} will be added if
+     *            needed.
+     */
+    public BatchedChildLoader(ContentResolver cr, BatchedManager manager, Uri parentDir,
+            String[] projection) {
+        mCr = cr;
+        mManager = manager;
+        mParentDir = parentDir;
+        mProjection = projection;
+    }
+
+    /**
+     * Sets the amount of time that {@link #request(long, OnChildrenLoadedListener)} waits for more
+     * requests after the first one before loading them all.
+     *
+     * @param batchWindow
+     *            time in milliseconds
+     */
+    public void setBatchWindow(long batchWindow) {
+        mBatchWindow = batchWindow;
+    }
+
+    /**
+     * Sets the executor on which batched requests are loaded. By default, a single background
+     * thread is shared by all loaders.
+     *
+     * @param executor
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    private Executor getExecutor() {
+        if (mExecutor != null) {
+            return mExecutor;
+        }
+        synchronized (BatchedChildLoader.class) {
+            if (sDefaultExecutor == null) {
+                sDefaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, BatchedChildLoader.class
+                                .getSimpleName());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return sDefaultExecutor;
+        }
+    }
+
+    /**
+     * Loads the children of all the given parents using a single query.
+     *
+     * @param parentIds
+     * @return the children, split by parent. This must be closed when no longer needed.
+     */
+    public Result load(long[] parentIds) {
+        final Cursor c = mManager.query(mCr, mParentDir, parentIds, mProjection);
+
+        return new Result(c, c.getColumnIndexOrThrow(mManager.getParentIdColumn()));
+    }
+
+    /**
+     * Requests the children of the given parent. The request will be loaded along with any other
+     * requests made within the batch window. The listener is called on the calling thread, which
+     * must have a {@link Looper}.
+     *
+     * @param parentId
+     * @param listener
+     *            called once the children have been loaded. It's responsible for closing the
+     *            cursor.
+     * @throws IllegalStateException
+     *             if called from a different thread than the loader's first request
+     */
+    public void request(long parentId, OnChildrenLoadedListener listener) {
+        if (mHandler == null) {
+            mHandler = new Handler();
+        } else {
+            checkThread();
+        }
+
+        ArrayList<OnChildrenLoadedListener> listeners = mPending.get(parentId);
+        if (listeners == null) {
+            listeners = new ArrayList<OnChildrenLoadedListener>(1);
+            mPending.put(parentId, listeners);
+        }
+        listeners.add(listener);
+
+        // first request of this batch
+        if (mPending.size() == 1 && listeners.size() == 1) {
+            mHandler.postAtTime(mFlush, this, SystemClock.uptimeMillis() + mBatchWindow);
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Immediately starts loading any outstanding requests made with
+     * {@link #request(long, OnChildrenLoadedListener)}.
+     *
+     * @throws IllegalStateException
+     *             if called from a different thread than the loader's first request
+     */
+    public void flush() {
+        if (mHandler == null) {
+            return;
+        }
+        checkThread();
+        mHandler.removeCallbacksAndMessages(this);
+
+        if (mPending.isEmpty()) {
+            return;
+        }
+
+        final long[] parentIds = new long[mPending.size()];
+        int i = 0;
+        for (final Long parentId : mPending.keySet()) {
+            parentIds[i++] = parentId;
+        }
+
+        final HashMap<Long, ArrayList<OnChildrenLoadedListener>> pending = new HashMap<Long, ArrayList<OnChildrenLoadedListener>>(
+                mPending);
+        mPending.clear();
+
+        final Handler handler = mHandler;
+        final int generation = mGeneration;
+
+        getExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final Result result;
+                try {
+                    result = load(parentIds);
+
+                } catch (final RuntimeException e) {
+                    // rethrown where the requests were made, as that's where they'd be handled
+                    handler.post(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            throw e;
+                        }
+                    });
+                    return;
+                }
+
+                handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        deliver(generation, parentIds, pending, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void deliver(int generation, long[] parentIds,
+            HashMap<Long, ArrayList<OnChildrenLoadedListener>> pending, Result result) {
+        try {
+            // cancelled while loading
+            if (generation != mGeneration) {
+                return;
+            }
+            for (final long parentId : parentIds) {
+                for (final OnChildrenLoadedListener listener : pending.get(parentId)) {
+                    listener.onChildrenLoaded(parentId, result.getChildren(parentId));
+                }
+            }
+        } finally {
+            result.close();
+        }
+    }
+
+    /**
+     * Cancels any outstanding requests, including those that are already being loaded.
+     *
+     * @throws IllegalStateException
+     *             if called from a different thread than the loader's first request
+     */
+    public void cancel() {
+        if (mHandler == null) {
+            return;
+        }
+        checkThread();
+        mHandler.removeCallbacksAndMessages(this);
+        mPending.clear();
+        mGeneration++;
+    }
+
+    private void checkThread() {
+        if (mHandler.getLooper() != Looper.myLooper()) {
+            throw new IllegalStateException(
+                    "BatchedChildLoader requests must all be made from the same thread");
+        }
+    }
+
+    public interface OnChildrenLoadedListener {
+        /**
+         * @param parentId
+         * @param children
+         *            the children of the given parent. This must be closed when no longer needed.
+         */
+        public void onChildrenLoaded(long parentId, Cursor children);
+    }
+
+    /**
+     * The result of a batched load. Use {@link #getChildren(long)} to retrieve the children of a
+     * given parent.
+     *
+     */
+    public static class Result {
+        private final Cursor mCursor;
+        private final HashMap<Long, IntArray> mPositions = new HashMap<Long, IntArray>();
+        private int mRefCount = 1;
+
+        private static final IntArray EMPTY = new IntArray(0);
+
+        Result(Cursor c, int parentIdCol) {
+            mCursor = c;
+
+            final int count = c.getCount();
+            for (int pos = 0; pos < count; pos++) {
+                c.moveToPosition(pos);
+                final long parentId = c.getLong(parentIdCol);
+                IntArray positions = mPositions.get(parentId);
+                if (positions == null) {
+                    positions = new IntArray(4);
+                    mPositions.put(parentId, positions);
+                }
+                positions.add(pos);
+            }
+        }
+
+        /**
+         * @param parentId
+         * @return a cursor containing only the children of the given parent. This must be closed
+         *         when no longer needed.
+         */
+        public Cursor getChildren(long parentId) {
+            if (mRefCount == 0) {
+                throw new IllegalStateException("result has been closed");
+            }
+            final IntArray positions = mPositions.get(parentId);
+            mRefCount++;
+            return new ChildCursor(this, positions != null ? positions : EMPTY);
+        }
+
+        /**
+         * Releases this result. The shared cursor will be closed once all the cursors returned by
+         * {@link #getChildren(long)} have been closed as well.
+         */
+        public void close() {
+            release();
+        }
+
+        private void release() {
+            mRefCount--;
+            if (mRefCount == 0) {
+                mCursor.close();
+            }
+        }
+    }
+
+    /**
+     * A view onto the rows of the shared cursor that belong to a single parent.
+     */
+    private static class ChildCursor extends CursorWrapper {
+        private final Result mResult;
+        private final IntArray mPositions;
+        private int mPos = -1;
+        private boolean mClosed = false;
+
+        public ChildCursor(Result result, IntArray positions) {
+            super(result.mCursor);
+            mResult = result;
+            mPositions = positions;
+        }
+
+        /**
+         * Moves the shared cursor to this view's position, as other views may have moved it.
+         */
+        private void sync() {
+            if (mPos >= 0 && mPos < mPositions.size) {
+                final int pos = mPositions.values[mPos];
+                if (mResult.mCursor.getPosition() != pos) {
+                    mResult.mCursor.moveToPosition(pos);
+                }
+            }
+        }
+
+        @Override
+        public int getCount() {
+            return mPositions.size;
+        }
+
+        @Override
+        public int getPosition() {
+            return mPos;
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            final int count = mPositions.size;
+            if (position >= count) {
+                mPos = count;
+                return false;
+            }
+            if (position < 0) {
+                mPos = -1;
+                return false;
+            }
+            mPos = position;
+            return mResult.mCursor.moveToPosition(mPositions.values[position]);
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return moveToPosition(mPos + offset);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(mPositions.size - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(mPos + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(mPos - 1);
+        }
+
+        @Override
+        public boolean isFirst() {
+            return mPos == 0 && mPositions.size != 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            return mPos == mPositions.size - 1 && mPositions.size != 0;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return mPositions.size == 0 || mPos == -1;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return mPositions.size == 0 || mPos == mPositions.size;
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            sync();
+            return super.isNull(columnIndex);
+        }
+
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        @Override
+        public int getType(int columnIndex) {
+            sync();
+            return super.getType(columnIndex);
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            sync();
+            return super.getBlob(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            sync();
+            return super.getString(columnIndex);
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            sync();
+            super.copyStringToBuffer(columnIndex, buffer);
+        }
+
+        @Override
+        public short getShort(int columnIndex) {
+            sync();
+            return super.getShort(columnIndex);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            sync();
+            return super.getInt(columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            sync();
+            return super.getLong(columnIndex);
+        }
+
+        @Override
+        public float getFloat(int columnIndex) {
+            sync();
+            return super.getFloat(columnIndex);
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            sync();
+            return super.getDouble(columnIndex);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mResult.release();
+            }
+        }
+    }
+
+    /**
+     * A minimal growable array of ints, to avoid boxing each row position.
+     */
+    private static class IntArray {
+        int[] values;
+        int size;
+
+        public IntArray(int capacity) {
+            values = new int[capacity];
+        }
+
+        public void add(int value) {
+            if (size == values.length) {
+                final int[] values2 = new int[Math.max(4, size * 2)];
+                System.arraycopy(values, 0, values2, 0, size);
+                values = values2;
+            }
+            values[size++] = value;
+        }
+    }
+}
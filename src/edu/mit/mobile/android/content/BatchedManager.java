@@ -0,0 +1,52 @@
+package edu.mit.mobile.android.content;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * A {@link Manager} which can query the children of many parents at once. See
+ * {@link BatchedChildLoader} to split the result back out per parent.
+ *
+ */
+public interface BatchedManager extends Manager {
+
+    /**
+     * Queries the children of all the given parents using a single query. Each row of the
+     * resulting cursor contains the ID of its parent in the {@link #getParentIdColumn()} column,
+     * which will be added to the projection if needed.
+     *
+     * @param cr
+     * @param parentDir
+     *            the dir URI of the parents, eg. {@code content://AUTHORITY/parent}
+     * @param parentIds
+     *            the IDs of the parents whose children should be loaded
+     * @param projection
+     * @return a cursor containing the children of all the given parents
+     */
+    public abstract Cursor query(ContentResolver cr, Uri parentDir, long[] parentIds,
+            String[] projection);
+
+    /**
+     * @return the name of the column in which {@link #query(ContentResolver, Uri, long[], String[])}
+     *         returns the ID of each child's parent
+     */
+    public abstract String getParentIdColumn();
+}
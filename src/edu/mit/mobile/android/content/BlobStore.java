@@ -0,0 +1,172 @@
+package edu.mit.mobile.android.content;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import edu.mit.mobile.android.content.column.DedupBlobColumn;
+
+/**
+ * <p>
+ * Content-addressed storage for {@link DedupBlobColumn}s. Each distinct value is stored once in
+ * {@link #TABLE}, keyed by its SHA-256 hash, and rows only hold the hash. Identical values saved
+ * in any number of rows, in any table, share the one copy.
+ * </p>
+ *
+ * <p>
+ * Each stored value has a count of the rows referring to it, which triggers on the referring tables
+ * keep up to date as rows are inserted, updated and deleted. A value is deleted as soon as nothing
+ * refers to it any more. The values are stored by {@link GenericDBHelper} as the rows are saved
+ * and its queries read the values in place of the hashes.
+ * </p>
+ */
+public class BlobStore {
+
+    /**
+     * The table containing the values, shared by all the columns.
+     */
+    public static final String TABLE = "blob_store";
+
+    public static final String HASH = "hash", DATA = "data", REFS = "refs";
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * Generates the SQL needed to count the references of the given column. This must be executed
+     * after the table has been created.
+     *
+     * @param table
+     * @param column
+     * @return a list of SQL statements
+     */
+    public static List<String> getTriggerCreation(String table, String column) {
+        final ArrayList<String> sql = new ArrayList<String>();
+
+        final String escTable = SQLGenUtils.escapeTableName(table);
+        final String escColumn = '"' + column + '"';
+        final String triggerPrefix = "trigger_" + table + "_" + column + "_blob_";
+        final String refNew = "UPDATE " + TABLE + " SET " + REFS + " = " + REFS + " + 1 WHERE "
+                + HASH + " = new." + escColumn + ";";
+        final String releaseOld = "UPDATE " + TABLE + " SET " + REFS + " = " + REFS
+                + " - 1 WHERE " + HASH + " = old." + escColumn + ";" + "DELETE FROM " + TABLE
+                + " WHERE " + HASH + " = old." + escColumn + " AND " + REFS + " <= 0;";
+
+        sql.add("CREATE TABLE IF NOT EXISTS " + TABLE + " (" + HASH + " BLOB PRIMARY KEY, "
+                + DATA + " BLOB NOT NULL, " + REFS + " INTEGER NOT NULL DEFAULT 0)");
+
+        sql.add("CREATE TRIGGER " + triggerPrefix + "insert AFTER INSERT ON " + escTable
+                + " FOR EACH ROW WHEN new." + escColumn + " IS NOT NULL BEGIN " + refNew + "END");
+
+        // the new value is referenced before the old one is released, in case they're the same
+        sql.add("CREATE TRIGGER " + triggerPrefix + "update AFTER UPDATE OF " + escColumn + " ON "
+                + escTable + " FOR EACH ROW WHEN new." + escColumn + " IS NOT old." + escColumn
+                + " BEGIN " + refNew + releaseOld + "END");
+
+        sql.add("CREATE TRIGGER " + triggerPrefix + "delete AFTER DELETE ON " + escTable
+                + " FOR EACH ROW WHEN old." + escColumn + " IS NOT NULL BEGIN " + releaseOld
+                + "END");
+
+        return sql;
+    }
+
+    /**
+     * Stores the value, if it isn't already stored. It isn't referenced until a row refers to it,
+     * so this must be done within the same transaction as saving that row.
+     *
+     * @param db
+     * @param value
+     * @return the hash of the value, which is what's saved in the row
+     */
+    public static byte[] store(SQLiteDatabase db, byte[] value) {
+        final byte[] hash = hash(value);
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE + " (" + HASH + ", " + DATA + ") VALUES (?, ?)",
+                new Object[] { hash, value });
+        return hash;
+    }
+
+    /**
+     * @param value
+     * @return the hash that a value is stored under
+     */
+    public static byte[] hash(byte[] value) {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM).digest(value);
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param table
+     * @param column
+     * @return an expression that reads the value referred to by the column, named after the column
+     */
+    public static String getValueExpression(String table, String column) {
+        final String escColumn = '"' + column + '"';
+        return "(SELECT " + DATA + " FROM " + TABLE + " WHERE " + HASH + " = "
+                + SQLGenUtils.escapeTableName(table) + "." + escColumn + ") AS " + escColumn;
+    }
+
+    /**
+     * Releases the values referred to by all the rows of the given columns, eg. before the table is
+     * dropped.
+     *
+     * @param db
+     * @param table
+     * @param columns
+     *            the deduplicated columns of the table
+     */
+    public static void releaseAll(SQLiteDatabase db, String table, List<String> columns) {
+        final String escTable = SQLGenUtils.escapeTableName(table);
+        for (final String column : columns) {
+            final String escColumn = '"' + column + '"';
+            db.execSQL("UPDATE " + TABLE + " SET " + REFS + " = " + REFS
+                    + " - (SELECT count(*) FROM " + escTable + " WHERE " + escColumn + " = "
+                    + TABLE + "." + HASH + ") WHERE " + HASH + " IN (SELECT " + escColumn
+                    + " FROM " + escTable + ")");
+        }
+        deleteUnreferenced(db);
+    }
+
+    /**
+     * Deletes the values that no row refers to, such as those stored for a row that then failed to
+     * be saved. This must not be called while another thread might be saving a row.
+     *
+     * @param db
+     * @return the number of values deleted
+     */
+    public static int deleteUnreferenced(SQLiteDatabase db) {
+        return db.delete(TABLE, REFS + " <= 0", null);
+    }
+
+    /**
+     * @param db
+     * @return true if any deduplicated columns have been created in the given database
+     */
+    public static boolean exists(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?",
+                new String[] { TABLE }) != 0;
+    }
+}
@@ -17,12 +17,15 @@ package edu.mit.mobile.android.content;
  * License along with this library; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
+import java.io.FileNotFoundException;
+
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
 /**
  * Classes should extend this class and pass the result to {@link DBHelperMapper} to create their
@@ -54,6 +57,105 @@ public abstract class DBHelper {
     public abstract Cursor queryItem(SQLiteDatabase db, Uri uri, String[] projection,
             String selection, String[] selectionArgs, String sortOrder);
 
+    /**
+     * Like
+     * {@link #updateItem(SQLiteDatabase, ContentProvider, Uri, ContentValues, String, String[])
+     * updateItem}, but takes a selection that helpers wrapping or extending this one have added
+     * their own clauses to. By default, the selection is built and passed to that method. Helpers
+     * that add clauses to the selection should override this instead and pass the builder along,
+     * so the selection is built only once.
+     */
+    public int updateItem(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            ContentValues values, SelectionBuilder selection) {
+        return updateItem(db, provider, uri, values, selection.getSelection(),
+                selection.getSelectionArgs());
+    }
+
+    /**
+     * @see #updateItem(SQLiteDatabase, ContentProvider, Uri, ContentValues, SelectionBuilder)
+     */
+    public int updateDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            ContentValues values, SelectionBuilder selection) {
+        return updateDir(db, provider, uri, values, selection.getSelection(),
+                selection.getSelectionArgs());
+    }
+
+    /**
+     * @see #updateItem(SQLiteDatabase, ContentProvider, Uri, ContentValues, SelectionBuilder)
+     */
+    public int deleteItem(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            SelectionBuilder selection) {
+        return deleteItem(db, provider, uri, selection.getSelection(),
+                selection.getSelectionArgs());
+    }
+
+    /**
+     * @see #updateItem(SQLiteDatabase, ContentProvider, Uri, ContentValues, SelectionBuilder)
+     */
+    public int deleteDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            SelectionBuilder selection) {
+        return deleteDir(db, provider, uri, selection.getSelection(),
+                selection.getSelectionArgs());
+    }
+
+    /**
+     * @see #updateItem(SQLiteDatabase, ContentProvider, Uri, ContentValues, SelectionBuilder)
+     */
+    public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String sortOrder) {
+        return queryDir(db, uri, projection, selection.getSelection(),
+                selection.getSelectionArgs(), sortOrder);
+    }
+
+    /**
+     * Queries the directory, returning at most the given number of rows. Helpers that can limit
+     * their results must override this; by default, only a null limit is accepted.
+     *
+     * @param limit
+     *            the SQL LIMIT clause, as accepted by
+     *            {@link SQLiteDatabase#query(String, String[], String, String[], String, String, String, String)}
+     *            . Null is ok.
+     * @throws IllegalArgumentException
+     *             if a limit is given and the helper doesn't support it
+     * @see #updateItem(SQLiteDatabase, ContentProvider, Uri, ContentValues, SelectionBuilder)
+     */
+    public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String sortOrder, String limit) {
+        if (limit != null) {
+            throw new IllegalArgumentException(getClass().getSimpleName()
+                    + " does not support limiting its results");
+        }
+        return queryDir(db, uri, projection, selection, sortOrder);
+    }
+
+    /**
+     * @see #updateItem(SQLiteDatabase, ContentProvider, Uri, ContentValues, SelectionBuilder)
+     */
+    public Cursor queryItem(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String sortOrder) {
+        return queryItem(db, uri, projection, selection.getSelection(),
+                selection.getSelectionArgs(), sortOrder);
+    }
+
+    /**
+     * Opens the file of an item, for helpers whose items have a
+     * {@link edu.mit.mobile.android.content.column.FileColumn}. By default, items have no files.
+     *
+     * @param db
+     * @param provider
+     * @param uri
+     *            the URI of the item
+     * @param mode
+     *            the mode, as given to {@link ContentProvider#openFile(Uri, String)}
+     * @return the opened file
+     * @throws FileNotFoundException
+     *             if the item has no such file
+     */
+    public ParcelFileDescriptor openFile(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            String mode) throws FileNotFoundException {
+        throw new FileNotFoundException("no files for " + uri);
+    }
+
     public abstract String getDirType(String authority, String path);
 
     public abstract String getItemType(String authority, String path);
@@ -17,6 +17,8 @@ package edu.mit.mobile.android.content;
  * License along with this library; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
+import java.io.FileNotFoundException;
+
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.UriMatcher;
@@ -24,6 +26,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -213,6 +216,24 @@ public final class DBHelperMapper {
         }
     }
 
+    /**
+     * Opens a file of an item. Reading requires {@link #VERB_QUERY} and writing
+     * {@link #VERB_UPDATE}.
+     *
+     * @throws FileNotFoundException
+     *             if the code isn't for an item or the item has no such file
+     */
+    public ParcelFileDescriptor openFile(int code, ContentProvider provider, SQLiteDatabase db,
+            Uri uri, String mode) throws FileNotFoundException {
+        final DBHelperMapItem dbhmi = getMap(FileStore.isWriteMode(mode) ? VERB_UPDATE
+                : VERB_QUERY, code);
+
+        if (!dbhmi.isItem) {
+            throw new FileNotFoundException("not an item: " + uri);
+        }
+        return dbhmi.dbHelper.openFile(db, provider, uri, mode);
+    }
+
     private class DBHelperMapItem {
         public DBHelperMapItem(int verb, boolean isItem, String type, DBHelper dbHelper) {
             this.verb = verb;
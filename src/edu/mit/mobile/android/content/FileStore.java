@@ -0,0 +1,254 @@
+package edu.mit.mobile.android.content;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import edu.mit.mobile.android.content.column.FileColumn;
+
+/**
+ * <p>
+ * Manages the files of {@link FileColumn}s. Each file is stored in {@link #DIRECTORY} within the
+ * application's files directory, under a generated name which is what's stored in the row. The
+ * files are written and read using
+ * {@link android.content.ContentResolver#openOutputStream(android.net.Uri)} and
+ * {@link android.content.ContentResolver#openInputStream(android.net.Uri)} on the item's URI,
+ * which {@link SimpleContentProvider#openFile(android.net.Uri, String)} serves without copying.
+ * </p>
+ *
+ * <p>
+ * When a row is deleted or its file column is changed, triggers add the old name to
+ * {@link #ORPHANS_TABLE}. This works the same no matter which {@link DBHelper} deleted the row,
+ * including rows deleted by a foreign key's {@code ON DELETE CASCADE}. The provider deletes the
+ * files listed there using {@link #deleteOrphans(SQLiteDatabase, Context)} once the change is
+ * committed, so a transaction that's rolled back never loses a file.
+ * </p>
+ */
+public class FileStore {
+    private static final String TAG = FileStore.class.getSimpleName();
+
+    /**
+     * The table containing the names of the files whose rows are gone, shared by all file columns.
+     */
+    public static final String ORPHANS_TABLE = "file_orphans";
+
+    /**
+     * The directory within {@link Context#getFilesDir()} where the files are stored.
+     */
+    public static final String DIRECTORY = "content_files";
+
+    /**
+     * Generates the SQL needed to track the files of the given column. This must be executed after
+     * the table has been created.
+     *
+     * @param table
+     * @param column
+     * @return a list of SQL statements
+     */
+    public static List<String> getTriggerCreation(String table, String column) {
+        final ArrayList<String> sql = new ArrayList<String>();
+
+        final String escTable = SQLGenUtils.escapeTableName(table);
+        final String escColumn = '"' + column + '"';
+        final String triggerPrefix = "trigger_" + table + "_" + column + "_file_";
+        final String orphanOld = "INSERT INTO " + ORPHANS_TABLE + " (name) VALUES (old."
+                + escColumn + ");";
+
+        sql.add("CREATE TABLE IF NOT EXISTS " + ORPHANS_TABLE + " (name TEXT NOT NULL)");
+
+        sql.add("CREATE TRIGGER " + triggerPrefix + "delete AFTER DELETE ON " + escTable
+                + " FOR EACH ROW WHEN old." + escColumn + " IS NOT NULL BEGIN " + orphanOld
+                + "END");
+
+        sql.add("CREATE TRIGGER " + triggerPrefix + "update AFTER UPDATE OF " + escColumn
+                + " ON " + escTable + " FOR EACH ROW WHEN old." + escColumn
+                + " IS NOT NULL AND (new." + escColumn + " IS NULL OR new." + escColumn
+                + " != old." + escColumn + ") BEGIN " + orphanOld + "END");
+
+        return sql;
+    }
+
+    /**
+     * Adds the files of all the rows of the given columns to the orphans, eg. before the table is
+     * dropped.
+     *
+     * @param db
+     * @param table
+     * @param columns
+     *            the file columns of the table
+     */
+    public static void orphanAll(SQLiteDatabase db, String table, List<String> columns) {
+        for (final String column : columns) {
+            final String escColumn = '"' + column + '"';
+            db.execSQL("INSERT INTO " + ORPHANS_TABLE + " (name) SELECT " + escColumn + " FROM "
+                    + SQLGenUtils.escapeTableName(table) + " WHERE " + escColumn
+                    + " IS NOT NULL");
+        }
+    }
+
+    /**
+     * @param db
+     * @return true if any file columns have been created in the given database
+     */
+    public static boolean hasFileColumns(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?",
+                new String[] { ORPHANS_TABLE }) != 0;
+    }
+
+    /**
+     * Deletes the files of the rows that are gone. This must not be called within a transaction,
+     * as the rows may yet come back if it's rolled back.
+     *
+     * @param db
+     * @param context
+     * @return the number of files deleted
+     */
+    public static int deleteOrphans(SQLiteDatabase db, Context context) {
+        final long last;
+        final ArrayList<String> names = new ArrayList<String>();
+        final Cursor c = db.query(ORPHANS_TABLE, new String[] { "rowid", "name" }, null, null,
+                null, null, "rowid");
+        try {
+            if (!c.moveToLast()) {
+                return 0;
+            }
+            last = c.getLong(0);
+            c.moveToPosition(-1);
+            while (c.moveToNext()) {
+                names.add(c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+
+        int deleted = 0;
+        for (final String name : names) {
+            final File file;
+            try {
+                file = getFile(context, name);
+            } catch (final FileNotFoundException e) {
+                Log.w(TAG, "ignoring orphaned file with an invalid name: " + name);
+                continue;
+            }
+            if (file.delete()) {
+                deleted++;
+            } else if (file.exists()) {
+                Log.w(TAG, "could not delete orphaned file " + file);
+            }
+        }
+        // newer orphans may have been added in the meantime
+        db.delete(ORPHANS_TABLE, "rowid <= ?", new String[] { Long.toString(last) });
+
+        return deleted;
+    }
+
+    /**
+     * @param table
+     * @return a new, unique name for a file of the given table
+     */
+    public static String newFileName(String table) {
+        return table + "-" + UUID.randomUUID();
+    }
+
+    /**
+     * @param name
+     * @return true if the name can be used for a file in the directory
+     */
+    public static boolean isValidName(String name) {
+        return name.length() > 0 && name.charAt(0) != '.' && name.indexOf('/') == -1
+                && name.indexOf(File.separatorChar) == -1;
+    }
+
+    /**
+     * @param context
+     * @param name
+     *            the name stored in the row
+     * @return the file with the given name
+     * @throws FileNotFoundException
+     *             if the name isn't a valid file name, eg. one that would refer to a file outside
+     *             the directory
+     */
+    public static File getFile(Context context, String name) throws FileNotFoundException {
+        if (!isValidName(name)) {
+            throw new FileNotFoundException("invalid file name '" + name + "'");
+        }
+        return new File(new File(context.getFilesDir(), DIRECTORY), name);
+    }
+
+    /**
+     * Opens the given file, creating its directory if needed.
+     *
+     * @param file
+     * @param mode
+     *            the mode, as given to
+     *            {@link android.content.ContentProvider#openFile(android.net.Uri, String)}
+     * @return the opened file
+     * @throws FileNotFoundException
+     *             if the file can't be opened or the mode isn't valid
+     */
+    public static ParcelFileDescriptor open(File file, String mode) throws FileNotFoundException {
+        final int modeBits = toModeBits(mode);
+        if ((modeBits & ParcelFileDescriptor.MODE_CREATE) != 0) {
+            file.getParentFile().mkdirs();
+        }
+        return ParcelFileDescriptor.open(file, modeBits);
+    }
+
+    /**
+     * @param mode
+     * @return true if the mode allows writing to the file
+     */
+    public static boolean isWriteMode(String mode) {
+        return mode.indexOf('w') != -1;
+    }
+
+    private static int toModeBits(String mode) throws FileNotFoundException {
+        if ("r".equals(mode)) {
+            return ParcelFileDescriptor.MODE_READ_ONLY;
+
+        } else if ("w".equals(mode) || "wt".equals(mode)) {
+            return ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_TRUNCATE;
+
+        } else if ("wa".equals(mode)) {
+            return ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_APPEND;
+
+        } else if ("rw".equals(mode)) {
+            return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE;
+
+        } else if ("rwt".equals(mode)) {
+            return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_TRUNCATE;
+
+        } else {
+            throw new FileNotFoundException("invalid mode '" + mode + "'");
+        }
+    }
+}
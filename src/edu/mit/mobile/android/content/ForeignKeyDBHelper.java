@@ -62,76 +62,85 @@ public class ForeignKeyDBHelper extends GenericDBHelper {
 
     @Override
     public int updateItem(SQLiteDatabase db, ContentProvider provider, Uri uri,
-            ContentValues values, String where, String[] whereArgs) {
+            ContentValues values, SelectionBuilder selection) {
+        if (dispatchToOverride(selection, mOverridesUpdateItem)) {
+            return updateItem(db, provider, uri, values, selection.getSelection(),
+                    selection.getSelectionArgs());
+        }
         final String parentId = ProviderUtils.getNthPathFromEnd(uri, 2);
 
         return super.updateItem(db, provider, uri, values,
-                ProviderUtils.addExtraWhere(where, mColumnQuoted + "=?"),
-                ProviderUtils.addExtraWhereArgs(whereArgs, parentId));
+                selection.add(mColumnQuoted + "=?", parentId));
     }
 
     @Override
     public int updateDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
-            ContentValues values, String where, String[] whereArgs) {
+            ContentValues values, SelectionBuilder selection) {
+        if (dispatchToOverride(selection, mOverridesUpdateDir)) {
+            return updateDir(db, provider, uri, values, selection.getSelection(),
+                    selection.getSelectionArgs());
+        }
         final String parentId = ProviderUtils.getNthPathFromEnd(uri, 1);
 
         return super.updateDir(db, provider, uri, values,
-                ProviderUtils.addExtraWhere(where, mColumnQuoted + "=?"),
-                ProviderUtils.addExtraWhereArgs(whereArgs, parentId));
+                selection.add(mColumnQuoted + "=?", parentId));
     }
 
     @Override
-    public int deleteItem(SQLiteDatabase db, ContentProvider provider, Uri uri, String where,
-            String[] whereArgs) {
+    public int deleteItem(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            SelectionBuilder selection) {
+        if (dispatchToOverride(selection, mOverridesDeleteItem)) {
+            return deleteItem(db, provider, uri, selection.getSelection(),
+                    selection.getSelectionArgs());
+        }
         final String parentId = ProviderUtils.getNthPathFromEnd(uri, 2);
 
-        return super.deleteItem(db, provider, uri,
-                ProviderUtils.addExtraWhere(where, mColumnQuoted + "=?"),
-                ProviderUtils.addExtraWhereArgs(whereArgs, parentId));
+        return super.deleteItem(db, provider, uri, selection.add(mColumnQuoted + "=?", parentId));
     }
 
     @Override
-    public int deleteDir(SQLiteDatabase db, ContentProvider provider, Uri uri, String where,
-            String[] whereArgs) {
+    public int deleteDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            SelectionBuilder selection) {
+        if (dispatchToOverride(selection, mOverridesDeleteDir)) {
+            return deleteDir(db, provider, uri, selection.getSelection(),
+                    selection.getSelectionArgs());
+        }
         final String parentId = ProviderUtils.getNthPathFromEnd(uri, 1);
 
-        return super.deleteDir(db, provider, uri,
-                ProviderUtils.addExtraWhere(where, mColumnQuoted + "=?"),
-                ProviderUtils.addExtraWhereArgs(whereArgs, parentId));
+        return super.deleteDir(db, provider, uri, selection.add(mColumnQuoted + "=?", parentId));
     }
 
+    // the default sort order is handled by GenericDBHelper, which passes all dir queries here
     @Override
-    public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection, String selection,
-            String[] selectionArgs, String sortOrder) {
+    public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String groupBy, String having, String sortOrder,
+            String limit) {
+        if (dispatchToOverride(selection, mOverridesQueryDirGrouped || mOverridesQueryDir)) {
+            return queryDirOverride(db, uri, projection, selection, groupBy, having, sortOrder,
+                    limit);
+        }
         final String parentId = ProviderUtils.getNthPathFromEnd(uri, 1);
 
-        if (WILDCARD_PATH_SEGMENT.equals(parentId)) {
-            return super.queryDir(db, uri, projection, selection, selectionArgs,
-                    sortOrder != null ? sortOrder : getDefaultSortOrder());
-
-        } else {
-            return super.queryDir(db, uri, projection,
-                    ProviderUtils.addExtraWhere(selection, mColumnQuoted + "=?"),
-                    ProviderUtils.addExtraWhereArgs(selectionArgs, parentId),
-                    sortOrder != null ? sortOrder : getDefaultSortOrder());
+        if (!WILDCARD_PATH_SEGMENT.equals(parentId)) {
+            selection.add(mColumnQuoted + "=?", parentId);
         }
+        return super.queryDir(db, uri, projection, selection, groupBy, having, sortOrder, limit);
     }
 
     @Override
-    public Cursor queryItem(SQLiteDatabase db, Uri uri, String[] projection, String selection,
-            String[] selectionArgs, String sortOrder) {
+    public Cursor queryItem(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String sortOrder) {
+        if (dispatchToOverride(selection, mOverridesQueryItem)) {
+            return queryItem(db, uri, projection, selection.getSelection(),
+                    selection.getSelectionArgs(), sortOrder);
+        }
         final String parentId = ProviderUtils.getNthPathFromEnd(uri, 2);
 
-        if (WILDCARD_PATH_SEGMENT.equals(parentId)) {
-            return super.queryItem(db, uri, projection, selection, selectionArgs,
-                    sortOrder != null ? sortOrder : getDefaultSortOrder());
-
-        } else {
-            return super.queryItem(db, uri, projection,
-                    ProviderUtils.addExtraWhere(selection, mColumnQuoted + "=?"),
-                    ProviderUtils.addExtraWhereArgs(selectionArgs, parentId),
-                    sortOrder != null ? sortOrder : getDefaultSortOrder());
+        if (!WILDCARD_PATH_SEGMENT.equals(parentId)) {
+            selection.add(mColumnQuoted + "=?", parentId);
         }
+        return super.queryItem(db, uri, projection, selection,
+                sortOrder != null ? sortOrder : getDefaultSortOrder());
     }
 
     @Override
@@ -1,11 +1,14 @@
 package edu.mit.mobile.android.content;
 
+import java.lang.reflect.Field;
+
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import edu.mit.mobile.android.content.column.DBForeignKeyColumn;
 
 /**
  * A helpful class that can make using tables with foreign key relations easier.
@@ -15,10 +18,11 @@ import android.provider.BaseColumns;
  * @author steve
  *
  */
-public class ForeignKeyManager implements Manager {
+public class ForeignKeyManager implements BatchedManager {
     private final Class<? extends ContentItem> mChild;
     private final String mPath;
     private final String mSortOrder;
+    private String mParentColumn;
 
     /**
      *
@@ -34,6 +38,23 @@ public class ForeignKeyManager implements Manager {
         mSortOrder = sortOrder != null ? sortOrder.value() : null;
     }
 
+    /**
+     * Use this constructor if the child has more than one {@link DBForeignKeyColumn} and you wish
+     * to use {@link #query(ContentResolver, Uri, long[], String[])}.
+     *
+     * @param child
+     *            the child class that has this class as a foreign key
+     * @param childRelationshipPath
+     *            the path that is used in the URI to refer to this relationship
+     * @param parentColumn
+     *            the child's column that refers to the parent
+     */
+    public ForeignKeyManager(Class<? extends ContentItem> child, String childRelationshipPath,
+            String parentColumn) {
+        this(child, childRelationshipPath);
+        mParentColumn = parentColumn;
+    }
+
     /**
      * Unlike {@link #ForeignKeyManager(Class, String)}, the path is extracted from the
      * {@link UriPath} annotation on the child class.
@@ -88,6 +109,62 @@ public class ForeignKeyManager implements Manager {
         return cr.query(getUri(parent), projection, null, null, mSortOrder);
     }
 
+    /**
+     * Queries the children of all the given parents at once, using the
+     * {@link ForeignKeyDBHelper#WILDCARD_PATH_SEGMENT WILDCARD_PATH_SEGMENT} URI (see
+     * {@link #getAll(Uri)}).
+     */
+    @Override
+    public Cursor query(ContentResolver cr, Uri parentDir, long[] parentIds, String[] projection) {
+        final String parentColumn = getParentIdColumn();
+
+        return cr.query(getAll(parentDir),
+                ProviderUtils.addColumnToProjection(projection, parentColumn),
+                ProviderUtils.toIdInSelection('"' + parentColumn + '"', parentIds), null,
+                mSortOrder);
+    }
+
+    /**
+     * If the column wasn't specified using
+     * {@link #ForeignKeyManager(Class, String, String)}, this looks for the child's only
+     * {@link DBForeignKeyColumn}.
+     *
+     * @throws SQLGenerationException
+     *             if the column wasn't specified and the child doesn't have exactly one
+     *             {@link DBForeignKeyColumn}
+     */
+    @Override
+    public String getParentIdColumn() {
+        if (mParentColumn == null) {
+            mParentColumn = extractParentColumn();
+        }
+        return mParentColumn;
+    }
+
+    private String extractParentColumn() {
+        String parentColumn = null;
+        for (final Field field : mChild.getFields()) {
+            if (field.getAnnotation(DBForeignKeyColumn.class) == null) {
+                continue;
+            }
+            if (parentColumn != null) {
+                throw new SQLGenerationException("ForeignKeyManager: " + mChild
+                        + " has more than one @DBForeignKeyColumn; please specify the column");
+            }
+            try {
+                parentColumn = (String) field.get(null);
+            } catch (final IllegalAccessException e) {
+                throw new SQLGenerationException("field '" + field.getName()
+                        + "' cannot be accessed", e);
+            }
+        }
+        if (parentColumn == null) {
+            throw new SQLGenerationException("ForeignKeyManager: missing @DBForeignKeyColumn on "
+                    + mChild);
+        }
+        return parentColumn;
+    }
+
     public String getSortOrder() {
         return mSortOrder;
     }
@@ -18,6 +18,12 @@ package edu.mit.mobile.android.content;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
 
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -25,8 +31,13 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import edu.mit.mobile.android.content.column.DBColumn.Extractor;
+import edu.mit.mobile.android.content.column.DBColumnType;
+import edu.mit.mobile.android.content.column.DedupBlobColumn;
+import edu.mit.mobile.android.content.column.FileColumn;
+import edu.mit.mobile.android.content.column.InflatingCursorWrapper;
 
 /**
  * Provides basic CRUD database calls to handle very simple object types, eg:
@@ -46,6 +57,19 @@ public class GenericDBHelper extends DBHelper implements ContentItemRegisterable
     private final Class<? extends ContentItem> mDataItem;
     private final String mSortOrder;
     private final Extractor mExtractor;
+    private final Map<String, DBColumnType<?>> mColumnsConvertedOnSave;
+    private final List<String> mFileColumns = new ArrayList<String>();
+    private final List<String> mDedupColumns = new ArrayList<String>();
+    private String[] mDedupProjection;
+
+    // the String-based methods that a subclass overrides
+    final boolean mOverridesUpdateItem;
+    final boolean mOverridesUpdateDir;
+    final boolean mOverridesDeleteItem;
+    final boolean mOverridesDeleteDir;
+    final boolean mOverridesQueryDir;
+    final boolean mOverridesQueryDirGrouped;
+    final boolean mOverridesQueryItem;
 
     /**
      * @param contentItem
@@ -55,8 +79,88 @@ public class GenericDBHelper extends DBHelper implements ContentItemRegisterable
         mDataItem = contentItem;
         mExtractor = new Extractor(contentItem);
         mTable = mExtractor.getTableName();
+        mColumnsConvertedOnSave = mExtractor.getColumnsConvertedOnSave();
+        for (final Map.Entry<String, DBColumnType<?>> column : mColumnsConvertedOnSave.entrySet()) {
+            if (column.getValue() instanceof FileColumn) {
+                mFileColumns.add(column.getKey());
+
+            } else if (column.getValue() instanceof DedupBlobColumn) {
+                mDedupColumns.add(column.getKey());
+            }
+        }
 
         mSortOrder = extractSortOrder();
+
+        final Class<?> helper = getClass();
+        final boolean subclassed = helper != GenericDBHelper.class
+                && helper != ForeignKeyDBHelper.class;
+        mOverridesUpdateItem = subclassed
+                && overrides(helper, "updateItem", SQLiteDatabase.class, ContentProvider.class,
+                        Uri.class, ContentValues.class, String.class, String[].class);
+        mOverridesUpdateDir = subclassed
+                && overrides(helper, "updateDir", SQLiteDatabase.class, ContentProvider.class,
+                        Uri.class, ContentValues.class, String.class, String[].class);
+        mOverridesDeleteItem = subclassed
+                && overrides(helper, "deleteItem", SQLiteDatabase.class, ContentProvider.class,
+                        Uri.class, String.class, String[].class);
+        mOverridesDeleteDir = subclassed
+                && overrides(helper, "deleteDir", SQLiteDatabase.class, ContentProvider.class,
+                        Uri.class, String.class, String[].class);
+        mOverridesQueryDir = subclassed
+                && overrides(helper, "queryDir", SQLiteDatabase.class, Uri.class,
+                        String[].class, String.class, String[].class, String.class);
+        mOverridesQueryDirGrouped = subclassed
+                && overrides(helper, "queryDir", SQLiteDatabase.class, Uri.class,
+                        String[].class, String.class, String[].class, String.class,
+                        String.class, String.class, String.class);
+        mOverridesQueryItem = subclassed
+                && overrides(helper, "queryItem", SQLiteDatabase.class, Uri.class,
+                        String[].class, String.class, String[].class, String.class);
+    }
+
+    private static boolean overrides(Class<?> helper, String name, Class<?>... parameterTypes) {
+        try {
+            return helper.getMethod(name, parameterTypes).getDeclaringClass()
+                    != GenericDBHelper.class;
+        } catch (final NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * <p>
+     * Checks whether one of the {@link SelectionBuilder} overloads must pass the call to the
+     * String-based method that it corresponds to, as a subclass overrides that method. Helpers
+     * wrapping this one, such as {@link QuerystringWrapper}, only call the overloads, so without
+     * this, any restriction that the subclass adds would be skipped.
+     * </p>
+     *
+     * <p>
+     * Only the outermost call is passed on. The selection is marked, so the calls made on the way
+     * down are run as they are, including those made by the String-based methods here when a
+     * subclass calls through to them.
+     * </p>
+     *
+     * @param selection
+     * @param overridden
+     *            true if a subclass overrides the corresponding String-based method
+     * @return true if the String-based method must be called instead
+     */
+    boolean dispatchToOverride(SelectionBuilder selection, boolean overridden) {
+        if (selection.mDispatched) {
+            return false;
+        }
+        selection.mDispatched = true;
+        return overridden;
+    }
+
+    /**
+     * @return a selection that the {@link SelectionBuilder} overloads run as it is
+     */
+    private static SelectionBuilder dispatched(String selection, String[] selectionArgs) {
+        final SelectionBuilder builder = new SelectionBuilder(selection, selectionArgs);
+        builder.mDispatched = true;
+        return builder;
     }
 
     private String extractSortOrder() {
@@ -82,6 +186,21 @@ public class GenericDBHelper extends DBHelper implements ContentItemRegisterable
      */
     @Override
     public void upgradeTables(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // dropping the table doesn't fire the triggers that clean up the files
+        if (!mFileColumns.isEmpty() && FileStore.hasFileColumns(db)) {
+            try {
+                FileStore.orphanAll(db, mTable, mFileColumns);
+            } catch (final SQLException e) {
+                // the table or the column may not exist in the old version
+            }
+        }
+        if (!mDedupColumns.isEmpty() && BlobStore.exists(db)) {
+            try {
+                BlobStore.releaseAll(db, mTable, mDedupColumns);
+            } catch (final SQLException e) {
+                // the table or the column may not exist in the old version
+            }
+        }
         db.execSQL("DROP TABLE IF EXISTS " + mTable);
         createTables(db);
     }
@@ -90,6 +209,14 @@ public class GenericDBHelper extends DBHelper implements ContentItemRegisterable
         return mTable;
     }
 
+    /**
+     * @return true if any of the columns is a {@link DedupBlobColumn}, whose values are only read
+     *         and written correctly through this helper
+     */
+    public boolean hasDedupColumns() {
+        return !mDedupColumns.isEmpty();
+    }
+
     @Override
     public String getDirType(String authority, String path) {
         return ProviderUtils.toDirType(authority, mTable);
@@ -118,68 +245,358 @@ public class GenericDBHelper extends DBHelper implements ContentItemRegisterable
         return values;
     }
 
+    /**
+     * Converts the values of the columns whose type requires it, eg. compressing them. This is
+     * done after the {@link OnSaveListener} is called, so it sees the values as they were given.
+     *
+     * @param db
+     * @param values
+     * @return the converted copy of the values, or the values themselves if there's nothing to
+     *         convert
+     * @see DBColumnType#convertOnSave(SQLiteDatabase, ContentValues, String)
+     */
+    protected ContentValues convertOnSave(SQLiteDatabase db, ContentValues values) {
+        if (mColumnsConvertedOnSave.isEmpty()) {
+            return values;
+        }
+        // the caller's values are left as they were given
+        values = new ContentValues(values);
+        for (final Map.Entry<String, DBColumnType<?>> column : mColumnsConvertedOnSave.entrySet()) {
+            column.getValue().convertOnSave(db, values, column.getKey());
+        }
+        return values;
+    }
+
     @Override
     public Uri insertDir(SQLiteDatabase db, ContentProvider provider, Uri uri, ContentValues values)
             throws SQLException {
         values = callOnPreSaveListener(db, uri, values);
 
-        final long id = db.insertOrThrow(mTable, null, values);
-        if (id != -1) {
+        // stored values must be referenced by the row before anything else can release them
+        final boolean storesValues = !mDedupColumns.isEmpty();
+        if (storesValues) {
+            db.beginTransaction();
+        }
+        try {
+            final long id = db.insertOrThrow(mTable, null, convertOnSave(db, values));
+            if (id == -1) {
+                throw new SQLException("error inserting into " + mTable);
+            }
+            if (storesValues) {
+                db.setTransactionSuccessful();
+            }
             return ContentUris.withAppendedId(uri, id);
-        } else {
-            throw new SQLException("error inserting into " + mTable);
+        } finally {
+            if (storesValues) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Saves the values to the matching rows, converting them within the same transaction if
+     * they're stored elsewhere.
+     */
+    private int update(SQLiteDatabase db, ContentValues values, SelectionBuilder selection) {
+        final boolean storesValues = !mDedupColumns.isEmpty();
+        if (storesValues) {
+            db.beginTransaction();
+        }
+        try {
+            final int count = db.update(mTable, convertOnSave(db, values),
+                    selection.getSelection(), selection.getSelectionArgs());
+            if (storesValues) {
+                db.setTransactionSuccessful();
+            }
+            return count;
+        } finally {
+            if (storesValues) {
+                db.endTransaction();
+            }
         }
     }
 
     @Override
     public int updateItem(SQLiteDatabase db, ContentProvider provider, Uri uri,
             ContentValues values, String where, String[] whereArgs) {
+        return updateItem(db, provider, uri, values, dispatched(where, whereArgs));
+    }
+
+    @Override
+    public int updateItem(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            ContentValues values, SelectionBuilder selection) {
+        if (dispatchToOverride(selection, mOverridesUpdateItem)) {
+            return updateItem(db, provider, uri, values, selection.getSelection(),
+                    selection.getSelectionArgs());
+        }
 
         values = callOnPreSaveListener(db, uri, values);
 
-        return db.update(mTable, values,
-                ProviderUtils.addExtraWhere(where, BaseColumns._ID + "=?"),
-                ProviderUtils.addExtraWhereArgs(whereArgs, uri.getLastPathSegment()));
+        selection.add(BaseColumns._ID + "=?", uri.getLastPathSegment());
+        return update(db, values, selection);
     }
 
     @Override
     public int updateDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
             ContentValues values, String where, String[] whereArgs) {
+        return updateDir(db, provider, uri, values, dispatched(where, whereArgs));
+    }
+
+    @Override
+    public int updateDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            ContentValues values, SelectionBuilder selection) {
+        if (dispatchToOverride(selection, mOverridesUpdateDir)) {
+            return updateDir(db, provider, uri, values, selection.getSelection(),
+                    selection.getSelectionArgs());
+        }
         values = callOnPreSaveListener(db, uri, values);
 
-        return db.update(mTable, values, where, whereArgs);
+        return update(db, values, selection);
     }
 
     @Override
     public int deleteItem(SQLiteDatabase db, ContentProvider provider, Uri uri, String where,
             String[] whereArgs) {
-        return db.delete(mTable, ProviderUtils.addExtraWhere(where, BaseColumns._ID + "=?"),
-                ProviderUtils.addExtraWhereArgs(whereArgs, uri.getLastPathSegment()));
+        return deleteItem(db, provider, uri, dispatched(where, whereArgs));
+    }
+
+    @Override
+    public int deleteItem(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            SelectionBuilder selection) {
+        if (dispatchToOverride(selection, mOverridesDeleteItem)) {
+            return deleteItem(db, provider, uri, selection.getSelection(),
+                    selection.getSelectionArgs());
+        }
+        selection.add(BaseColumns._ID + "=?", uri.getLastPathSegment());
+        return db.delete(mTable, selection.getSelection(), selection.getSelectionArgs());
     }
 
     @Override
     public int deleteDir(SQLiteDatabase db, ContentProvider provider, Uri uri, String where,
             String[] whereArgs) {
-        return db.delete(mTable, where, whereArgs);
+        return deleteDir(db, provider, uri, dispatched(where, whereArgs));
+    }
+
+    @Override
+    public int deleteDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            SelectionBuilder selection) {
+        if (dispatchToOverride(selection, mOverridesDeleteDir)) {
+            return deleteDir(db, provider, uri, selection.getSelection(),
+                    selection.getSelectionArgs());
+        }
+        return db.delete(mTable, selection.getSelection(), selection.getSelectionArgs());
     }
 
     @Override
     public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
 
-        return db.query(mTable, projection, selection, selectionArgs, null, null,
-                sortOrder == null ? mSortOrder : sortOrder);
+        return queryDir(db, uri, projection, dispatched(selection, selectionArgs), sortOrder);
+    }
+
+    @Override
+    public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String sortOrder) {
+        // otherwise, an override of the grouped queryDir is called from there
+        if (mOverridesQueryDir && dispatchToOverride(selection, true)) {
+            return queryDir(db, uri, projection, selection.getSelection(),
+                    selection.getSelectionArgs(), sortOrder);
+        }
+
+        return queryDir(db, uri, projection, selection, null, null,
+                sortOrder == null ? mSortOrder : sortOrder, null);
+    }
+
+    @Override
+    public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String sortOrder, String limit) {
+
+        return queryDir(db, uri, projection, selection, null, null,
+                sortOrder == null ? mSortOrder : sortOrder, limit);
+    }
+
+    /**
+     * Queries the directory, optionally grouping and limiting the results. Unlike
+     * {@link #queryDir(SQLiteDatabase, Uri, String[], String, String[], String)}, the default sort
+     * order isn't used if none is given, as it may not apply to grouped results.
+     *
+     * @param db
+     * @param uri
+     * @param projection
+     *            the columns to return, which can include aggregate expressions
+     * @param selection
+     * @param selectionArgs
+     * @param groupBy
+     *            the SQL GROUP BY clause, without the "GROUP BY" itself. Null is ok.
+     * @param having
+     *            the SQL HAVING clause, without the "HAVING" itself. Null is ok.
+     * @param sortOrder
+     * @param limit
+     *            the SQL LIMIT clause, as accepted by
+     *            {@link SQLiteDatabase#query(String, String[], String, String[], String, String, String, String)}
+     *            . Null is ok.
+     * @return the results
+     */
+    public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String groupBy, String having, String sortOrder, String limit) {
 
+        return queryDir(db, uri, projection, dispatched(selection, selectionArgs), groupBy,
+                having, sortOrder, limit);
+    }
+
+    /**
+     * Like
+     * {@link #queryDir(SQLiteDatabase, Uri, String[], String, String[], String, String, String, String)
+     * queryDir}, but takes a selection that subclasses and wrapping helpers can add their own
+     * clauses to. Subclasses that restrict the query should override this method, so the
+     * selection is built only once. If a subclass overrides a String-based queryDir instead, it's
+     * called from here.
+     *
+     * @throws IllegalArgumentException
+     *             if a subclass only overrides
+     *             {@link #queryDir(SQLiteDatabase, Uri, String[], String, String[], String)} and
+     *             the results are to be grouped or limited, which it can't do
+     */
+    public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String groupBy, String having, String sortOrder,
+            String limit) {
+        if (dispatchToOverride(selection, mOverridesQueryDirGrouped || mOverridesQueryDir)) {
+            return queryDirOverride(db, uri, projection, selection, groupBy, having, sortOrder,
+                    limit);
+        }
+
+        return InflatingCursorWrapper.wrap(
+                db.query(mTable, toStoredProjection(projection), selection.getSelection(),
+                        selection.getSelectionArgs(), groupBy, having, sortOrder, limit),
+                mColumnsConvertedOnSave);
+    }
+
+    /**
+     * Calls the String-based queryDir that a subclass overrides.
+     *
+     * @see #dispatchToOverride(SelectionBuilder, boolean)
+     */
+    Cursor queryDirOverride(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String groupBy, String having, String sortOrder,
+            String limit) {
+        if (mOverridesQueryDirGrouped) {
+            return queryDir(db, uri, projection, selection.getSelection(),
+                    selection.getSelectionArgs(), groupBy, having, sortOrder, limit);
+        }
+        if (groupBy != null || having != null || limit != null) {
+            throw new IllegalArgumentException(getClass().getSimpleName()
+                    + " overrides queryDir and so cannot group or limit its results");
+        }
+        return queryDir(db, uri, projection, selection.getSelection(),
+                selection.getSelectionArgs(), sortOrder);
     }
 
     @Override
     public Cursor queryItem(SQLiteDatabase db, Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
 
-        return db.query(mTable, projection,
-                ProviderUtils.addExtraWhere(selection, BaseColumns._ID + "=?"),
-                ProviderUtils.addExtraWhereArgs(selectionArgs, uri.getLastPathSegment()), null,
-                null, sortOrder == null ? mSortOrder : sortOrder);
+        return queryItem(db, uri, projection, dispatched(selection, selectionArgs), sortOrder);
+    }
+
+    @Override
+    public Cursor queryItem(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String sortOrder) {
+        if (dispatchToOverride(selection, mOverridesQueryItem)) {
+            return queryItem(db, uri, projection, selection.getSelection(),
+                    selection.getSelectionArgs(), sortOrder);
+        }
+
+        selection.add(BaseColumns._ID + "=?", uri.getLastPathSegment());
+        return InflatingCursorWrapper.wrap(
+                db.query(mTable, toStoredProjection(projection), selection.getSelection(),
+                        selection.getSelectionArgs(), null, null, sortOrder == null ? mSortOrder
+                                : sortOrder), mColumnsConvertedOnSave);
+    }
+
+    /**
+     * Replaces the {@link DedupBlobColumn}s of the projection with expressions that read their
+     * values from the {@link BlobStore}.
+     *
+     * @param projection
+     *            the projection as given, which may be null for all the columns
+     * @return the projection to query
+     */
+    private String[] toStoredProjection(String[] projection) {
+        if (mDedupColumns.isEmpty()) {
+            return projection;
+        }
+        if (projection == null) {
+            if (mDedupProjection == null) {
+                final Set<String> columns = mExtractor.getColumnNames();
+                mDedupProjection = toStoredProjection(columns.toArray(new String[columns.size()]));
+            }
+            return mDedupProjection;
+        }
+        String[] stored = projection;
+        for (int i = 0; i < projection.length; i++) {
+            if (mDedupColumns.contains(projection[i])) {
+                if (stored == projection) {
+                    stored = projection.clone();
+                }
+                stored[i] = BlobStore.getValueExpression(mTable, projection[i]);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Opens the file of a {@link FileColumn} of the item. If the item has more than one file
+     * column, the URI must name one using {@link FileColumn#getFileUri(Uri, String)}. When opened
+     * for writing, a file is created for the item if it doesn't have one yet.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            String mode) throws FileNotFoundException {
+        final String column = getFileColumn(uri);
+        final String id = uri.getLastPathSegment();
+
+        String name = queryFileName(db, column, id);
+        if (name == null && FileStore.isWriteMode(mode)) {
+            final ContentValues cv = new ContentValues();
+            cv.put(column, FileStore.newFileName(mTable));
+            // if another writer got there first, its file is used instead
+            db.update(mTable, cv, BaseColumns._ID + "=? AND \"" + column + "\" IS NULL",
+                    new String[] { id });
+            name = queryFileName(db, column, id);
+        }
+        if (name == null) {
+            throw new FileNotFoundException("no file for " + uri);
+        }
+        return FileStore.open(FileStore.getFile(provider.getContext(), name), mode);
+    }
+
+    private String getFileColumn(Uri uri) throws FileNotFoundException {
+        final String column = uri.getQueryParameter(FileColumn.QUERY_COLUMN);
+        if (column == null) {
+            if (mFileColumns.size() == 1) {
+                return mFileColumns.get(0);
+            }
+            throw new FileNotFoundException(mFileColumns.isEmpty() ? "no files for " + uri
+                    : "no file column specified for " + uri);
+        }
+        if (!mFileColumns.contains(column)) {
+            throw new FileNotFoundException("'" + column + "' is not a file column of " + mTable);
+        }
+        return column;
+    }
+
+    private String queryFileName(SQLiteDatabase db, String column, String id)
+            throws FileNotFoundException {
+        final Cursor c = db.query(mTable, new String[] { column }, BaseColumns._ID + "=?",
+                new String[] { id }, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                throw new FileNotFoundException("no item with ID " + id + " in " + mTable);
+            }
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
     }
 
     @Override
@@ -47,10 +47,21 @@ public class ProviderUtils {
             return extraWhere[0];
         }
 
-        final String extraWhereJoined = "(" + TextUtils.join(") AND (", Arrays.asList(extraWhere))
-                + ")";
-        return extraWhereJoined
-                + (where != null && where.length() > 0 ? " AND (" + where + ")" : "");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < extraWhere.length; i++) {
+            if (i > 0) {
+                sb.append(" AND ");
+            }
+            sb.append('(');
+            sb.append(extraWhere[i]);
+            sb.append(')');
+        }
+        if (where != null && where.length() > 0) {
+            sb.append(" AND (");
+            sb.append(where);
+            sb.append(')');
+        }
+        return sb.toString();
     }
 
     /**
@@ -77,6 +88,58 @@ public class ProviderUtils {
         return whereArgs2.toArray(new String[whereArgs2.size()]);
     }
 
+    /**
+     * Generates a selection that matches rows whose column is one of the given IDs, eg.
+     * {@code "column" IN (1,2,3)}. As the IDs are numbers, they are inlined into the selection;
+     * this avoids running into SQLite's limit on the number of bound arguments for long lists.
+     *
+     * @param column
+     *            the (unquoted) column name. Can be prefixed with a quoted table name.
+     * @param ids
+     *            a non-empty list of IDs
+     * @return a selection suitable for use with {@link #addExtraWhere(String, String...)}
+     */
+    public static String toIdInSelection(String column, long[] ids) {
+        if (ids.length == 0) {
+            throw new IllegalArgumentException("at least one ID must be provided");
+        }
+
+        final StringBuilder sb = new StringBuilder(column.length() + 8 + ids.length * 4);
+        sb.append(column);
+        sb.append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    /**
+     * Ensures that the given column is in the projection.
+     *
+     * @param projection
+     *            the projection. If null, all columns are already selected.
+     * @param column
+     * @return either the original projection or a new one with the column appended to the end
+     */
+    public static String[] addColumnToProjection(String[] projection, String column) {
+        if (projection == null) {
+            return null;
+        }
+        for (final String col : projection) {
+            if (column.equals(col)) {
+                return projection;
+            }
+        }
+        final String[] projection2 = new String[projection.length + 1];
+        System.arraycopy(projection, 0, projection2, 0, projection.length);
+        projection2[projection.length] = column;
+        return projection2;
+    }
+
     /**
      * Remove the last path segment of a URI
      *
@@ -18,19 +18,35 @@ package edu.mit.mobile.android.content;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentValues;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
+import edu.mit.mobile.android.content.query.QuerystringControls;
 import edu.mit.mobile.android.content.query.QuerystringParser;
 import edu.mit.mobile.android.content.query.QuerystringParser.ParseException;
+import edu.mit.mobile.android.content.query.QuerystringParser.ValueList;
+import edu.mit.mobile.android.content.query.QuerystringSchema;
 
 /**
  * <p>
@@ -55,7 +71,7 @@ import edu.mit.mobile.android.content.query.QuerystringParser.ParseException;
  * </p>
  *
  * <dl>
- * <dt><kbd>=</kbd> exact match for value (SQL "IS")</dt>
+ * <dt><kbd>=</kbd> exact match for value (SQL "IS" or "=")</dt>
  * <dd><kbd>column=value</kbd></dd>
  *
  * <dt><kbd>~=</kbd> inexact match for value (substring, case-insensitive; SQL "LIKE")</dt>
@@ -67,6 +83,21 @@ import edu.mit.mobile.android.content.query.QuerystringParser.ParseException;
  * <dt><kbd>!~=</kbd> inexact non-match</dt>
  * <dd><kbd>column!~=value</kbd></dd>
  *
+ * <dt><kbd>^=</kbd> prefix match (a range, which unlike "LIKE" can use an index)</dt>
+ * <dd><kbd>column^=value</kbd></dd>
+ *
+ * <dt><kbd>=(,)</kbd> match for any of the values (SQL "IN")</dt>
+ * <dd><kbd>column=(value1,value2,value3)</kbd></dd>
+ *
+ * <dt><kbd>!=(,)</kbd> non-match for all of the values (SQL "NOT IN")</dt>
+ * <dd><kbd>column!=(value1,value2,value3)</kbd></dd>
+ *
+ * <dt><kbd>&gt;&lt;(,)</kbd> inclusive range (SQL "BETWEEN")</dt>
+ * <dd><kbd>column&gt;&lt;(low,high)</kbd></dd>
+ *
+ * <dt><kbd>!&gt;&lt;(,)</kbd> outside of an inclusive range</dt>
+ * <dd><kbd>column!&gt;&lt;(low,high)</kbd></dd>
+ *
  * <dt><kbd>&</kbd> joining parameters with AND</dt>
  * <dd><kbd>column1=value1&column2!=value2</kbd></dd>
  *
@@ -78,6 +109,39 @@ import edu.mit.mobile.android.content.query.QuerystringParser.ParseException;
  * </dl>
  *
  * <p>
+ * The results of {@link #queryDir(SQLiteDatabase, Uri, String[], String, String[], String)
+ * queryDir} can be further controlled using the following reserved keys, which must be joined to
+ * the rest of the query using <kbd>&</kbd>. See {@link QuerystringControls} for details.
+ * </p>
+ *
+ * <dl>
+ * <dt><kbd>_limit</kbd> the maximum number of rows to return</dt>
+ * <dd><kbd>column1=value1&_limit=10</kbd></dd>
+ *
+ * <dt><kbd>_offset</kbd> the number of rows to skip</dt>
+ * <dd><kbd>column1=value1&_limit=10&_offset=20</kbd></dd>
+ *
+ * <dt><kbd>_sort</kbd> the sort order; "-" sorts a column in descending order</dt>
+ * <dd><kbd>column1=value1&_sort=(column2,-column3)</kbd></dd>
+ *
+ * <dt><kbd>_projection</kbd> the columns to return</dt>
+ * <dd><kbd>column1=value1&_projection=(column2,column3)</kbd></dd>
+ *
+ * <dt><kbd>_count</kbd>, <kbd>_sum</kbd>, <kbd>_avg</kbd>, <kbd>_min</kbd>, <kbd>_max</kbd>
+ * aggregates, computed over all the matching rows or within each group</dt>
+ * <dd><kbd>column1=value1&_count=*&_max=(column2,column3)</kbd></dd>
+ *
+ * <dt><kbd>_group</kbd> the columns to group the aggregates by</dt>
+ * <dd><kbd>_group=column1&_count=*&_sort=-_count</kbd></dd>
+ * </dl>
+ *
+ * <p>
+ * Aggregates are only supported when wrapping a {@link GenericDBHelper}. Their results contain
+ * the grouped columns followed by a column for each aggregate, named as described by
+ * {@link QuerystringControls#getAggregateColumn(String, String)}.
+ * </p>
+ *
+ * <p>
  * These rules can be combined together to make arbitrarily-complex queries which map directly to
  * SQL queries. They should be passed to the URI unescaped (that is, not percent-encoded). For
  * example, <kbd>content://org.example.test/message?(title~=robot|title~=kitten)&verb=find</kbd>
@@ -86,7 +150,19 @@ import edu.mit.mobile.android.content.query.QuerystringParser.ParseException;
  *
  * <p>
  * Column names are validity-checked and values are passed in by reference in order to avoid SQL
- * injections.
+ * injections. When wrapping a {@link GenericDBHelper}, the query is compiled against the columns
+ * declared by its {@link ContentItem}: all the columns used must be declared and values are
+ * converted to the types of their columns, so that eg. <kbd>done=true</kbd> matches a
+ * {@link edu.mit.mobile.android.content.column.BooleanColumn BooleanColumn}. See
+ * {@link QuerystringSchema}.
+ * </p>
+ *
+ * <p>
+ * The columns of the parents of the {@link edu.mit.mobile.android.content.column.DBForeignKeyColumn
+ * foreign keys} of a wrapped {@link GenericDBHelper} (such as a {@link ForeignKeyDBHelper}) can be
+ * queried by qualifying them with the name of the foreign key. For example,
+ * <kbd>content://org.example.test/comment?post.title~=robot</kbd> would match comments whose post's
+ * title contains "robot". This is done using a subquery, so it runs as a single statement.
  * </p>
  *
  * <p>
@@ -96,7 +172,6 @@ import edu.mit.mobile.android.content.query.QuerystringParser.ParseException;
  *
  * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
  */
-// TODO provide ability to limit columns that can be queried.
 public class QuerystringWrapper extends DBHelper implements ContentItemRegisterable {
     public static final String TAG = QuerystringWrapper.class.getSimpleName();
 
@@ -114,6 +189,8 @@ public class QuerystringWrapper extends DBHelper implements ContentItemRegistera
 
     public static final String QUERY_OPERATOR_NOT_LIKE = "!~=";
 
+    public static final String QUERY_OPERATOR_STARTS_WITH = "^=";
+
     public static final String QUERY_OPERATOR_GREATER_THAN = ">";
 
     public static final String QUERY_OPERATOR_GREATER_THAN_EQUALS = ">=";
@@ -122,16 +199,98 @@ public class QuerystringWrapper extends DBHelper implements ContentItemRegistera
 
     public static final String QUERY_OPERATOR_LESS_THAN_EQUALS = "<=";
 
+    public static final String QUERY_OPERATOR_BETWEEN = "><";
+
+    public static final String QUERY_OPERATOR_NOT_BETWEEN = "!><";
+
+    public static final String QUERY_LIST_START = "(";
+
+    public static final String QUERY_LIST_SEPARATOR = ",";
+
+    public static final String QUERY_LIST_END = ")";
+
+    public static final String QUERY_KEY_LIMIT = "_limit";
+
+    public static final String QUERY_KEY_OFFSET = "_offset";
+
+    public static final String QUERY_KEY_SORT = "_sort";
+
+    public static final String QUERY_KEY_PROJECTION = "_projection";
+
+    public static final String QUERY_KEY_GROUP = "_group";
+
+    public static final String QUERY_KEY_COUNT = "_count";
+
+    public static final String QUERY_KEY_SUM = "_sum";
+
+    public static final String QUERY_KEY_AVG = "_avg";
+
+    public static final String QUERY_KEY_MIN = "_min";
+
+    public static final String QUERY_KEY_MAX = "_max";
+
     private final DBHelper mWrappedHelper;
 
+    private final String mTrigramTable;
+    private final Set<String> mTrigramColumns;
+    private final QuerystringSchema mSchema;
+
+    /**
+     * The default number of parsed query strings that are kept.
+     */
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 32;
+
+    /**
+     * The default maximum number of values in a list that are bound as separate arguments.
+     */
+    public static final int DEFAULT_MAX_BOUND_LIST_SIZE = 100;
+
+    private int mMaxBoundListSize = DEFAULT_MAX_BOUND_LIST_SIZE;
+
+    private static final AtomicLong sNextValueListId = new AtomicLong();
+
+    private int mQueryCacheSize = DEFAULT_QUERY_CACHE_SIZE;
+    private int mQueryCacheHits;
+    private int mQueryCacheMisses;
+
+    // parsed query strings, keyed by the encoded query string. Least-recently used are evicted.
+    private final LinkedHashMap<String, QueryStringResult> mQueryCache = new LinkedHashMap<String, QueryStringResult>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryStringResult> eldest) {
+            return size() > mQueryCacheSize;
+        }
+    };
+
     public QuerystringWrapper(DBHelper wrappedHelper) {
         mWrappedHelper = wrappedHelper;
+
+        // the like operator can use the trigram indexes of the wrapped table
+        if (wrappedHelper instanceof GenericDBHelper) {
+            final GenericDBHelper genericHelper = (GenericDBHelper) wrappedHelper;
+            mTrigramTable = genericHelper.getTable();
+            mTrigramColumns = TrigramIndex.getIndexedColumns(genericHelper.getContentItem());
+            mSchema = new QuerystringSchema(genericHelper.getContentItem());
+        } else {
+            mTrigramTable = null;
+            mTrigramColumns = null;
+            mSchema = null;
+        }
     }
 
     private static class QueryStringResult {
         public QueryStringResult(String selection, String[] selectionArgs) {
+            this(selection, selectionArgs, null, null);
+        }
+
+        public QueryStringResult(String selection, String[] selectionArgs,
+                List<ValueList> valueLists, QuerystringControls controls) {
             this.selection = selection;
             this.selectionArgs = selectionArgs;
+            this.valueLists = valueLists;
+            this.controls = controls;
         }
 
         /**
@@ -142,6 +301,14 @@ public class QuerystringWrapper extends DBHelper implements ContentItemRegistera
          * The new, composite selection arguments.
          */
         final String[] selectionArgs;
+        /**
+         * The lists that need to be added to the value list table, or null if there are none.
+         */
+        final List<ValueList> valueLists;
+        /**
+         * The reserved keys given in the query, or null if there were none.
+         */
+        final QuerystringControls controls;
     }
 
     /**
@@ -162,29 +329,88 @@ public class QuerystringWrapper extends DBHelper implements ContentItemRegistera
      */
     public static QueryStringResult queryStringToSelection(Uri uri, String selection,
             String[] selectionArgs) throws SQLGenerationException {
+        return queryStringToSelection(uri, selection, selectionArgs, null, null);
+    }
+
+    /**
+     * Performs the query string extraction, using the given {@link TrigramIndex trigram indexes}
+     * to narrow down like queries.
+     *
+     * @param uri
+     * @param selection
+     * @param selectionArgs
+     * @param table
+     *            the table being queried. Can be null if there are no trigram columns.
+     * @param trigramColumns
+     *            the columns of the table which have a trigram index. Null is ok.
+     * @return the query string translated and integrated into the selection and selectionArgs that
+     *         were passed in
+     * @see #queryStringToSelection(Uri, String, String[])
+     */
+    public static QueryStringResult queryStringToSelection(Uri uri, String selection,
+            String[] selectionArgs, String table, Set<String> trigramColumns)
+            throws SQLGenerationException {
         final String query = uri.getEncodedQuery();
 
-        String newSelection = selection;
-        String[] newSelectionArgs = selectionArgs;
         if (DEBUG) {
             Log.d(TAG, "query uri " + uri);
         }
-        try {
-            if (query != null) {
 
-                final QuerystringParser parser = new QuerystringParser(query);
+        if (query == null) {
+            return new QueryStringResult(selection, selectionArgs);
+        }
 
-                parser.parse();
+        final QueryStringResult parsed = parseQuery(query, table, trigramColumns, null,
+                Integer.MAX_VALUE);
+        checkNoControls(parsed);
+        return addToSelection(parsed, selection, selectionArgs);
+    }
 
-                newSelection = ProviderUtils.addExtraWhere(selection, parser.getResult());
-                newSelectionArgs = ProviderUtils.addExtraWhereArgs(selectionArgs,
-                        parser.getSelectionArgs());
-                if (DEBUG) {
-                    Log.d(TAG,
-                            "query:" + newSelection + "; args: ["
-                                    + TextUtils.join(",", Arrays.asList(newSelectionArgs)) + "]");
-                }
+    /**
+     * Parses the given query string into a selection.
+     *
+     * @param query
+     *            the encoded query string
+     * @param table
+     * @param trigramColumns
+     * @param schema
+     *            the columns that the query can use or null to allow any valid name
+     * @param maxBoundListSize
+     *            see {@link QuerystringParser#setMaxBoundListSize(int)}
+     * @return the selection and arguments of the query alone
+     * @throws IllegalArgumentException
+     *             if there are any errors parsing the query
+     */
+    private static QueryStringResult parseQuery(String query, String table,
+            Set<String> trigramColumns, QuerystringSchema schema, int maxBoundListSize)
+            throws SQLGenerationException {
+        final QuerystringControls controls = QuerystringControls.extract(query);
+        if (controls != null) {
+            if (schema != null) {
+                controls.checkColumns(schema.getColumnNames());
+            }
+            query = controls.getQuery();
+            if (query == null) {
+                return new QueryStringResult(null, new String[0], null, controls);
+            }
+        }
+
+        try {
+            final QuerystringParser parser = new QuerystringParser(query);
+
+            if (trigramColumns != null && !trigramColumns.isEmpty()) {
+                parser.setTrigramIndex(table, trigramColumns);
+            }
+            if (schema != null) {
+                parser.setSchema(schema);
             }
+            parser.setMaxBoundListSize(maxBoundListSize);
+
+            parser.parse();
+
+            return new QueryStringResult(parser.getResult(), parser.getSelectionArgs(),
+                    parser.getValueLists(), controls);
+
         } catch (final ParseException e) {
             final IllegalArgumentException e2 = new IllegalArgumentException("parse error");
             e2.initCause(e);
@@ -196,24 +422,367 @@ public class QuerystringWrapper extends DBHelper implements ContentItemRegistera
             se.initCause(e);
             throw se;
         }
-        return new QueryStringResult(newSelection, newSelectionArgs);
+    }
+
+    private static QueryStringResult addToSelection(QueryStringResult parsed, String selection,
+            String[] selectionArgs) {
+        if (parsed.selection == null) {
+            return new QueryStringResult(selection, selectionArgs, null, parsed.controls);
+        }
+        final SelectionBuilder sb = new SelectionBuilder(selection, selectionArgs);
+        addToSelection(sb, parsed, parsed.selectionArgs);
+        // the parsed arguments come first, so the indices of the value lists are unchanged
+        return new QueryStringResult(sb.getSelection(), sb.getSelectionArgs(), parsed.valueLists,
+                parsed.controls);
+    }
+
+    /**
+     * Adds a parsed query to a selection.
+     *
+     * @param selection
+     * @param parsed
+     * @param selectionArgs
+     *            the arguments of the parsed query, which differ from the parsed ones once any
+     *            value lists have been added
+     */
+    private static void addToSelection(SelectionBuilder selection, QueryStringResult parsed,
+            String[] selectionArgs) {
+        if (parsed.selection == null) {
+            return;
+        }
+        // the arguments are copied, so cached ones aren't modified
+        selection.add(parsed.selection, selectionArgs);
+        if (DEBUG) {
+            Log.d(TAG, "query:" + selection.getSelection() + "; args: ["
+                    + TextUtils.join(",", Arrays.asList(selection.getSelectionArgs())) + "]");
+        }
+    }
+
+    /**
+     * Like {@link #queryStringToSelection(Uri, String, String[], String, Set)}, but uses the
+     * trigram indexes of the wrapped helper and caches the parsed query.
+     *
+     * @return the parsed query alone, which may be shared, or null if the URI has no query
+     */
+    private QueryStringResult toSelection(Uri uri) {
+        final String query = uri.getEncodedQuery();
+
+        if (DEBUG) {
+            Log.d(TAG, "query uri " + uri);
+        }
+
+        if (query == null) {
+            return null;
+        }
+
+        if (mQueryCacheSize == 0) {
+            return parseQuery(query, mTrigramTable, mTrigramColumns, mSchema, mMaxBoundListSize);
+        }
+
+        QueryStringResult parsed;
+        synchronized (mQueryCache) {
+            parsed = mQueryCache.get(query);
+            if (parsed != null) {
+                mQueryCacheHits++;
+            } else {
+                mQueryCacheMisses++;
+            }
+        }
+
+        if (parsed == null) {
+            parsed = parseQuery(query, mTrigramTable, mTrigramColumns, mSchema,
+                    mMaxBoundListSize);
+            synchronized (mQueryCache) {
+                mQueryCache.put(query, parsed);
+            }
+        }
+
+        return parsed;
+    }
+
+    /**
+     * Sets the maximum number of values in a list (eg. <kbd>column=(1,2,3)</kbd>) that are bound
+     * as separate arguments. SQLite limits the number of arguments a statement can have (999 by
+     * default), so the values of longer lists are instead inserted into the temporary table
+     * {@link QuerystringParser#VALUE_LIST_TABLE} for as long as the query's cursor is open.
+     * Temporary tables only exist on the connection that created them, so when write-ahead
+     * logging is enabled, the cursors of such queries should be read in full right away.
+     *
+     * @param size
+     *            the maximum number of values to bind. Defaults to
+     *            {@value #DEFAULT_MAX_BOUND_LIST_SIZE}.
+     */
+    public void setMaxBoundListSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("list size must not be negative");
+        }
+        synchronized (mQueryCache) {
+            mMaxBoundListSize = size;
+            // the cached queries may have been parsed with a different size
+            mQueryCache.clear();
+        }
+    }
+
+    /**
+     * Adds the values of the lists that were too long to be bound to the value list table and
+     * sets the lists' IDs as their arguments. This must be called within a transaction, so the
+     * query that uses them is made on the same connection.
+     *
+     * @param db
+     * @param qr
+     * @param selectionArgs
+     *            a copy of the parsed query's arguments, to set the lists' IDs in
+     * @return the IDs of the lists that were added
+     */
+    private static long[] addValueLists(SQLiteDatabase db, QueryStringResult qr,
+            String[] selectionArgs) {
+        db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + QuerystringParser.VALUE_LIST_TABLE
+                + " (list INTEGER NOT NULL, value, PRIMARY KEY (list, value))");
+
+        final long[] listIds = new long[qr.valueLists.size()];
+        final SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO temp."
+                + QuerystringParser.VALUE_LIST_TABLE + " (list, value) VALUES (?, ?)");
+        try {
+            int i = 0;
+            for (final ValueList list : qr.valueLists) {
+                final long listId = sNextValueListId.incrementAndGet();
+                for (final String value : list.values) {
+                    insert.bindLong(1, listId);
+                    insert.bindString(2, value);
+                    insert.executeInsert();
+                }
+                selectionArgs[list.argIndex] = String.valueOf(listId);
+                listIds[i++] = listId;
+            }
+        } finally {
+            insert.close();
+        }
+        return listIds;
+    }
+
+    private static void removeValueLists(SQLiteDatabase db, long[] listIds) {
+        db.execSQL("DELETE FROM temp." + QuerystringParser.VALUE_LIST_TABLE + " WHERE "
+                + ProviderUtils.toIdInSelection("list", listIds));
+    }
+
+    /**
+     * Sets the maximum number of parsed query strings that are kept. Applications tend to send
+     * the same few queries over and over, so by default the most recent
+     * {@value #DEFAULT_QUERY_CACHE_SIZE} are cached.
+     *
+     * @param size
+     *            the number of query strings to keep. 0 disables the cache.
+     */
+    public void setQueryCacheSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("cache size must not be negative");
+        }
+        synchronized (mQueryCache) {
+            mQueryCacheSize = size;
+            mQueryCache.clear();
+        }
+    }
+
+    /**
+     * @return the number of queries whose query string was found in the cache
+     * @see #setQueryCacheSize(int)
+     */
+    public int getQueryCacheHitCount() {
+        synchronized (mQueryCache) {
+            return mQueryCacheHits;
+        }
+    }
+
+    /**
+     * @return the number of queries whose query string needed to be parsed
+     * @see #setQueryCacheSize(int)
+     */
+    public int getQueryCacheMissCount() {
+        synchronized (mQueryCache) {
+            return mQueryCacheMisses;
+        }
     }
 
     @Override
     public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
-        final QueryStringResult qr = queryStringToSelection(uri, selection, selectionArgs);
-
-        return mWrappedHelper.queryDir(db, uri, projection, qr.selection, qr.selectionArgs,
+        return queryDir(db, uri, projection, new SelectionBuilder(selection, selectionArgs),
                 sortOrder);
     }
 
+    @Override
+    public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String sortOrder) {
+        final QueryStringResult qr = toSelection(uri);
+
+        if (qr == null) {
+            return mWrappedHelper.queryDir(db, uri, projection, selection, sortOrder);
+        }
+
+        if (qr.valueLists == null) {
+            addToSelection(selection, qr, qr.selectionArgs);
+            return queryWrapped(db, uri, projection, selection, qr.controls, sortOrder);
+        }
+
+        final Cursor result;
+        db.beginTransaction();
+        try {
+            // the parsed arguments may be cached, so the lists' IDs are set in a copy
+            final String[] selectionArgs = qr.selectionArgs.clone();
+            final long[] listIds = addValueLists(db, qr, selectionArgs);
+            addToSelection(selection, qr, selectionArgs);
+            // the lists are only visible to this connection, so the result is read in full now
+            result = readFully(queryWrapped(db, uri, projection, selection, qr.controls,
+                    sortOrder));
+            removeValueLists(db, listIds);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return result;
+    }
+
+    /**
+     * Reads the whole result, so that it no longer needs the tables it was queried from. A cursor
+     * whose window holds all of its rows is returned as is; anything else is copied and closed.
+     *
+     * @param c
+     * @return a cursor which won't run its query again
+     */
+    private static Cursor readFully(Cursor c) {
+        try {
+            final int count = c.getCount();
+            if (c instanceof AbstractWindowedCursor) {
+                final CursorWindow window = ((AbstractWindowedCursor) c).getWindow();
+                if (window != null && window.getStartPosition() == 0
+                        && window.getNumRows() >= count) {
+                    return c;
+                }
+            }
+
+            final int columnCount = c.getColumnCount();
+            final MatrixCursor copy = new MatrixCursor(c.getColumnNames(), count);
+            for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+                final Object[] row = new Object[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    row[i] = getValue(c, i);
+                }
+                copy.addRow(row);
+            }
+            c.close();
+            return copy;
+
+        } catch (final RuntimeException e) {
+            c.close();
+            throw e;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Object getValue(Cursor c, int column) {
+        if (c.isNull(column)) {
+            return null;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            switch (c.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return c.getLong(column);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return c.getDouble(column);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return c.getBlob(column);
+            }
+        }
+        // before Honeycomb the type isn't known, but anything but a blob reads as a string
+        return c.getString(column);
+    }
+
+    /**
+     * Queries the wrapped helper, applying any reserved keys. A {@link GenericDBHelper} is passed
+     * the grouping and limit directly. Other helpers are given the limit through
+     * {@link DBHelper#queryDir(SQLiteDatabase, Uri, String[], SelectionBuilder, String, String)},
+     * which rejects it unless they support it.
+     *
+     * @param db
+     * @param uri
+     * @param projection
+     *            the projection passed in to queryDir. The one given in the query replaces it.
+     * @param selection
+     *            the selection, including the parsed query
+     * @param controls
+     *            the reserved keys given in the query. Null is ok.
+     * @param sortOrder
+     *            the sort order passed in to queryDir. The one given in the query replaces it.
+     * @return the results
+     */
+    private Cursor queryWrapped(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, QuerystringControls controls, String sortOrder) {
+
+        if (controls == null) {
+            return mWrappedHelper.queryDir(db, uri, projection, selection, sortOrder);
+        }
+
+        if (controls.getProjection() != null) {
+            projection = controls.getProjection();
+        }
+        if (controls.getSortOrder() != null) {
+            sortOrder = controls.getSortOrder();
+        }
+
+        if (mWrappedHelper instanceof GenericDBHelper) {
+            final GenericDBHelper helper = (GenericDBHelper) mWrappedHelper;
+
+            if (controls.isAggregate()) {
+                // the default sort order doesn't apply to the aggregated rows
+                if (sortOrder == null && controls.hasLimit()) {
+                    sortOrder = controls.getGroupBy();
+                }
+                return helper.queryDir(db, uri, controls.getAggregateProjection(), selection,
+                        controls.getGroupBy(), null, sortOrder, controls.getSqlLimit());
+            }
+
+            if (sortOrder == null) {
+                sortOrder = helper.getDefaultSortOrder();
+            }
+            // paging through results without a sort order would return rows in an undefined order
+            if (sortOrder == null && controls.hasLimit()) {
+                sortOrder = ContentItem._ID;
+            }
+            return helper.queryDir(db, uri, projection, selection, null, null, sortOrder,
+                    controls.getSqlLimit());
+        }
+
+        if (controls.isAggregate()) {
+            throw new IllegalArgumentException("aggregates can only be used with a GenericDBHelper");
+        }
+
+        if (controls.hasLimit() && sortOrder == null) {
+            throw new IllegalArgumentException("a sort order must be given along with '"
+                    + QUERY_KEY_LIMIT + "' or '" + QUERY_KEY_OFFSET + "'");
+        }
+
+        return mWrappedHelper.queryDir(db, uri, projection, selection, sortOrder,
+                controls.getSqlLimit());
+    }
+
+    private static void checkNoControls(QueryStringResult qr) {
+        if (qr.controls != null) {
+            throw new IllegalArgumentException("reserved keys can only be used with queryDir");
+        }
+    }
+
     @Override
     public Cursor queryItem(SQLiteDatabase db, Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
         return mWrappedHelper.queryItem(db, uri, projection, selection, selectionArgs, sortOrder);
     }
 
+    @Override
+    public Cursor queryItem(SQLiteDatabase db, Uri uri, String[] projection,
+            SelectionBuilder selection, String sortOrder) {
+        return mWrappedHelper.queryItem(db, uri, projection, selection, sortOrder);
+    }
+
     @Override
     public Uri insertDir(SQLiteDatabase db, ContentProvider provider, Uri uri, ContentValues values)
             throws SQLException {
@@ -227,12 +796,45 @@ public class QuerystringWrapper extends DBHelper implements ContentItemRegistera
         return mWrappedHelper.updateItem(db, provider, uri, values, where, whereArgs);
     }
 
+    @Override
+    public int updateItem(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            ContentValues values, SelectionBuilder selection) {
+        return mWrappedHelper.updateItem(db, provider, uri, values, selection);
+    }
+
     @Override
     public int updateDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
             ContentValues values, String where, String[] whereArgs) {
-        final QueryStringResult qr = queryStringToSelection(uri, where, whereArgs);
+        return updateDir(db, provider, uri, values, new SelectionBuilder(where, whereArgs));
+    }
+
+    @Override
+    public int updateDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            ContentValues values, SelectionBuilder selection) {
+        final QueryStringResult qr = toSelection(uri);
+
+        if (qr == null) {
+            return mWrappedHelper.updateDir(db, provider, uri, values, selection);
+        }
+        checkNoControls(qr);
 
-        return mWrappedHelper.updateDir(db, provider, uri, values, qr.selection, qr.selectionArgs);
+        if (qr.valueLists == null) {
+            addToSelection(selection, qr, qr.selectionArgs);
+            return mWrappedHelper.updateDir(db, provider, uri, values, selection);
+        }
+
+        db.beginTransaction();
+        try {
+            final String[] selectionArgs = qr.selectionArgs.clone();
+            final long[] listIds = addValueLists(db, qr, selectionArgs);
+            addToSelection(selection, qr, selectionArgs);
+            final int count = mWrappedHelper.updateDir(db, provider, uri, values, selection);
+            removeValueLists(db, listIds);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     @Override
@@ -241,12 +843,51 @@ public class QuerystringWrapper extends DBHelper implements ContentItemRegistera
         return mWrappedHelper.deleteItem(db, provider, uri, where, whereArgs);
     }
 
+    @Override
+    public int deleteItem(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            SelectionBuilder selection) {
+        return mWrappedHelper.deleteItem(db, provider, uri, selection);
+    }
+
     @Override
     public int deleteDir(SQLiteDatabase db, ContentProvider provider, Uri uri, String where,
             String[] whereArgs) {
-        final QueryStringResult qr = queryStringToSelection(uri, where, whereArgs);
+        return deleteDir(db, provider, uri, new SelectionBuilder(where, whereArgs));
+    }
+
+    @Override
+    public int deleteDir(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            SelectionBuilder selection) {
+        final QueryStringResult qr = toSelection(uri);
+
+        if (qr == null) {
+            return mWrappedHelper.deleteDir(db, provider, uri, selection);
+        }
+        checkNoControls(qr);
 
-        return mWrappedHelper.deleteDir(db, provider, uri, qr.selection, qr.selectionArgs);
+        if (qr.valueLists == null) {
+            addToSelection(selection, qr, qr.selectionArgs);
+            return mWrappedHelper.deleteDir(db, provider, uri, selection);
+        }
+
+        db.beginTransaction();
+        try {
+            final String[] selectionArgs = qr.selectionArgs.clone();
+            final long[] listIds = addValueLists(db, qr, selectionArgs);
+            addToSelection(selection, qr, selectionArgs);
+            final int count = mWrappedHelper.deleteDir(db, provider, uri, selection);
+            removeValueLists(db, listIds);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(SQLiteDatabase db, ContentProvider provider, Uri uri,
+            String mode) throws FileNotFoundException {
+        return mWrappedHelper.openFile(db, provider, uri, mode);
     }
 
     @Override
@@ -0,0 +1,163 @@
+package edu.mit.mobile.android.content;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * <p>
+ * A selection and its arguments, which the layers of a query add clauses to as it's passed down,
+ * eg. from a {@link QuerystringWrapper} to a {@link ForeignKeyDBHelper} to a
+ * {@link GenericDBHelper}. The selection and arguments are only built once, by the helper that
+ * finally runs the query, rather than being rebuilt by each layer using
+ * {@link ProviderUtils#addExtraWhere(String, String...)}.
+ * </p>
+ *
+ * <p>
+ * The clauses are ANDed together in the order they were added, followed by the selection given
+ * to the constructor, if any. The arguments are in the same order.
+ * </p>
+ */
+public class SelectionBuilder {
+
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+
+    private final StringBuilder mClauses = new StringBuilder();
+    private int mClauseCount;
+    private String mFirstClause;
+
+    private String[] mArgs;
+    private int mArgCount;
+
+    private String mBuiltSelection;
+    private String[] mBuiltSelectionArgs;
+
+    // set by GenericDBHelper once it has decided which of its methods runs the query
+    boolean mDispatched;
+
+    /**
+     * Creates an empty selection.
+     */
+    public SelectionBuilder() {
+        this(null, null);
+    }
+
+    /**
+     * @param selection
+     *            the selection passed in to the provider. Null is ok.
+     * @param selectionArgs
+     *            its arguments. Null is ok.
+     */
+    public SelectionBuilder(String selection, String[] selectionArgs) {
+        mSelection = selection != null && selection.length() > 0 ? selection : null;
+        mSelectionArgs = selectionArgs;
+    }
+
+    /**
+     * Adds a clause to the selection. You'll have to put in the appropriate query placeholders.
+     *
+     * @param clause
+     *            a SQL expression, eg. <code>"post"=?</code>
+     * @param args
+     *            the arguments of the clause. They are copied, so the array can be reused.
+     * @return this
+     */
+    public SelectionBuilder add(String clause, String... args) {
+        if (mClauseCount == 0) {
+            // a lone clause is used as-is, so it's only wrapped once there's a second one
+            mFirstClause = clause;
+        } else {
+            if (mClauseCount == 1) {
+                mClauses.append('(').append(mFirstClause).append(')');
+            }
+            mClauses.append(" AND (").append(clause).append(')');
+        }
+        mClauseCount++;
+
+        if (args.length > 0) {
+            if (mArgs == null) {
+                mArgs = new String[Math.max(args.length, 4)];
+            } else if (mArgCount + args.length > mArgs.length) {
+                final String[] grown = new String[Math.max(mArgCount + args.length,
+                        mArgs.length * 2)];
+                System.arraycopy(mArgs, 0, grown, 0, mArgCount);
+                mArgs = grown;
+            }
+            System.arraycopy(args, 0, mArgs, mArgCount, args.length);
+            mArgCount += args.length;
+        }
+
+        mBuiltSelection = null;
+        mBuiltSelectionArgs = null;
+        return this;
+    }
+
+    /**
+     * @return true if there are neither clauses nor a selection passed to the constructor
+     */
+    public boolean isEmpty() {
+        return mClauseCount == 0 && mSelection == null;
+    }
+
+    /**
+     * @return the selection, suitable for passing to {@link SQLiteDatabase}, or null if it's
+     *         empty
+     */
+    public String getSelection() {
+        if (mBuiltSelection == null) {
+            if (mClauseCount == 0) {
+                return mSelection;
+            }
+            if (mSelection == null) {
+                mBuiltSelection = mClauseCount == 1 ? mFirstClause : mClauses.toString();
+            } else {
+                final StringBuilder sb = new StringBuilder(mClauses.length()
+                        + mSelection.length() + 16);
+                if (mClauseCount == 1) {
+                    sb.append('(').append(mFirstClause).append(')');
+                } else {
+                    sb.append(mClauses);
+                }
+                sb.append(" AND (").append(mSelection).append(')');
+                mBuiltSelection = sb.toString();
+            }
+        }
+        return mBuiltSelection;
+    }
+
+    /**
+     * @return the arguments of the selection or null if there are none. The array must not be
+     *         modified.
+     */
+    public String[] getSelectionArgs() {
+        if (mBuiltSelectionArgs == null) {
+            final int extra = mSelectionArgs != null ? mSelectionArgs.length : 0;
+            if (mArgCount == 0) {
+                return mSelectionArgs;
+            }
+            final String[] args = new String[mArgCount + extra];
+            System.arraycopy(mArgs, 0, args, 0, mArgCount);
+            if (extra > 0) {
+                System.arraycopy(mSelectionArgs, 0, args, mArgCount, extra);
+            }
+            mBuiltSelectionArgs = args;
+        }
+        return mBuiltSelectionArgs;
+    }
+}
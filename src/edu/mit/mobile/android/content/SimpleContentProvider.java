@@ -17,25 +17,36 @@ package edu.mit.mobile.android.content;
  * License along with this library; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
+import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
+import android.annotation.TargetApi;
 import android.app.Application;
 import android.app.SearchManager;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.util.Log;
 import edu.mit.mobile.android.content.column.DBColumn;
+import edu.mit.mobile.android.content.column.DatetimeColumn;
+import edu.mit.mobile.android.content.column.FileColumn;
 import edu.mit.mobile.android.content.dbhelper.SearchDBHelper;
 import edu.mit.mobile.android.content.m2m.M2MDBHelper;
 
@@ -154,6 +165,27 @@ public abstract class SimpleContentProvider extends ContentProvider {
      */
     public static final int URI_MATCHER_CODE_START = 0x100000;
 
+    /**
+     * {@link #call(String, String, Bundle)} methods for the {@link WriteQueue}.
+     */
+    public static final String CALL_ENQUEUE_INSERT = "enqueueInsert",
+            CALL_ENQUEUE_UPDATE = "enqueueUpdate", CALL_FLUSH = "flush";
+
+    /**
+     * {@link #call(String, String, Bundle)} extras for the {@link WriteQueue}.
+     */
+    public static final String EXTRA_VALUES = "values", EXTRA_SELECTION = "selection",
+            EXTRA_SELECTION_ARGS = "selectionArgs", EXTRA_SEQUENCE = "sequence",
+            EXTRA_SINCE = "since", EXTRA_TIMEOUT = "timeout", EXTRA_COMMITTED = "committed",
+            EXTRA_FAILED = "failed";
+
+    /**
+     * The longest, in milliseconds, that a {@link #CALL_FLUSH} waits. It's also the timeout if
+     * none is given, so that callers can't hold on to one of the provider's binder threads
+     * indefinitely.
+     */
+    public static final long MAX_FLUSH_TIMEOUT = 10000;
+
     // /////////////////////// private fields
     private final String mAuthority;
     private String mDBName;
@@ -170,8 +202,13 @@ public abstract class SimpleContentProvider extends ContentProvider {
 
     private int mMatcherID = URI_MATCHER_CODE_START;
 
+    private volatile boolean mHasFileColumns;
+
     private static final String ERR_NO_HANDLER = "uri not handled by provider";
 
+    private final Object mWriteQueueLock = new Object();
+    private WriteQueue mWriteQueue;
+
     // /////////////////////////////// public methods
 
     /**
@@ -452,6 +489,7 @@ public abstract class SimpleContentProvider extends ContentProvider {
             throw new IllegalArgumentException("delete note supported");
         }
         final int count = mDBHelperMapper.delete(match, this, db, uri, selection, selectionArgs);
+        deleteOrphanedFiles(db);
 
         getContext().getContentResolver().notifyChange(uri, null);
 
@@ -547,6 +585,28 @@ public abstract class SimpleContentProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+
+        final Uri newUri = insert(db, uri, values);
+        if (newUri != null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return newUri;
+    }
+
+    /**
+     * Inserts without notifying observers.
+     */
+    Uri insert(SQLiteDatabase db, Uri uri, ContentValues values) {
+        return mDBHelperMapper.insert(checkInsert(uri), this, db, uri, values);
+    }
+
+    /**
+     * @param uri
+     * @return the matcher code of the URI
+     * @throws IllegalArgumentException
+     *             if the URI can't be inserted into
+     */
+    int checkInsert(Uri uri) {
         final int match = MATCHER.match(uri);
 
         if (UriMatcher.NO_MATCH == match) {
@@ -556,11 +616,7 @@ public abstract class SimpleContentProvider extends ContentProvider {
         if (!mDBHelperMapper.canInsert(match)) {
             throw new IllegalArgumentException("insert not supported");
         }
-        final Uri newUri = mDBHelperMapper.insert(match, this, db, uri, values);
-        if (newUri != null) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
-        return newUri;
+        return match;
     }
 
     @Override
@@ -611,9 +667,35 @@ public abstract class SimpleContentProvider extends ContentProvider {
         } finally {
             db.endTransaction();
         }
+        deleteOrphanedFiles(db);
         return res;
     }
 
+    /**
+     * Opens the file of an item that has a {@link FileColumn}. Use
+     * {@link android.content.ContentResolver#openInputStream(Uri)} or
+     * {@link android.content.ContentResolver#openOutputStream(Uri)} on the item's URI to read or
+     * write it.
+     *
+     * @see GenericDBHelper#openFile(SQLiteDatabase, ContentProvider, Uri, String)
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        final int match = MATCHER.match(uri);
+
+        if (UriMatcher.NO_MATCH == match) {
+            throw new FileNotFoundException(ERR_NO_HANDLER + ": " + uri);
+        }
+
+        final boolean allowed = FileStore.isWriteMode(mode) ? mDBHelperMapper.canUpdate(match)
+                : mDBHelperMapper.canQuery(match);
+        if (!allowed) {
+            throw new FileNotFoundException("cannot open file with mode " + mode + ": " + uri);
+        }
+        return mDBHelperMapper.openFile(match, this, db, uri, mode);
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
@@ -636,6 +718,31 @@ public abstract class SimpleContentProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+
+        final int changed = update(db, uri, values, selection, selectionArgs);
+        deleteOrphanedFiles(db);
+        if (changed != 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return changed;
+    }
+
+    /**
+     * Updates without notifying observers or deleting orphaned files.
+     */
+    int update(SQLiteDatabase db, Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        return mDBHelperMapper.update(checkUpdate(uri), this, db, uri, values, selection,
+                selectionArgs);
+    }
+
+    /**
+     * @param uri
+     * @return the matcher code of the URI
+     * @throws IllegalArgumentException
+     *             if the URI can't be updated
+     */
+    int checkUpdate(Uri uri) {
         final int match = MATCHER.match(uri);
 
         if (UriMatcher.NO_MATCH == match) {
@@ -645,15 +752,195 @@ public abstract class SimpleContentProvider extends ContentProvider {
         if (!mDBHelperMapper.canUpdate(match)) {
             throw new IllegalArgumentException("update not supported");
         }
-        final int changed = mDBHelperMapper.update(match, this, db, uri, values, selection,
-                selectionArgs);
-        if (changed != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        return match;
+    }
+
+    SQLiteDatabase getWritableDatabase() {
+        return mDatabaseHelper.getWritableDatabase();
+    }
+
+    /**
+     * Called by the {@link WriteQueue} once it has committed a group of writes.
+     *
+     * @param db
+     * @param changed
+     *            the URIs that were written to
+     */
+    void onWritesCommitted(SQLiteDatabase db, Collection<Uri> changed) {
+        deleteOrphanedFiles(db);
+        final ContentResolver cr = getContext().getContentResolver();
+        for (final Uri uri : changed) {
+            cr.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Gets the queue for asynchronous writes to this provider, creating it using
+     * {@link #createWriteQueue()} the first time it's needed. Writes can also be queued by other
+     * processes, using {@link #call(String, String, Bundle)}.
+     *
+     * @return the provider's write queue
+     */
+    public WriteQueue getWriteQueue() {
+        synchronized (mWriteQueueLock) {
+            if (mWriteQueue == null) {
+                mWriteQueue = createWriteQueue();
+            }
+            return mWriteQueue;
+        }
+    }
+
+    /**
+     * Override this to change the limits of the {@link WriteQueue}.
+     *
+     * @return a new write queue for this provider
+     */
+    protected WriteQueue createWriteQueue() {
+        return new WriteQueue(this);
+    }
+
+    /**
+     * <p>
+     * Handles the {@link WriteQueue} methods, so other processes can queue writes:
+     * </p>
+     *
+     * <dl>
+     * <dt>{@link #CALL_ENQUEUE_INSERT}</dt>
+     * <dd>queues inserts into the dir URI given as the argument, of the {@link ContentValues} or
+     * array of them in {@link #EXTRA_VALUES}.</dd>
+     * <dt>{@link #CALL_ENQUEUE_UPDATE}</dt>
+     * <dd>queues an update of the URI given as the argument, with the values in
+     * {@link #EXTRA_VALUES} and an optional {@link #EXTRA_SELECTION} and
+     * {@link #EXTRA_SELECTION_ARGS}.</dd>
+     * <dt>{@link #CALL_FLUSH}</dt>
+     * <dd>waits until the write whose sequence number is in {@link #EXTRA_SEQUENCE} or, if there
+     * is none, every write so far has been processed. An {@link #EXTRA_TIMEOUT} in milliseconds,
+     * of at most {@link #MAX_FLUSH_TIMEOUT}, can be given, as can the sequence number of a write
+     * that was already waited for in {@link #EXTRA_SINCE}.</dd>
+     * </dl>
+     *
+     * <p>
+     * All of these return a bundle with the sequence number of the last write queued or waited for
+     * in {@link #EXTRA_SEQUENCE}. The flush also returns the sequence numbers of the writes after
+     * {@link #EXTRA_SINCE} that failed, as a long array in {@link #EXTRA_FAILED}, and whether all
+     * the others were committed in {@link #EXTRA_COMMITTED}. The caller needs the provider's write
+     * permission.
+     * </p>
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!CALL_ENQUEUE_INSERT.equals(method) && !CALL_ENQUEUE_UPDATE.equals(method)
+                && !CALL_FLUSH.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        enforceWritePermission();
+
+        final WriteQueue queue = getWriteQueue();
+        final Bundle result = new Bundle();
+        try {
+            if (CALL_FLUSH.equals(method)) {
+                final long sequence;
+                if (extras != null && extras.containsKey(EXTRA_SEQUENCE)) {
+                    sequence = extras.getLong(EXTRA_SEQUENCE);
+                } else {
+                    sequence = queue.getEnqueued();
+                }
+                // 0 would wait forever
+                long timeout = extras != null ? extras.getLong(EXTRA_TIMEOUT) : 0;
+                if (timeout <= 0 || timeout > MAX_FLUSH_TIMEOUT) {
+                    timeout = MAX_FLUSH_TIMEOUT;
+                }
+                final long since = extras != null ? extras.getLong(EXTRA_SINCE) : 0;
+                final boolean processed = queue.waitFor(sequence, timeout);
+                final long[] failed = queue.getFailed(since, sequence);
+                result.putBoolean(EXTRA_COMMITTED, processed && failed.length == 0);
+                result.putLongArray(EXTRA_FAILED, failed);
+                result.putLong(EXTRA_SEQUENCE, sequence);
+                return result;
+            }
+
+            if (arg == null || extras == null) {
+                throw new IllegalArgumentException(method + " needs a URI and values");
+            }
+            final Uri uri = Uri.parse(arg);
+            final Object values = extras.get(EXTRA_VALUES);
+
+            final long sequence;
+            if (values instanceof ContentValues) {
+                if (CALL_ENQUEUE_INSERT.equals(method)) {
+                    sequence = queue.enqueueInsert(uri, (ContentValues) values);
+                } else {
+                    sequence = queue.enqueueUpdate(uri, (ContentValues) values,
+                            extras.getString(EXTRA_SELECTION),
+                            extras.getStringArray(EXTRA_SELECTION_ARGS));
+                }
+
+            } else if (values instanceof Parcelable[] && CALL_ENQUEUE_INSERT.equals(method)) {
+                long last = queue.getEnqueued();
+                for (final Parcelable cv : (Parcelable[]) values) {
+                    if (!(cv instanceof ContentValues)) {
+                        throw new IllegalArgumentException(EXTRA_VALUES
+                                + " must only contain ContentValues");
+                    }
+                    last = queue.enqueueInsert(uri, (ContentValues) cv);
+                }
+                sequence = last;
+
+            } else {
+                throw new IllegalArgumentException(method + " needs " + EXTRA_VALUES);
+            }
+            result.putLong(EXTRA_SEQUENCE, sequence);
+            return result;
+
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the write queue", e);
         }
-        return changed;
+    }
+
+    private void enforceWritePermission() {
+        final String permission = getWritePermission();
+        if (permission != null && getContext().checkCallingOrSelfPermission(permission)
+                != PackageManager.PERMISSION_GRANTED) {
+            throw new SecurityException("queuing writes requires " + permission);
+        }
+    }
+
+    /**
+     * Commits any queued writes before the provider is shut down.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public void shutdown() {
+        final WriteQueue queue;
+        synchronized (mWriteQueueLock) {
+            queue = mWriteQueue;
+        }
+        if (queue != null) {
+            try {
+                queue.shutdown();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.shutdown();
     }
 
     // ///////////////////// private methods
+
+    /**
+     * Deletes the files of any rows that were deleted, once there's no transaction that could
+     * bring them back.
+     *
+     * @param db
+     */
+    private void deleteOrphanedFiles(SQLiteDatabase db) {
+        if (mHasFileColumns && !db.inTransaction()) {
+            FileStore.deleteOrphans(db, getContext());
+        }
+    }
+
     /**
      * Generates a name for the database from the content provider.
      *
@@ -691,6 +978,18 @@ public abstract class SimpleContentProvider extends ContentProvider {
             if (AndroidVersions.SQLITE_SUPPORTS_FOREIGN_KEYS) {
                 db.execSQL("PRAGMA foreign_keys = ON;");
             }
+
+            mHasFileColumns = FileStore.hasFileColumns(db);
+            // in case the process died before they could be deleted
+            if (!db.isReadOnly()) {
+                DatetimeColumn.migrateAutoNowTriggers(db);
+
+                deleteOrphanedFiles(db);
+
+                if (BlobStore.exists(db)) {
+                    BlobStore.deleteUnreferenced(db);
+                }
+            }
         }
     }
 }
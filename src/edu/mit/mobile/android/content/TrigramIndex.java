@@ -0,0 +1,236 @@
+package edu.mit.mobile.android.content;
+
+/*
+ * Copyright (C) 2011-2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.mit.mobile.android.content.column.DBColumn;
+import edu.mit.mobile.android.content.column.TextColumn;
+
+/**
+ * <p>
+ * Generates and queries trigram indexes of text columns. A trigram index lets a substring search
+ * ({@code LIKE '%query%'}) narrow down the rows it needs to check to those that contain every
+ * three-character sequence of the query, instead of scanning the whole table.
+ * </p>
+ *
+ * <p>
+ * To index a column, add {@link TextColumn#FLAG_TRIGRAM_INDEX} to its {@link DBColumn#flags()}.
+ * This creates a side table named {@code TABLE_COLUMN_trigrams}, which holds the lowercased
+ * trigrams of each row's value and is kept up to date by triggers. The index is used
+ * automatically by {@link QuerystringWrapper}'s like operator and by
+ * {@link edu.mit.mobile.android.content.dbhelper.SearchDBHelper}'s substring search.
+ * </p>
+ *
+ * <p>
+ * Only values up to {@link #MAX_INDEXED_LENGTH} characters long are indexed. Longer values are
+ * always checked. Only trigrams made of ASCII characters are used when querying, as those are
+ * the only characters which {@code LIKE} and {@code lower()} are guaranteed to treat the same.
+ * </p>
+ */
+public class TrigramIndex {
+
+    /**
+     * The table containing the positions of the trigrams within a value.
+     */
+    public static final String POSITIONS_TABLE = "trigram_positions";
+
+    private static final int POSITION_COUNT = 10000;
+
+    /**
+     * Values up to this length are fully indexed.
+     */
+    public static final int MAX_INDEXED_LENGTH = POSITION_COUNT + 2;
+
+    private static final String INDEX_TABLE_SUFFIX = "_trigrams";
+
+    /**
+     * @param table
+     * @param column
+     * @return the name of the index table for the given column
+     */
+    public static String getIndexTable(String table, String column) {
+        return table + "_" + column + INDEX_TABLE_SUFFIX;
+    }
+
+    /**
+     * Generates the SQL needed to create the trigram index for the given column. This must be
+     * executed after the table has been created.
+     *
+     * @param table
+     * @param column
+     * @return a list of SQL statements
+     */
+    public static List<String> getIndexCreation(String table, String column) {
+        final ArrayList<String> sql = new ArrayList<String>();
+
+        final String indexTable = getIndexTable(table, column);
+        final String escIndexTable = SQLGenUtils.escapeTableName(indexTable);
+        final String escTable = SQLGenUtils.escapeTableName(table);
+        final String escColumn = '"' + column + '"';
+        final String triggerPrefix = "trigger_" + indexTable + "_";
+
+        // the positions are shared by all indexes.
+        sql.add("CREATE TABLE IF NOT EXISTS " + POSITIONS_TABLE + " (n INTEGER PRIMARY KEY)");
+
+        // triggers can't loop, so this is joined against instead
+        final String digits = "(SELECT 0 AS d UNION ALL SELECT 1 UNION ALL SELECT 2 UNION ALL "
+                + "SELECT 3 UNION ALL SELECT 4 UNION ALL SELECT 5 UNION ALL SELECT 6 UNION ALL "
+                + "SELECT 7 UNION ALL SELECT 8 UNION ALL SELECT 9)";
+        sql.add("INSERT OR IGNORE INTO " + POSITIONS_TABLE
+                + " (n) SELECT a.d * 1000 + b.d * 100 + c.d * 10 + e.d + 1 FROM " + digits
+                + " a, " + digits + " b, " + digits + " c, " + digits + " e");
+
+        sql.add("DROP TABLE IF EXISTS " + escIndexTable);
+        sql.add("CREATE TABLE " + escIndexTable
+                + " (gram TEXT NOT NULL, id INTEGER NOT NULL, UNIQUE (gram, id))");
+        sql.add("CREATE INDEX " + SQLGenUtils.escapeTableName(indexTable + "_id") + " ON "
+                + escIndexTable + " (id)");
+
+        final String insertNew = "INSERT OR IGNORE INTO " + escIndexTable
+                + " (gram, id) SELECT lower(substr(new." + escColumn + ", n, 3)), new."
+                + ContentItem._ID + " FROM " + POSITIONS_TABLE + " WHERE n <= length(new."
+                + escColumn + ") - 2;"
+                // values too long to index completely are marked so they're always checked
+                + "INSERT OR IGNORE INTO " + escIndexTable + " (gram, id) SELECT '', new."
+                + ContentItem._ID + " WHERE length(new." + escColumn + ") > "
+                + MAX_INDEXED_LENGTH + ";";
+        final String deleteOld = "DELETE FROM " + escIndexTable + " WHERE id = old."
+                + ContentItem._ID + ";";
+
+        sql.add("CREATE TRIGGER " + SQLGenUtils.escapeTableName(triggerPrefix + "insert")
+                + " AFTER INSERT ON " + escTable + " FOR EACH ROW BEGIN " + insertNew + "END");
+
+        sql.add("CREATE TRIGGER " + SQLGenUtils.escapeTableName(triggerPrefix + "update")
+                + " AFTER UPDATE OF " + escColumn + " ON " + escTable + " FOR EACH ROW BEGIN "
+                + deleteOld + insertNew + "END");
+
+        sql.add("CREATE TRIGGER " + SQLGenUtils.escapeTableName(triggerPrefix + "delete")
+                + " AFTER DELETE ON " + escTable + " FOR EACH ROW BEGIN " + deleteOld + "END");
+
+        return sql;
+    }
+
+    /**
+     * Finds the trigrams that a value must contain to match the given {@code LIKE} pattern. The
+     * trigrams are taken from the literal parts of the pattern, between any wildcards.
+     *
+     * @param likePattern
+     * @return the lowercased trigrams. This will be empty if none can be used.
+     */
+    public static Set<String> getTrigrams(String likePattern) {
+        final LinkedHashSet<String> trigrams = new LinkedHashSet<String>();
+
+        final int len = likePattern.length();
+        // the start of the current run of indexable characters
+        int start = 0;
+        for (int i = 0; i <= len; i++) {
+            final char ch = i < len ? likePattern.charAt(i) : '%';
+            if (ch == '%' || ch == '_' || ch > 0x7f) {
+                for (int j = start; j + 3 <= i; j++) {
+                    trigrams.add(toLowerCaseAscii(likePattern.substring(j, j + 3)));
+                }
+                start = i + 1;
+            }
+        }
+
+        return trigrams;
+    }
+
+    /**
+     * Generates a selection that matches the rows which could contain the given trigrams in the
+     * given column, using only the index. This should be combined with the {@code LIKE}
+     * expression that it's narrowing down using {@code AND}.
+     *
+     * @param table
+     * @param column
+     * @param trigrams
+     *            the trigrams from {@link #getTrigrams(String)}. Must not be empty.
+     * @return a parenthesized selection
+     */
+    public static String toCandidateSelection(String table, String column,
+            Collection<String> trigrams) {
+        if (trigrams.isEmpty()) {
+            throw new IllegalArgumentException("no trigrams given");
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        final String escTable = SQLGenUtils.escapeTableName(table);
+
+        final String indexTable = SQLGenUtils.escapeTableName(getIndexTable(table, column));
+
+        sb.append('(');
+        sb.append(escTable).append('.').append(ContentItem._ID);
+        sb.append(" IN (SELECT id FROM ").append(indexTable);
+        sb.append(" WHERE gram = '' UNION SELECT id FROM ").append(indexTable);
+        sb.append(" WHERE gram IN (");
+
+        boolean first = true;
+        for (final String trigram : trigrams) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('\'').append(trigram.replace("'", "''")).append('\'');
+        }
+        sb.append(") GROUP BY id HAVING count(*) = ").append(trigrams.size()).append("))");
+
+        return sb.toString();
+    }
+
+    /**
+     * @param contentItem
+     * @return the names of the columns of the given content item which have a trigram index
+     * @throws SQLGenerationException
+     *             if a column cannot be accessed
+     */
+    public static Set<String> getIndexedColumns(Class<? extends ContentItem> contentItem) {
+        final HashSet<String> columns = new HashSet<String>();
+
+        for (final Field field : contentItem.getFields()) {
+            final DBColumn t = field.getAnnotation(DBColumn.class);
+            if (t == null || !TextColumn.class.isAssignableFrom(t.type())
+                    || (t.flags() & TextColumn.FLAG_TRIGRAM_INDEX) == 0) {
+                continue;
+            }
+            try {
+                columns.add((String) field.get(null));
+            } catch (final IllegalAccessException e) {
+                throw new SQLGenerationException("field '" + field.getName()
+                        + "' cannot be accessed", e);
+            }
+        }
+        return columns;
+    }
+
+    private static String toLowerCaseAscii(String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char ch = s.charAt(i);
+            sb.append(ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch);
+        }
+        return sb.toString();
+    }
+}
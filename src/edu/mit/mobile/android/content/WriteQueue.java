@@ -0,0 +1,489 @@
+package edu.mit.mobile.android.content;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * <p>
+ * Queues inserts and updates for a {@link SimpleContentProvider} and saves them on a single writer
+ * thread, committing them in groups. Each write made through
+ * {@link android.content.ContentResolver} is its own transaction and so its own sync to disk;
+ * grouping them lets high-rate producers, such as logging, share those syncs. A group is committed
+ * once it has {@link #getMaxBatchSize()} writes or {@link #getMaxLatency()} milliseconds after its
+ * first write was taken, whichever comes first, or right away if anyone is waiting for it.
+ * </p>
+ *
+ * <p>
+ * Each enqueued write is given a sequence number, which can be passed to
+ * {@link #await(long, long)} to wait until it's committed. {@link #flush()} waits for everything
+ * enqueued so far and {@link #getFailed(long, long)} tells which of those writes failed. Writes
+ * that are still queued are lost if the process dies, so callers that need their writes to be
+ * durable must wait for them. The queue holds at most {@link #getCapacity()} writes; once it's
+ * full, enqueuing blocks until the writer catches up.
+ * </p>
+ *
+ * <p>
+ * A write that fails, eg. because it violates a constraint, doesn't stop the rest of its group
+ * from being committed: the group is rolled back and its writes are then saved one at a time, so
+ * that only the failed write is lost. Failures are logged, counted by {@link #getFailedCount()} and
+ * kept, by sequence number, for the last {@link #getCapacity()} failed writes. Observers are
+ * notified once per URI per group.
+ * </p>
+ *
+ * @see SimpleContentProvider#getWriteQueue()
+ */
+public class WriteQueue {
+    private static final String TAG = WriteQueue.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    public static final long DEFAULT_MAX_LATENCY = 50;
+
+    private final SimpleContentProvider mProvider;
+    private final int mCapacity;
+    private final int mMaxBatchSize;
+    private final long mMaxLatency;
+
+    private final BlockingQueue<Write> mQueue;
+
+    private final Object mEnqueueLock = new Object();
+    // written while holding mEnqueueLock
+    private volatile long mEnqueued;
+    private Thread mWriter;
+    private boolean mShutdown;
+
+    // guarded by this
+    private long mProcessed;
+    private long mFailedCount;
+    private long mForgotten;
+    private int mWaiting;
+    private final LinkedHashMap<Long, RuntimeException> mFailures;
+
+    private static class Write {
+        final long sequence;
+        final Uri uri;
+        final ContentValues values;
+        final boolean isInsert;
+        final String selection;
+        final String[] selectionArgs;
+
+        Write(long sequence, Uri uri, ContentValues values, boolean isInsert, String selection,
+                String[] selectionArgs) {
+            this.sequence = sequence;
+            this.uri = uri;
+            this.values = values;
+            this.isInsert = isInsert;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+        }
+    }
+
+    /**
+     * Creates a queue with the default limits.
+     *
+     * @param provider
+     */
+    public WriteQueue(SimpleContentProvider provider) {
+        this(provider, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LATENCY);
+    }
+
+    /**
+     * @param provider
+     *            the provider to write to
+     * @param capacity
+     *            the number of writes that can be queued before enqueuing blocks
+     * @param maxBatchSize
+     *            the most writes that are committed together
+     * @param maxLatency
+     *            the longest time, in milliseconds, that a write waits for others to join its
+     *            group
+     */
+    public WriteQueue(SimpleContentProvider provider, int capacity, int maxBatchSize,
+            long maxLatency) {
+        if (capacity < 1 || maxBatchSize < 1 || maxLatency < 0) {
+            throw new IllegalArgumentException("invalid limits");
+        }
+        mProvider = provider;
+        mCapacity = capacity;
+        mMaxBatchSize = maxBatchSize;
+        mMaxLatency = maxLatency;
+        mQueue = new ArrayBlockingQueue<Write>(capacity);
+        mFailures = new LinkedHashMap<Long, RuntimeException>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, RuntimeException> eldest) {
+                if (size() > mCapacity) {
+                    mForgotten = eldest.getKey();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    public long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /**
+     * Queues an insert. The URI is checked right away, but the values aren't checked until they're
+     * saved.
+     *
+     * @param uri
+     *            a dir URI of the provider
+     * @param values
+     * @return the sequence number of the write
+     * @throws IllegalArgumentException
+     *             if the provider can't insert into the URI
+     * @throws InterruptedException
+     *             if interrupted while waiting for room in the queue
+     */
+    public long enqueueInsert(Uri uri, ContentValues values) throws InterruptedException {
+        mProvider.checkInsert(uri);
+        return enqueue(uri, values, true, null, null);
+    }
+
+    /**
+     * Queues an update.
+     *
+     * @param uri
+     * @param values
+     * @param selection
+     * @param selectionArgs
+     * @return the sequence number of the write
+     * @throws IllegalArgumentException
+     *             if the provider can't update the URI
+     * @throws InterruptedException
+     *             if interrupted while waiting for room in the queue
+     * @see #enqueueInsert(Uri, ContentValues)
+     */
+    public long enqueueUpdate(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) throws InterruptedException {
+        mProvider.checkUpdate(uri);
+        return enqueue(uri, values, false, selection, selectionArgs);
+    }
+
+    private long enqueue(Uri uri, ContentValues values, boolean isInsert, String selection,
+            String[] selectionArgs) throws InterruptedException {
+        // the caller may reuse its values
+        values = new ContentValues(values);
+
+        // sequence numbers are assigned in the order the writes are queued
+        synchronized (mEnqueueLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("write queue has been shut down");
+            }
+            if (mWriter == null) {
+                mWriter = new Thread(mWriteLoop, TAG);
+                mWriter.setDaemon(true);
+                mWriter.start();
+            }
+            final long sequence = mEnqueued + 1;
+            mQueue.put(new Write(sequence, uri, values, isInsert, selection, selectionArgs));
+            mEnqueued = sequence;
+            return sequence;
+        }
+    }
+
+    /**
+     * @return the sequence number of the last write that was enqueued
+     */
+    public long getEnqueued() {
+        return mEnqueued;
+    }
+
+    /**
+     * @return the sequence number of the last write that was committed or failed; every write up to
+     *         it has been one or the other
+     */
+    public synchronized long getProcessed() {
+        return mProcessed;
+    }
+
+    /**
+     * @return the number of writes that have failed
+     */
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @param sequence
+     *            the sequence number of a write that has been processed
+     * @return the exception the write failed with or null if it was committed
+     * @throws IllegalArgumentException
+     *             if the write hasn't been processed yet or so many writes have failed since that
+     *             it's no longer known whether it did
+     */
+    public synchronized RuntimeException getFailure(long sequence) {
+        if (sequence > mProcessed) {
+            throw new IllegalArgumentException("write " + sequence + " hasn't been processed");
+        }
+        final RuntimeException failure = mFailures.get(sequence);
+        if (failure == null && sequence <= mForgotten) {
+            throw new IllegalArgumentException("the outcome of write " + sequence
+                    + " is no longer known");
+        }
+        return failure;
+    }
+
+    /**
+     * Lists the writes that have failed in the given range. Only the last {@link #getCapacity()}
+     * failures are kept.
+     *
+     * @param after
+     *            the sequence number after which to start, exclusive
+     * @param upTo
+     *            the sequence number at which to stop, inclusive
+     * @return the sequence numbers of the failed writes, in order
+     */
+    public synchronized long[] getFailed(long after, long upTo) {
+        final ArrayList<Long> failed = new ArrayList<Long>();
+        for (final Long sequence : mFailures.keySet()) {
+            if (sequence > after && sequence <= upTo) {
+                failed.add(sequence);
+            }
+        }
+        final long[] result = new long[failed.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = failed.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Waits for the given write, and those before it, to be processed.
+     *
+     * @param sequence
+     *            the sequence number of the write
+     * @param timeout
+     *            the most time to wait, in milliseconds, or 0 to wait indefinitely
+     * @return true if the write has been committed, false if it failed or it timed out
+     * @throws InterruptedException
+     * @throws IllegalArgumentException
+     *             if it's no longer known whether the write failed
+     * @see #getFailure(long)
+     */
+    public boolean await(long sequence, long timeout) throws InterruptedException {
+        return waitFor(sequence, timeout) && getFailure(sequence) == null;
+    }
+
+    /**
+     * Waits for all the writes enqueued so far to be processed.
+     *
+     * @return the sequence number of the last write that was waited for, which can be passed to
+     *         {@link #getFailed(long, long)}
+     * @throws InterruptedException
+     */
+    public long flush() throws InterruptedException {
+        final long sequence = getEnqueued();
+        waitFor(sequence, 0);
+        return sequence;
+    }
+
+    /**
+     * @return true if the write has been processed, false if it timed out
+     */
+    synchronized boolean waitFor(long sequence, long timeout) throws InterruptedException {
+        if (mProcessed >= sequence) {
+            return true;
+        }
+        final long deadline = SystemClock.uptimeMillis() + timeout;
+        mWaiting++;
+        try {
+            while (mProcessed < sequence) {
+                if (timeout == 0) {
+                    wait();
+                } else {
+                    final long remaining = deadline - SystemClock.uptimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+            }
+            return true;
+        } finally {
+            mWaiting--;
+        }
+    }
+
+    /**
+     * Commits everything that has been enqueued and stops the writer thread. Nothing can be
+     * enqueued afterwards.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        final Thread writer;
+        synchronized (mEnqueueLock) {
+            mShutdown = true;
+            writer = mWriter;
+        }
+        if (writer != null) {
+            flush();
+            writer.interrupt();
+            writer.join();
+        }
+    }
+
+    private synchronized boolean hasWaiting() {
+        return mWaiting > 0;
+    }
+
+    private final Runnable mWriteLoop = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<Write> batch = new ArrayList<Write>(mMaxBatchSize);
+            try {
+                while (true) {
+                    batch.add(mQueue.take());
+                    fill(batch);
+                    commit(batch);
+                    batch.clear();
+                }
+            } catch (final InterruptedException e) {
+                // shut down
+            }
+        }
+    };
+
+    /**
+     * Adds to the batch until it's full, the latency is up or someone is waiting for it.
+     */
+    private void fill(ArrayList<Write> batch) throws InterruptedException {
+        final long deadline = SystemClock.uptimeMillis() + mMaxLatency;
+
+        while (batch.size() < mMaxBatchSize) {
+            if (mQueue.drainTo(batch, mMaxBatchSize - batch.size()) > 0) {
+                continue;
+            }
+            final long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0 || hasWaiting()) {
+                break;
+            }
+            // poll in short steps so that a new waiter doesn't wait out the whole latency
+            final Write write = mQueue.poll(Math.min(remaining, 5), TimeUnit.MILLISECONDS);
+            if (write != null) {
+                batch.add(write);
+            }
+        }
+    }
+
+    private void commit(ArrayList<Write> batch) {
+        final LinkedHashSet<Uri> changed = new LinkedHashSet<Uri>();
+        final LinkedHashMap<Long, RuntimeException> failures =
+                new LinkedHashMap<Long, RuntimeException>();
+
+        SQLiteDatabase db = null;
+        try {
+            db = mProvider.getWritableDatabase();
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "could not open the database for " + batch.size() + " queued writes", e);
+            for (final Write write : batch) {
+                failures.put(write.sequence, e);
+            }
+        }
+
+        if (db != null) {
+            try {
+                apply(db, batch, changed);
+            } catch (final RuntimeException groupFailure) {
+                // a write that fails within its own nested transaction rolls back the whole group,
+                // so the others are saved one at a time
+                for (final Write write : batch) {
+                    try {
+                        apply(db, Collections.singletonList(write), changed);
+                    } catch (final RuntimeException e) {
+                        Log.w(TAG, "queued write to " + write.uri + " failed", e);
+                        failures.put(write.sequence, e);
+                    }
+                }
+            }
+            if (!changed.isEmpty()) {
+                try {
+                    mProvider.onWritesCommitted(db, changed);
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "could not notify observers of queued writes", e);
+                }
+            }
+        }
+
+        synchronized (this) {
+            mFailures.putAll(failures);
+            mFailedCount += failures.size();
+            mProcessed = batch.get(batch.size() - 1).sequence;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Saves the writes in a single transaction. If any of them fails, none of them are saved.
+     *
+     * @param changed
+     *            the URIs of the writes that changed something are added to this once they've
+     *            been committed
+     */
+    private void apply(SQLiteDatabase db, List<Write> writes, Set<Uri> changed) {
+        final ArrayList<Uri> written = new ArrayList<Uri>(writes.size());
+        db.beginTransaction();
+        try {
+            for (final Write write : writes) {
+                if (write.isInsert) {
+                    if (mProvider.insert(db, write.uri, write.values) != null) {
+                        written.add(write.uri);
+                    }
+                } else {
+                    if (mProvider.update(db, write.uri, write.values, write.selection,
+                            write.selectionArgs) != 0) {
+                        written.add(write.uri);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        changed.addAll(written);
+    }
+}
@@ -18,6 +18,7 @@ package edu.mit.mobile.android.content.column;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
 
 public class BlobColumn extends DBColumnType<byte[]> {
 
@@ -31,4 +32,13 @@ public class BlobColumn extends DBColumnType<byte[]> {
 
         return c.getBlob(colNumber);
     }
+
+    @Override
+    public void bindTo(SQLiteProgram statement, int index, byte[] value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindBlob(index, value);
+        }
+    }
 }
@@ -18,6 +18,7 @@ package edu.mit.mobile.android.content.column;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
 
 /**
  * A simple boolean value. Internally, this is stored as an integer where 0 is false and 1 is true.
@@ -35,4 +36,18 @@ public class BooleanColumn extends DBColumnType<Boolean> {
 
         return c.getInt(colNumber) != 0;
     }
+
+    @Override
+    public boolean getBoolean(Cursor c, int colNumber) {
+        return c.getInt(colNumber) != 0;
+    }
+
+    @Override
+    public void bindTo(SQLiteProgram statement, int index, Boolean value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            bindBoolean(statement, index, value);
+        }
+    }
 }
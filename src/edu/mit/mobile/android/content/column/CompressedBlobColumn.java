@@ -0,0 +1,110 @@
+package edu.mit.mobile.android.content.column;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
+
+/**
+ * <p>
+ * A {@link BlobColumn} whose values are deflated when they're saved and inflated when they're
+ * read. Values shorter than {@link #getThreshold()} or that don't get any smaller are stored as-is,
+ * as are blobs saved before a column was changed to this type; both are read back unchanged.
+ * </p>
+ *
+ * <p>
+ * Values are compressed by {@link #convertOnSave(ContentValues, String)}, so they're only
+ * compressed when they're saved through a {@link edu.mit.mobile.android.content.GenericDBHelper}
+ * or bound using {@link #bindTo(SQLiteProgram, int, byte[])}. To use a different threshold,
+ * subclass this and override {@link #getThreshold()}. The helper returns the results of its
+ * queries wrapped in an {@link InflatingCursorWrapper}, so they hold the values as they were saved.
+ * </p>
+ */
+public class CompressedBlobColumn extends BlobColumn {
+
+    /**
+     * The default size, in bytes, below which values aren't compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    /**
+     * @return the size, in bytes, below which values aren't compressed
+     */
+    public int getThreshold() {
+        return DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * @param value
+     * @return the value as it's stored
+     */
+    public byte[] compress(byte[] value) {
+        // a raw value that looks compressed must be compressed so it reads back the same
+        if (Compression.isDeflated(value)) {
+            return Compression.deflateAlways(value);
+        }
+        if (value.length < getThreshold()) {
+            return value;
+        }
+        final byte[] deflated = Compression.deflate(value);
+        return deflated != null ? deflated : value;
+    }
+
+    /**
+     * @param stored
+     * @return the value that was saved
+     */
+    public byte[] decompress(byte[] stored) {
+        if (Compression.isDeflated(stored)) {
+            final byte[] inflated = Compression.inflate(stored);
+            if (inflated != null) {
+                return inflated;
+            }
+        }
+        return stored;
+    }
+
+    @Override
+    public byte[] get(Cursor c, int colNumber) {
+        // the values of a query through a helper have already been inflated
+        if (c instanceof InflatingCursorWrapper) {
+            return c.getBlob(colNumber);
+        }
+        final byte[] stored = c.getBlob(colNumber);
+        return stored != null ? decompress(stored) : null;
+    }
+
+    @Override
+    public void bindTo(SQLiteProgram statement, int index, byte[] value) {
+        super.bindTo(statement, index, value != null ? compress(value) : null);
+    }
+
+    @Override
+    public boolean isConvertedOnSave() {
+        return true;
+    }
+
+    @Override
+    public void convertOnSave(ContentValues values, String column) {
+        final Object value = values.get(column);
+        if (value instanceof byte[]) {
+            values.put(column, compress((byte[]) value));
+        }
+    }
+}
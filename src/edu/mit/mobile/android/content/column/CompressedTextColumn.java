@@ -0,0 +1,129 @@
+package edu.mit.mobile.android.content.column;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
+
+/**
+ * <p>
+ * A text column whose longer values are deflated when they're saved and inflated when
+ * they're read. Values shorter than {@link #getThreshold()} or that don't get any smaller are
+ * stored as text, as are values saved before a column was changed to this type; both are read back
+ * unchanged.
+ * </p>
+ *
+ * <p>
+ * Compressed values are stored as blobs, so they can't be matched using LIKE, a querystring or a
+ * trigram index, nor sorted. Use this for bodies of text that are only ever displayed.
+ * </p>
+ *
+ * <p>
+ * Values are compressed by {@link #convertOnSave(ContentValues, String)}, so they're only
+ * compressed when they're saved through a {@link edu.mit.mobile.android.content.GenericDBHelper}
+ * or bound using {@link #bindTo(SQLiteProgram, int, String)}. To use a different threshold,
+ * subclass this and override {@link #getThreshold()}. The helper returns the results of its
+ * queries wrapped in an {@link InflatingCursorWrapper}, so they hold the values as they were saved.
+ * </p>
+ */
+public class CompressedTextColumn extends DBColumnType<String> {
+
+    /**
+     * The default length, in characters, below which values aren't compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    @Override
+    public String toCreateColumn(String colName) {
+        return toColumnDef(colName, "TEXT");
+    }
+
+    /**
+     * @return the length, in characters, below which values aren't compressed
+     */
+    public int getThreshold() {
+        return DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * @param value
+     * @return the compressed value or null if it should be stored as text
+     */
+    public byte[] compress(String value) {
+        if (value.length() < getThreshold()) {
+            return null;
+        }
+        return Compression.deflate(Compression.toUtf8(value));
+    }
+
+    @Override
+    public String get(Cursor c, int colNumber) {
+        // the values of a query through a helper have already been inflated
+        if (c instanceof InflatingCursorWrapper) {
+            return c.getString(colNumber);
+        }
+        return read(c, colNumber);
+    }
+
+    /**
+     * @param c
+     * @param colNumber
+     * @return the value as it was saved, whether it was stored compressed or not
+     */
+    static String read(Cursor c, int colNumber) {
+        if (c.isNull(colNumber)) {
+            return null;
+        }
+        // text is read as its UTF-8 bytes, which never start with the header
+        final byte[] stored = c.getBlob(colNumber);
+        if (Compression.isDeflated(stored)) {
+            final byte[] inflated = Compression.inflate(stored);
+            if (inflated != null) {
+                return Compression.fromUtf8(inflated);
+            }
+        }
+        return c.getString(colNumber);
+    }
+
+    @Override
+    public void bindTo(SQLiteProgram statement, int index, String value) {
+        final byte[] compressed = value != null ? compress(value) : null;
+        if (compressed != null) {
+            statement.bindBlob(index, compressed);
+        } else {
+            super.bindTo(statement, index, value);
+        }
+    }
+
+    @Override
+    public boolean isConvertedOnSave() {
+        return true;
+    }
+
+    @Override
+    public void convertOnSave(ContentValues values, String column) {
+        final Object value = values.get(column);
+        if (value instanceof String) {
+            final byte[] compressed = compress((String) value);
+            if (compressed != null) {
+                values.put(column, compressed);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package edu.mit.mobile.android.content.column;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The storage format shared by {@link CompressedBlobColumn} and {@link CompressedTextColumn}. A
+ * compressed value is the byte {@link #HEADER_DEFLATE} followed by a zlib stream. Other values are
+ * stored as-is, so data saved before a column was made compressed stays readable. The header byte
+ * never starts UTF-8 text, and a raw blob is only taken for a compressed one if it's also a valid
+ * zlib stream.
+ */
+final class Compression {
+
+    static final byte HEADER_DEFLATE = (byte) 0xff;
+
+    static final String UTF_8 = "UTF-8";
+
+    private Compression() {
+    }
+
+    /**
+     * @param raw
+     * @return the header and the deflated value or null if that isn't any smaller
+     */
+    static byte[] deflate(byte[] raw) {
+        final byte[] deflated = deflateAlways(raw);
+        return deflated.length < raw.length ? deflated : null;
+    }
+
+    /**
+     * @param raw
+     * @return the header and the deflated value, even if that's larger than the raw value
+     */
+    static byte[] deflateAlways(byte[] raw) {
+        final Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            out.write(HEADER_DEFLATE);
+            final byte[] buf = new byte[Math.min(Math.max(raw.length, 64), 8192)];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param stored
+     * @return true if the stored value starts with the header and a zlib stream header
+     */
+    static boolean isDeflated(byte[] stored) {
+        if (stored.length < 3 || stored[0] != HEADER_DEFLATE) {
+            return false;
+        }
+        final int cmf = stored[1] & 0xff;
+        final int flg = stored[2] & 0xff;
+        // the deflate method, without a preset dictionary, and the header checksum
+        return (cmf & 0x0f) == 8 && (flg & 0x20) == 0 && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /**
+     * @param stored
+     *            a value for which {@link #isDeflated(byte[])} is true
+     * @return the inflated value or null if it isn't a complete zlib stream
+     */
+    static byte[] inflate(byte[] stored) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, 1, stored.length - 1);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 4);
+            final byte[] buf = new byte[Math.max(stored.length * 2, 256)];
+            while (!inflater.finished()) {
+                final int len = inflater.inflate(buf);
+                out.write(buf, 0, len);
+                if (len == 0 && !inflater.finished()
+                        && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } catch (final DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static byte[] toUtf8(String value) {
+        try {
+            return value.getBytes(UTF_8);
+        } catch (final UnsupportedEncodingException e) {
+            // every Java platform supports UTF-8
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String fromUtf8(byte[] value) {
+        try {
+            return new String(value, UTF_8);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
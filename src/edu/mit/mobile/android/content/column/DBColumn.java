@@ -24,8 +24,12 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.database.DatabaseUtils;
 import edu.mit.mobile.android.content.AndroidVersions;
@@ -271,13 +275,67 @@ public @interface DBColumn {
             return dbColumnName;
         }
 
+        /**
+         * Gets the names of all the columns declared by the {@link ContentItem}, using either
+         * {@link DBColumn} or {@link DBForeignKeyColumn} annotations.
+         *
+         * @return the column names, in the order of their fields
+         * @throws SQLGenerationException
+         *             if a field doesn't meet the necessary requirements
+         */
+        public Set<String> getColumnNames() throws SQLGenerationException {
+            final LinkedHashSet<String> columns = new LinkedHashSet<String>();
+
+            for (final Field field : mDataItem.getFields()) {
+                if (field.getAnnotation(DBColumn.class) == null
+                        && field.getAnnotation(DBForeignKeyColumn.class) == null) {
+                    continue;
+                }
+                columns.add(getDbColumnName(field));
+            }
+            return columns;
+        }
+
+        /**
+         * Gets the columns whose type converts their values before they're saved.
+         *
+         * @return instances of the columns' types, keyed by column name
+         * @throws SQLGenerationException
+         *             if a field doesn't meet the necessary requirements
+         * @see DBColumnType#isConvertedOnSave()
+         */
+        public Map<String, DBColumnType<?>> getColumnsConvertedOnSave()
+                throws SQLGenerationException {
+            final Map<String, DBColumnType<?>> columns = new LinkedHashMap<String, DBColumnType<?>>();
+
+            for (final Field field : mDataItem.getFields()) {
+                final Class<? extends DBColumnType<?>> type = getFieldType(field);
+                if (type == null) {
+                    continue;
+                }
+                final DBColumnType<?> typeInstance;
+                try {
+                    typeInstance = type.newInstance();
+
+                } catch (final IllegalAccessException e) {
+                    throw new SQLGenerationException("default constructor not visible", e);
+
+                } catch (final InstantiationException e) {
+                    throw new SQLGenerationException("cannot instantiate field type class", e);
+                }
+                if (typeInstance.isConvertedOnSave()) {
+                    columns.put(getDbColumnName(field), typeInstance);
+                }
+            }
+            return columns;
+        }
+
         private void appendColumnDef(StringBuilder tableSQL, DBColumn t, Field field,
                 List<String> preSql, List<String> postSql) throws IllegalAccessException,
                 InstantiationException {
             @SuppressWarnings("rawtypes")
             final Class<? extends DBColumnType> columnType = t.type();
-            @SuppressWarnings("rawtypes")
-            final DBColumnType typeInstance = columnType.newInstance();
+            final DBColumnType<?> typeInstance = columnType.newInstance();
 
             final String colName = getDbColumnName(field);
             tableSQL.append(typeInstance.toCreateColumn(colName));
@@ -380,10 +438,7 @@ public @interface DBColumn {
                 preSql.add(pre);
             }
 
-            final String post = typeInstance.postTableSql(mTable, colName, flags);
-            if (post != null) {
-                postSql.add(post);
-            }
+            postSql.addAll(typeInstance.postTableSqlStatements(mTable, colName, flags));
         }
 
         /**
@@ -17,7 +17,14 @@ package edu.mit.mobile.android.content.column;
  * License along with this library; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
+import java.util.Collections;
+import java.util.List;
+
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteProgram;
+import edu.mit.mobile.android.content.GenericDBHelper;
 
 public abstract class DBColumnType<T> {
     /**
@@ -52,6 +59,23 @@ public abstract class DBColumnType<T> {
         return null;
     };
 
+    /**
+     * If you need to execute more than one statement after the table is created, override this
+     * method instead of {@link #postTableSql(String, String, int)}. By default, this returns the
+     * result of that method.
+     *
+     * @param column
+     *            the name of this column
+     * @return a list of SQL statements to execute. This may be empty.
+     */
+    public List<String> postTableSqlStatements(String table, String column, int flags) {
+        final String post = postTableSql(table, column, flags);
+        if (post == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(post);
+    }
+
     /**
      * @param c
      * @param colNumber
@@ -59,6 +83,138 @@ public abstract class DBColumnType<T> {
      */
     public abstract T get(Cursor c, int colNumber);
 
+    /**
+     * Like {@link #get(Cursor, int)}, but returns the value as a long without boxing it or
+     * allocating an object for it. By default, the cursor converts the column's value.
+     *
+     * @param c
+     * @param colNumber
+     * @return the value of the given column on the supplied cursor
+     */
+    public long getLong(Cursor c, int colNumber) {
+        return c.getLong(colNumber);
+    }
+
+    /**
+     * Like {@link #get(Cursor, int)}, but returns the value as a double without boxing it. By
+     * default, the cursor converts the column's value.
+     *
+     * @param c
+     * @param colNumber
+     * @return the value of the given column on the supplied cursor
+     */
+    public double getDouble(Cursor c, int colNumber) {
+        return c.getDouble(colNumber);
+    }
+
+    /**
+     * Like {@link #get(Cursor, int)}, but returns the value as a boolean without boxing it. By
+     * default, any non-zero value is true.
+     *
+     * @param c
+     * @param colNumber
+     * @return the value of the given column on the supplied cursor
+     */
+    public boolean getBoolean(Cursor c, int colNumber) {
+        return c.getLong(colNumber) != 0;
+    }
+
+    /**
+     * Binds a value of this type to a compiled statement, eg. one from
+     * {@link android.database.sqlite.SQLiteDatabase#compileStatement(String)}, storing it the same
+     * way that {@link #get(Cursor, int)} reads it. By default, the value is bound as a string.
+     *
+     * @param statement
+     * @param index
+     *            the 1-based index of the parameter to bind
+     * @param value
+     *            the value or null to bind NULL
+     */
+    public void bindTo(SQLiteProgram statement, int index, T value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * Like {@link #bindTo(SQLiteProgram, int, Object)}, but binds a long without boxing it.
+     *
+     * @param statement
+     * @param index
+     *            the 1-based index of the parameter to bind
+     * @param value
+     */
+    public void bindLong(SQLiteProgram statement, int index, long value) {
+        statement.bindLong(index, value);
+    }
+
+    /**
+     * Like {@link #bindTo(SQLiteProgram, int, Object)}, but binds a double without boxing it.
+     *
+     * @param statement
+     * @param index
+     *            the 1-based index of the parameter to bind
+     * @param value
+     */
+    public void bindDouble(SQLiteProgram statement, int index, double value) {
+        statement.bindDouble(index, value);
+    }
+
+    /**
+     * Like {@link #bindTo(SQLiteProgram, int, Object)}, but binds a boolean without boxing it. By
+     * default, it's stored as 1 or 0.
+     *
+     * @param statement
+     * @param index
+     *            the 1-based index of the parameter to bind
+     * @param value
+     */
+    public void bindBoolean(SQLiteProgram statement, int index, boolean value) {
+        statement.bindLong(index, value ? 1 : 0);
+    }
+
+    /**
+     * If the values of this column need to be converted before they're saved, eg. to compress
+     * them, override this to return true and override
+     * {@link #convertOnSave(ContentValues, String)}. {@link GenericDBHelper} only calls the latter
+     * for columns whose type returns true.
+     *
+     * @return false (this class's implementation)
+     */
+    public boolean isConvertedOnSave() {
+        return false;
+    }
+
+    /**
+     * Converts the value of this column, if it's present, before the values are inserted or
+     * updated by a {@link GenericDBHelper}. The value should be replaced in the given values.
+     *
+     * @param values
+     *            the values to be saved, which may not include this column
+     * @param column
+     *            the name of this column
+     */
+    public void convertOnSave(ContentValues values, String column) {
+    }
+
+    /**
+     * Like {@link #convertOnSave(ContentValues, String)}, for conversions that need to write to
+     * the database, eg. to store the value elsewhere. This is called within the same transaction as
+     * the save, if there is one. By default, this calls that method.
+     *
+     * @param db
+     *            the database the values are saved to
+     * @param values
+     *            the values to be saved, which may not include this column
+     * @param column
+     *            the name of this column
+     */
+    public void convertOnSave(SQLiteDatabase db, ContentValues values, String column) {
+        convertOnSave(values, column);
+    }
+
     protected String toColumnDef(String colName, String type) {
         return "'" + colName + "' " + type;
     }
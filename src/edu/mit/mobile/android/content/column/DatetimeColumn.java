@@ -17,9 +17,15 @@ package edu.mit.mobile.android.content.column;
  * License along with this library; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteProgram;
 
 /**
  * A timestamp based the number of milliseconds since the Unix epoch, stored as an integer.
@@ -29,30 +35,117 @@ import android.database.Cursor;
  */
 public class DatetimeColumn extends DBColumnType<Date> {
 
+    /**
+     * Sets the column to the current time whenever its row is updated.
+     */
     public static final int FLAG_AUTO_NOW = 0x1;
 
+    /**
+     * Sets the column to the current time when its row is inserted, even if a value is given. To
+     * only do this when no value is given, use {@link #NOW_IN_MILLISECONDS} as the column's
+     * {@link DBColumn#defaultValue()}.
+     */
+    public static final int FLAG_AUTO_NOW_ON_INSERT = 0x2;
+
     // the formula below is from SQLite's manual
     private static final String NOW_IN_MILLISECONDS_RAW = "((julianday('now') - 2440587.5)*86400000)";
     public static final String NOW_IN_MILLISECONDS = DEFAULT_VALUE_ESCAPE + NOW_IN_MILLISECONDS_RAW;
 
+    /**
+     * The triggers created by older versions, which set the column of every row in the table.
+     */
+    private static final Pattern TABLE_WIDE_TRIGGER = Pattern.compile("CREATE TRIGGER trigger_\\w+"
+            + "_update AFTER UPDATE ON \"([^\"]+)\" FOR EACH ROW BEGIN UPDATE \"\\1\" SET "
+            + "\"([^\"]+)\" = " + Pattern.quote(NOW_IN_MILLISECONDS_RAW) + ";END");
+
     @Override
     public String toCreateColumn(String colName) {
         return toColumnDef(colName, "INTEGER");
     }
 
     @Override
-    public String postTableSql(String table, String column, int flags) {
+    public List<String> postTableSqlStatements(String table, String column, int flags) {
+        final ArrayList<String> sql = new ArrayList<String>();
+
         if ((flags & FLAG_AUTO_NOW) != 0) {
-            return "CREATE TRIGGER trigger_" + table + "_" + column + "_update AFTER UPDATE ON \""
-                    + table + "\" FOR EACH ROW BEGIN UPDATE \"" + table + "\" SET \"" + column
-                    + "\" = " + NOW_IN_MILLISECONDS_RAW + ";END";
-        } else {
-            return null;
+            sql.add(getAutoNowTrigger(table, column, "update", "UPDATE"));
+        }
+        if ((flags & FLAG_AUTO_NOW_ON_INSERT) != 0) {
+            sql.add(getAutoNowTrigger(table, column, "insert", "INSERT"));
         }
+        return sql;
+    }
+
+    /**
+     * Only the row that fired the trigger is stamped, as the rest of the table hasn't changed.
+     */
+    private static String getAutoNowTrigger(String table, String column, String suffix,
+            String event) {
+        return "CREATE TRIGGER trigger_" + table + "_" + column + "_" + suffix + " AFTER " + event
+                + " ON \"" + table + "\" FOR EACH ROW BEGIN UPDATE \"" + table + "\" SET \""
+                + column + "\" = " + NOW_IN_MILLISECONDS_RAW + " WHERE rowid = new.rowid;END";
+    }
+
+    /**
+     * Replaces any {@link #FLAG_AUTO_NOW} triggers created by older versions, which stamp every
+     * row of the table whenever any row is updated, with ones that only stamp the updated row.
+     * {@link edu.mit.mobile.android.content.SimpleContentProvider} calls this whenever it opens
+     * its database, so existing databases are migrated without a version change.
+     *
+     * @param db
+     * @return the number of triggers replaced
+     */
+    public static int migrateAutoNowTriggers(SQLiteDatabase db) {
+        final ArrayList<String[]> old = new ArrayList<String[]>();
+        final Cursor c = db.query("sqlite_master", new String[] { "name", "sql" },
+                "type = 'trigger' AND sql LIKE ?", new String[] { "%" + NOW_IN_MILLISECONDS_RAW
+                        + ";END" }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final Matcher m = TABLE_WIDE_TRIGGER.matcher(c.getString(1));
+                if (m.matches()) {
+                    old.add(new String[] { c.getString(0), m.group(1), m.group(2) });
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (old.isEmpty()) {
+            return 0;
+        }
+
+        db.beginTransaction();
+        try {
+            for (final String[] trigger : old) {
+                db.execSQL("DROP TRIGGER \"" + trigger[0] + "\"");
+                db.execSQL(getAutoNowTrigger(trigger[1], trigger[2], "update", "UPDATE"));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return old.size();
     }
 
     @Override
     public Date get(Cursor c, int colNumber) {
         return new Date(c.getLong(colNumber));
     }
+
+    /**
+     * @return the time in milliseconds since the Unix epoch, without allocating a {@link Date}
+     */
+    @Override
+    public long getLong(Cursor c, int colNumber) {
+        return c.getLong(colNumber);
+    }
+
+    @Override
+    public void bindTo(SQLiteProgram statement, int index, Date value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value.getTime());
+        }
+    }
 }
@@ -0,0 +1,80 @@
+package edu.mit.mobile.android.content.column;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import edu.mit.mobile.android.content.BlobStore;
+
+/**
+ * <p>
+ * A blob column whose values are stored once per distinct value, for data that's repeated across
+ * many rows, such as icons. The row holds the hash of the value and the value itself is stored in
+ * the shared {@link BlobStore}, which counts the rows referring to it and deletes it once there are
+ * none.
+ * </p>
+ *
+ * <p>
+ * Values are stored by {@link #convertOnSave(SQLiteDatabase, ContentValues, String)}, so they must
+ * be saved through a {@link edu.mit.mobile.android.content.GenericDBHelper}, whose queries read the
+ * value in place of the hash. Selecting or sorting on this column compares the hashes.
+ * </p>
+ */
+public class DedupBlobColumn extends DBColumnType<byte[]> {
+
+    @Override
+    public String toCreateColumn(String colName) {
+        return toColumnDef(colName, "BLOB");
+    }
+
+    @Override
+    public List<String> postTableSqlStatements(String table, String column, int flags) {
+        return BlobStore.getTriggerCreation(table, column);
+    }
+
+    @Override
+    public byte[] get(Cursor c, int colNumber) {
+        return c.getBlob(colNumber);
+    }
+
+    @Override
+    public boolean isConvertedOnSave() {
+        return true;
+    }
+
+    /**
+     * Stores the value in the {@link BlobStore} and replaces it with its hash.
+     *
+     * @throws IllegalArgumentException
+     *             if the value isn't a blob
+     */
+    @Override
+    public void convertOnSave(SQLiteDatabase db, ContentValues values, String column) {
+        final Object value = values.get(column);
+        if (value instanceof byte[]) {
+            values.put(column, BlobStore.store(db, (byte[]) value));
+
+        } else if (value != null) {
+            throw new IllegalArgumentException("value for column '" + column
+                    + "' must be a byte[]");
+        }
+    }
+}
@@ -18,6 +18,7 @@ package edu.mit.mobile.android.content.column;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
 
 public class DoubleColumn extends DBColumnType<java.lang.Double> {
 
@@ -32,4 +33,13 @@ public class DoubleColumn extends DBColumnType<java.lang.Double> {
         return java.lang.Double.valueOf(c.getDouble(colNumber));
     }
 
+    @Override
+    public void bindTo(SQLiteProgram statement, int index, java.lang.Double value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
 }
@@ -0,0 +1,98 @@
+package edu.mit.mobile.android.content.column;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import edu.mit.mobile.android.content.FileStore;
+
+/**
+ * <p>
+ * A column whose value is stored in a file managed by the provider, for values too large to go
+ * through a cursor. The row only holds the file's name, which is generated the first time the file
+ * is opened for writing. To write or read the file, open the item's URI using
+ * {@link android.content.ContentResolver#openOutputStream(Uri)} or
+ * {@link android.content.ContentResolver#openInputStream(Uri)}. If a content item has more than one
+ * file column, use {@link #getFileUri(Uri, String)} to pick one.
+ * </p>
+ *
+ * <p>
+ * The file is deleted once its row is deleted or the column is set to null. Apart from clearing it,
+ * this column can't be set directly, as a row pointed at another row's file would have that file
+ * deleted from under it. See {@link FileStore}.
+ * </p>
+ */
+public class FileColumn extends DBColumnType<String> {
+
+    /**
+     * The query parameter naming the file column to open, if there's more than one.
+     */
+    public static final String QUERY_COLUMN = "column";
+
+    @Override
+    public String toCreateColumn(String colName) {
+        return toColumnDef(colName, "TEXT");
+    }
+
+    @Override
+    public List<String> postTableSqlStatements(String table, String column, int flags) {
+        return FileStore.getTriggerCreation(table, column);
+    }
+
+    /**
+     * @return the name of the file, relative to the {@link FileStore#DIRECTORY}
+     */
+    @Override
+    public String get(Cursor c, int colNumber) {
+        return c.getString(colNumber);
+    }
+
+    @Override
+    public boolean isConvertedOnSave() {
+        return true;
+    }
+
+    /**
+     * Ensures that the column is only ever cleared. File names are only given out by the provider
+     * when the file is first opened for writing.
+     *
+     * @throws IllegalArgumentException
+     *             if the value isn't null
+     */
+    @Override
+    public void convertOnSave(ContentValues values, String column) {
+        if (values.get(column) != null) {
+            throw new IllegalArgumentException("file column '" + column
+                    + "' can only be set to null");
+        }
+    }
+
+    /**
+     * @param item
+     *            the URI of the item
+     * @param column
+     *            the name of the file column
+     * @return the URI to open the given file column of the item
+     */
+    public static Uri getFileUri(Uri item, String column) {
+        return item.buildUpon().appendQueryParameter(QUERY_COLUMN, column).build();
+    }
+}
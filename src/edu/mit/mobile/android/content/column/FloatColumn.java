@@ -18,6 +18,7 @@ package edu.mit.mobile.android.content.column;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
 
 public class FloatColumn extends DBColumnType<java.lang.Float> {
 
@@ -32,4 +33,13 @@ public class FloatColumn extends DBColumnType<java.lang.Float> {
         return java.lang.Float.valueOf(c.getFloat(colNumber));
     }
 
+    @Override
+    public void bindTo(SQLiteProgram statement, int index, java.lang.Float value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
 }
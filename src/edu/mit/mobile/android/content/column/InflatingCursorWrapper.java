@@ -0,0 +1,130 @@
+package edu.mit.mobile.android.content.column;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Build;
+
+/**
+ * Reads the values of {@link CompressedTextColumn}s and {@link CompressedBlobColumn}s as they
+ * were saved, so that the results of a query can be read like any other.
+ * {@link edu.mit.mobile.android.content.GenericDBHelper} returns the results of its queries wrapped
+ * in this.
+ */
+public class InflatingCursorWrapper extends CursorWrapper {
+
+    // getWrappedCursor() was only added in Honeycomb
+    private final Cursor mCursor;
+
+    // indexed by column; null for the columns that aren't compressed
+    private final DBColumnType<?>[] mColumnTypes;
+
+    private InflatingCursorWrapper(Cursor cursor, DBColumnType<?>[] columnTypes) {
+        super(cursor);
+        mCursor = cursor;
+        mColumnTypes = columnTypes;
+    }
+
+    /**
+     * @param cursor
+     *            the results of a query
+     * @param columns
+     *            the columns of the table and their types. Only the compressed ones are read
+     *            differently.
+     * @return the wrapped cursor, or the cursor itself if none of its columns are compressed
+     */
+    public static Cursor wrap(Cursor cursor, Map<String, DBColumnType<?>> columns) {
+        DBColumnType<?>[] columnTypes = null;
+        for (final Map.Entry<String, DBColumnType<?>> column : columns.entrySet()) {
+            final DBColumnType<?> type = column.getValue();
+            if (!(type instanceof CompressedTextColumn || type instanceof CompressedBlobColumn)) {
+                continue;
+            }
+            final int index = cursor.getColumnIndex(column.getKey());
+            if (index == -1) {
+                continue;
+            }
+            if (columnTypes == null) {
+                columnTypes = new DBColumnType<?>[cursor.getColumnCount()];
+            }
+            columnTypes[index] = type;
+        }
+        return columnTypes != null ? new InflatingCursorWrapper(cursor, columnTypes) : cursor;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (mColumnTypes[columnIndex] instanceof CompressedTextColumn) {
+            return CompressedTextColumn.read(mCursor, columnIndex);
+        }
+        return super.getString(columnIndex);
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        final DBColumnType<?> type = mColumnTypes[columnIndex];
+        if (type instanceof CompressedBlobColumn) {
+            final byte[] stored = super.getBlob(columnIndex);
+            return stored != null ? ((CompressedBlobColumn) type).decompress(stored) : null;
+        }
+        if (type instanceof CompressedTextColumn) {
+            // as with any text, its UTF-8 bytes
+            final String value = getString(columnIndex);
+            return value != null ? Compression.toUtf8(value) : null;
+        }
+        return super.getBlob(columnIndex);
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        if (!(mColumnTypes[columnIndex] instanceof CompressedTextColumn)) {
+            super.copyStringToBuffer(columnIndex, buffer);
+            return;
+        }
+        final String value = getString(columnIndex);
+        if (value == null) {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        final int length = value.length();
+        if (buffer.data == null || buffer.data.length < length) {
+            buffer.data = value.toCharArray();
+        } else {
+            value.getChars(0, length, buffer.data, 0);
+        }
+        buffer.sizeCopied = length;
+    }
+
+    /**
+     * Compressed text is stored as a blob, but it's read as text.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public int getType(int columnIndex) {
+        final int type = super.getType(columnIndex);
+        if (type == FIELD_TYPE_BLOB && mColumnTypes[columnIndex] instanceof CompressedTextColumn) {
+            return FIELD_TYPE_STRING;
+        }
+        return type;
+    }
+}
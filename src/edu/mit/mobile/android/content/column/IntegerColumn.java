@@ -18,6 +18,7 @@ package edu.mit.mobile.android.content.column;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
 import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
 
 public class IntegerColumn extends DBColumnType<java.lang.Integer> {
 
@@ -32,4 +33,13 @@ public class IntegerColumn extends DBColumnType<java.lang.Integer> {
         return java.lang.Integer.valueOf(c.getInt(colNumber));
     }
 
+    @Override
+    public void bindTo(SQLiteProgram statement, int index, java.lang.Integer value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
 }
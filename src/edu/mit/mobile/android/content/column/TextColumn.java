@@ -17,15 +17,31 @@ package edu.mit.mobile.android.content.column;
  * License along with this library; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
+import java.util.List;
+
 import android.database.Cursor;
+import edu.mit.mobile.android.content.TrigramIndex;
 
 public class TextColumn extends DBColumnType<String> {
 
+    /**
+     * Creates a {@link TrigramIndex} of this column, which speeds up substring searches.
+     */
+    public static final int FLAG_TRIGRAM_INDEX = 0x1;
+
     @Override
     public String toCreateColumn(String colName) {
         return toColumnDef(colName, "TEXT");
     }
 
+    @Override
+    public List<String> postTableSqlStatements(String table, String column, int flags) {
+        if ((flags & FLAG_TRIGRAM_INDEX) != 0) {
+            return TrigramIndex.getIndexCreation(table, column);
+        }
+        return super.postTableSqlStatements(table, column, flags);
+    }
+
     @Override
     public String get(Cursor c, int colNumber) {
         return c.getString(colNumber);
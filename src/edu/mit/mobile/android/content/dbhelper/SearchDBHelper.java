@@ -1,13 +1,29 @@
 package edu.mit.mobile.android.content.dbhelper;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import android.annotation.TargetApi;
 import android.app.SearchManager;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -19,7 +35,10 @@ import edu.mit.mobile.android.content.ContentItem;
 import edu.mit.mobile.android.content.DBHelper;
 import edu.mit.mobile.android.content.GenericDBHelper;
 import edu.mit.mobile.android.content.ProviderUtils;
+import edu.mit.mobile.android.content.SQLGenUtils;
 import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.SimpleContentProvider;
+import edu.mit.mobile.android.content.TrigramIndex;
 
 /**
  * <p>
@@ -78,6 +97,34 @@ import edu.mit.mobile.android.content.SQLGenerationException;
  * addSearchUri(searchHelper, SEARCH_PATH);
  * </pre></code>
  *
+ * <h2>Full-text search</h2>
+ *
+ * <p>
+ * By default, each search column is searched using a {@code LIKE "%query%"} substring search,
+ * which requires a scan of every registered table. For larger tables, call
+ * {@link #setFullTextSearch(boolean)} before the database is created. This will create an
+ * <a href="http://www.sqlite.org/fts3.html">FTS3</a> table for each registered helper containing
+ * its search columns, which is kept up to date by triggers. Queries are then answered using
+ * {@code MATCH}, where each word of the query is matched as a prefix of the words in the search
+ * columns. Unlike the substring search, this won't match in the middle of a word.
+ * </p>
+ *
+ * <p>
+ * As the triggers reference the searched tables, the search helper must be registered with the
+ * provider (eg. using {@link SimpleContentProvider#addSearchUri(SearchDBHelper, String)
+ * addSearchUri()}) after the helpers it searches.
+ * </p>
+ *
+ * <h2>Limiting results</h2>
+ *
+ * <p>
+ * A {@code limit} query parameter on the search URI limits the number of results. The limit and
+ * sort order are applied to each registered helper's query as well as to the combined results,
+ * so no helper returns more rows than could be used. Each helper can also be given a quota using
+ * {@link #registerDBHelper(GenericDBHelper, int, Uri, String, String, String...)}. To stop
+ * searching once enough results have been found, see {@link #setEarlyExit(boolean)}.
+ * </p>
+ *
  * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
  *
  */
@@ -86,10 +133,196 @@ public class SearchDBHelper extends DBHelper {
     private static final String TAG = SearchDBHelper.class.getSimpleName();
     LinkedList<RegisteredHelper> mRegisteredHelpers = new LinkedList<SearchDBHelper.RegisteredHelper>();
 
+    /**
+     * The suffix added to the table name of each registered helper to name its full-text search
+     * table.
+     */
+    public static final String FTS_TABLE_SUFFIX = "_fts";
+
+    private boolean mFullTextSearch = false;
+
+    private boolean mEarlyExit = false;
+
+    private boolean mParallel = false;
+
+    private int mMergeOrder = MERGE_IN_ORDER;
+
+    private Executor mExecutor;
+
+    // how long the threads of the default executor are kept once they're idle
+    private static final long IDLE_THREAD_TIMEOUT = 30;
+
+    private SearchResultCache mResultCache;
+
+    // the largest number of search columns of any registered helper
+    private int mMaxSearchColumns = 0;
+
+    private boolean mHasQuotas = false;
+
+    /**
+     * When searching in parallel, results are merged in the order that the helpers were
+     * registered.
+     */
+    public static final int MERGE_IN_ORDER = 0;
+
+    /**
+     * When searching in parallel, results are merged in the order that the helpers' queries
+     * finish.
+     */
+    public static final int MERGE_FIRST_COME = 1;
+
+    /**
+     * Used for a registered helper's quota to indicate that it can return any number of results.
+     */
+    public static final int NO_LIMIT = -1;
+
     public SearchDBHelper() {
 
     }
 
+    /**
+     * Enables or disables full-text search. When enabled, {@link #createTables(SQLiteDatabase)}
+     * creates a full-text index for each registered helper and searches are answered using it.
+     * When disabled (the default), a {@code LIKE} substring search is used instead.
+     *
+     * As this changes the tables that are created, it must be called before the database is
+     * created (that is, in the provider's constructor). If this is changed for an existing
+     * database, its version must be increased.
+     *
+     * @param fullTextSearch
+     *            true to use full-text search
+     */
+    public void setFullTextSearch(boolean fullTextSearch) {
+        mFullTextSearch = fullTextSearch;
+    }
+
+    /**
+     * @return true if full-text search has been enabled using {@link #setFullTextSearch(boolean)}
+     */
+    public boolean isFullTextSearch() {
+        return mFullTextSearch;
+    }
+
+    /**
+     * <p>
+     * Enables or disables early exit. When enabled and a {@code limit} is given, the registered
+     * helpers are queried one at a time in the order they were registered and no further helpers
+     * are queried once enough results have been found. Results are then ordered by source first,
+     * and the sort order only applies within each source.
+     * </p>
+     *
+     * <p>
+     * When disabled (the default), all the helpers are queried together, each limited to
+     * {@code limit} results, and the combined results are sorted.
+     * </p>
+     *
+     * @param earlyExit
+     *            true to stop searching once enough results have been found
+     */
+    public void setEarlyExit(boolean earlyExit) {
+        mEarlyExit = earlyExit;
+    }
+
+    /**
+     * @return true if early exit has been enabled using {@link #setEarlyExit(boolean)}
+     */
+    public boolean isEarlyExit() {
+        return mEarlyExit;
+    }
+
+    /**
+     * <p>
+     * Enables or disables parallel search. When enabled, each registered helper is queried on its
+     * own thread and the results are merged into a single cursor, so a search takes about as long
+     * as the slowest helper instead of the sum of them all. As with
+     * {@link #setEarlyExit(boolean) early exit}, the sort order only applies within each helper's
+     * results. If a {@code limit} is given, results stop being collected once it has been reached.
+     * </p>
+     *
+     * <p>
+     * The queries only run concurrently if the database can have more than one reader connection
+     * (see {@link SQLiteDatabase#enableWriteAheadLogging()}); otherwise they are serialized by the
+     * database, but are still correct. This takes precedence over early exit.
+     * </p>
+     *
+     * @param parallel
+     *            true to query all the registered helpers at the same time
+     * @param mergeOrder
+     *            either {@link #MERGE_IN_ORDER} or {@link #MERGE_FIRST_COME}
+     */
+    public void setParallelSearch(boolean parallel, int mergeOrder) {
+        if (mergeOrder != MERGE_IN_ORDER && mergeOrder != MERGE_FIRST_COME) {
+            throw new IllegalArgumentException("unknown merge order: " + mergeOrder);
+        }
+        mParallel = parallel;
+        mMergeOrder = mergeOrder;
+    }
+
+    /**
+     * Sets the executor that runs the queries of a parallel search. By default, each helper has a
+     * pool with a daemon thread for each source that was registered when the first parallel
+     * search was run. The executor isn't shut down by this helper.
+     *
+     * @param executor
+     *            the executor to use or null for the default
+     */
+    public synchronized void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @return true if parallel search has been enabled using
+     *         {@link #setParallelSearch(boolean, int)}
+     */
+    public boolean isParallelSearch() {
+        return mParallel;
+    }
+
+    /**
+     * <p>
+     * Enables a cache of recent search results for type-ahead suggestions. When a query extends
+     * a recent query (for example, "robo" after "rob") and the recent query had at most
+     * {@code maxCandidates} results, the new query is answered by filtering those results in
+     * memory instead of searching the database again.
+     * </p>
+     *
+     * <p>
+     * As the cache isn't notified of changes to the searched tables, results are only used for
+     * {@code maxAge} milliseconds after they were loaded. Queries which can't be filtered in memory
+     * (those containing {@code LIKE} wildcards, or when any helper has a quota) always go to the
+     * database. Cached queries are run as a single query, even if
+     * {@link #setParallelSearch(boolean, int) parallel search} or {@link #setEarlyExit(boolean)
+     * early exit} are enabled.
+     * </p>
+     *
+     * @param maxEntries
+     *            the maximum number of queries to keep. 0 disables the cache.
+     * @param maxCandidates
+     *            the maximum number of results a query can have and still be cached
+     * @param maxAge
+     *            how long, in milliseconds, cached results can be used for
+     */
+    public void setPrefixCache(int maxEntries, int maxCandidates, long maxAge) {
+        mResultCache = maxEntries > 0 ? new SearchResultCache(maxEntries, maxCandidates, maxAge)
+                : null;
+    }
+
+    /**
+     * @return the number of searches answered by the {@link #setPrefixCache(int, int, long)
+     *         prefix cache}
+     */
+    public int getPrefixCacheHitCount() {
+        return mResultCache != null ? mResultCache.getHitCount() : 0;
+    }
+
+    /**
+     * @return the number of searches which the {@link #setPrefixCache(int, int, long) prefix
+     *         cache} couldn't answer
+     */
+    public int getPrefixCacheMissCount() {
+        return mResultCache != null ? mResultCache.getMissCount() : 0;
+    }
+
     /**
      * <p>
      * Adds a {@link GenericDBHelper} to the list of search helpers that will be queried for this
@@ -98,7 +331,9 @@ public class SearchDBHelper extends DBHelper {
      *
      * <p>
      * The columns to search, provided in {@code searchColumns}, will be queried using a simple
-     * {@code LIKE "%query%"} substring search. The results are concatenate using {@code UNION ALL}.
+     * {@code LIKE "%query%"} substring search or, if {@link #setFullTextSearch(boolean) enabled},
+     * using a full-text index of those columns. The results are concatenate using
+     * {@code UNION ALL}.
      * </p>
      *
      * @param helper
@@ -119,8 +354,33 @@ public class SearchDBHelper extends DBHelper {
      */
     public void registerDBHelper(GenericDBHelper helper, Uri contentUri, String text1Column,
             String text2Column, String... searchColumns) {
-        mRegisteredHelpers.add(new RegisteredHelper(helper, contentUri, text1Column, text2Column,
-                searchColumns));
+        registerDBHelper(helper, NO_LIMIT, contentUri, text1Column, text2Column, searchColumns);
+    }
+
+    /**
+     * Like {@link #registerDBHelper(GenericDBHelper, Uri, String, String, String...)}, but limits
+     * the number of results that this helper can contribute to any one search.
+     *
+     * @param helper
+     * @param quota
+     *            the maximum number of results from this helper or {@link #NO_LIMIT}
+     * @param contentUri
+     * @param text1Column
+     * @param text2Column
+     * @param searchColumns
+     */
+    public void registerDBHelper(GenericDBHelper helper, int quota, Uri contentUri,
+            String text1Column, String text2Column, String... searchColumns) {
+        if (quota < 0 && quota != NO_LIMIT) {
+            throw new IllegalArgumentException("quota must be positive or NO_LIMIT");
+        }
+        mRegisteredHelpers.add(new RegisteredHelper(helper, quota, contentUri, text1Column,
+                text2Column, searchColumns));
+
+        mMaxSearchColumns = Math.max(mMaxSearchColumns, searchColumns.length);
+        if (quota != NO_LIMIT) {
+            mHasQuotas = true;
+        }
     }
 
     private static class RegisteredHelper {
@@ -129,14 +389,20 @@ public class SearchDBHelper extends DBHelper {
         public final String mText2Column;
         public final String mText1Column;
         public final Uri mContentUri;
+        public final String mFtsTable;
+        public final int mQuota;
+        public final Set<String> mTrigramColumns;
 
-        public RegisteredHelper(GenericDBHelper helper, Uri contentUri, String text1Column,
-                String text2Column, String... columns) {
+        public RegisteredHelper(GenericDBHelper helper, int quota, Uri contentUri,
+                String text1Column, String text2Column, String... columns) {
             mHelper = helper;
+            mQuota = quota;
             mColumns = columns;
             mContentUri = contentUri;
             mText1Column = text1Column;
             mText2Column = text2Column;
+            mFtsTable = helper.getTable() + FTS_TABLE_SUFFIX;
+            mTrigramColumns = TrigramIndex.getIndexedColumns(helper.getContentItem());
         }
     }
 
@@ -182,31 +448,146 @@ public class SearchDBHelper extends DBHelper {
         return search(db, uri, projection, selection, selectionArgs, sortOrder, false);
     }
 
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-    @SuppressWarnings("deprecation")
     private Cursor search(SQLiteDatabase db, Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder, boolean isDir) {
 
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "search(" + uri + ")");
         }
-        final String searchQuery = isDir ? null : "%" + uri.getLastPathSegment() + "%";
 
-        String limit = uri.getQueryParameter("limit");
+        final String ftsQuery = !isDir && mFullTextSearch ? toFtsPrefixQuery(uri
+                .getLastPathSegment()) : null;
+
+        // queries without any words can't be answered by the full-text index
+        final boolean useFts = ftsQuery != null && ftsQuery.length() > 0;
+
+        String searchQuery = null;
+        if (useFts) {
+            searchQuery = ftsQuery;
+        } else if (!isDir) {
+            searchQuery = "%" + uri.getLastPathSegment() + "%";
+        }
+
+        final String[] searchArgs = searchQuery != null ? new String[] { searchQuery } : null;
+
+        final Set<String> trigrams = !useFts && searchQuery != null ? TrigramIndex
+                .getTrigrams(searchQuery) : Collections.<String> emptySet();
+
+        int limit;
 
         // only allow a limit string that's an integer
         try {
-            Integer.valueOf(limit);
+            limit = Integer.parseInt(uri.getQueryParameter("limit"));
         } catch (final NumberFormatException e) {
-            limit = null;
+            limit = NO_LIMIT;
+        }
+
+        if (limit < 0) {
+            limit = NO_LIMIT;
+        }
+
+        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+
+        final Cursor c;
+
+        final String query = uri.getLastPathSegment();
+
+        if (mResultCache != null && !isDir && !mHasQuotas
+                && SearchResultCache.isCacheable(query, useFts)) {
+            c = searchCached(db, qb, query, selection, sortOrder, limit, useFts, trigrams,
+                    searchArgs);
+
+        } else if (mParallel && mRegisteredHelpers.size() > 1) {
+            final ArrayList<String> sourceQueries = new ArrayList<String>(
+                    mRegisteredHelpers.size());
+            for (final RegisteredHelper searchReg : mRegisteredHelpers) {
+                sourceQueries.add(buildSourceQuery(qb, searchReg, selection, sortOrder,
+                        getSourceLimit(searchReg, limit), useFts, isDir, trigrams, 0));
+            }
+
+            c = searchParallel(db, sourceQueries, searchArgs, limit);
+
+        } else if (mEarlyExit && limit != NO_LIMIT) {
+            final ArrayList<Cursor> results = new ArrayList<Cursor>(mRegisteredHelpers.size());
+            int remaining = limit;
+
+            for (final RegisteredHelper searchReg : mRegisteredHelpers) {
+                final Cursor sourceResults = db.rawQuery(
+                        buildSourceQuery(qb, searchReg, selection, sortOrder,
+                                getSourceLimit(searchReg, remaining), useFts, isDir, trigrams, 0),
+                        searchArgs);
+                results.add(sourceResults);
+                remaining -= sourceResults.getCount();
+
+                if (remaining <= 0) {
+                    break;
+                }
+            }
+
+            c = new MergeCursor(results.toArray(new Cursor[results.size()]));
+
+        } else {
+            c = db.query(
+                    buildUnionQuery(qb, selection, sortOrder, limit, useFts, isDir, trigrams, 0),
+                    null, null, searchArgs, null, null, sortOrder,
+                    limit != NO_LIMIT ? String.valueOf(limit) : null);
         }
 
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "search found " + c.getCount() + " results");
+        }
+        return c;
+    }
+
+    /**
+     * Answers a search using the {@link #setPrefixCache(int, int, long) prefix cache} if possible,
+     * otherwise loads it from the database and caches the results.
+     */
+    private Cursor searchCached(SQLiteDatabase db, SQLiteQueryBuilder qb, String query,
+            String selection, String sortOrder, int limit, boolean useFts, Set<String> trigrams,
+            String[] searchArgs) {
+        final Cursor cached = mResultCache.query(query, useFts, selection, sortOrder, limit);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        // load enough to know if the results are small enough to cache
+        final int fetchLimit = limit == NO_LIMIT ? NO_LIMIT : Math.max(limit,
+                mResultCache.getMaxCandidates() + 1);
+
+        final Cursor c = db.query(
+                buildUnionQuery(qb, selection, sortOrder, fetchLimit, useFts, false, trigrams,
+                        mMaxSearchColumns), null, null, searchArgs, null, null, sortOrder,
+                fetchLimit != NO_LIMIT ? String.valueOf(fetchLimit) : null);
+        try {
+            return mResultCache.put(query, useFts, selection, sortOrder, c, mMaxSearchColumns,
+                    limit);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Builds a query that concatenates the results of all the registered helpers.
+     *
+     * @param qb
+     * @param selection
+     * @param sortOrder
+     * @param limit
+     * @param useFts
+     * @param isDir
+     * @param trigrams
+     * @param searchColumnCount
+     *            the number of searched columns to add to the results
+     * @return a parenthesized compound SELECT, suitable for use as a table
+     */
+    private String buildUnionQuery(SQLiteQueryBuilder qb, String selection, String sortOrder,
+            int limit, boolean useFts, boolean isDir, Set<String> trigrams, int searchColumnCount) {
         final StringBuilder multiSelect = new StringBuilder();
 
         multiSelect.append('(');
 
-        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-
         boolean addUnion = false;
         for (final RegisteredHelper searchReg : mRegisteredHelpers) {
 
@@ -216,79 +597,340 @@ public class SearchDBHelper extends DBHelper {
             }
             addUnion = true;
 
-            String searchSelection = null;
+            // compound SELECTs only permit ORDER BY and LIMIT at the end, so each source is
+            // wrapped in its own sub-select.
+            multiSelect.append("SELECT * FROM (");
+            multiSelect.append(buildSourceQuery(qb, searchReg, selection, sortOrder,
+                    getSourceLimit(searchReg, limit), useFts, isDir, trigrams, searchColumnCount));
+            multiSelect.append(')');
+
+        } // inner selects
 
-            if (!isDir) {
-                final StringBuilder extSel = new StringBuilder();
-                // build the selection that matches the search string in the given
-                int i = 0;
-                for (final String column : searchReg.mColumns) {
-                    if (i > 0) {
-                        extSel.append(" OR ");
+        multiSelect.append(')');
+
+        return multiSelect.toString();
+    }
+
+    /**
+     * Runs each of the given queries on its own thread and collects the results into a single
+     * cursor, in the order set by {@link #setParallelSearch(boolean, int)}.
+     *
+     * @param db
+     * @param sourceQueries
+     * @param searchArgs
+     * @param limit
+     *            the total number of results or {@link #NO_LIMIT}
+     * @return the combined results
+     */
+    private Cursor searchParallel(final SQLiteDatabase db, List<String> sourceQueries,
+            final String[] searchArgs, int limit) {
+        final Executor executor = getExecutor();
+        final CompletionService<Cursor> completionService = new ExecutorCompletionService<Cursor>(
+                executor);
+
+        final ArrayList<Future<Cursor>> futures = new ArrayList<Future<Cursor>>(
+                sourceQueries.size());
+
+        // the results that haven't been taken yet. Once the search is over, any that are left
+        // and any that finish later are closed, as a cancelled query may already be running.
+        final ArrayList<Cursor> unclaimed = new ArrayList<Cursor>(sourceQueries.size());
+        final boolean[] finished = new boolean[1];
+
+        for (final String sourceQuery : sourceQueries) {
+            futures.add(completionService.submit(new Callable<Cursor>() {
+                @Override
+                public Cursor call() throws Exception {
+                    final Cursor c = db.rawQuery(sourceQuery, searchArgs);
+                    try {
+                        // queries are lazy; this runs it on this thread.
+                        c.getCount();
+                    } catch (final RuntimeException e) {
+                        c.close();
+                        throw e;
+                    }
+                    synchronized (unclaimed) {
+                        if (finished[0]) {
+                            c.close();
+                            return null;
+                        }
+                        unclaimed.add(c);
                     }
+                    return c;
+                }
+            }));
+        }
 
-                    extSel.append("\"");
-                    extSel.append(column);
-                    extSel.append("\" LIKE ?1");
+        MatrixCursor results = null;
 
-                    i++;
+        try {
+            while (!futures.isEmpty()) {
+                final Future<Cursor> future = mMergeOrder == MERGE_IN_ORDER ? futures.get(0)
+                        : completionService.take();
+
+                final Cursor c = future.get();
+                synchronized (unclaimed) {
+                    unclaimed.remove(c);
+                }
+
+                try {
+                    if (results == null) {
+                        results = new MatrixCursor(c.getColumnNames());
+                    }
+                    copyRows(c, results, limit);
+                } finally {
+                    c.close();
+                }
+
+                futures.remove(future);
+
+                if (limit != NO_LIMIT && results.getCount() >= limit) {
+                    break;
                 }
-                searchSelection = extSel.toString();
             }
 
-            final ArrayList<String> extProj = new ArrayList<String>();
-            final String table = searchReg.mHelper.getTable();
-            final String tablePrefix = '"' + table + "\".";
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("search was interrupted");
 
-            extProj.add(tablePrefix + ContentItem._ID + " AS " + ContentItem._ID);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("error searching: " + cause);
 
-            extProj.add(tablePrefix + searchReg.mText1Column + " AS "
-                    + SearchManager.SUGGEST_COLUMN_TEXT_1);
+        } finally {
+            // anything left over is either no longer needed or there was an error
+            for (final Future<Cursor> future : futures) {
+                future.cancel(false);
+            }
+            synchronized (unclaimed) {
+                finished[0] = true;
+                for (final Cursor c : unclaimed) {
+                    c.close();
+                }
+                unclaimed.clear();
+            }
+        }
 
-            if (searchReg.mText2Column != null) {
-                extProj.add(tablePrefix + searchReg.mText2Column + "  AS "
-                        + SearchManager.SUGGEST_COLUMN_TEXT_2);
-            } else {
-                // this is needed as sqlite3 crashes otherwise.
-                extProj.add("'' AS " + SearchManager.SUGGEST_COLUMN_TEXT_2);
+        return results;
+    }
+
+    /**
+     * Copies the rows of the source cursor onto the end of the destination, up to the given
+     * total.
+     *
+     * @param source
+     * @param dest
+     * @param limit
+     *            the maximum number of rows in the destination or {@link #NO_LIMIT}
+     */
+    private static void copyRows(Cursor source, MatrixCursor dest, int limit) {
+        final int columnCount = source.getColumnCount();
+
+        for (source.moveToFirst(); !source.isAfterLast(); source.moveToNext()) {
+            if (limit != NO_LIMIT && dest.getCount() >= limit) {
+                break;
+            }
+            final Object[] row = new Object[columnCount];
+            // all the suggestion columns are either text or IDs, which MatrixCursor will parse
+            // from strings.
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = source.getString(i);
             }
+            dest.addRow(row);
+        }
+    }
 
-            if (searchReg.mContentUri != null) {
-                extProj.add("'" + searchReg.mContentUri.toString() + "' AS "
-                        + SearchManager.SUGGEST_COLUMN_INTENT_DATA);
-                extProj.add(tablePrefix + ContentItem._ID + " AS "
-                        + SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID);
-            } else {
-                // this is needed as sqlite3 crashes otherwise.
-                extProj.add("'' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA);
-                extProj.add("'' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID);
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private synchronized Executor getExecutor() {
+        if (mExecutor == null) {
+            final int threads = mRegisteredHelpers.size();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r, SearchDBHelper.class
+                                    .getSimpleName());
+                            // the pool is never shut down, so it mustn't keep the process alive
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                executor.allowCoreThreadTimeOut(true);
             }
+            mExecutor = executor;
+        }
+        return mExecutor;
+    }
 
-            qb.setTables(table);
+    /**
+     * @param searchReg
+     * @param limit
+     *            the number of results still needed, or {@link #NO_LIMIT}
+     * @return the smaller of the given limit and the source's quota, or {@link #NO_LIMIT} if
+     *         neither are set.
+     */
+    private int getSourceLimit(RegisteredHelper searchReg, int limit) {
+        if (searchReg.mQuota == NO_LIMIT) {
+            return limit;
+        }
+        if (limit == NO_LIMIT) {
+            return searchReg.mQuota;
+        }
+        return Math.min(limit, searchReg.mQuota);
+    }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                multiSelect.append(qb.buildQuery(
-                        extProj.toArray(new String[extProj.size()]),
-                        searchSelection != null ? ProviderUtils.addExtraWhere(selection,
-                                searchSelection) : selection, null, null, sortOrder, null));
+    /**
+     * Builds the query of a single registered helper. If a search query is needed, it is
+     * referenced as {@code ?1}.
+     *
+     * @param qb
+     * @param searchReg
+     * @param selection
+     * @param sortOrder
+     * @param limit
+     *            the maximum number of results for this source or {@link #NO_LIMIT}
+     * @param useFts
+     * @param isDir
+     * @param trigrams
+     *            the trigrams of the substring search, used with any {@link TrigramIndex}es of
+     *            the searched columns. May be empty.
+     * @param searchColumnCount
+     *            the number of searched columns to add after the suggestion columns, padded with
+     *            empty columns if this helper has fewer. These are named
+     *            {@code search_column_0}, {@code search_column_1}, etc.
+     * @return a SELECT statement
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @SuppressWarnings("deprecation")
+    private String buildSourceQuery(SQLiteQueryBuilder qb, RegisteredHelper searchReg,
+            String selection, String sortOrder, int limit, boolean useFts, boolean isDir,
+            Set<String> trigrams, int searchColumnCount) {
+        String searchSelection = null;
+
+        final String table = searchReg.mHelper.getTable();
+        final String tablePrefix = '"' + table + "\".";
+
+        qb.setTables(table);
+
+        if (useFts) {
+            searchSelection = tablePrefix + ContentItem._ID + " IN (SELECT docid FROM "
+                    + SQLGenUtils.escapeTableName(searchReg.mFtsTable) + " WHERE "
+                    + SQLGenUtils.escapeTableName(searchReg.mFtsTable) + " MATCH ?1)";
+
+        } else if (!isDir) {
+            final StringBuilder extSel = new StringBuilder();
+            // build the selection that matches the search string in the given
+            int i = 0;
+            for (final String column : searchReg.mColumns) {
+                if (i > 0) {
+                    extSel.append(" OR ");
+                }
+
+                if (!trigrams.isEmpty() && searchReg.mTrigramColumns.contains(column)) {
+                    extSel.append("(\"");
+                    extSel.append(column);
+                    extSel.append("\" LIKE ?1 AND ");
+                    extSel.append(TrigramIndex.toCandidateSelection(table, column, trigrams));
+                    extSel.append(')');
+                } else {
+                    extSel.append("\"");
+                    extSel.append(column);
+                    extSel.append("\" LIKE ?1");
+                }
+
+                i++;
+            }
+            searchSelection = extSel.toString();
+        }
+
+        final ArrayList<String> extProj = new ArrayList<String>();
+
+        extProj.add(tablePrefix + ContentItem._ID + " AS " + ContentItem._ID);
+
+        extProj.add(tablePrefix + searchReg.mText1Column + " AS "
+                + SearchManager.SUGGEST_COLUMN_TEXT_1);
+
+        if (searchReg.mText2Column != null) {
+            extProj.add(tablePrefix + searchReg.mText2Column + "  AS "
+                    + SearchManager.SUGGEST_COLUMN_TEXT_2);
+        } else {
+            // this is needed as sqlite3 crashes otherwise.
+            extProj.add("'' AS " + SearchManager.SUGGEST_COLUMN_TEXT_2);
+        }
+
+        if (searchReg.mContentUri != null) {
+            extProj.add("'" + searchReg.mContentUri.toString() + "' AS "
+                    + SearchManager.SUGGEST_COLUMN_INTENT_DATA);
+            extProj.add(tablePrefix + ContentItem._ID + " AS "
+                    + SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID);
+        } else {
+            // this is needed as sqlite3 crashes otherwise.
+            extProj.add("'' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA);
+            extProj.add("'' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID);
+        }
+
+        for (int i = 0; i < searchColumnCount; i++) {
+            if (i < searchReg.mColumns.length) {
+                extProj.add(tablePrefix + searchReg.mColumns[i] + " AS search_column_" + i);
             } else {
-                multiSelect.append(qb.buildQuery(
-                        extProj.toArray(new String[extProj.size()]),
-                        searchSelection != null ? ProviderUtils.addExtraWhere(selection,
-                                searchSelection) : selection, null, null, null, sortOrder, null));
+                extProj.add("NULL AS search_column_" + i);
             }
+        }
 
-        } // inner selects
+        final String sourceLimit = limit != NO_LIMIT ? String.valueOf(limit) : null;
 
-        multiSelect.append(')');
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return qb.buildQuery(extProj.toArray(new String[extProj.size()]),
+                    searchSelection != null ? ProviderUtils.addExtraWhere(selection,
+                            searchSelection) : selection, null, null, sortOrder, sourceLimit);
+        } else {
+            return qb.buildQuery(extProj.toArray(new String[extProj.size()]),
+                    searchSelection != null ? ProviderUtils.addExtraWhere(selection,
+                            searchSelection) : selection, null, null, null, sortOrder,
+                    sourceLimit);
+        }
+    }
 
-        final Cursor c = db.query(multiSelect.toString(), null, null,
-                searchQuery != null ? new String[] { searchQuery } : null, null, null, sortOrder,
-                limit);
-        if (BuildConfig.DEBUG) {
-            Log.d(TAG, "search found " + c.getCount() + " results");
+    // everything that SQLite's "simple" FTS tokenizer considers a separator.
+    static final Pattern FTS_SEPARATORS = Pattern
+            .compile("[\\x00-\\x2F\\x3A-\\x40\\x5B-\\x60\\x7B-\\x7F]+");
+
+    /**
+     * Converts a user-entered query into a full-text query that matches rows containing words
+     * starting with each of the words of the query. Any characters that have meaning in the FTS
+     * query syntax are treated as separators, as the tokenizer does for the indexed text.
+     *
+     * @param query
+     *            the raw query
+     * @return a query suitable for use with {@code MATCH}. This will be empty if the query has no
+     *         words.
+     */
+    public static String toFtsPrefixQuery(String query) {
+        if (query == null) {
+            return "";
         }
-        return c;
+        final StringBuilder sb = new StringBuilder();
+        for (final String word : FTS_SEPARATORS.split(query)) {
+            if (word.length() == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            // lowercase only ASCII, like the tokenizer. This also prevents the words from being
+            // interpreted as operators (eg. OR).
+            for (int i = 0; i < word.length(); i++) {
+                final char ch = word.charAt(i);
+                sb.append(ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch);
+            }
+            sb.append('*');
+        }
+        return sb.toString();
     }
 
     @Override
@@ -301,15 +943,90 @@ public class SearchDBHelper extends DBHelper {
         return SearchManager.SUGGEST_MIME_TYPE;
     }
 
+    /**
+     * If {@link #setFullTextSearch(boolean) full-text search} is enabled, this creates the
+     * full-text tables of all the registered helpers, populates them with any existing data, and
+     * adds triggers to keep them up to date. Otherwise, this does nothing.
+     */
     @Override
     public void createTables(SQLiteDatabase db) throws SQLGenerationException {
-        // unused
+        if (!mFullTextSearch) {
+            return;
+        }
+
+        for (final RegisteredHelper searchReg : mRegisteredHelpers) {
+            for (final String sqlExpression : getFtsTableCreation(searchReg)) {
+                db.execSQL(sqlExpression);
+            }
+        }
     }
 
+    /**
+     * Recreates the full-text tables, as the tables they index may have been recreated too.
+     */
     @Override
     public void upgradeTables(SQLiteDatabase db, int oldVersion, int newVersion)
             throws SQLGenerationException {
-        // unused
+        createTables(db);
+    }
+
+    private String getTriggerName(RegisteredHelper searchReg, String action) {
+        return SQLGenUtils.escapeTableName("trigger_" + searchReg.mFtsTable + "_" + action);
+    }
+
+    /**
+     * Generates the SQL to create (or recreate) the full-text table for the given helper.
+     *
+     * @param searchReg
+     * @return a list of SQL statements
+     */
+    private ArrayList<String> getFtsTableCreation(RegisteredHelper searchReg) {
+        final ArrayList<String> sql = new ArrayList<String>();
+        final String table = SQLGenUtils.escapeTableName(searchReg.mHelper.getTable());
+        final String ftsTable = SQLGenUtils.escapeTableName(searchReg.mFtsTable);
+
+        final StringBuilder columns = new StringBuilder();
+        final StringBuilder newColumns = new StringBuilder();
+        final StringBuilder setColumns = new StringBuilder();
+
+        for (final String column : searchReg.mColumns) {
+            if (!SQLGenUtils.isValidName(column)) {
+                throw new SQLGenerationException("invalid search column name: '" + column + "'");
+            }
+            if (columns.length() > 0) {
+                columns.append(',');
+                newColumns.append(',');
+                setColumns.append(',');
+            }
+            columns.append('"').append(column).append('"');
+            newColumns.append("new.\"").append(column).append('"');
+            setColumns.append('"').append(column).append("\"=new.\"").append(column).append('"');
+        }
+
+        sql.add("DROP TRIGGER IF EXISTS " + getTriggerName(searchReg, "insert"));
+        sql.add("DROP TRIGGER IF EXISTS " + getTriggerName(searchReg, "update"));
+        sql.add("DROP TRIGGER IF EXISTS " + getTriggerName(searchReg, "delete"));
+        sql.add("DROP TABLE IF EXISTS " + ftsTable);
+
+        sql.add("CREATE VIRTUAL TABLE " + ftsTable + " USING fts3(" + columns + ")");
+
+        // bring in any existing data
+        sql.add("INSERT INTO " + ftsTable + " (docid," + columns + ") SELECT " + ContentItem._ID
+                + "," + columns + " FROM " + table);
+
+        sql.add("CREATE TRIGGER " + getTriggerName(searchReg, "insert") + " AFTER INSERT ON "
+                + table + " FOR EACH ROW BEGIN INSERT INTO " + ftsTable + " (docid," + columns
+                + ") VALUES (new." + ContentItem._ID + "," + newColumns + ");END");
+
+        sql.add("CREATE TRIGGER " + getTriggerName(searchReg, "update") + " AFTER UPDATE OF "
+                + columns + " ON " + table + " FOR EACH ROW BEGIN UPDATE " + ftsTable + " SET "
+                + setColumns + " WHERE docid=old." + ContentItem._ID + ";END");
+
+        sql.add("CREATE TRIGGER " + getTriggerName(searchReg, "delete") + " AFTER DELETE ON "
+                + table + " FOR EACH ROW BEGIN DELETE FROM " + ftsTable + " WHERE docid=old."
+                + ContentItem._ID + ";END");
+
+        return sql;
     }
 
 }
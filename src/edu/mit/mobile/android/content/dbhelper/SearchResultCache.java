@@ -0,0 +1,342 @@
+package edu.mit.mobile.android.content.dbhelper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+
+/**
+ * <p>
+ * A small cache of recent search results, used by {@link SearchDBHelper} to answer type-ahead
+ * queries. As each keystroke extends the previous query, the results of the longer query are a
+ * subset of the results of the shorter one. So long as the shorter query's results are complete
+ * and small enough to keep in memory, the longer query can be answered by filtering them instead
+ * of searching the database again.
+ * </p>
+ *
+ * <p>
+ * Along with the suggestion columns, each cached row holds the values of the searched columns so
+ * that they can be matched against the longer query the same way the database would.
+ * </p>
+ *
+ * <p>
+ * As the cache isn't told about changes to the searched tables, entries are only used for a short
+ * time after they were loaded.
+ * </p>
+ */
+class SearchResultCache {
+
+    private final int mMaxCandidates;
+    private final long mMaxAge;
+
+    private final LinkedHashMap<Key, Entry> mEntries;
+
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * @param maxEntries
+     *            the maximum number of queries to keep
+     * @param maxCandidates
+     *            the maximum number of rows in a result that will be kept
+     * @param maxAge
+     *            the amount of time, in milliseconds, that results are used for
+     */
+    public SearchResultCache(final int maxEntries, int maxCandidates, long maxAge) {
+        mMaxCandidates = maxCandidates;
+        mMaxAge = maxAge;
+
+        mEntries = new LinkedHashMap<Key, Entry>(maxEntries + 1, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public int getMaxCandidates() {
+        return mMaxCandidates;
+    }
+
+    /**
+     * @param query
+     * @param fullText
+     * @return true if the results of the given query can be filtered in memory
+     */
+    public static boolean isCacheable(String query, boolean fullText) {
+        if (query == null || query.length() == 0) {
+            return false;
+        }
+
+        // these are LIKE wildcards, which aren't handled when filtering.
+        return fullText || (query.indexOf('%') == -1 && query.indexOf('_') == -1);
+    }
+
+    /**
+     * Looks for the results of the given query or of the longest query that it extends and filters
+     * them.
+     *
+     * @param query
+     * @param fullText
+     *            true if the query will be answered using the full-text index
+     * @param selection
+     * @param sortOrder
+     * @param limit
+     *            the maximum number of rows to return or {@link SearchDBHelper#NO_LIMIT}
+     * @return the results of the query or null if they need to be loaded from the database
+     */
+    public synchronized Cursor query(String query, boolean fullText, String selection,
+            String sortOrder, int limit) {
+        final long now = SystemClock.uptimeMillis();
+
+        for (int len = query.length(); len > 0; len--) {
+            final Key prefixKey = new Key(query.substring(0, len), fullText, selection, sortOrder);
+            final Entry prefixEntry = mEntries.get(prefixKey);
+
+            if (prefixEntry == null) {
+                continue;
+            }
+
+            if (now - prefixEntry.mLoaded > mMaxAge) {
+                mEntries.remove(prefixKey);
+                continue;
+            }
+
+            mHits++;
+
+            if (len == query.length()) {
+                return prefixEntry.toCursor(limit);
+            }
+
+            final Entry entry = prefixEntry.filter(query, fullText);
+            mEntries.put(new Key(query, fullText, selection, sortOrder), entry);
+
+            return entry.toCursor(limit);
+        }
+
+        mMisses++;
+
+        return null;
+    }
+
+    /**
+     * Reads the results of a query, caching them if they're small enough.
+     *
+     * @param query
+     * @param fullText
+     * @param selection
+     * @param sortOrder
+     * @param c
+     *            the results. The first columns are the suggestion columns, which are followed by
+     *            {@code searchColumnCount} searched columns. This must contain all the results of
+     *            the query or at least {@link #getMaxCandidates()} + 1 rows.
+     * @param searchColumnCount
+     * @param limit
+     *            the maximum number of rows to return or {@link SearchDBHelper#NO_LIMIT}
+     * @return the suggestion columns of the results
+     */
+    public Cursor put(String query, boolean fullText, String selection, String sortOrder,
+            Cursor c, int searchColumnCount, int limit) {
+        final int suggestionColumnCount = c.getColumnCount() - searchColumnCount;
+        final String[] columnNames = new String[suggestionColumnCount];
+        System.arraycopy(c.getColumnNames(), 0, columnNames, 0, suggestionColumnCount);
+
+        final Entry entry = new Entry(columnNames, c.getCount(), SystemClock.uptimeMillis());
+
+        for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+            // all the suggestion columns are either text or IDs, which MatrixCursor will parse
+            // from strings.
+            final Object[] row = new Object[suggestionColumnCount];
+            for (int i = 0; i < suggestionColumnCount; i++) {
+                row[i] = c.getString(i);
+            }
+            final String[] searchValues = new String[searchColumnCount];
+            for (int i = 0; i < searchColumnCount; i++) {
+                searchValues[i] = c.getString(suggestionColumnCount + i);
+            }
+            entry.add(row, searchValues);
+        }
+
+        if (entry.mRows.size() <= mMaxCandidates) {
+            synchronized (this) {
+                mEntries.put(new Key(query, fullText, selection, sortOrder), entry);
+            }
+        }
+
+        return entry.toCursor(limit);
+    }
+
+    /**
+     * Removes all the cached results.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * @return the number of queries answered from the cache
+     */
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return the number of queries that had to be loaded from the database
+     */
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Lowercases only the ASCII letters of the given string, like SQLite's {@code LIKE} and the
+     * "simple" FTS tokenizer.
+     *
+     * @param s
+     * @return the lowercased string
+     */
+    static String toLowerCaseAscii(String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char ch = s.charAt(i);
+            sb.append(ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param searchValues
+     * @param likeQuery
+     *            the lowercased query
+     * @return true if any of the values contain the query, like {@code LIKE '%query%'}
+     */
+    private static boolean matchesLike(String[] searchValues, String likeQuery) {
+        for (final String value : searchValues) {
+            if (value != null && toLowerCaseAscii(value).contains(likeQuery)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param searchValues
+     * @param words
+     *            the lowercased words of the query
+     * @return true if each of the words is a prefix of a word in any of the values, like a
+     *         full-text prefix query
+     */
+    private static boolean matchesPrefixes(String[] searchValues, String[] words) {
+        for (final String word : words) {
+            boolean found = false;
+            for (int i = 0; !found && i < searchValues.length; i++) {
+                if (searchValues[i] == null) {
+                    continue;
+                }
+                for (final String token : SearchDBHelper.FTS_SEPARATORS.split(searchValues[i])) {
+                    if (toLowerCaseAscii(token).startsWith(word)) {
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Entry {
+        final String[] mColumnNames;
+        final ArrayList<Object[]> mRows;
+        final ArrayList<String[]> mSearchValues;
+        final long mLoaded;
+
+        public Entry(String[] columnNames, int capacity, long loaded) {
+            mColumnNames = columnNames;
+            mRows = new ArrayList<Object[]>(capacity);
+            mSearchValues = new ArrayList<String[]>(capacity);
+            mLoaded = loaded;
+        }
+
+        public void add(Object[] row, String[] searchValues) {
+            mRows.add(row);
+            mSearchValues.add(searchValues);
+        }
+
+        /**
+         * @param query
+         * @param fullText
+         * @return a new entry with only the rows matching the given query. This keeps the load
+         *         time of this entry, as the data is no newer.
+         */
+        public Entry filter(String query, boolean fullText) {
+            final Entry filtered = new Entry(mColumnNames, mRows.size(), mLoaded);
+
+            final String likeQuery = fullText ? null : toLowerCaseAscii(query);
+            final String[] words = fullText ? SearchDBHelper.toFtsPrefixQuery(query)
+                    .replace("*", "").split(" ") : null;
+
+            final int count = mRows.size();
+            for (int i = 0; i < count; i++) {
+                final String[] searchValues = mSearchValues.get(i);
+                if (fullText ? matchesPrefixes(searchValues, words) : matchesLike(searchValues,
+                        likeQuery)) {
+                    filtered.add(mRows.get(i), searchValues);
+                }
+            }
+            return filtered;
+        }
+
+        public Cursor toCursor(int limit) {
+            final int count = limit == SearchDBHelper.NO_LIMIT ? mRows.size() : Math.min(limit,
+                    mRows.size());
+            final MatrixCursor c = new MatrixCursor(mColumnNames, count);
+            for (int i = 0; i < count; i++) {
+                c.addRow(mRows.get(i));
+            }
+            return c;
+        }
+    }
+
+    private static class Key {
+        final String mQuery;
+        final boolean mFullText;
+        final String mSelection;
+        final String mSortOrder;
+
+        public Key(String query, boolean fullText, String selection, String sortOrder) {
+            mQuery = query;
+            mFullText = fullText;
+            mSelection = selection;
+            mSortOrder = sortOrder;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mQuery.hashCode();
+            result = 31 * result + (mFullText ? 1 : 0);
+            result = 31 * result + (mSelection != null ? mSelection.hashCode() : 0);
+            result = 31 * result + (mSortOrder != null ? mSortOrder.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mQuery.equals(other.mQuery) && mFullText == other.mFullText
+                    && (mSelection != null ? mSelection.equals(other.mSelection)
+                            : other.mSelection == null)
+                    && (mSortOrder != null ? mSortOrder.equals(other.mSortOrder)
+                            : other.mSortOrder == null);
+        }
+    }
+}
@@ -9,9 +9,13 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import edu.mit.mobile.android.content.AndroidVersions;
 import edu.mit.mobile.android.content.DBHelper;
+import edu.mit.mobile.android.content.ForeignKeyDBHelper;
 import edu.mit.mobile.android.content.GenericDBHelper;
 import edu.mit.mobile.android.content.ProviderUtils;
 import edu.mit.mobile.android.content.SQLGenUtils;
+import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.SelectionBuilder;
+import edu.mit.mobile.android.content.SimpleContentProvider;
 
 /**
  * Database helper to make it easier to create many-to-many relationships between two arbitrary
@@ -40,6 +44,7 @@ public class M2MDBHelper extends DBHelper {
     private final String mToDefaultSortOrder;
     private final String mToTableEscaped;
     private final String mJoinTableEscaped;
+    private final boolean mFromHasDedupColumns;
 
     public M2MDBHelper(GenericDBHelper from, GenericDBHelper to) {
         this(from, to, (Uri) null);
@@ -54,8 +59,19 @@ public class M2MDBHelper extends DBHelper {
         this(from, to, null, identicalChildFinder);
     }
 
+    /**
+     * @throws SQLGenerationException
+     *             if the "to" item has a
+     *             {@link edu.mit.mobile.android.content.column.DedupBlobColumn DedupBlobColumn}, as
+     *             this helper reads and writes the table directly
+     */
     public M2MDBHelper(GenericDBHelper from, GenericDBHelper to, Uri toContentUri,
             IdenticalChildFinder identicalChildFinder) {
+        if (to.hasDedupColumns()) {
+            throw new SQLGenerationException("M2MDBHelper: " + to.getContentItem()
+                    + " has a DedupBlobColumn, which can't be read through a join");
+        }
+        mFromHasDedupColumns = from.hasDedupColumns();
         mFromTable = from.getTable();
         mToTable = to.getTable();
         mToTableEscaped = SQLGenUtils.escapeTableName(mToTable);
@@ -67,7 +83,8 @@ public class M2MDBHelper extends DBHelper {
         mToContentUri = toContentUri;
     }
 
-    // constructors based on table names instead of GenericDBHelpers
+    // constructors based on table names instead of GenericDBHelpers. Neither table may have a
+    // DedupBlobColumn, as that can't be checked here.
 
     public M2MDBHelper(String fromTable, String toTable, IdenticalChildFinder identicalChildFinder) {
         this(fromTable, toTable, identicalChildFinder, null);
@@ -75,6 +92,7 @@ public class M2MDBHelper extends DBHelper {
 
     public M2MDBHelper(String fromTable, String toTable, IdenticalChildFinder identicalChildFinder,
             Uri toContentUri) {
+        mFromHasDedupColumns = false;
         mFromTable = fromTable;
         mToTable = toTable;
         mToTableEscaped = SQLGenUtils.escapeTableName(mToTable);
@@ -128,6 +146,14 @@ public class M2MDBHelper extends DBHelper {
         return mFromTable;
     }
 
+    /**
+     * @return true if the from item is known to have a
+     *         {@link edu.mit.mobile.android.content.column.DedupBlobColumn DedupBlobColumn}
+     */
+    boolean fromHasDedupColumns() {
+        return mFromHasDedupColumns;
+    }
+
     /**
      * @return the name of the to table
      */
@@ -288,9 +314,10 @@ public class M2MDBHelper extends DBHelper {
                     ContentUris.withAppendedId(mToContentUri, ContentUris.parseId(uri)), values,
                     where, whereArgs);
         } else {
-            count = db.update(mToTable, values,
-                    ProviderUtils.addExtraWhere(where, BaseColumns._ID + "=?"),
-                    ProviderUtils.addExtraWhereArgs(whereArgs, uri.getLastPathSegment()));
+            final SelectionBuilder selection = new SelectionBuilder(where, whereArgs).add(
+                    BaseColumns._ID + "=?", uri.getLastPathSegment());
+            count = db.update(mToTable, values, selection.getSelection(),
+                    selection.getSelectionArgs());
         }
 
         return count;
@@ -336,9 +363,10 @@ public class M2MDBHelper extends DBHelper {
                 count = provider.delete(ContentUris.withAppendedId(mToContentUri, childId), where,
                         whereArgs);
             } else {
-                count = db.delete(mToTable,
-                        ProviderUtils.addExtraWhere(where, BaseColumns._ID + "=?"),
-                        ProviderUtils.addExtraWhereArgs(whereArgs, String.valueOf(childId)));
+                final SelectionBuilder selection = new SelectionBuilder(where, whereArgs).add(
+                        BaseColumns._ID + "=?", String.valueOf(childId));
+                count = db.delete(mToTable, selection.getSelection(),
+                        selection.getSelectionArgs());
             }
 
             db.setTransactionSuccessful();
@@ -378,8 +406,8 @@ public class M2MDBHelper extends DBHelper {
 
     /**
      * Selects rows from the TO table that have a relation from any of the items in the FROM table.
-     * The ID of the item in the FROM table that matches can be selected using
-     * {@link #getJoinTableName()}.{@link M2MColumns#FROM_ID}
+     * The ID of the item in the FROM table that matches can be selected by adding
+     * {@link M2MColumns#FROM_ID} to the projection.
      *
      * @param db
      *            DB that contains all the tables
@@ -403,11 +431,28 @@ public class M2MDBHelper extends DBHelper {
 
         return db.query(mToTableEscaped + " INNER JOIN " + mJoinTableEscaped + " ON "
                 + mJoinTableEscaped + "." + M2MColumns.TO_ID + "=" + mToTableEscaped + "."
-                + BaseColumns._ID, ProviderUtils.addPrefixToProjection(mToTable, toProjection),
+                + BaseColumns._ID, addPrefixToToProjection(toProjection),
                 selection, selectionArgs, null, null, sortOrder != null ? sortOrder
                         : mToDefaultSortOrder);
     }
 
+    /**
+     * Like {@link ProviderUtils#addPrefixToProjection(String, String[])}, but selects
+     * {@link M2MColumns#FROM_ID} from the join table.
+     */
+    private String[] addPrefixToToProjection(String[] toProjection) {
+        final String[] projection = ProviderUtils.addPrefixToProjection(mToTable, toProjection);
+        if (projection != null) {
+            for (int i = 0; i < projection.length; i++) {
+                if (M2MColumns.FROM_ID.equals(toProjection[i])) {
+                    projection[i] = mJoinTableEscaped + "." + M2MColumns.FROM_ID + " as "
+                            + M2MColumns.FROM_ID;
+                }
+            }
+        }
+        return projection;
+    }
+
     /**
      * Selects rows from the TO table that have a relation from the given item in the FROM table.
      *
@@ -427,12 +472,15 @@ public class M2MDBHelper extends DBHelper {
      */
     public Cursor queryTo(long fromId, SQLiteDatabase db, String[] toProjection, String selection,
             String[] selectionArgs, String sortOrder) {
-        return queryTo(
-                db,
-                toProjection,
-                ProviderUtils.addExtraWhere(selection, mJoinTableEscaped + "." + M2MColumns.FROM_ID
-                        + "=?"),
-                ProviderUtils.addExtraWhereArgs(selectionArgs, Long.toString(fromId)), sortOrder);
+        return queryTo(fromId, db, toProjection, new SelectionBuilder(selection, selectionArgs),
+                sortOrder);
+    }
+
+    private Cursor queryTo(long fromId, SQLiteDatabase db, String[] toProjection,
+            SelectionBuilder selection, String sortOrder) {
+        selection.add(mJoinTableEscaped + "." + M2MColumns.FROM_ID + "=?", Long.toString(fromId));
+        return queryTo(db, toProjection, selection.getSelection(), selection.getSelectionArgs(),
+                sortOrder);
     }
 
     @Override
@@ -441,7 +489,7 @@ public class M2MDBHelper extends DBHelper {
 
         final Uri parent = ProviderUtils.removeLastPathSegment(uri);
 
-        if (WILDCARD_PATH_SEGMENT.equals(parent.getLastPathSegment())) {
+        if (isWildcard(parent.getLastPathSegment())) {
             return queryTo(db, projection, selection, selectionArgs, sortOrder);
         } else {
             final long parentId = ContentUris.parseId(parent);
@@ -449,6 +497,16 @@ public class M2MDBHelper extends DBHelper {
         }
     }
 
+    /**
+     * {@link SimpleContentProvider#addChildDirAndItemUri(DBHelper, String, String)} registers the
+     * {@link ForeignKeyDBHelper#WILDCARD_PATH_SEGMENT} path for this helper, so that's accepted as
+     * well.
+     */
+    private boolean isWildcard(String parentId) {
+        return WILDCARD_PATH_SEGMENT.equals(parentId)
+                || ForeignKeyDBHelper.WILDCARD_PATH_SEGMENT.equals(parentId);
+    }
+
     @Override
     public Cursor queryItem(SQLiteDatabase db, Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
@@ -459,8 +517,8 @@ public class M2MDBHelper extends DBHelper {
         final String childId = uri.getLastPathSegment();
 
         return queryTo(parentId, db, projection,
-                ProviderUtils.addExtraWhere(selection, BaseColumns._ID + "=?"),
-                ProviderUtils.addExtraWhereArgs(selectionArgs, childId), sortOrder);
+                new SelectionBuilder(selection, selectionArgs).add(BaseColumns._ID + "=?", childId),
+                sortOrder);
     }
 
     @Override
@@ -6,10 +6,12 @@ import android.database.Cursor;
 import android.net.Uri;
 import edu.mit.mobile.android.content.ContentItem;
 import edu.mit.mobile.android.content.DBSortOrder;
-import edu.mit.mobile.android.content.Manager;
+import edu.mit.mobile.android.content.ForeignKeyDBHelper;
+import edu.mit.mobile.android.content.BatchedManager;
+import edu.mit.mobile.android.content.ProviderUtils;
 import edu.mit.mobile.android.content.UriPath;
 
-public class M2MManager implements Manager {
+public class M2MManager implements BatchedManager {
     private final Class<? extends ContentItem> mTo;
     private final String mPath;
     private final String mSortOrder;
@@ -54,6 +56,40 @@ public class M2MManager implements Manager {
         return cr.query(getUri(parent), projection, null, null, mSortOrder);
     }
 
+    /**
+     * Queries the children of all the given parents at once. This uses the
+     * {@link ForeignKeyDBHelper#WILDCARD_PATH_SEGMENT WILDCARD_PATH_SEGMENT} URI, which is
+     * registered by {@link edu.mit.mobile.android.content.SimpleContentProvider#addChildDirAndItemUri(edu.mit.mobile.android.content.DBHelper, String, String)
+     * addChildDirAndItemUri()}.
+     */
+    @Override
+    public Cursor query(ContentResolver cr, Uri parentDir, long[] parentIds, String[] projection) {
+        return cr.query(getAll(parentDir),
+                ProviderUtils.addColumnToProjection(projection, M2MColumns.FROM_ID),
+                ProviderUtils.toIdInSelection(M2MColumns.FROM_ID, parentIds), null, mSortOrder);
+    }
+
+    /**
+     * Gets a URI that uses {@link ForeignKeyDBHelper#WILDCARD_PATH_SEGMENT WILDCARD_PATH_SEGMENT}
+     * to retrieve all the children of any parent.
+     *
+     * @param parentDir
+     *            the dir URI of the parent
+     * @return a URI that will return all the children
+     */
+    public Uri getAll(Uri parentDir) {
+        return parentDir.buildUpon().appendPath(ForeignKeyDBHelper.WILDCARD_PATH_SEGMENT)
+                .appendPath(mPath).build();
+    }
+
+    /**
+     * @return {@link M2MColumns#FROM_ID}
+     */
+    @Override
+    public String getParentIdColumn() {
+        return M2MColumns.FROM_ID;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -11,13 +11,24 @@ import android.provider.BaseColumns;
 import edu.mit.mobile.android.content.DBHelper;
 import edu.mit.mobile.android.content.ProviderUtils;
 import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.SelectionBuilder;
 
 public class M2MReverseHelper extends DBHelper {
     private static final String WILDCARD_PATH_SEGMENT = "*";
 
     private final String mJoinTable, mFromTable;
 
+    /**
+     * @throws SQLGenerationException
+     *             if the "from" item has a
+     *             {@link edu.mit.mobile.android.content.column.DedupBlobColumn DedupBlobColumn}, as
+     *             this helper reads the table directly
+     */
     public M2MReverseHelper(M2MDBHelper m2mDBHelper) {
+        if (m2mDBHelper.fromHasDedupColumns()) {
+            throw new SQLGenerationException("M2MReverseHelper: " + m2mDBHelper.getFromTable()
+                    + " has a DedupBlobColumn, which can't be read through a join");
+        }
         mJoinTable = m2mDBHelper.getJoinTableName();
         mFromTable = m2mDBHelper.getFromTable();
     }
@@ -125,9 +136,15 @@ public class M2MReverseHelper extends DBHelper {
      */
     public Cursor queryFrom(long toId, SQLiteDatabase db, String[] fromProjection,
             String selection, String[] selectionArgs, String sortOrder) {
-        return queryFrom(db, fromProjection,
-                ProviderUtils.addExtraWhere(selection, mJoinTable + "." + M2MColumns.TO_ID + "=?"),
-                ProviderUtils.addExtraWhereArgs(selectionArgs, Long.toString(toId)), sortOrder);
+        return queryFrom(toId, db, fromProjection, new SelectionBuilder(selection, selectionArgs),
+                sortOrder);
+    }
+
+    private Cursor queryFrom(long toId, SQLiteDatabase db, String[] fromProjection,
+            SelectionBuilder selection, String sortOrder) {
+        selection.add(mJoinTable + "." + M2MColumns.TO_ID + "=?", Long.toString(toId));
+        return queryFrom(db, fromProjection, selection.getSelection(),
+                selection.getSelectionArgs(), sortOrder);
     }
 
     @Override
@@ -154,8 +171,8 @@ public class M2MReverseHelper extends DBHelper {
         final String childId = uri.getLastPathSegment();
 
         return queryFrom(parentId, db, projection,
-                ProviderUtils.addExtraWhere(selection, BaseColumns._ID + "=?"),
-                ProviderUtils.addExtraWhereArgs(selectionArgs, childId), sortOrder);
+                new SelectionBuilder(selection, selectionArgs).add(BaseColumns._ID + "=?", childId),
+                sortOrder);
     }
 
 }
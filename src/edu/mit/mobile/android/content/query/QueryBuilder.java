@@ -2,6 +2,9 @@ package edu.mit.mobile.android.content.query;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import android.net.Uri;
 import android.util.Log;
@@ -28,6 +31,14 @@ public class QueryBuilder {
 
     private boolean mIsFirstParam = true;
 
+    // the reserved keys, which are added at the end of the query
+    private int mLimit = QuerystringControls.NO_LIMIT;
+    private int mOffset = 0;
+    private final ArrayList<String> mSortColumns = new ArrayList<String>();
+    private String[] mProjection;
+    private String[] mGroupBy;
+    private final LinkedHashMap<String, ArrayList<String>> mAggregates = new LinkedHashMap<String, ArrayList<String>>();
+
     /**
      * Primary constructor. Provide a base URI and {@link #build()} will return a URI built off
      * that, with the query part replaced by this builder's content.
@@ -71,6 +82,12 @@ public class QueryBuilder {
         return this;
     }
 
+    public QueryBuilder startsWith(String column, String prefix) {
+        operParam(column, QuerystringWrapper.QUERY_OPERATOR_STARTS_WITH, prefix);
+
+        return this;
+    }
+
     public QueryBuilder greater(String column, String value) {
         operParam(column, QuerystringWrapper.QUERY_OPERATOR_GREATER_THAN, value);
 
@@ -95,6 +112,30 @@ public class QueryBuilder {
         return this;
     }
 
+    public QueryBuilder in(String column, String... values) {
+        operList(column, QuerystringWrapper.QUERY_OPERATOR_EQUALS, values);
+
+        return this;
+    }
+
+    public QueryBuilder notIn(String column, String... values) {
+        operList(column, QuerystringWrapper.QUERY_OPERATOR_NOT_EQUALS, values);
+
+        return this;
+    }
+
+    public QueryBuilder between(String column, String low, String high) {
+        operList(column, QuerystringWrapper.QUERY_OPERATOR_BETWEEN, low, high);
+
+        return this;
+    }
+
+    public QueryBuilder notBetween(String column, String low, String high) {
+        operList(column, QuerystringWrapper.QUERY_OPERATOR_NOT_BETWEEN, low, high);
+
+        return this;
+    }
+
     // AND
 
     public QueryBuilder andIs(String column, String value) {
@@ -125,6 +166,13 @@ public class QueryBuilder {
         return this;
     }
 
+    public QueryBuilder andStartsWith(String column, String prefix) {
+        joinOperParam(QuerystringWrapper.QUERY_OPERATOR_AND, column,
+                QuerystringWrapper.QUERY_OPERATOR_STARTS_WITH, prefix);
+
+        return this;
+    }
+
     public QueryBuilder andGreater(String column, String value) {
         joinOperParam(QuerystringWrapper.QUERY_OPERATOR_AND, column,
                 QuerystringWrapper.QUERY_OPERATOR_GREATER_THAN, value);
@@ -153,6 +201,34 @@ public class QueryBuilder {
         return this;
     }
 
+    public QueryBuilder andIn(String column, String... values) {
+        joinOperList(QuerystringWrapper.QUERY_OPERATOR_AND, column,
+                QuerystringWrapper.QUERY_OPERATOR_EQUALS, values);
+
+        return this;
+    }
+
+    public QueryBuilder andNotIn(String column, String... values) {
+        joinOperList(QuerystringWrapper.QUERY_OPERATOR_AND, column,
+                QuerystringWrapper.QUERY_OPERATOR_NOT_EQUALS, values);
+
+        return this;
+    }
+
+    public QueryBuilder andBetween(String column, String low, String high) {
+        joinOperList(QuerystringWrapper.QUERY_OPERATOR_AND, column,
+                QuerystringWrapper.QUERY_OPERATOR_BETWEEN, low, high);
+
+        return this;
+    }
+
+    public QueryBuilder andNotBetween(String column, String low, String high) {
+        joinOperList(QuerystringWrapper.QUERY_OPERATOR_AND, column,
+                QuerystringWrapper.QUERY_OPERATOR_NOT_BETWEEN, low, high);
+
+        return this;
+    }
+
     // OR
 
     public QueryBuilder orIs(String column, String value) {
@@ -183,6 +259,13 @@ public class QueryBuilder {
         return this;
     }
 
+    public QueryBuilder orStartsWith(String column, String prefix) {
+        joinOperParam(QuerystringWrapper.QUERY_OPERATOR_OR, column,
+                QuerystringWrapper.QUERY_OPERATOR_STARTS_WITH, prefix);
+
+        return this;
+    }
+
     public QueryBuilder orGreater(String column, String value) {
         joinOperParam(QuerystringWrapper.QUERY_OPERATOR_OR, column,
                 QuerystringWrapper.QUERY_OPERATOR_GREATER_THAN, value);
@@ -211,6 +294,34 @@ public class QueryBuilder {
         return this;
     }
 
+    public QueryBuilder orIn(String column, String... values) {
+        joinOperList(QuerystringWrapper.QUERY_OPERATOR_OR, column,
+                QuerystringWrapper.QUERY_OPERATOR_EQUALS, values);
+
+        return this;
+    }
+
+    public QueryBuilder orNotIn(String column, String... values) {
+        joinOperList(QuerystringWrapper.QUERY_OPERATOR_OR, column,
+                QuerystringWrapper.QUERY_OPERATOR_NOT_EQUALS, values);
+
+        return this;
+    }
+
+    public QueryBuilder orBetween(String column, String low, String high) {
+        joinOperList(QuerystringWrapper.QUERY_OPERATOR_OR, column,
+                QuerystringWrapper.QUERY_OPERATOR_BETWEEN, low, high);
+
+        return this;
+    }
+
+    public QueryBuilder orNotBetween(String column, String low, String high) {
+        joinOperList(QuerystringWrapper.QUERY_OPERATOR_OR, column,
+                QuerystringWrapper.QUERY_OPERATOR_NOT_BETWEEN, low, high);
+
+        return this;
+    }
+
     /**
      * Adds a child to the query (wrapped in parentheses). Use the {@link #QueryBuilder()}
      * constructor for these children.
@@ -263,6 +374,171 @@ public class QueryBuilder {
         return this;
     }
 
+    /**
+     * Limits the number of results. Only applies to the top-level query.
+     *
+     * @param limit
+     *            the maximum number of rows to return
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_LIMIT
+     */
+    public QueryBuilder limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        mLimit = limit;
+        return this;
+    }
+
+    /**
+     * Skips the first results. Only applies to the top-level query.
+     *
+     * @param offset
+     *            the number of rows to skip
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_OFFSET
+     */
+    public QueryBuilder offset(int offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        mOffset = offset;
+        return this;
+    }
+
+    /**
+     * Sorts the results by the given column in ascending order, after any columns that have
+     * already been added. Only applies to the top-level query.
+     *
+     * @param column
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_SORT
+     */
+    public QueryBuilder sortBy(String column) {
+        mSortColumns.add(column);
+        return this;
+    }
+
+    /**
+     * Sorts the results by the given column in descending order, after any columns that have
+     * already been added. Only applies to the top-level query.
+     *
+     * @param column
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_SORT
+     */
+    public QueryBuilder sortByDescending(String column) {
+        mSortColumns.add("-" + column);
+        return this;
+    }
+
+    /**
+     * Sets the columns that are returned. Only applies to the top-level query.
+     *
+     * @param columns
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_PROJECTION
+     */
+    public QueryBuilder projection(String... columns) {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("at least one column must be given");
+        }
+        mProjection = columns.clone();
+        return this;
+    }
+
+    /**
+     * Groups the aggregates by the given columns. Only applies to the top-level query, and at
+     * least one aggregate must also be given.
+     *
+     * @param columns
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_GROUP
+     */
+    public QueryBuilder groupBy(String... columns) {
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("at least one column must be given");
+        }
+        mGroupBy = columns.clone();
+        return this;
+    }
+
+    /**
+     * Counts the matching rows, returned in {@link QuerystringControls#COUNT_COLUMN}. Only
+     * applies to the top-level query.
+     *
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_COUNT
+     */
+    public QueryBuilder count() {
+        return aggregate(QuerystringWrapper.QUERY_KEY_COUNT, "*");
+    }
+
+    /**
+     * Counts the non-null values of the given column. Only applies to the top-level query.
+     *
+     * @param column
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_COUNT
+     */
+    public QueryBuilder count(String column) {
+        return aggregate(QuerystringWrapper.QUERY_KEY_COUNT, column);
+    }
+
+    /**
+     * Sums the values of the given column. Only applies to the top-level query.
+     *
+     * @param column
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_SUM
+     */
+    public QueryBuilder sum(String column) {
+        return aggregate(QuerystringWrapper.QUERY_KEY_SUM, column);
+    }
+
+    /**
+     * Averages the values of the given column. Only applies to the top-level query.
+     *
+     * @param column
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_AVG
+     */
+    public QueryBuilder avg(String column) {
+        return aggregate(QuerystringWrapper.QUERY_KEY_AVG, column);
+    }
+
+    /**
+     * Finds the minimum value of the given column. Only applies to the top-level query.
+     *
+     * @param column
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_MIN
+     */
+    public QueryBuilder min(String column) {
+        return aggregate(QuerystringWrapper.QUERY_KEY_MIN, column);
+    }
+
+    /**
+     * Finds the maximum value of the given column. Only applies to the top-level query.
+     *
+     * @param column
+     * @return this QueryBuilder for chaining
+     * @see QuerystringWrapper#QUERY_KEY_MAX
+     */
+    public QueryBuilder max(String column) {
+        return aggregate(QuerystringWrapper.QUERY_KEY_MAX, column);
+    }
+
+    private QueryBuilder aggregate(String key, String column) {
+        ArrayList<String> columns = mAggregates.get(key);
+        if (columns == null) {
+            columns = new ArrayList<String>();
+            mAggregates.put(key, columns);
+        }
+        columns.add(column);
+        return this;
+    }
+
     /**
      * @return the base URI with the query part set to the query assembled by this builder.
      */
@@ -271,7 +547,38 @@ public class QueryBuilder {
             throw new IllegalStateException("no base URI specified");
         }
 
-        return mUri.buildUpon().encodedQuery(mSb.toString()).build();
+        return mUri.buildUpon().encodedQuery(toQueryString()).build();
+    }
+
+    /**
+     * @return the encoded query string assembled by this builder, including any reserved keys.
+     *         This doesn't need a base URI.
+     */
+    public String toQueryString() {
+        final StringBuilder query = new StringBuilder(mSb);
+
+        if (mLimit != QuerystringControls.NO_LIMIT) {
+            addControl(query, QuerystringWrapper.QUERY_KEY_LIMIT, String.valueOf(mLimit));
+        }
+        if (mOffset != 0) {
+            addControl(query, QuerystringWrapper.QUERY_KEY_OFFSET, String.valueOf(mOffset));
+        }
+        if (!mSortColumns.isEmpty()) {
+            addControl(query, QuerystringWrapper.QUERY_KEY_SORT,
+                    mSortColumns.toArray(new String[mSortColumns.size()]));
+        }
+        if (mProjection != null) {
+            addControl(query, QuerystringWrapper.QUERY_KEY_PROJECTION, mProjection);
+        }
+        if (mGroupBy != null) {
+            addControl(query, QuerystringWrapper.QUERY_KEY_GROUP, mGroupBy);
+        }
+        for (final Map.Entry<String, ArrayList<String>> aggregate : mAggregates.entrySet()) {
+            final ArrayList<String> columns = aggregate.getValue();
+            addControl(query, aggregate.getKey(), columns.toArray(new String[columns.size()]));
+        }
+
+        return query.toString();
     }
 
     /**
@@ -281,6 +588,37 @@ public class QueryBuilder {
     public void reset() {
         mSb = new StringBuilder();
         mIsFirstParam = true;
+        mLimit = QuerystringControls.NO_LIMIT;
+        mOffset = 0;
+        mSortColumns.clear();
+        mProjection = null;
+        mGroupBy = null;
+        mAggregates.clear();
+    }
+
+    private void addControl(StringBuilder query, String key, String... values) {
+        if (query.length() > 0) {
+            query.append(QuerystringWrapper.QUERY_OPERATOR_AND);
+        }
+        query.append(key);
+        query.append(QuerystringWrapper.QUERY_OPERATOR_EQUALS);
+
+        try {
+            if (values.length == 1) {
+                query.append(URLEncoder.encode(values[0], "utf-8"));
+                return;
+            }
+            query.append(QuerystringWrapper.QUERY_LIST_START);
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    query.append(QuerystringWrapper.QUERY_LIST_SEPARATOR);
+                }
+                query.append(URLEncoder.encode(values[i], "utf-8"));
+            }
+            query.append(QuerystringWrapper.QUERY_LIST_END);
+        } catch (final UnsupportedEncodingException e) {
+            Log.e(TAG, "error encoding", e);
+        }
     }
 
     private void checkFirstParam(boolean shouldBeFirst) {
@@ -309,6 +647,42 @@ public class QueryBuilder {
         addEscapedValue(column, oper, value);
     }
 
+    private void operList(String column, String oper, String... values) {
+        checkFirstParam(true);
+
+        addEscapedList(column, oper, values);
+
+        mIsFirstParam = false;
+    }
+
+    private void joinOperList(String join, String column, String oper, String... values) {
+        checkFirstParam(false);
+
+        mSb.append(join);
+
+        addEscapedList(column, oper, values);
+    }
+
+    private void addEscapedList(String column, String oper, String... values) {
+        if (values.length == 0) {
+            throw new IllegalArgumentException("at least one value must be given");
+        }
+        try {
+            mSb.append(URLEncoder.encode(column, "utf-8"));
+            mSb.append(oper);
+            mSb.append(QuerystringWrapper.QUERY_LIST_START);
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    mSb.append(QuerystringWrapper.QUERY_LIST_SEPARATOR);
+                }
+                mSb.append(URLEncoder.encode(values[i], "utf-8"));
+            }
+            mSb.append(QuerystringWrapper.QUERY_LIST_END);
+        } catch (final UnsupportedEncodingException e) {
+            Log.e(TAG, "error encoding", e);
+        }
+    }
+
     private void addEscapedValue(String column, String oper, String value) {
         try {
             mSb.append(URLEncoder.encode(column, "utf-8"));
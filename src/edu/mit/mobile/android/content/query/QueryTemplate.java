@@ -0,0 +1,574 @@
+package edu.mit.mobile.android.content.query;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+import java.util.ArrayList;
+
+import edu.mit.mobile.android.content.SQLGenUtils;
+import edu.mit.mobile.android.content.SQLGenerationException;
+
+/**
+ * <p>
+ * Builds the shape of a query once, with typed placeholders instead of values, and compiles it
+ * to a selection. The compiled query can then be bound to new values any number of times. This
+ * is meant for callers in the same process as the provider: unlike {@link QueryBuilder}, the
+ * values are passed as selection arguments, so they don't need to be encoded into a query string
+ * and parsed again by the provider.
+ * </p>
+ *
+ * <p>
+ * The operators are the same as {@link QueryBuilder}'s. Placeholders can't be bound to null, so
+ * {@link #is(String, Type)} and {@link #isNot(String, Type)} are compiled to SQL "=" and "!=",
+ * which SQLite can use an index for. Like any "!=", {@link #isNot(String, Type)} doesn't match
+ * rows where the column is null; the {@link QuerystringParser} only uses it on columns that can't
+ * be null. Placeholders are numbered from 0 in the order they're added.
+ * </p>
+ *
+ * <pre>
+ * final QueryTemplate.Compiled byTitle = new QueryTemplate()
+ *         .is(BlogPost.TITLE, QueryTemplate.Type.STRING)
+ *         .andGreater(BlogPost.CREATED_DATE, QueryTemplate.Type.LONG).compile();
+ *
+ * final Cursor c = cr.query(BlogPost.CONTENT_URI, PROJECTION, byTitle.getSelection(),
+ *         byTitle.bind(title, since), null);
+ * </pre>
+ */
+public class QueryTemplate {
+
+    /**
+     * The types of values that a placeholder can be bound to.
+     */
+    public static enum Type {
+        LONG, DOUBLE, STRING
+    }
+
+    private final StringBuilder mSb = new StringBuilder();
+    private final ArrayList<Type> mTypes = new ArrayList<Type>();
+    private final ArrayList<Boolean> mLike = new ArrayList<Boolean>();
+
+    private boolean mIsFirstParam = true;
+
+    public QueryTemplate is(String column, Type type) {
+        oper(column, " = ", type);
+        return this;
+    }
+
+    /**
+     * Matches rows where the column has a different value. Rows where the column is null aren't
+     * matched.
+     *
+     * @param column
+     * @param type
+     * @return this template for chaining
+     */
+    public QueryTemplate isNot(String column, Type type) {
+        oper(column, " != ", type);
+        return this;
+    }
+
+    public QueryTemplate like(String column, Type type) {
+        operLike(column, " LIKE ", type);
+        return this;
+    }
+
+    public QueryTemplate notLike(String column, Type type) {
+        operLike(column, " NOT LIKE ", type);
+        return this;
+    }
+
+    public QueryTemplate greater(String column, Type type) {
+        oper(column, " > ", type);
+        return this;
+    }
+
+    public QueryTemplate greaterEquals(String column, Type type) {
+        oper(column, " >= ", type);
+        return this;
+    }
+
+    public QueryTemplate less(String column, Type type) {
+        oper(column, " < ", type);
+        return this;
+    }
+
+    public QueryTemplate lessEquals(String column, Type type) {
+        oper(column, " <= ", type);
+        return this;
+    }
+
+    /**
+     * @param column
+     * @param type
+     * @param count
+     *            the number of values in the list
+     * @return this template for chaining
+     */
+    public QueryTemplate in(String column, Type type, int count) {
+        operList(column, " IN (", type, count);
+        return this;
+    }
+
+    /**
+     * @param column
+     * @param type
+     * @param count
+     *            the number of values in the list
+     * @return this template for chaining
+     */
+    public QueryTemplate notIn(String column, Type type, int count) {
+        operList(column, " NOT IN (", type, count);
+        return this;
+    }
+
+    /**
+     * Adds two placeholders, for the low and high ends of the range.
+     *
+     * @param column
+     * @param type
+     * @return this template for chaining
+     */
+    public QueryTemplate between(String column, Type type) {
+        operRange(column, " BETWEEN ", type);
+        return this;
+    }
+
+    /**
+     * Adds two placeholders, for the low and high ends of the range.
+     *
+     * @param column
+     * @param type
+     * @return this template for chaining
+     */
+    public QueryTemplate notBetween(String column, Type type) {
+        operRange(column, " NOT BETWEEN ", type);
+        return this;
+    }
+
+    // //////////////////////// AND
+
+    public QueryTemplate andIs(String column, Type type) {
+        join(true);
+        return is(column, type);
+    }
+
+    public QueryTemplate andIsNot(String column, Type type) {
+        join(true);
+        return isNot(column, type);
+    }
+
+    public QueryTemplate andLike(String column, Type type) {
+        join(true);
+        return like(column, type);
+    }
+
+    public QueryTemplate andNotLike(String column, Type type) {
+        join(true);
+        return notLike(column, type);
+    }
+
+    public QueryTemplate andGreater(String column, Type type) {
+        join(true);
+        return greater(column, type);
+    }
+
+    public QueryTemplate andGreaterEquals(String column, Type type) {
+        join(true);
+        return greaterEquals(column, type);
+    }
+
+    public QueryTemplate andLess(String column, Type type) {
+        join(true);
+        return less(column, type);
+    }
+
+    public QueryTemplate andLessEquals(String column, Type type) {
+        join(true);
+        return lessEquals(column, type);
+    }
+
+    public QueryTemplate andIn(String column, Type type, int count) {
+        join(true);
+        return in(column, type, count);
+    }
+
+    public QueryTemplate andNotIn(String column, Type type, int count) {
+        join(true);
+        return notIn(column, type, count);
+    }
+
+    public QueryTemplate andBetween(String column, Type type) {
+        join(true);
+        return between(column, type);
+    }
+
+    public QueryTemplate andNotBetween(String column, Type type) {
+        join(true);
+        return notBetween(column, type);
+    }
+
+    // //////////////////////// OR
+
+    public QueryTemplate orIs(String column, Type type) {
+        join(false);
+        return is(column, type);
+    }
+
+    public QueryTemplate orIsNot(String column, Type type) {
+        join(false);
+        return isNot(column, type);
+    }
+
+    public QueryTemplate orLike(String column, Type type) {
+        join(false);
+        return like(column, type);
+    }
+
+    public QueryTemplate orNotLike(String column, Type type) {
+        join(false);
+        return notLike(column, type);
+    }
+
+    public QueryTemplate orGreater(String column, Type type) {
+        join(false);
+        return greater(column, type);
+    }
+
+    public QueryTemplate orGreaterEquals(String column, Type type) {
+        join(false);
+        return greaterEquals(column, type);
+    }
+
+    public QueryTemplate orLess(String column, Type type) {
+        join(false);
+        return less(column, type);
+    }
+
+    public QueryTemplate orLessEquals(String column, Type type) {
+        join(false);
+        return lessEquals(column, type);
+    }
+
+    public QueryTemplate orIn(String column, Type type, int count) {
+        join(false);
+        return in(column, type, count);
+    }
+
+    public QueryTemplate orNotIn(String column, Type type, int count) {
+        join(false);
+        return notIn(column, type, count);
+    }
+
+    public QueryTemplate orBetween(String column, Type type) {
+        join(false);
+        return between(column, type);
+    }
+
+    public QueryTemplate orNotBetween(String column, Type type) {
+        join(false);
+        return notBetween(column, type);
+    }
+
+    /**
+     * Adds a child template (wrapped in parentheses). Its placeholders follow any that were
+     * already added.
+     *
+     * @param child
+     * @return this template for chaining
+     */
+    public QueryTemplate child(QueryTemplate child) {
+        checkFirstParam(true);
+        addChild(child);
+        return this;
+    }
+
+    /**
+     * Adds a child template (wrapped in parentheses), joined with the existing query by "and".
+     *
+     * @param child
+     * @return this template for chaining
+     */
+    public QueryTemplate andChild(QueryTemplate child) {
+        join(true);
+        addChild(child);
+        return this;
+    }
+
+    /**
+     * Adds a child template (wrapped in parentheses), joined with the existing query by "or".
+     *
+     * @param child
+     * @return this template for chaining
+     */
+    public QueryTemplate orChild(QueryTemplate child) {
+        join(false);
+        addChild(child);
+        return this;
+    }
+
+    /**
+     * @return the compiled query, which can be bound to values many times
+     * @throws IllegalStateException
+     *             if the template ends with a join
+     */
+    public Compiled compile() {
+        if (mIsFirstParam && mSb.length() > 0) {
+            throw new IllegalStateException("template ends with a join");
+        }
+        final int count = mTypes.size();
+        final boolean[] like = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            like[i] = mLike.get(i);
+        }
+        return new Compiled(mSb.toString(), mTypes.toArray(new Type[count]), like);
+    }
+
+    private void checkFirstParam(boolean shouldBeFirst) {
+        if (shouldBeFirst == mIsFirstParam) {
+            return;
+        } else if (shouldBeFirst) {
+            throw new IllegalStateException("need to add a first parameter");
+        } else {
+            throw new IllegalStateException("already added the first parameter");
+        }
+    }
+
+    /**
+     * Adds the join. The following parameter is then added as if it were the first.
+     */
+    private void join(boolean and) {
+        checkFirstParam(false);
+        mSb.append(and ? " AND " : " OR ");
+        mIsFirstParam = true;
+    }
+
+    private void addChild(QueryTemplate child) {
+        if (child.mIsFirstParam) {
+            throw new IllegalArgumentException("child template is empty");
+        }
+        mSb.append('(').append(child.mSb).append(')');
+        mTypes.addAll(child.mTypes);
+        mLike.addAll(child.mLike);
+        mIsFirstParam = false;
+    }
+
+    private void appendColumn(String column) {
+        checkFirstParam(true);
+        if (!SQLGenUtils.isValidName(column)) {
+            throw new SQLGenerationException("illegal column name in query: '" + column + "'");
+        }
+        mSb.append('"').append(column).append('"');
+        mIsFirstParam = false;
+    }
+
+    private void addPlaceholder(Type type, boolean like) {
+        if (type == null) {
+            throw new NullPointerException("type must not be null");
+        }
+        mSb.append('?');
+        mTypes.add(type);
+        mLike.add(like);
+    }
+
+    private void oper(String column, String oper, Type type) {
+        appendColumn(column);
+        mSb.append(oper);
+        addPlaceholder(type, false);
+    }
+
+    private void operLike(String column, String oper, Type type) {
+        appendColumn(column);
+        mSb.append(oper);
+        addPlaceholder(type, true);
+    }
+
+    private void operList(String column, String oper, Type type, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("at least one value must be given");
+        }
+        appendColumn(column);
+        mSb.append(oper);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                mSb.append(',');
+            }
+            addPlaceholder(type, false);
+        }
+        mSb.append(')');
+    }
+
+    private void operRange(String column, String oper, Type type) {
+        appendColumn(column);
+        mSb.append(oper);
+        addPlaceholder(type, false);
+        mSb.append(" AND ");
+        addPlaceholder(type, false);
+    }
+
+    /**
+     * A compiled {@link QueryTemplate}. This is immutable and can be shared between threads.
+     */
+    public static class Compiled {
+        private final String mSelection;
+        private final Type[] mTypes;
+        private final boolean[] mLike;
+
+        Compiled(String selection, Type[] types, boolean[] like) {
+            mSelection = selection;
+            mTypes = types;
+            mLike = like;
+        }
+
+        /**
+         * @return the selection, to be passed to a query along with the arguments from
+         *         {@link #bind(Object...)}
+         */
+        public String getSelection() {
+            return mSelection;
+        }
+
+        /**
+         * @return the number of placeholders
+         */
+        public int getPlaceholderCount() {
+            return mTypes.length;
+        }
+
+        /**
+         * @param index
+         * @return the type of the given placeholder
+         */
+        public Type getType(int index) {
+            return mTypes[index];
+        }
+
+        /**
+         * Binds all the placeholders at once. {@link Type#LONG} placeholders accept
+         * {@link Long}s and {@link Integer}s, {@link Type#DOUBLE} placeholders accept any
+         * {@link Number} and {@link Type#STRING} placeholders accept {@link String}s.
+         *
+         * @param values
+         *            a value for each placeholder, in order
+         * @return the selection arguments
+         * @throws IllegalArgumentException
+         *             if the wrong number of values is given or a value doesn't match its
+         *             placeholder's type
+         */
+        public String[] bind(Object... values) {
+            if (values.length != mTypes.length) {
+                throw new IllegalArgumentException("expected " + mTypes.length
+                        + " values, but got " + values.length);
+            }
+            final Binding binding = newBinding();
+            for (int i = 0; i < values.length; i++) {
+                final Object value = values[i];
+                switch (mTypes[i]) {
+                    case LONG:
+                        if (!(value instanceof Long || value instanceof Integer)) {
+                            throw typeMismatch(i, value);
+                        }
+                        binding.setLong(i, ((Number) value).longValue());
+                        break;
+
+                    case DOUBLE:
+                        if (!(value instanceof Number)) {
+                            throw typeMismatch(i, value);
+                        }
+                        binding.setDouble(i, ((Number) value).doubleValue());
+                        break;
+
+                    case STRING:
+                        if (!(value instanceof String)) {
+                            throw typeMismatch(i, value);
+                        }
+                        binding.setString(i, (String) value);
+                        break;
+                }
+            }
+            return binding.mArgs;
+        }
+
+        private IllegalArgumentException typeMismatch(int index, Object value) {
+            return new IllegalArgumentException("placeholder " + index + " is a " + mTypes[index]
+                    + ", but was given " + (value != null ? value.getClass().getName() : "null"));
+        }
+
+        /**
+         * @return a new, empty set of arguments for this query
+         */
+        public Binding newBinding() {
+            return new Binding(this);
+        }
+    }
+
+    /**
+     * The values bound to the placeholders of a {@link Compiled} query. The setters can be called
+     * again to reuse the binding for the next query.
+     */
+    public static class Binding {
+        private final Compiled mCompiled;
+        private final String[] mArgs;
+
+        Binding(Compiled compiled) {
+            mCompiled = compiled;
+            mArgs = new String[compiled.mTypes.length];
+        }
+
+        public Binding setLong(int index, long value) {
+            set(index, Type.LONG, Long.toString(value));
+            return this;
+        }
+
+        public Binding setDouble(int index, double value) {
+            set(index, Type.DOUBLE, Double.toString(value));
+            return this;
+        }
+
+        public Binding setString(int index, String value) {
+            if (value == null) {
+                throw new IllegalArgumentException("value must not be null");
+            }
+            set(index, Type.STRING, value);
+            return this;
+        }
+
+        private void set(int index, Type type, String value) {
+            if (mCompiled.mTypes[index] != type) {
+                throw new IllegalArgumentException("placeholder " + index + " is a "
+                        + mCompiled.mTypes[index] + ", not a " + type);
+            }
+            // LIKE values are prefixed/suffixed with the SQL '%' wildcard, like the parser does
+            mArgs[index] = mCompiled.mLike[index] ? '%' + value + '%' : value;
+        }
+
+        /**
+         * @return the selection arguments. This is the same array each time, so it shouldn't be
+         *         changed or kept after the binding has been set to new values.
+         * @throws IllegalStateException
+         *             if any placeholder hasn't been bound
+         */
+        public String[] getSelectionArgs() {
+            for (int i = 0; i < mArgs.length; i++) {
+                if (mArgs[i] == null) {
+                    throw new IllegalStateException("placeholder " + i + " has not been bound");
+                }
+            }
+            return mArgs;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package edu.mit.mobile.android.content.query;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.mobile.android.content.QuerystringWrapper;
+import edu.mit.mobile.android.content.SQLGenUtils;
+import edu.mit.mobile.android.content.SQLGenerationException;
+
+/**
+ * <p>
+ * The reserved keys of a {@link QuerystringWrapper} query, which control how the results are
+ * returned instead of which rows match. These are:
+ * </p>
+ *
+ * <dl>
+ * <dt><kbd>{@value QuerystringWrapper#QUERY_KEY_LIMIT}=count</kbd></dt>
+ * <dd>the maximum number of rows to return</dd>
+ *
+ * <dt><kbd>{@value QuerystringWrapper#QUERY_KEY_OFFSET}=count</kbd></dt>
+ * <dd>the number of rows to skip</dd>
+ *
+ * <dt><kbd>{@value QuerystringWrapper#QUERY_KEY_SORT}=(column1,-column2)</kbd></dt>
+ * <dd>the sort order. Columns prefixed with "-" are sorted in descending order.</dd>
+ *
+ * <dt><kbd>{@value QuerystringWrapper#QUERY_KEY_PROJECTION}=(column1,column2)</kbd></dt>
+ * <dd>the columns to return</dd>
+ *
+ * <dt><kbd>{@value QuerystringWrapper#QUERY_KEY_GROUP}=(column1,column2)</kbd></dt>
+ * <dd>the columns to group the results by. At least one aggregate must be given along with it.</dd>
+ *
+ * <dt><kbd>{@value QuerystringWrapper#QUERY_KEY_COUNT}=*</kbd>,
+ * <kbd>{@value QuerystringWrapper#QUERY_KEY_COUNT}=(column1,column2)</kbd></dt>
+ * <dd>the number of rows or of non-null values in each group</dd>
+ *
+ * <dt><kbd>{@value QuerystringWrapper#QUERY_KEY_SUM}</kbd>,
+ * <kbd>{@value QuerystringWrapper#QUERY_KEY_AVG}</kbd>,
+ * <kbd>{@value QuerystringWrapper#QUERY_KEY_MIN}</kbd>,
+ * <kbd>{@value QuerystringWrapper#QUERY_KEY_MAX}</kbd></dt>
+ * <dd>the sum, average, minimum or maximum of the given columns in each group</dd>
+ * </dl>
+ *
+ * <p>
+ * When any aggregates are given, the results only contain the grouped columns followed by the
+ * aggregates, which are named using {@link #getAggregateColumn(String, String)}. Without any
+ * grouping, the aggregates are computed over all the matching rows.
+ * </p>
+ *
+ * <p>
+ * Lists with only one column can leave out the parentheses. Each key can be given at most once
+ * and must be joined to the rest of the query using {@value QuerystringWrapper#QUERY_OPERATOR_AND}
+ * outside of any parentheses, eg. <kbd>title~=robot&amp;_sort=-created&amp;_limit=10</kbd>.
+ * </p>
+ */
+public class QuerystringControls {
+
+    public static final int NO_LIMIT = -1;
+
+    private static final String[] KEYS = new String[] { QuerystringWrapper.QUERY_KEY_LIMIT,
+            QuerystringWrapper.QUERY_KEY_OFFSET, QuerystringWrapper.QUERY_KEY_SORT,
+            QuerystringWrapper.QUERY_KEY_PROJECTION, QuerystringWrapper.QUERY_KEY_GROUP,
+            QuerystringWrapper.QUERY_KEY_COUNT, QuerystringWrapper.QUERY_KEY_SUM,
+            QuerystringWrapper.QUERY_KEY_AVG, QuerystringWrapper.QUERY_KEY_MIN,
+            QuerystringWrapper.QUERY_KEY_MAX };
+
+    private static final String ALL_ROWS = "*";
+
+    /**
+     * The name of the result column of {@code _count=*}. This is the same as
+     * {@link android.provider.BaseColumns#_COUNT}.
+     */
+    public static final String COUNT_COLUMN = "_count";
+
+    private static final char AND = QuerystringWrapper.QUERY_OPERATOR_AND.charAt(0);
+    private static final char OR = QuerystringWrapper.QUERY_OPERATOR_OR.charAt(0);
+    private static final char LIST_START = QuerystringWrapper.QUERY_LIST_START.charAt(0);
+    private static final char LIST_END = QuerystringWrapper.QUERY_LIST_END.charAt(0);
+
+    private static final String DESCENDING_PREFIX = "-";
+
+    private String mQuery;
+    private int mLimit = NO_LIMIT;
+    // -1 until an offset is given
+    private int mOffset = -1;
+    private String[] mSortColumns;
+    private boolean[] mSortDescending;
+    private String[] mProjection;
+    private String[] mGroupBy;
+    // aggregate key -> columns, in the order they were given
+    private final LinkedHashMap<String, String[]> mAggregates = new LinkedHashMap<String, String[]>();
+
+    private QuerystringControls() {
+    }
+
+    /**
+     * Removes the reserved keys from the given query.
+     *
+     * @param query
+     *            the encoded query string
+     * @return the controls given in the query or null if there are none. The rest of the query
+     *         can be retrieved using {@link #getQuery()}.
+     * @throws IllegalArgumentException
+     *             if a reserved key is used incorrectly
+     * @throws SQLGenerationException
+     *             if a column name is illegal
+     */
+    public static QuerystringControls extract(String query) {
+        // most queries don't use any of the keys, so this avoids splitting them up
+        boolean found = false;
+        for (final String key : KEYS) {
+            if (query.indexOf(key) != -1) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            return null;
+        }
+
+        final QuerystringControls controls = new QuerystringControls();
+        final StringBuilder remaining = new StringBuilder(query.length());
+        boolean firstTerm = true;
+        boolean hasControls = false;
+
+        // splits the query into terms at the joins which aren't within parentheses
+        final int len = query.length();
+        int depth = 0;
+        int termStart = 0;
+        char joinBefore = 0;
+        for (int i = 0; i <= len; i++) {
+            final char ch = i < len ? query.charAt(i) : 0;
+            if (ch == LIST_START) {
+                depth++;
+                continue;
+            } else if (ch == LIST_END) {
+                depth--;
+                continue;
+            } else if (i < len && (depth != 0 || (ch != AND && ch != OR))) {
+                continue;
+            }
+
+            final String term = query.substring(termStart, i);
+            final String key = getKey(term);
+            if (key != null) {
+                if (joinBefore == OR || ch == OR) {
+                    throw new IllegalArgumentException("'" + key + "' must be joined using '"
+                            + AND + "'");
+                }
+                controls.set(key, term.substring(key.length() + 1));
+                hasControls = true;
+            } else {
+                if (!firstTerm) {
+                    remaining.append(joinBefore);
+                }
+                remaining.append(term);
+                firstTerm = false;
+            }
+
+            joinBefore = ch;
+            termStart = i + 1;
+        }
+
+        if (!hasControls) {
+            checkNoKeys(query);
+            return null;
+        }
+
+        if (!firstTerm) {
+            controls.mQuery = remaining.toString();
+            checkNoKeys(controls.mQuery);
+        }
+
+        if (controls.mProjection != null && controls.isAggregate()) {
+            throw new IllegalArgumentException("'" + QuerystringWrapper.QUERY_KEY_PROJECTION
+                    + "' can't be used along with aggregates");
+        }
+
+        // grouping alone would be silently ignored, as only aggregated queries are grouped
+        if (controls.mGroupBy != null && !controls.isAggregate()) {
+            throw new IllegalArgumentException("'" + QuerystringWrapper.QUERY_KEY_GROUP
+                    + "' can only be used along with aggregates");
+        }
+
+        return controls;
+    }
+
+    /**
+     * @param term
+     * @return the reserved key that the term sets or null
+     */
+    private static String getKey(String term) {
+        for (final String key : KEYS) {
+            if (term.length() > key.length() && term.startsWith(key)
+                    && term.charAt(key.length()) == '=') {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ensures that none of the reserved keys are used in the rest of the query, where they would
+     * otherwise be taken as column names.
+     */
+    private static void checkNoKeys(String query) {
+        final QuerystringLexer lexer = new QuerystringLexer(query);
+        int prev = QuerystringParser.EOF;
+        for (int token = lexer.yylex(); token != QuerystringParser.EOF; token = lexer.yylex()) {
+            // keys come first or follow a join or an opening parenthesis
+            final boolean isKey = prev == QuerystringParser.EOF || prev == LIST_START
+                    || prev == AND || prev == OR;
+            if (token == QuerystringParser.STR && isKey) {
+                for (final String key : KEYS) {
+                    if (key.equals(lexer.getLVal())) {
+                        throw new IllegalArgumentException("'" + key
+                                + "' can only be set using '=' and must be joined using '" + AND
+                                + "' outside of any parentheses");
+                    }
+                }
+            }
+            prev = token;
+        }
+    }
+
+    private void set(String key, String value) {
+        if (QuerystringWrapper.QUERY_KEY_LIMIT.equals(key)) {
+            if (mLimit != NO_LIMIT) {
+                throw new IllegalArgumentException("'" + key + "' given more than once");
+            }
+            mLimit = parseCount(key, value);
+
+        } else if (QuerystringWrapper.QUERY_KEY_OFFSET.equals(key)) {
+            if (mOffset != -1) {
+                throw new IllegalArgumentException("'" + key + "' given more than once");
+            }
+            mOffset = parseCount(key, value);
+
+        } else if (QuerystringWrapper.QUERY_KEY_SORT.equals(key)) {
+            if (mSortColumns != null) {
+                throw new IllegalArgumentException("'" + key + "' given more than once");
+            }
+            final String[] columns = parseColumns(key, value);
+            mSortDescending = new boolean[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].startsWith(DESCENDING_PREFIX)) {
+                    columns[i] = columns[i].substring(DESCENDING_PREFIX.length());
+                    mSortDescending[i] = true;
+                }
+                checkName(columns[i]);
+            }
+            mSortColumns = columns;
+
+        } else if (QuerystringWrapper.QUERY_KEY_PROJECTION.equals(key)) {
+            if (mProjection != null) {
+                throw new IllegalArgumentException("'" + key + "' given more than once");
+            }
+            final String[] columns = parseColumns(key, value);
+            for (final String column : columns) {
+                checkName(column);
+            }
+            mProjection = columns;
+
+        } else if (QuerystringWrapper.QUERY_KEY_GROUP.equals(key)) {
+            if (mGroupBy != null) {
+                throw new IllegalArgumentException("'" + key + "' given more than once");
+            }
+            final String[] columns = parseColumns(key, value);
+            for (final String column : columns) {
+                checkName(column);
+            }
+            mGroupBy = columns;
+
+        } else {
+            // one of the aggregates
+            if (mAggregates.containsKey(key)) {
+                throw new IllegalArgumentException("'" + key + "' given more than once");
+            }
+            final String[] columns = parseColumns(key, value);
+            for (final String column : columns) {
+                if (!(ALL_ROWS.equals(column) && QuerystringWrapper.QUERY_KEY_COUNT.equals(key))) {
+                    checkName(column);
+                }
+            }
+            mAggregates.put(key, columns);
+        }
+    }
+
+    private static int parseCount(String key, String value) {
+        final int count;
+        try {
+            count = Integer.parseInt(QuerystringLexer.decode(value));
+        } catch (final NumberFormatException e) {
+            final IllegalArgumentException e2 = new IllegalArgumentException("'" + key
+                    + "' must be a number");
+            e2.initCause(e);
+            throw e2;
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("'" + key + "' must not be negative");
+        }
+        return count;
+    }
+
+    private static String[] parseColumns(String key, String value) {
+        final int len = value.length();
+        if (len > 1 && value.charAt(0) == LIST_START && value.charAt(len - 1) == LIST_END) {
+            value = value.substring(1, len - 1);
+        }
+
+        final ArrayList<String> columns = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i <= value.length(); i++) {
+            if (i < value.length()
+                    && value.charAt(i) != QuerystringWrapper.QUERY_LIST_SEPARATOR.charAt(0)) {
+                continue;
+            }
+            final String column = QuerystringLexer.decode(value.substring(start, i));
+            if (column.length() == 0) {
+                throw new IllegalArgumentException("empty column name in '" + key + "'");
+            }
+            columns.add(column);
+            start = i + 1;
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    private static void checkName(String column) {
+        if (!SQLGenUtils.isValidName(column)) {
+            throw new SQLGenerationException("illegal column name in query: '" + column + "'");
+        }
+    }
+
+    /**
+     * Ensures that all the columns used are among the given columns.
+     *
+     * @param columns
+     *            the columns that can be used
+     * @throws SQLGenerationException
+     *             if a column isn't one of the given columns
+     */
+    public void checkColumns(Set<String> columns) {
+        if (mSortColumns != null) {
+            for (final String column : mSortColumns) {
+                // aggregated results can also be sorted by their aggregates
+                if (!isAggregateColumn(column)) {
+                    checkColumn(columns, column);
+                }
+            }
+        }
+        if (mProjection != null) {
+            for (final String column : mProjection) {
+                checkColumn(columns, column);
+            }
+        }
+        if (mGroupBy != null) {
+            for (final String column : mGroupBy) {
+                checkColumn(columns, column);
+            }
+        }
+        for (final String[] aggregateColumns : mAggregates.values()) {
+            for (final String column : aggregateColumns) {
+                if (!ALL_ROWS.equals(column)) {
+                    checkColumn(columns, column);
+                }
+            }
+        }
+    }
+
+    private static void checkColumn(Set<String> columns, String column) {
+        if (!columns.contains(column)) {
+            throw new SQLGenerationException("unknown column in query: '" + column + "'");
+        }
+    }
+
+    private boolean isAggregateColumn(String name) {
+        for (final Map.Entry<String, String[]> aggregate : mAggregates.entrySet()) {
+            for (final String column : aggregate.getValue()) {
+                if (getAggregateColumn(aggregate.getKey(), column).equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param key
+     *            one of the aggregate keys, eg. {@link QuerystringWrapper#QUERY_KEY_SUM}
+     * @param column
+     *            the aggregated column or {@code *} for {@link QuerystringWrapper#QUERY_KEY_COUNT}
+     * @return the name of the result column holding the aggregate. This is the name of the
+     *         aggregate function followed by an underscore and the column, eg. {@code sum_price},
+     *         or {@link #COUNT_COLUMN} for {@code _count=*}.
+     */
+    public static String getAggregateColumn(String key, String column) {
+        if (ALL_ROWS.equals(column)) {
+            return COUNT_COLUMN;
+        }
+        return key.substring(1) + '_' + column;
+    }
+
+    /**
+     * @return the rest of the query, which selects the rows, or null if there's nothing left
+     */
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * @return the maximum number of rows to return or {@link #NO_LIMIT}
+     */
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @return the number of rows to skip
+     */
+    public int getOffset() {
+        return mOffset != -1 ? mOffset : 0;
+    }
+
+    /**
+     * @return true if either a limit or an offset were given
+     */
+    public boolean hasLimit() {
+        return mLimit != NO_LIMIT || mOffset > 0;
+    }
+
+    /**
+     * @return the limit and offset in the form accepted by
+     *         {@link android.database.sqlite.SQLiteDatabase#query(String, String[], String, String[], String, String, String, String)}
+     *         , or null if neither were given
+     */
+    public String getSqlLimit() {
+        if (!hasLimit()) {
+            return null;
+        }
+        if (mOffset <= 0) {
+            return String.valueOf(mLimit);
+        }
+        // "offset,limit" where the limit can't be negative
+        return mOffset + "," + (mLimit != NO_LIMIT ? mLimit : Long.MAX_VALUE);
+    }
+
+    /**
+     * @return true if any aggregates were given
+     */
+    public boolean isAggregate() {
+        return !mAggregates.isEmpty();
+    }
+
+    /**
+     * @return the projection of the aggregated results, which is the grouped columns followed by
+     *         the aggregates, or null if no aggregates were given
+     */
+    public String[] getAggregateProjection() {
+        if (!isAggregate()) {
+            return null;
+        }
+        final ArrayList<String> projection = new ArrayList<String>();
+        if (mGroupBy != null) {
+            for (final String column : mGroupBy) {
+                projection.add(column);
+            }
+        }
+        for (final Map.Entry<String, String[]> aggregate : mAggregates.entrySet()) {
+            final String function = aggregate.getKey().substring(1);
+            for (final String column : aggregate.getValue()) {
+                projection.add(function + "(" + (ALL_ROWS.equals(column) ? column : '"' + column
+                        + '"') + ") AS " + getAggregateColumn(aggregate.getKey(), column));
+            }
+        }
+        return projection.toArray(new String[projection.size()]);
+    }
+
+    /**
+     * @return the SQL {@code GROUP BY} expression or null if no grouping was given
+     */
+    public String getGroupBy() {
+        if (mGroupBy == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mGroupBy.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('"').append(mGroupBy[i]).append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the sort order as a SQL {@code ORDER BY} expression or null if none was given
+     */
+    public String getSortOrder() {
+        if (mSortColumns == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSortColumns.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('"').append(mSortColumns[i]).append('"');
+            if (mSortDescending[i]) {
+                sb.append(" DESC");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the columns to return or null if none were given
+     */
+    public String[] getProjection() {
+        return mProjection != null ? mProjection.clone() : null;
+    }
+}
@@ -0,0 +1,177 @@
+package edu.mit.mobile.android.content.query;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+import java.io.UnsupportedEncodingException;
+
+import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.query.QuerystringParser.ParseException;
+
+/**
+ * <p>
+ * The scanner for {@link QuerystringParser}. This splits a query string into words, which are
+ * runs of letters, digits, {@code % . - * _ +} and characters from {@code U+00A0} up, and
+ * single-character symbols. The whole query is scanned in one pass over its characters.
+ * </p>
+ *
+ * <p>
+ * Words are returned as-is. Values can be decoded using {@link #decode(String)}.
+ * </p>
+ */
+public class QuerystringLexer implements QuerystringParser.Lexer {
+
+    private final char[] mChars;
+    private int mPos = 0;
+    private String mLVal;
+
+    public QuerystringLexer(String query) {
+        mChars = query.toCharArray();
+    }
+
+    private static boolean isWordChar(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+                || ch == '%' || ch == '.' || ch == '-' || ch == '*' || ch == '_' || ch == '+'
+                || ch >= '\u00A0';
+    }
+
+    @Override
+    public String getLVal() {
+        return mLVal;
+    }
+
+    @Override
+    public int yylex() {
+        final char[] chars = mChars;
+        final int len = chars.length;
+
+        if (mPos == len) {
+            return QuerystringParser.EOF;
+        }
+
+        final int start = mPos;
+        while (mPos < len && isWordChar(chars[mPos])) {
+            mPos++;
+        }
+
+        if (mPos == start) {
+            return chars[mPos++];
+        }
+
+        mLVal = new String(chars, start, mPos - start);
+        return QuerystringParser.STR;
+    }
+
+    @Override
+    public void yyerror(String s) throws ParseException {
+        throw new ParseException(s + " near '" + mLVal + "'");
+    }
+
+    /**
+     * Decodes a value that was encoded using {@link java.net.URLEncoder} with UTF-8. This
+     * behaves like {@link java.net.URLDecoder#decode(String, String)}, but values without any
+     * escapes are returned without copying.
+     *
+     * @param value
+     * @return the decoded value
+     * @throws IllegalArgumentException
+     *             if the value contains an invalid escape
+     */
+    public static String decode(String value) {
+        final int len = value.length();
+
+        int i = 0;
+        while (i < len) {
+            final char ch = value.charAt(i);
+            if (ch == '%' || ch == '+') {
+                break;
+            }
+            i++;
+        }
+        if (i == len) {
+            return value;
+        }
+
+        // the decoded value is never longer than the encoded one
+        final char[] out = new char[len];
+        value.getChars(0, i, out, 0);
+        int outLen = i;
+        byte[] bytes = null;
+
+        while (i < len) {
+            final char ch = value.charAt(i);
+            if (ch == '+') {
+                out[outLen++] = ' ';
+                i++;
+
+            } else if (ch == '%') {
+                // a run of escapes holds the UTF-8 bytes of one or more characters
+                int byteCount = 0;
+                boolean ascii = true;
+                while (i < len && value.charAt(i) == '%') {
+                    if (i + 2 >= len) {
+                        throw new IllegalArgumentException(
+                                "Incomplete trailing escape (%) pattern in: \"" + value + "\"");
+                    }
+                    final int hi = Character.digit(value.charAt(i + 1), 16);
+                    final int lo = Character.digit(value.charAt(i + 2), 16);
+                    if (hi == -1 || lo == -1) {
+                        throw new IllegalArgumentException(
+                                "Illegal hex characters in escape (%) pattern in: \"" + value
+                                        + "\"");
+                    }
+                    final int b = (hi << 4) | lo;
+                    if (ascii && b < 0x80) {
+                        out[outLen++] = (char) b;
+                    } else {
+                        if (ascii) {
+                            // start over, as the bytes so far are part of the same run
+                            if (bytes == null) {
+                                bytes = new byte[(len - i) / 3 + byteCount + 1];
+                            }
+                            for (int j = 0; j < byteCount; j++) {
+                                bytes[j] = (byte) out[outLen - byteCount + j];
+                            }
+                            outLen -= byteCount;
+                            ascii = false;
+                        }
+                        bytes[byteCount] = (byte) b;
+                    }
+                    byteCount++;
+                    i += 3;
+                }
+                if (!ascii) {
+                    final String decoded;
+                    try {
+                        decoded = new String(bytes, 0, byteCount, "utf-8");
+                    } catch (final UnsupportedEncodingException e) {
+                        throw new SQLGenerationException("could not decode value", e);
+                    }
+                    decoded.getChars(0, decoded.length(), out, outLen);
+                    outLen += decoded.length();
+                }
+
+            } else {
+                out[outLen++] = ch;
+                i++;
+            }
+        }
+
+        return new String(out, 0, outLen);
+    }
+}
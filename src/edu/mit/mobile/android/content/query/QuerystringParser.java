@@ -40,21 +40,21 @@ package edu.mit.mobile.android.content.query;
 
 
 import java.io.IOException;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
 import java.lang.StringBuilder;
-import java.net.URLDecoder;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
+import edu.mit.mobile.android.content.ContentItem;
 import edu.mit.mobile.android.content.SQLGenUtils;
 import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.TrigramIndex;
 
 
 
 
 /* Line 33 of lalr1.java  */
-/* Line 58 of "src/edu/mit/mobile/android/content/query/QuerystringParser.java"  */
+/* Line 57 of "src/edu/mit/mobile/android/content/query/QuerystringParser.java"  */
 
 /**
  * A Bison parser, automatically generated from <tt>src/edu/mit/mobile/android/content/query/QuerystringParser.y</tt>.
@@ -118,61 +118,33 @@ public class QuerystringParser
 /* "%code lexer" blocks.  */
 
 /* Line 147 of lalr1.java  */
-/* Line 94 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+/* Line 368 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
 
-        private final StreamTokenizer mTokenizer;
-        private String mLVal;
+        private final QuerystringLexer mLexer;
 
         public YYLexer(String str) {
-            mTokenizer = new StreamTokenizer(new StringReader(str));
-            mTokenizer.resetSyntax();
-            mTokenizer.eolIsSignificant(false);
-            mTokenizer.lowerCaseMode(false);
-
-            // standard words, no symbols.
-            mTokenizer.wordChars('A', 'Z');
-            mTokenizer.wordChars('a', 'z');
-            mTokenizer.wordChars('a', 'z');
-            mTokenizer.wordChars('0', '9');
-            mTokenizer.wordChars('%', '%');
-            mTokenizer.wordChars('.', '.');
-            mTokenizer.wordChars('-', '-');
-            mTokenizer.wordChars('*', '*');
-            mTokenizer.wordChars('_', '_');
-            mTokenizer.wordChars('+', '+');
-            mTokenizer.wordChars('\u00A0', '\u00FF');
+            mLexer = new QuerystringLexer(str);
         }
 
         @Override
         public String getLVal() {
-            return mLVal;
+            return mLexer.getLVal();
         }
 
         @Override
         public int yylex() throws IOException {
-            final int ttype = mTokenizer.nextToken();
-            switch (ttype){
-                case StreamTokenizer.TT_WORD:
-                    mLVal = mTokenizer.sval;
-                    return QuerystringParser.STR;
-
-                case StreamTokenizer.TT_EOF:
-                    return QuerystringParser.EOF;
-
-                default:
-                    return mTokenizer.ttype;
-            }
+            return mLexer.yylex();
         }
 
         @Override
         public void yyerror(String s) throws ParseException {
-            throw new ParseException(s + " near '" + mLVal + "'");
+            mLexer.yyerror(s);
         }
 
 
 
 /* Line 147 of lalr1.java  */
-/* Line 176 of "src/edu/mit/mobile/android/content/query/QuerystringParser.java"  */
+/* Line 147 of "src/edu/mit/mobile/android/content/query/QuerystringParser.java"  */
 
   }
 
@@ -366,7 +338,7 @@ public class QuerystringParser
   if (yyn == 8)
     
 /* Line 351 of lalr1.java  */
-/* Line 160 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+/* Line 409 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
     { mSb.append('('); };
   break;
     
@@ -375,7 +347,7 @@ public class QuerystringParser
   if (yyn == 9)
     
 /* Line 351 of lalr1.java  */
-/* Line 161 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+/* Line 410 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
     { mSb.append(')'); };
   break;
     
@@ -384,7 +356,7 @@ public class QuerystringParser
   if (yyn == 10)
     
 /* Line 351 of lalr1.java  */
-/* Line 163 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+/* Line 412 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
     { mSb.append(" AND "); };
   break;
     
@@ -393,35 +365,56 @@ public class QuerystringParser
   if (yyn == 11)
     
 /* Line 351 of lalr1.java  */
-/* Line 164 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+/* Line 413 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
     { mSb.append(" OR "); };
   break;
     
 
-  case 20:
-  if (yyn == 20)
+  case 12:
+  if (yyn == 12)
     
 /* Line 351 of lalr1.java  */
-/* Line 177 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    { mSb.append(" IS NOT ?"); };
+/* Line 416 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { endParam(); };
   break;
     
 
-  case 21:
-  if (yyn == 21)
+  case 13:
+  if (yyn == 13)
     
 /* Line 351 of lalr1.java  */
-/* Line 179 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    { mSb.append(" IS ?"); };
+/* Line 418 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    {
+         if (((String)(yystack.valueAt (4-(2)))) == null) { appendTrigramCandidates(((String)(yystack.valueAt (4-(1)))), ((String)(yystack.valueAt (4-(4))))); }
+         endParam();
+     };
   break;
     
 
-  case 22:
-  if (yyn == 22)
+  case 14:
+  if (yyn == 14)
     
 /* Line 351 of lalr1.java  */
-/* Line 181 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    { mSb.append(" > ?"); };
+/* Line 422 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { appendInList(((String)(yystack.valueAt (5-(2))))); endParam(); };
+  break;
+    
+
+  case 15:
+  if (yyn == 15)
+    
+/* Line 351 of lalr1.java  */
+/* Line 423 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { endParam(); };
+  break;
+    
+
+  case 16:
+  if (yyn == 16)
+    
+/* Line 351 of lalr1.java  */
+/* Line 425 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { endParam(); };
   break;
     
 
@@ -429,8 +422,8 @@ public class QuerystringParser
   if (yyn == 23)
     
 /* Line 351 of lalr1.java  */
-/* Line 182 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    { mSb.append(" >= ?"); };
+/* Line 437 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(mColumn != null && mColumn.notNull ? " != ?" : " IS NOT ?"); };
   break;
     
 
@@ -438,8 +431,8 @@ public class QuerystringParser
   if (yyn == 24)
     
 /* Line 351 of lalr1.java  */
-/* Line 183 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    { mSb.append(" < ?"); };
+/* Line 439 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(mSchema != null ? " = ?" : " IS ?"); };
   break;
     
 
@@ -447,8 +440,8 @@ public class QuerystringParser
   if (yyn == 25)
     
 /* Line 351 of lalr1.java  */
-/* Line 184 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    { mSb.append(" <= ?"); };
+/* Line 441 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(" > ?"); };
   break;
     
 
@@ -456,8 +449,17 @@ public class QuerystringParser
   if (yyn == 26)
     
 /* Line 351 of lalr1.java  */
-/* Line 186 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    { mSb.append(" LIKE ?"); };
+/* Line 442 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(" >= ?"); };
+  break;
+    
+
+  case 27:
+  if (yyn == 27)
+    
+/* Line 351 of lalr1.java  */
+/* Line 443 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(" < ?"); };
   break;
     
 
@@ -465,8 +467,8 @@ public class QuerystringParser
   if (yyn == 28)
     
 /* Line 351 of lalr1.java  */
-/* Line 189 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    { mSb.append(" NOT"); };
+/* Line 444 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(" <= ?"); };
   break;
     
 
@@ -474,8 +476,8 @@ public class QuerystringParser
   if (yyn == 29)
     
 /* Line 351 of lalr1.java  */
-/* Line 191 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    { appendValidated(((String)(yystack.valueAt (1-(1))))); };
+/* Line 446 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(" LIKE ?"); };
   break;
     
 
@@ -483,16 +485,8 @@ public class QuerystringParser
   if (yyn == 30)
     
 /* Line 351 of lalr1.java  */
-/* Line 193 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
-    {
-    try {
-        mSelectionArgs.add(URLDecoder.decode(((String)(yystack.valueAt (1-(1)))), "utf-8"));
-     }catch(UnsupportedEncodingException e){
-         SQLGenerationException sqle = new SQLGenerationException();
-         sqle.initCause(e);
-         throw sqle;
-     }
-};
+/* Line 448 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { appendPrefixRange(); };
   break;
     
 
@@ -500,15 +494,100 @@ public class QuerystringParser
   if (yyn == 31)
     
 /* Line 351 of lalr1.java  */
-/* Line 203 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+/* Line 450 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { yyval = null; };
+  break;
+    
+
+  case 32:
+  if (yyn == 32)
+    
+/* Line 351 of lalr1.java  */
+/* Line 451 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(" NOT"); yyval = "!"; };
+  break;
+    
+
+  case 33:
+  if (yyn == 33)
+    
+/* Line 351 of lalr1.java  */
+/* Line 454 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mListValues.clear(); yyval = null; };
+  break;
+    
+
+  case 34:
+  if (yyn == 34)
+    
+/* Line 351 of lalr1.java  */
+/* Line 455 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mListValues.clear(); yyval = "!"; };
+  break;
+    
+
+  case 35:
+  if (yyn == 35)
+    
+/* Line 351 of lalr1.java  */
+/* Line 457 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(" BETWEEN ? AND ?"); };
+  break;
+    
+
+  case 36:
+  if (yyn == 36)
+    
+/* Line 351 of lalr1.java  */
+/* Line 458 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mSb.append(" NOT BETWEEN ? AND ?"); };
+  break;
+    
+
+  case 39:
+  if (yyn == 39)
+    
+/* Line 351 of lalr1.java  */
+/* Line 463 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { appendValidated(((String)(yystack.valueAt (1-(1))))); };
+  break;
+    
+
+  case 40:
+  if (yyn == 40)
+    
+/* Line 351 of lalr1.java  */
+/* Line 465 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { addSelectionArg(toValue(((String)(yystack.valueAt (1-(1)))))); };
+  break;
+    
+
+  case 41:
+  if (yyn == 41)
+    
+/* Line 351 of lalr1.java  */
+/* Line 466 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { mListValues.add(toValue(((String)(yystack.valueAt (1-(1)))))); };
+  break;
+    
+
+  case 42:
+  if (yyn == 42)
+    
+/* Line 351 of lalr1.java  */
+/* Line 468 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+    { addPrefixArgs(((String)(yystack.valueAt (1-(1))))); };
+  break;
+    
+
+  case 43:
+  if (yyn == 43)
+    
+/* Line 351 of lalr1.java  */
+/* Line 470 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
     {
-    try {
-        mSelectionArgs.add('%' + URLDecoder.decode(((String)(yystack.valueAt (1-(1)))), "utf-8") + '%');
-     }catch(UnsupportedEncodingException e){
-         SQLGenerationException sqle = new SQLGenerationException();
-         sqle.initCause(e);
-         throw sqle;
-     }
+    yyval = '%' + QuerystringLexer.decode(((String)(yystack.valueAt (1-(1))))) + '%';
+    addSelectionArg(yyval);
 };
   break;
     
@@ -516,7 +595,7 @@ public class QuerystringParser
 
 
 /* Line 351 of lalr1.java  */
-/* Line 520 of "src/edu/mit/mobile/android/content/query/QuerystringParser.java"  */
+/* Line 598 of "src/edu/mit/mobile/android/content/query/QuerystringParser.java"  */
 	default: break;
       }
 
@@ -923,14 +1002,16 @@ public class QuerystringParser
 
   /* YYPACT[STATE-NUM] -- Index in YYTABLE of the portion describing
      STATE-NUM.  */
-  private static final byte yypact_ninf_ = -16;
+  private static final byte yypact_ninf_ = -46;
   private static final byte yypact_[] =
   {
-         5,   -16,   -16,    12,     4,     5,   -16,    -7,   -16,   -16,
-     -16,     5,     0,     6,   -16,     7,     8,    10,   -16,   -16,
-     -16,   -16,   -16,   -16,     2,     5,   -16,   -16,   -16,   -16,
-     -16,   -16,   -16,   -16,     9,    16,     0,   -16,   -16,   -16,
-     -16
+        13,   -46,   -46,     8,    12,    13,   -46,    -7,   -46,   -46,
+     -46,    13,     5,    10,    18,     3,    15,    16,    20,   -46,
+     -46,   -46,   -46,   -46,   -46,    24,    17,    25,    27,    13,
+     -46,   -46,   -46,    28,    21,   -46,   -46,   -46,   -46,   -46,
+     -46,   -46,   -46,    26,    31,    32,    20,     5,   -46,   -46,
+     -46,   -46,   -46,     1,   -46,    29,   -46,   -46,    32,    20,
+     -46,    23,   -46
   };
 
   /* YYDEFACT[S] -- default reduction number in state S.  Performed when
@@ -938,47 +1019,55 @@ public class QuerystringParser
      default is an error.  */
   private static final byte yydefact_[] =
   {
-         2,    29,     8,     0,     3,     0,     4,    27,     1,    10,
-      11,     0,     0,    28,    21,    22,    24,     0,    15,    14,
-      16,    17,    18,    19,     0,     0,     5,     9,     7,    20,
-      23,    25,    30,    12,     0,     0,     0,    26,    31,    13,
-       6
+         2,    39,     8,     0,     3,     0,     4,    31,     1,    10,
+      11,     0,     0,    32,    24,    25,    27,     0,     0,    18,
+      17,    19,    20,    21,    22,     0,     0,     0,     0,     0,
+       5,     9,     7,    23,     0,    26,    35,    28,    30,    40,
+      12,    42,    16,     0,     0,     0,     0,     0,    36,    29,
+      43,    13,    41,     0,    37,     0,     6,    14,     0,     0,
+      38,     0,    15
   };
 
   /* YYPGOTO[NTERM-NUM].  */
   private static final byte yypgoto_[] =
   {
-       -16,   -16,    -5,    11,   -15,   -16,    13,   -16,   -16,   -16,
-     -16,   -16,   -16,   -16,   -16,   -16,   -16,   -16,   -16
+       -46,   -46,    -5,    30,    -9,   -46,    33,   -46,   -46,   -46,
+     -46,   -46,   -46,   -46,   -46,   -46,   -46,   -46,   -46,   -46,
+     -46,   -45,   -19,   -46,   -46
   };
 
   /* YYDEFGOTO[NTERM-NUM].  */
   private static final byte
   yydefgoto_[] =
   {
-        -1,     3,     4,     5,    28,    11,     6,    17,    18,    19,
-      20,    21,    22,    23,    35,    24,     7,    33,    39
+        -1,     3,     4,     5,    32,    11,     6,    18,    19,    20,
+      21,    22,    23,    24,    44,    25,    26,    27,    28,    53,
+       7,    40,    54,    42,    51
   };
 
   /* YYTABLE[YYPACT[STATE-NUM]].  What to do in state STATE-NUM.  If
      positive, shift that token.  If negative, reduce the rule which
      number is the opposite.  If YYTABLE_NINF_, syntax error.  */
-  private static final byte yytable_ninf_ = -1;
+  private static final byte yytable_ninf_ = -35;
   private static final byte
   yytable_[] =
   {
-        12,    13,    14,    15,    16,    27,     9,    10,     1,     2,
-       9,    10,     8,    32,    34,    29,    30,    31,    37,    38,
-      36,    40,    25,     0,    26
+        12,    55,    13,    14,    15,    16,    57,    17,     8,    58,
+      31,     9,    10,    35,    61,    36,     1,     2,     9,    10,
+      33,    34,   -33,    39,    47,    37,    38,    41,    62,    45,
+      43,    46,   -34,    48,    50,    52,    49,    59,    56,    60,
+       0,    29,     0,     0,    30
   };
 
   /* YYCHECK.  */
   private static final byte
   yycheck_[] =
   {
-         5,     8,     9,    10,    11,     5,     6,     7,     3,     4,
-       6,     7,     0,     3,    12,     9,     9,     9,     9,     3,
-      25,    36,    11,    -1,    11
+         5,    46,     9,    10,    11,    12,     5,    14,     0,     8,
+       5,     6,     7,    10,    59,    12,     3,     4,     6,     7,
+      10,    11,     4,     3,    29,    10,    10,     3,     5,     4,
+      13,     4,     4,    12,     3,     3,    10,     8,    47,    58,
+      -1,    11,    -1,    -1,    11
   };
 
   /* STOS_[STATE-NUM] -- The (internal number of the) accessing
@@ -986,11 +1075,13 @@ public class QuerystringParser
   private static final byte
   yystos_[] =
   {
-         0,     3,     4,    14,    15,    16,    19,    29,     0,     6,
-       7,    18,    15,     8,     9,    10,    11,    20,    21,    22,
-      23,    24,    25,    26,    28,    16,    19,     5,    17,     9,
-       9,     9,     3,    30,    12,    27,    15,     9,     3,    31,
-      17
+         0,     3,     4,    16,    17,    18,    21,    35,     0,     6,
+       7,    20,    17,     9,    10,    11,    12,    14,    22,    23,
+      24,    25,    26,    27,    28,    30,    31,    32,    33,    18,
+      21,     5,    19,    10,    11,    10,    12,    10,    10,     3,
+      36,     3,    38,    13,    29,     4,     4,    17,    12,    10,
+       3,    39,     3,    34,    37,    36,    19,     5,     8,     8,
+      37,    36,     5
   };
 
   /* TOKEN_NUMBER_[YYLEX-NUM] -- Internal symbol number corresponding
@@ -998,18 +1089,19 @@ public class QuerystringParser
   private static final short
   yytoken_number_[] =
   {
-         0,   256,   257,   258,    40,    41,    38,   124,    33,    61,
-      62,    60,   126
+         0,   256,   257,   258,    40,    41,    38,   124,    44,    33,
+      61,    62,    60,   126,    94
   };
 
   /* YYR1[YYN] -- Symbol number of symbol that rule YYN derives.  */
   private static final byte
   yyr1_[] =
   {
-         0,    13,    14,    14,    15,    15,    15,    15,    16,    17,
-      18,    18,    19,    19,    20,    20,    20,    20,    20,    20,
-      21,    22,    23,    24,    25,    26,    27,    28,    28,    29,
-      30,    31
+         0,    15,    16,    16,    17,    17,    17,    17,    18,    19,
+      20,    20,    21,    21,    21,    21,    21,    22,    22,    22,
+      22,    22,    22,    23,    24,    25,    26,    27,    28,    29,
+      30,    31,    31,    32,    32,    33,    33,    34,    34,    35,
+      36,    37,    38,    39
   };
 
   /* YYR2[YYN] -- Number of symbols composing right hand side of rule YYN.  */
@@ -1017,9 +1109,10 @@ public class QuerystringParser
   yyr2_[] =
   {
          0,     2,     0,     1,     1,     3,     5,     3,     1,     1,
-       1,     1,     3,     4,     1,     1,     1,     1,     1,     1,
-       2,     1,     1,     2,     1,     2,     2,     0,     1,     1,
-       1,     1
+       1,     1,     3,     4,     5,     7,     3,     1,     1,     1,
+       1,     1,     1,     2,     1,     1,     2,     1,     2,     2,
+       2,     0,     1,     1,     2,     2,     3,     1,     3,     1,
+       1,     1,     1,     1
   };
 
   /* YYTNAME[SYMBOL-NUM] -- String name of the symbol SYMBOL-NUM.
@@ -1027,23 +1120,29 @@ public class QuerystringParser
   private static final String yytname_[] =
   {
     "$end", "error", "$undefined", "\"string\"", "'('", "')'", "'&'", "'|'",
-  "'!'", "'='", "'>'", "'<'", "'~'", "$accept", "query", "params",
-  "open_paren", "close_paren", "join", "param", "comparison", "not_equals",
-  "equals", "gt", "gte", "lt", "lte", "like", "not", "key", "value",
-  "likevalue", null
+  "','", "'!'", "'='", "'>'", "'<'", "'~'", "'^'", "$accept", "query",
+  "params", "open_paren", "close_paren", "join", "param", "comparison",
+  "not_equals", "equals", "gt", "gte", "lt", "lte", "like", "prefix",
+  "not", "membership", "range", "list", "key", "value", "listvalue",
+  "prefixvalue", "likevalue", null
   };
 
   /* YYRHS -- A `-1'-separated list of the rules' RHS.  */
   private static final byte yyrhs_[] =
   {
-        14,     0,    -1,    -1,    15,    -1,    19,    -1,    15,    18,
-      19,    -1,    15,    18,    16,    15,    17,    -1,    16,    15,
-      17,    -1,     4,    -1,     5,    -1,     6,    -1,     7,    -1,
-      29,    20,    30,    -1,    29,    28,    27,    31,    -1,    22,
-      -1,    21,    -1,    23,    -1,    24,    -1,    25,    -1,    26,
-      -1,     8,     9,    -1,     9,    -1,    10,    -1,    10,     9,
-      -1,    11,    -1,    11,     9,    -1,    12,     9,    -1,    -1,
-       8,    -1,     3,    -1,     3,    -1,     3,    -1
+        16,     0,    -1,    -1,    17,    -1,    21,    -1,    17,    20,
+      21,    -1,    17,    20,    18,    17,    19,    -1,    18,    17,
+      19,    -1,     4,    -1,     5,    -1,     6,    -1,     7,    -1,
+      35,    22,    36,    -1,    35,    31,    29,    39,    -1,    35,
+      32,     4,    34,     5,    -1,    35,    33,     4,    36,     8,
+      36,     5,    -1,    35,    30,    38,    -1,    24,    -1,    23,
+      -1,    25,    -1,    26,    -1,    27,    -1,    28,    -1,     9,
+      10,    -1,    10,    -1,    11,    -1,    11,    10,    -1,    12,
+      -1,    12,    10,    -1,    13,    10,    -1,    14,    10,    -1,
+      -1,     9,    -1,    10,    -1,     9,    10,    -1,    11,    12,
+      -1,     9,    11,    12,    -1,    37,    -1,    34,     8,    37,
+      -1,     3,    -1,     3,    -1,     3,    -1,     3,    -1,     3,
+      -1
   };
 
   /* YYPRHS[YYN] -- Index of the first RHS symbol of rule number YYN in
@@ -1051,18 +1150,20 @@ public class QuerystringParser
   private static final byte yyprhs_[] =
   {
          0,     0,     3,     4,     6,     8,    12,    18,    22,    24,
-      26,    28,    30,    34,    39,    41,    43,    45,    47,    49,
-      51,    54,    56,    58,    61,    63,    66,    69,    70,    72,
-      74,    76
+      26,    28,    30,    34,    39,    45,    53,    57,    59,    61,
+      63,    65,    67,    69,    72,    74,    76,    79,    81,    84,
+      87,    90,    91,    93,    95,    98,   101,   105,   107,   111,
+     113,   115,   117,   119
   };
 
   /* YYRLINE[YYN] -- Source line where rule number YYN was defined.  */
   private static final short yyrline_[] =
   {
-         0,   152,   152,   153,   155,   156,   157,   158,   160,   161,
-     163,   164,   167,   168,   170,   171,   172,   173,   174,   175,
-     177,   179,   181,   182,   183,   184,   186,   188,   189,   191,
-     193,   203
+         0,   401,   401,   402,   404,   405,   406,   407,   409,   410,
+     412,   413,   416,   418,   422,   423,   425,   427,   428,   429,
+     430,   431,   432,   437,   439,   441,   442,   443,   444,   446,
+     448,   450,   451,   454,   455,   457,   458,   460,   461,   463,
+     465,   466,   468,   470
   };
 
   // Report on the debug stream that the rule yyrule is going to be reduced.
@@ -1090,16 +1191,16 @@ public class QuerystringParser
          0,     2,     2,     2,     2,     2,     2,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
-       2,     2,     2,     8,     2,     2,     2,     2,     6,     2,
-       4,     5,     2,     2,     2,     2,     2,     2,     2,     2,
+       2,     2,     2,     9,     2,     2,     2,     2,     6,     2,
+       4,     5,     2,     2,     8,     2,     2,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
-      11,     9,    10,     2,     2,     2,     2,     2,     2,     2,
+      12,    10,    11,     2,     2,     2,     2,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
+       2,     2,     2,     2,    14,     2,     2,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
-       2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
-       2,     2,     2,     2,     7,     2,    12,     2,     2,     2,
+       2,     2,     2,     2,     7,     2,    13,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
        2,     2,     2,     2,     2,     2,     2,     2,     2,     2,
@@ -1123,13 +1224,13 @@ public class QuerystringParser
       return yyundef_token_;
   }
 
-  private static final int yylast_ = 24;
-  private static final int yynnts_ = 19;
+  private static final int yylast_ = 44;
+  private static final int yynnts_ = 25;
   private static final int yyempty_ = -2;
   private static final int yyfinal_ = 8;
   private static final int yyterror_ = 1;
   private static final int yyerrcode_ = 256;
-  private static final int yyntokens_ = 13;
+  private static final int yyntokens_ = 15;
 
   private static final int yyuser_token_number_max_ = 258;
   private static final int yyundef_token_ = 2;
@@ -1142,7 +1243,93 @@ public class QuerystringParser
 
 
 private StringBuilder mSb = new StringBuilder();
-private LinkedList<String> mSelectionArgs = new LinkedList<String>();
+private String[] mSelectionArgs = new String[4];
+private int mSelectionArgCount = 0;
+
+private String mTrigramTable;
+private Set<String> mTrigramColumns;
+
+private QuerystringSchema mSchema;
+// the current key and, if there's a schema, its column
+private String mKey;
+private QuerystringSchema.Column mColumn;
+private boolean mInSubquery;
+
+/**
+ * The temporary table that long value lists are looked up in. Its {@code list}
+ * column holds the ID of the list and its {@code value} column the values.
+ *
+ * @see #setMaxBoundListSize(int)
+ */
+public static final String VALUE_LIST_TABLE = "querystring_values";
+
+private ArrayList<String> mListValues = new ArrayList<String>();
+private int mMaxBoundListSize = Integer.MAX_VALUE;
+private ArrayList<ValueList> mValueLists;
+
+/**
+ * Uses the {@link TrigramIndex} of the given columns to speed up like queries.
+ * This must be called before {@link #parse()}.
+ *
+ * @param table the table being queried
+ * @param columns the columns of the table that have a trigram index
+ */
+public void setTrigramIndex(String table, Set<String> columns){
+    mTrigramTable = table;
+    mTrigramColumns = columns;
+}
+
+/**
+ * Compiles the query against the given schema. Keys must be columns of the
+ * schema and values are converted to the types of their columns. Equality is
+ * tested using SQL "=" and, on columns that can't be null, "!=", so that an
+ * index can be used. This must be called before {@link #parse()}.
+ *
+ * @param schema the columns of the table being queried
+ * @see QuerystringSchema
+ */
+public void setSchema(QuerystringSchema schema){
+    mSchema = schema;
+}
+
+/**
+ * Sets the maximum number of values in a list (eg. <kbd>column=(1,2,3)</kbd>)
+ * that will be bound as separate arguments. Longer lists are instead looked up
+ * in {@link #VALUE_LIST_TABLE}, which must be filled in by the caller as
+ * described by {@link #getValueLists()}. By default, all lists are bound.
+ * This must be called before {@link #parse()}.
+ *
+ * @param size the maximum number of values to bind
+ */
+public void setMaxBoundListSize(int size){
+    mMaxBoundListSize = size;
+}
+
+/**
+ * Returns the lists that were too long to be bound, or null if there were
+ * none. Before the query is used, the values of each list must be added to
+ * {@link #VALUE_LIST_TABLE} under a unique list ID and that ID must be set as
+ * the list's selection argument.
+ */
+public List<ValueList> getValueLists(){
+    return mValueLists;
+}
+
+/**
+ * A list of values that is looked up in {@link #VALUE_LIST_TABLE}.
+ */
+public static class ValueList {
+    /**
+     * The index of the selection argument that holds the ID of the list.
+     */
+    public final int argIndex;
+    public final String[] values;
+
+    public ValueList(int argIndex, String[] values){
+        this.argIndex = argIndex;
+        this.values = values;
+    }
+}
 
 /**
  * Returns the resulting SQL query string generated by {@link #parse()}. Any
@@ -1157,7 +1344,18 @@ public String getResult(){
  * Returns the selection arguments that were discovered by {@link #parse()}.
  */
 public String[] getSelectionArgs(){
-	return mSelectionArgs.toArray(new String[mSelectionArgs.size()]);
+    final String[] args = new String[mSelectionArgCount];
+    System.arraycopy(mSelectionArgs, 0, args, 0, mSelectionArgCount);
+    return args;
+}
+
+private void addSelectionArg(String arg){
+    if (mSelectionArgCount == mSelectionArgs.length) {
+        final String[] args = new String[mSelectionArgCount * 2];
+        System.arraycopy(mSelectionArgs, 0, args, 0, mSelectionArgCount);
+        mSelectionArgs = args;
+    }
+    mSelectionArgs[mSelectionArgCount++] = arg;
 }
 
 /**
@@ -1173,26 +1371,203 @@ public static class ParseException extends RuntimeException {
 }
 
 private void appendValidated(String key){
+    if (mSchema != null && key.indexOf(QuerystringSchema.QUALIFIER_SEPARATOR) != -1) {
+        appendQualified(key);
+        return;
+    }
     if (!SQLGenUtils.isValidName(key)) {
         throw new SQLGenerationException("illegal column name in query: '" + key
                                                 + "'");
     }
+    if (mSchema != null) {
+        mColumn = getColumn(mSchema, key);
+    }
+    mKey = key;
+    appendQuoted(key);
+}
+
+private static QuerystringSchema.Column getColumn(QuerystringSchema schema, String key){
+    final QuerystringSchema.Column column = schema.getColumn(key);
+    if (column == null) {
+        throw new SQLGenerationException("unknown column in query: '" + key + "'");
+    }
+    return column;
+}
+
+/* a column of the parent of a foreign key, eg. post.title. This starts a subquery
+   on the parent's table, which is closed by endParam() */
+private void appendQualified(String key){
+    final int separator = key.indexOf(QuerystringSchema.QUALIFIER_SEPARATOR);
+    final String foreignKey = key.substring(0, separator);
+    final String parentKey = key.substring(separator + 1);
+    if (!SQLGenUtils.isValidName(foreignKey) || !SQLGenUtils.isValidName(parentKey)) {
+        throw new SQLGenerationException("illegal column name in query: '" + key
+                                                + "'");
+    }
+    final QuerystringSchema.Parent parent = mSchema.getParent(foreignKey);
+    if (parent == null) {
+        throw new SQLGenerationException("unknown foreign key in query: '" + foreignKey
+                                                + "'");
+    }
+    mColumn = getColumn(parent.schema, parentKey);
+    mKey = parentKey;
+
+    appendQuoted(foreignKey);
+    mSb.append(" IN (SELECT ");
+    mSb.append(ContentItem._ID);
+    mSb.append(" FROM ");
+    mSb.append(SQLGenUtils.escapeTableName(parent.table));
+    mSb.append(" WHERE ");
+    appendQuoted(parentKey);
+    mInSubquery = true;
+}
+
+private void endParam(){
+    if (mInSubquery) {
+        mSb.append(')');
+        mInSubquery = false;
+    }
+}
+
+private void appendQuoted(String key){
     mSb.append('"');
     mSb.append(key);
     mSb.append('"');
 }
 
+private String toValue(String encoded){
+    final String value = QuerystringLexer.decode(encoded);
+    return mColumn != null ? mColumn.convert(value) : value;
+}
+
+private void appendInList(String not){
+    mSb.append(not != null ? " NOT IN (" : " IN (");
+
+    final int count = mListValues.size();
+    if (count <= mMaxBoundListSize) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                mSb.append(',');
+            }
+            mSb.append('?');
+            addSelectionArg(mListValues.get(i));
+        }
+    } else {
+        mSb.append("SELECT value FROM temp.");
+        mSb.append(VALUE_LIST_TABLE);
+        mSb.append(" WHERE list = ?");
+        if (mValueLists == null) {
+            mValueLists = new ArrayList<ValueList>();
+        }
+        mValueLists.add(new ValueList(mSelectionArgCount,
+                                      mListValues.toArray(new String[count])));
+        // the list ID is filled in by the caller
+        addSelectionArg(null);
+    }
+    mSb.append(')');
+}
+
+private void appendPrefixRange(){
+    if (mColumn != null) {
+        switch (mColumn.affinity) {
+            case INTEGER:
+            case REAL:
+            case BOOLEAN:
+                throw new IllegalArgumentException("prefix match on non-text column '"
+                                                   + mKey + "'");
+            default:
+                break;
+        }
+    }
+    mSb.append(" >= ? AND ");
+    appendQuoted(mKey);
+    mSb.append(" < ?");
+}
+
+private void addPrefixArgs(String encoded){
+    String prefix = QuerystringLexer.decode(encoded);
+    final boolean noCase = mColumn != null && mColumn.noCase;
+    if (noCase) {
+        prefix = toLowerCaseAscii(prefix);
+    }
+    final String upper = getPrefixUpperBound(prefix, noCase);
+    if (upper == null) {
+        throw new IllegalArgumentException("prefix '" + prefix + "' has no upper bound");
+    }
+    addSelectionArg(prefix);
+    addSelectionArg(upper);
+}
+
+// the NOCASE collation only folds ASCII letters
+private static String toLowerCaseAscii(String value){
+    final char[] chars = value.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+        if (chars[i] >= 'A' && chars[i] <= 'Z') {
+            chars[i] += 'a' - 'A';
+        }
+    }
+    return new String(chars);
+}
+
+/**
+ * Returns the smallest string that sorts after all the strings that start with
+ * the given prefix. Strings are compared by code point, which is how SQLite's
+ * BINARY collation orders UTF-8 text.
+ *
+ * @param prefix the prefix. When using the NOCASE collation, it must not
+ *            contain any upper case ASCII letters.
+ * @param noCase true if the result will be compared using the NOCASE collation,
+ *            which sorts upper case ASCII letters as lower case ones
+ * @return the upper bound or null if there is none
+ */
+public static String getPrefixUpperBound(String prefix, boolean noCase){
+    int end = prefix.length();
+    while (end > 0) {
+        final int cp = prefix.codePointBefore(end);
+        final int cpLength = Character.charCount(cp);
+        if (cp != Character.MAX_CODE_POINT) {
+            int next = cp + 1;
+            if (next == Character.MIN_SURROGATE) {
+                // surrogates aren't characters
+                next = Character.MAX_SURROGATE + 1;
+            } else if (noCase && next == 'A') {
+                // upper case letters never appear once folded
+                next = 'Z' + 1;
+            }
+            final StringBuilder sb = new StringBuilder(end + 1);
+            sb.append(prefix, 0, end - cpLength);
+            sb.appendCodePoint(next);
+            return sb.toString();
+        }
+        // nothing comes after the last code point, so the one before it is incremented
+        end -= cpLength;
+    }
+    return null;
+}
+
+private void appendTrigramCandidates(String key, String likeValue){
+    if (mTrigramColumns == null || !mTrigramColumns.contains(key)) {
+        return;
+    }
+    final Set<String> trigrams = TrigramIndex.getTrigrams(likeValue);
+    if (trigrams.isEmpty()) {
+        return;
+    }
+    mSb.append(" AND ");
+    mSb.append(TrigramIndex.toCandidateSelection(mTrigramTable, key, trigrams));
+}
+
 
 
 
 /* Line 927 of lalr1.java  */
-/* Line 1190 of "src/edu/mit/mobile/android/content/query/QuerystringParser.java"  */
+/* Line 1564 of "src/edu/mit/mobile/android/content/query/QuerystringParser.java"  */
 
 }
 
 
 /* Line 931 of lalr1.java  */
-/* Line 213 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
+/* Line 476 of "src/edu/mit/mobile/android/content/query/QuerystringParser.y"  */
 
 
 
@@ -34,22 +34,108 @@
 %code imports {
 
 import java.io.IOException;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
 import java.lang.StringBuilder;
-import java.net.URLDecoder;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
+import edu.mit.mobile.android.content.ContentItem;
 import edu.mit.mobile.android.content.SQLGenUtils;
 import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.TrigramIndex;
 
 }
 
 %code {
 
 private StringBuilder mSb = new StringBuilder();
-private LinkedList<String> mSelectionArgs = new LinkedList<String>();
+private String[] mSelectionArgs = new String[4];
+private int mSelectionArgCount = 0;
+
+private String mTrigramTable;
+private Set<String> mTrigramColumns;
+
+private QuerystringSchema mSchema;
+// the current key and, if there's a schema, its column
+private String mKey;
+private QuerystringSchema.Column mColumn;
+private boolean mInSubquery;
+
+/**
+ * The temporary table that long value lists are looked up in. Its {@code list}
+ * column holds the ID of the list and its {@code value} column the values.
+ *
+ * @see #setMaxBoundListSize(int)
+ */
+public static final String VALUE_LIST_TABLE = "querystring_values";
+
+private ArrayList<String> mListValues = new ArrayList<String>();
+private int mMaxBoundListSize = Integer.MAX_VALUE;
+private ArrayList<ValueList> mValueLists;
+
+/**
+ * Uses the {@link TrigramIndex} of the given columns to speed up like queries.
+ * This must be called before {@link #parse()}.
+ *
+ * @param table the table being queried
+ * @param columns the columns of the table that have a trigram index
+ */
+public void setTrigramIndex(String table, Set<String> columns){
+    mTrigramTable = table;
+    mTrigramColumns = columns;
+}
+
+/**
+ * Compiles the query against the given schema. Keys must be columns of the
+ * schema and values are converted to the types of their columns. Equality is
+ * tested using SQL "=" and, on columns that can't be null, "!=", so that an
+ * index can be used. This must be called before {@link #parse()}.
+ *
+ * @param schema the columns of the table being queried
+ * @see QuerystringSchema
+ */
+public void setSchema(QuerystringSchema schema){
+    mSchema = schema;
+}
+
+/**
+ * Sets the maximum number of values in a list (eg. <kbd>column=(1,2,3)</kbd>)
+ * that will be bound as separate arguments. Longer lists are instead looked up
+ * in {@link #VALUE_LIST_TABLE}, which must be filled in by the caller as
+ * described by {@link #getValueLists()}. By default, all lists are bound.
+ * This must be called before {@link #parse()}.
+ *
+ * @param size the maximum number of values to bind
+ */
+public void setMaxBoundListSize(int size){
+    mMaxBoundListSize = size;
+}
+
+/**
+ * Returns the lists that were too long to be bound, or null if there were
+ * none. Before the query is used, the values of each list must be added to
+ * {@link #VALUE_LIST_TABLE} under a unique list ID and that ID must be set as
+ * the list's selection argument.
+ */
+public List<ValueList> getValueLists(){
+    return mValueLists;
+}
+
+/**
+ * A list of values that is looked up in {@link #VALUE_LIST_TABLE}.
+ */
+public static class ValueList {
+    /**
+     * The index of the selection argument that holds the ID of the list.
+     */
+    public final int argIndex;
+    public final String[] values;
+
+    public ValueList(int argIndex, String[] values){
+        this.argIndex = argIndex;
+        this.values = values;
+    }
+}
 
 /**
  * Returns the resulting SQL query string generated by {@link #parse()}. Any
@@ -64,7 +150,18 @@ public String getResult(){
  * Returns the selection arguments that were discovered by {@link #parse()}.
  */
 public String[] getSelectionArgs(){
-	return mSelectionArgs.toArray(new String[mSelectionArgs.size()]);
+    final String[] args = new String[mSelectionArgCount];
+    System.arraycopy(mSelectionArgs, 0, args, 0, mSelectionArgCount);
+    return args;
+}
+
+private void addSelectionArg(String arg){
+    if (mSelectionArgCount == mSelectionArgs.length) {
+        final String[] args = new String[mSelectionArgCount * 2];
+        System.arraycopy(mSelectionArgs, 0, args, 0, mSelectionArgCount);
+        mSelectionArgs = args;
+    }
+    mSelectionArgs[mSelectionArgCount++] = arg;
 }
 
 /**
@@ -80,65 +177,214 @@ public static class ParseException extends RuntimeException {
 }
 
 private void appendValidated(String key){
+    if (mSchema != null && key.indexOf(QuerystringSchema.QUALIFIER_SEPARATOR) != -1) {
+        appendQualified(key);
+        return;
+    }
     if (!SQLGenUtils.isValidName(key)) {
         throw new SQLGenerationException("illegal column name in query: '" + key
                                                 + "'");
     }
+    if (mSchema != null) {
+        mColumn = getColumn(mSchema, key);
+    }
+    mKey = key;
+    appendQuoted(key);
+}
+
+private static QuerystringSchema.Column getColumn(QuerystringSchema schema, String key){
+    final QuerystringSchema.Column column = schema.getColumn(key);
+    if (column == null) {
+        throw new SQLGenerationException("unknown column in query: '" + key + "'");
+    }
+    return column;
+}
+
+/* a column of the parent of a foreign key, eg. post.title. This starts a subquery
+   on the parent's table, which is closed by endParam() */
+private void appendQualified(String key){
+    final int separator = key.indexOf(QuerystringSchema.QUALIFIER_SEPARATOR);
+    final String foreignKey = key.substring(0, separator);
+    final String parentKey = key.substring(separator + 1);
+    if (!SQLGenUtils.isValidName(foreignKey) || !SQLGenUtils.isValidName(parentKey)) {
+        throw new SQLGenerationException("illegal column name in query: '" + key
+                                                + "'");
+    }
+    final QuerystringSchema.Parent parent = mSchema.getParent(foreignKey);
+    if (parent == null) {
+        throw new SQLGenerationException("unknown foreign key in query: '" + foreignKey
+                                                + "'");
+    }
+    mColumn = getColumn(parent.schema, parentKey);
+    mKey = parentKey;
+
+    appendQuoted(foreignKey);
+    mSb.append(" IN (SELECT ");
+    mSb.append(ContentItem._ID);
+    mSb.append(" FROM ");
+    mSb.append(SQLGenUtils.escapeTableName(parent.table));
+    mSb.append(" WHERE ");
+    appendQuoted(parentKey);
+    mInSubquery = true;
+}
+
+private void endParam(){
+    if (mInSubquery) {
+        mSb.append(')');
+        mInSubquery = false;
+    }
+}
+
+private void appendQuoted(String key){
     mSb.append('"');
     mSb.append(key);
     mSb.append('"');
 }
 
+private String toValue(String encoded){
+    final String value = QuerystringLexer.decode(encoded);
+    return mColumn != null ? mColumn.convert(value) : value;
+}
+
+private void appendInList(String not){
+    mSb.append(not != null ? " NOT IN (" : " IN (");
+
+    final int count = mListValues.size();
+    if (count <= mMaxBoundListSize) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                mSb.append(',');
+            }
+            mSb.append('?');
+            addSelectionArg(mListValues.get(i));
+        }
+    } else {
+        mSb.append("SELECT value FROM temp.");
+        mSb.append(VALUE_LIST_TABLE);
+        mSb.append(" WHERE list = ?");
+        if (mValueLists == null) {
+            mValueLists = new ArrayList<ValueList>();
+        }
+        mValueLists.add(new ValueList(mSelectionArgCount,
+                                      mListValues.toArray(new String[count])));
+        // the list ID is filled in by the caller
+        addSelectionArg(null);
+    }
+    mSb.append(')');
+}
+
+private void appendPrefixRange(){
+    if (mColumn != null) {
+        switch (mColumn.affinity) {
+            case INTEGER:
+            case REAL:
+            case BOOLEAN:
+                throw new IllegalArgumentException("prefix match on non-text column '"
+                                                   + mKey + "'");
+            default:
+                break;
+        }
+    }
+    mSb.append(" >= ? AND ");
+    appendQuoted(mKey);
+    mSb.append(" < ?");
+}
+
+private void addPrefixArgs(String encoded){
+    String prefix = QuerystringLexer.decode(encoded);
+    final boolean noCase = mColumn != null && mColumn.noCase;
+    if (noCase) {
+        prefix = toLowerCaseAscii(prefix);
+    }
+    final String upper = getPrefixUpperBound(prefix, noCase);
+    if (upper == null) {
+        throw new IllegalArgumentException("prefix '" + prefix + "' has no upper bound");
+    }
+    addSelectionArg(prefix);
+    addSelectionArg(upper);
+}
+
+// the NOCASE collation only folds ASCII letters
+private static String toLowerCaseAscii(String value){
+    final char[] chars = value.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+        if (chars[i] >= 'A' && chars[i] <= 'Z') {
+            chars[i] += 'a' - 'A';
+        }
+    }
+    return new String(chars);
+}
+
+/**
+ * Returns the smallest string that sorts after all the strings that start with
+ * the given prefix. Strings are compared by code point, which is how SQLite's
+ * BINARY collation orders UTF-8 text.
+ *
+ * @param prefix the prefix. When using the NOCASE collation, it must not
+ *            contain any upper case ASCII letters.
+ * @param noCase true if the result will be compared using the NOCASE collation,
+ *            which sorts upper case ASCII letters as lower case ones
+ * @return the upper bound or null if there is none
+ */
+public static String getPrefixUpperBound(String prefix, boolean noCase){
+    int end = prefix.length();
+    while (end > 0) {
+        final int cp = prefix.codePointBefore(end);
+        final int cpLength = Character.charCount(cp);
+        if (cp != Character.MAX_CODE_POINT) {
+            int next = cp + 1;
+            if (next == Character.MIN_SURROGATE) {
+                // surrogates aren't characters
+                next = Character.MAX_SURROGATE + 1;
+            } else if (noCase && next == 'A') {
+                // upper case letters never appear once folded
+                next = 'Z' + 1;
+            }
+            final StringBuilder sb = new StringBuilder(end + 1);
+            sb.append(prefix, 0, end - cpLength);
+            sb.appendCodePoint(next);
+            return sb.toString();
+        }
+        // nothing comes after the last code point, so the one before it is incremented
+        end -= cpLength;
+    }
+    return null;
+}
+
+private void appendTrigramCandidates(String key, String likeValue){
+    if (mTrigramColumns == null || !mTrigramColumns.contains(key)) {
+        return;
+    }
+    final Set<String> trigrams = TrigramIndex.getTrigrams(likeValue);
+    if (trigrams.isEmpty()) {
+        return;
+    }
+    mSb.append(" AND ");
+    mSb.append(TrigramIndex.toCandidateSelection(mTrigramTable, key, trigrams));
+}
+
 }
 
 %code lexer {
-        private final StreamTokenizer mTokenizer;
-        private String mLVal;
+        private final QuerystringLexer mLexer;
 
         public YYLexer(String str) {
-            mTokenizer = new StreamTokenizer(new StringReader(str));
-            mTokenizer.resetSyntax();
-            mTokenizer.eolIsSignificant(false);
-            mTokenizer.lowerCaseMode(false);
-
-            // standard words, no symbols.
-            mTokenizer.wordChars('A', 'Z');
-            mTokenizer.wordChars('a', 'z');
-            mTokenizer.wordChars('a', 'z');
-            mTokenizer.wordChars('0', '9');
-            mTokenizer.wordChars('%', '%');
-            mTokenizer.wordChars('.', '.');
-            mTokenizer.wordChars('-', '-');
-            mTokenizer.wordChars('*', '*');
-            mTokenizer.wordChars('_', '_');
-            mTokenizer.wordChars('+', '+');
-            mTokenizer.wordChars('\u00A0', '\u00FF');
+            mLexer = new QuerystringLexer(str);
         }
 
         @Override
         public String getLVal() {
-            return mLVal;
+            return mLexer.getLVal();
         }
 
         @Override
         public int yylex() throws IOException {
-            final int ttype = mTokenizer.nextToken();
-            switch (ttype){
-                case StreamTokenizer.TT_WORD:
-                    mLVal = mTokenizer.sval;
-                    return QuerystringParser.STR;
-
-                case StreamTokenizer.TT_EOF:
-                    return QuerystringParser.EOF;
-
-                default:
-                    return mTokenizer.ttype;
-            }
+            return mLexer.yylex();
         }
 
         @Override
         public void yyerror(String s) throws ParseException {
-            throw new ParseException(s + " near '" + mLVal + "'");
+            mLexer.yyerror(s);
         }
 }
 
@@ -147,6 +393,9 @@ private void appendValidated(String key){
 %token <String> STR "string"
 %type <String> key
 %type <String> value
+%type <String> likevalue
+%type <String> not
+%type <String> membership
 
 %%
 query: /* empty */
@@ -164,8 +413,16 @@ join: '&' { mSb.append(" AND "); }
     | '|' { mSb.append(" OR "); }
 
 
-param: key comparison value
-     | key not like likevalue
+param: key comparison value { endParam(); }
+     /* the trigram index can only narrow down positive matches */
+     | key not like likevalue {
+         if ($2 == null) { appendTrigramCandidates($1, $4); }
+         endParam();
+     }
+     | key membership '(' list ')' { appendInList($2); endParam(); }
+     | key range '(' value ',' value ')' { endParam(); }
+     /* a prefix match is a range, which can use an index unlike LIKE */
+     | key prefix prefixvalue { endParam(); }
 
 comparison: equals
           | not_equals
@@ -174,9 +431,12 @@ comparison: equals
 	  | lt
 	  | lte
 
-not_equals: '!' '=' { mSb.append(" IS NOT ?"); }
+/* values are never null, so "=" matches the same rows as "IS". "!=" doesn't
+   match null columns, unlike "IS NOT", so it's only used on NOT NULL ones.
+   Without a schema, the output is kept as it was. */
+not_equals: '!' '=' { mSb.append(mColumn != null && mColumn.notNull ? " != ?" : " IS NOT ?"); }
 
-equals: '=' { mSb.append(" IS ?"); }
+equals: '=' { mSb.append(mSchema != null ? " = ?" : " IS ?"); }
 
 gt:  '>'     { mSb.append(" > ?"); }
 gte: '>' '=' { mSb.append(" >= ?"); }
@@ -185,29 +445,31 @@ lte: '<' '=' { mSb.append(" <= ?"); }
 
 like: '~' '=' { mSb.append(" LIKE ?"); }
 
-not: /* empty */
-   | '!' { mSb.append(" NOT"); }
+prefix: '^' '=' { appendPrefixRange(); }
+
+not: /* empty */ { $$ = null; }
+   | '!' { mSb.append(" NOT"); $$ = "!"; }
+
+/* the SQL is added once the length of the list is known */
+membership: '=' { mListValues.clear(); $$ = null; }
+          | '!' '=' { mListValues.clear(); $$ = "!"; }
+
+range: '>' '<' { mSb.append(" BETWEEN ? AND ?"); }
+     | '!' '>' '<' { mSb.append(" NOT BETWEEN ? AND ?"); }
+
+list: listvalue
+    | list ',' listvalue
 
 key: STR { appendValidated($1); }
 
-value: STR {
-    try {
-        mSelectionArgs.add(URLDecoder.decode($1, "utf-8"));
-     }catch(UnsupportedEncodingException e){
-         SQLGenerationException sqle = new SQLGenerationException();
-         sqle.initCause(e);
-         throw sqle;
-     }
-}
+value: STR { addSelectionArg(toValue($1)); }
+listvalue: STR { mListValues.add(toValue($1)); }
+/* the prefix and the first string after all those starting with it */
+prefixvalue: STR { addPrefixArgs($1); }
 /* LIKE values are prefixed/suffixed with the SQL '%' wildcard */
 likevalue: STR {
-    try {
-        mSelectionArgs.add('%' + URLDecoder.decode($1, "utf-8") + '%');
-     }catch(UnsupportedEncodingException e){
-         SQLGenerationException sqle = new SQLGenerationException();
-         sqle.initCause(e);
-         throw sqle;
-     }
+    $$ = '%' + QuerystringLexer.decode($1) + '%';
+    addSelectionArg($$);
 }
 
 %%
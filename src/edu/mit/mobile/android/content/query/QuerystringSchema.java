@@ -0,0 +1,330 @@
+package edu.mit.mobile.android.content.query;
+
+/*
+ * Copyright (C) 2013 MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import edu.mit.mobile.android.content.ContentItem;
+import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.column.BooleanColumn;
+import edu.mit.mobile.android.content.column.DBColumn;
+import edu.mit.mobile.android.content.column.DBColumn.CollationName;
+import edu.mit.mobile.android.content.column.DBColumnType;
+import edu.mit.mobile.android.content.column.DBForeignKeyColumn;
+import edu.mit.mobile.android.content.column.DatetimeColumn;
+import edu.mit.mobile.android.content.column.DoubleColumn;
+import edu.mit.mobile.android.content.column.FloatColumn;
+import edu.mit.mobile.android.content.column.IntegerColumn;
+import edu.mit.mobile.android.content.column.TextColumn;
+
+/**
+ * <p>
+ * The columns that a {@link QuerystringParser} query can refer to. When a parser is given a
+ * schema using {@link QuerystringParser#setSchema(QuerystringSchema)}, keys that aren't in the
+ * schema are rejected and values are converted to the type of their column before they are bound,
+ * so that eg. <kbd>done=true</kbd> matches a {@link BooleanColumn} and <kbd>count=007</kbd> an
+ * {@link IntegerColumn}.
+ * </p>
+ *
+ * <p>
+ * As the values of a query are never null, the parser also uses SQL "=" instead of "IS" for
+ * equality and, on {@code NOT NULL} columns, "!=" instead of "IS NOT". Older versions of SQLite
+ * can only use an index for the former. Prefix matches are compared using the collation of their
+ * column, so columns declared with {@link CollationName#NOCASE} match case-insensitively.
+ * </p>
+ *
+ * <p>
+ * The columns of the parent of a foreign key can be queried by qualifying them with the name of
+ * the foreign key, eg. <kbd>post.title~=robot</kbd>. Such a term becomes a subquery on the parent's
+ * table, eg. <code>"post" IN (SELECT _id FROM posts WHERE "title" LIKE ?)</code>, so the whole
+ * filter runs as one statement.
+ * </p>
+ */
+public class QuerystringSchema {
+
+    /**
+     * How the values of a column are converted before they are bound.
+     */
+    public static enum Affinity {
+        /**
+         * Values must be numbers. Integers are bound in their canonical form.
+         */
+        INTEGER,
+        /**
+         * Values must be numbers.
+         */
+        REAL,
+        /**
+         * Values must be <kbd>true</kbd>, <kbd>false</kbd>, <kbd>1</kbd> or <kbd>0</kbd> and are
+         * bound as 1 or 0.
+         */
+        BOOLEAN,
+        /**
+         * Values are bound as-is.
+         */
+        TEXT,
+        /**
+         * Values are bound as-is. This is used for column types that aren't known.
+         */
+        NONE
+    }
+
+    /**
+     * A column of the schema.
+     */
+    public static class Column {
+        public final String name;
+        public final Affinity affinity;
+        /**
+         * True if the column can never be null.
+         */
+        public final boolean notNull;
+        /**
+         * True if the column uses the NOCASE collation.
+         */
+        public final boolean noCase;
+
+        public Column(String name, Affinity affinity, boolean notNull, boolean noCase) {
+            this.name = name;
+            this.affinity = affinity;
+            this.notNull = notNull;
+            this.noCase = noCase;
+        }
+
+        /**
+         * Converts a decoded query value to the affinity of this column.
+         *
+         * @param value
+         *            the decoded value
+         * @return the value to bind
+         * @throws IllegalArgumentException
+         *             if the value cannot be stored in this column
+         */
+        public String convert(String value) {
+            switch (affinity) {
+                case INTEGER:
+                    try {
+                        return Long.toString(Long.parseLong(value));
+                    } catch (final NumberFormatException e) {
+                        // comparisons against fractions are fine
+                        return toReal(value);
+                    }
+
+                case REAL:
+                    return toReal(value);
+
+                case BOOLEAN:
+                    if ("1".equals(value) || "true".equalsIgnoreCase(value)) {
+                        return "1";
+                    }
+                    if ("0".equals(value) || "false".equalsIgnoreCase(value)) {
+                        return "0";
+                    }
+                    throw newIllegalValue(value);
+
+                default:
+                    return value;
+            }
+        }
+
+        private String toReal(String value) {
+            final double d;
+            try {
+                d = Double.parseDouble(value);
+            } catch (final NumberFormatException e) {
+                throw newIllegalValue(value);
+            }
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                throw newIllegalValue(value);
+            }
+            return Double.toString(d);
+        }
+
+        private IllegalArgumentException newIllegalValue(String value) {
+            return new IllegalArgumentException("value '" + value + "' is not valid for "
+                    + affinity + " column '" + name + "'");
+        }
+    }
+
+    /**
+     * The parent of a foreign key column, whose columns can be used in a query by qualifying them
+     * with the name of the foreign key, eg. <kbd>post.title~=robot</kbd>.
+     */
+    public static class Parent {
+        /**
+         * The table of the parent, whose {@link ContentItem#_ID} the foreign key refers to.
+         */
+        public final String table;
+        public final QuerystringSchema schema;
+
+        public Parent(String table, QuerystringSchema schema) {
+            this.table = table;
+            this.schema = schema;
+        }
+    }
+
+    /**
+     * The separator between a foreign key and the parent's column in a qualified key.
+     */
+    public static final char QUALIFIER_SEPARATOR = '.';
+
+    private final LinkedHashMap<String, Column> mColumns = new LinkedHashMap<String, Column>();
+    private final HashMap<String, Parent> mParents = new HashMap<String, Parent>();
+
+    /**
+     * Creates an empty schema. Columns can be added using
+     * {@link #addColumn(String, Affinity, boolean)}.
+     */
+    public QuerystringSchema() {
+    }
+
+    /**
+     * Creates a schema of all the columns declared by the {@link ContentItem}, using either
+     * {@link DBColumn} or {@link DBForeignKeyColumn} annotations. The parent of each foreign key
+     * is added using {@link #addParent(String, String, QuerystringSchema)}.
+     *
+     * @param contentItem
+     * @throws SQLGenerationException
+     *             if a column doesn't meet the necessary requirements
+     */
+    public QuerystringSchema(Class<? extends ContentItem> contentItem)
+            throws SQLGenerationException {
+        this(contentItem, true);
+    }
+
+    private QuerystringSchema(Class<? extends ContentItem> contentItem, boolean withParents)
+            throws SQLGenerationException {
+        final DBColumn.Extractor extractor = new DBColumn.Extractor(contentItem);
+
+        for (final Field field : contentItem.getFields()) {
+            final DBColumn column = field.getAnnotation(DBColumn.class);
+            if (column != null) {
+                final Class<? extends DBColumnType<?>> type = extractor.getFieldType(field);
+                // an integer primary key is the row ID, which can't be null
+                final boolean notNull = column.notnull()
+                        || (column.primaryKey() && IntegerColumn.class.equals(type));
+                addColumn(extractor.getDbColumnName(field), getAffinity(type), notNull,
+                        column.collate() == CollationName.NOCASE);
+                continue;
+            }
+
+            final DBForeignKeyColumn fk = field.getAnnotation(DBForeignKeyColumn.class);
+            if (fk != null) {
+                final String name = extractor.getDbColumnName(field);
+                addColumn(name, Affinity.INTEGER, fk.notnull(), false);
+
+                // only one level deep, as parents can refer to themselves
+                if (withParents) {
+                    addParent(name, DBColumn.Extractor.extractTableName(fk.parent()),
+                            new QuerystringSchema(fk.parent(), false));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param type
+     * @return the affinity of the values of the given column type
+     */
+    public static Affinity getAffinity(Class<? extends DBColumnType<?>> type) {
+        if (IntegerColumn.class.equals(type) || DatetimeColumn.class.equals(type)) {
+            return Affinity.INTEGER;
+
+        } else if (DoubleColumn.class.equals(type) || FloatColumn.class.equals(type)) {
+            return Affinity.REAL;
+
+        } else if (BooleanColumn.class.equals(type)) {
+            return Affinity.BOOLEAN;
+
+        } else if (TextColumn.class.equals(type)) {
+            return Affinity.TEXT;
+
+        } else {
+            return Affinity.NONE;
+        }
+    }
+
+    /**
+     * Adds a column to the schema, replacing any column of the same name.
+     *
+     * @param name
+     * @param affinity
+     * @param notNull
+     *            true if the column can never be null
+     */
+    public void addColumn(String name, Affinity affinity, boolean notNull) {
+        addColumn(name, affinity, notNull, false);
+    }
+
+    /**
+     * Adds a column to the schema, replacing any column of the same name.
+     *
+     * @param name
+     * @param affinity
+     * @param notNull
+     *            true if the column can never be null
+     * @param noCase
+     *            true if the column uses the NOCASE collation
+     */
+    public void addColumn(String name, Affinity affinity, boolean notNull, boolean noCase) {
+        mColumns.put(name, new Column(name, affinity, notNull, noCase));
+    }
+
+    /**
+     * @param name
+     * @return the column or null if it isn't in the schema
+     */
+    public Column getColumn(String name) {
+        return mColumns.get(name);
+    }
+
+    /**
+     * Adds the parent of a foreign key column.
+     *
+     * @param foreignKey
+     *            the name of the foreign key column, which must also be added using
+     *            {@link #addColumn(String, Affinity, boolean, boolean)}
+     * @param table
+     *            the parent's table
+     * @param schema
+     *            the parent's columns
+     */
+    public void addParent(String foreignKey, String table, QuerystringSchema schema) {
+        mParents.put(foreignKey, new Parent(table, schema));
+    }
+
+    /**
+     * @param foreignKey
+     * @return the parent of the given foreign key or null if it isn't a foreign key of the schema
+     */
+    public Parent getParent(String foreignKey) {
+        return mParents.get(foreignKey);
+    }
+
+    /**
+     * @return the names of all the columns, in the order they were added
+     */
+    public Set<String> getColumnNames() {
+        return Collections.unmodifiableSet(mColumns.keySet());
+    }
+}
@@ -0,0 +1,234 @@
+package edu.mit.mobile.android.content.test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import edu.mit.mobile.android.content.column.BlobColumn;
+import edu.mit.mobile.android.content.column.BooleanColumn;
+import edu.mit.mobile.android.content.column.CompressedBlobColumn;
+import edu.mit.mobile.android.content.column.CompressedTextColumn;
+import edu.mit.mobile.android.content.column.DatetimeColumn;
+import edu.mit.mobile.android.content.column.DoubleColumn;
+import edu.mit.mobile.android.content.column.FloatColumn;
+import edu.mit.mobile.android.content.column.IntegerColumn;
+import edu.mit.mobile.android.content.column.TextColumn;
+
+public class ColumnTypeTest extends AndroidTestCase {
+
+    private final IntegerColumn mInteger = new IntegerColumn();
+    private final DoubleColumn mDouble = new DoubleColumn();
+    private final FloatColumn mFloat = new FloatColumn();
+    private final BooleanColumn mBoolean = new BooleanColumn();
+    private final DatetimeColumn mDatetime = new DatetimeColumn();
+    private final BlobColumn mBlob = new BlobColumn();
+    private final TextColumn mText = new TextColumn();
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE t (" + mInteger.toCreateColumn("i") + ","
+                + mDouble.toCreateColumn("d") + "," + mFloat.toCreateColumn("f") + ","
+                + mBoolean.toCreateColumn("b") + "," + mDatetime.toCreateColumn("dt") + ","
+                + mBlob.toCreateColumn("bl") + "," + mText.toCreateColumn("tx") + ")");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testBoxed() {
+        final Date date = new Date(1368000000123L);
+        final byte[] blob = new byte[] { 1, 2, 3 };
+
+        final SQLiteStatement insert = mDb
+                .compileStatement("INSERT INTO t VALUES (?, ?, ?, ?, ?, ?, ?)");
+        try {
+            mInteger.bindTo(insert, 1, 42);
+            mDouble.bindTo(insert, 2, 0.5);
+            mFloat.bindTo(insert, 3, 1.5f);
+            mBoolean.bindTo(insert, 4, true);
+            mDatetime.bindTo(insert, 5, date);
+            mBlob.bindTo(insert, 6, blob);
+            mText.bindTo(insert, 7, "hello");
+            insert.executeInsert();
+
+            // nulls
+            mInteger.bindTo(insert, 1, null);
+            mDouble.bindTo(insert, 2, null);
+            mFloat.bindTo(insert, 3, null);
+            mBoolean.bindTo(insert, 4, null);
+            mDatetime.bindTo(insert, 5, null);
+            mBlob.bindTo(insert, 6, null);
+            mText.bindTo(insert, 7, null);
+            insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+
+        final Cursor c = mDb.query("t", null, null, null, null, null, "rowid");
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(Integer.valueOf(42), mInteger.get(c, 0));
+            assertEquals(Double.valueOf(0.5), mDouble.get(c, 1));
+            assertEquals(Float.valueOf(1.5f), mFloat.get(c, 2));
+            assertEquals(Boolean.TRUE, mBoolean.get(c, 3));
+            assertEquals(date, mDatetime.get(c, 4));
+            assertTrue(Arrays.equals(blob, mBlob.get(c, 5)));
+            assertEquals("hello", mText.get(c, 6));
+
+            assertTrue(c.moveToNext());
+            for (int i = 0; i < c.getColumnCount(); i++) {
+                assertTrue(c.isNull(i));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testPrimitive() {
+        final long time = 1368000000123L;
+
+        final SQLiteStatement insert = mDb.compileStatement("INSERT INTO t (i, d, f, b, dt) "
+                + "VALUES (?, ?, ?, ?, ?)");
+        try {
+            mInteger.bindLong(insert, 1, Long.MAX_VALUE);
+            mDouble.bindDouble(insert, 2, -0.25);
+            mFloat.bindDouble(insert, 3, 2.5);
+            mBoolean.bindBoolean(insert, 4, false);
+            mDatetime.bindLong(insert, 5, time);
+            insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+
+        final Cursor c = mDb.query("t", new String[] { "i", "d", "f", "b", "dt" }, null, null,
+                null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(Long.MAX_VALUE, mInteger.getLong(c, 0));
+            assertEquals(-0.25, mDouble.getDouble(c, 1));
+            assertEquals(2.5, mFloat.getDouble(c, 2));
+            assertFalse(mBoolean.getBoolean(c, 3));
+            assertEquals(0, mBoolean.getLong(c, 3));
+            assertEquals(time, mDatetime.getLong(c, 4));
+            // the boxed and primitive values agree
+            assertEquals(mDatetime.get(c, 4).getTime(), mDatetime.getLong(c, 4));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testCompressed() {
+        final CompressedBlobColumn blobCol = new CompressedBlobColumn();
+        final CompressedTextColumn textCol = new CompressedTextColumn();
+        mDb.execSQL("CREATE TABLE c (" + blobCol.toCreateColumn("bl") + ","
+                + textCol.toCreateColumn("tx") + ")");
+
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("the quick brown fox jumps over the lazy dog. ");
+        }
+        final String longText = sb.toString();
+        final byte[] longBlob = new byte[4096];
+        final byte[] shortBlob = new byte[] { 1, 2, 3 };
+
+        // saved as a helper would
+        final ContentValues cv = new ContentValues();
+        cv.put("bl", longBlob);
+        cv.put("tx", longText);
+        blobCol.convertOnSave(cv, "bl");
+        textCol.convertOnSave(cv, "tx");
+        assertTrue(cv.getAsByteArray("bl").length < longBlob.length);
+        assertTrue(cv.get("tx") instanceof byte[]);
+        mDb.insert("c", null, cv);
+
+        // short values are stored as-is
+        cv.clear();
+        cv.put("bl", shortBlob);
+        cv.put("tx", "short");
+        blobCol.convertOnSave(cv, "bl");
+        textCol.convertOnSave(cv, "tx");
+        assertTrue(Arrays.equals(shortBlob, cv.getAsByteArray("bl")));
+        assertEquals("short", cv.get("tx"));
+        mDb.insert("c", null, cv);
+
+        // values saved before the columns were compressed
+        mDb.execSQL("INSERT INTO c VALUES (?, ?)", new Object[] { longBlob, longText });
+
+        final SQLiteStatement insert = mDb.compileStatement("INSERT INTO c VALUES (?, ?)");
+        try {
+            blobCol.bindTo(insert, 1, longBlob);
+            textCol.bindTo(insert, 2, longText);
+            insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+
+        final Cursor c = mDb.query("c", null, null, null, null, null, "rowid");
+        try {
+            assertEquals(4, c.getCount());
+
+            c.moveToPosition(0);
+            assertTrue(Arrays.equals(longBlob, blobCol.get(c, 0)));
+            assertEquals(longText, textCol.get(c, 1));
+
+            c.moveToPosition(1);
+            assertTrue(Arrays.equals(shortBlob, blobCol.get(c, 0)));
+            assertEquals("short", textCol.get(c, 1));
+
+            c.moveToPosition(2);
+            assertTrue(Arrays.equals(longBlob, blobCol.get(c, 0)));
+            assertEquals(longText, textCol.get(c, 1));
+
+            c.moveToPosition(3);
+            assertTrue(Arrays.equals(longBlob, blobCol.get(c, 0)));
+            assertEquals(longText, textCol.get(c, 1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testAutoNow() {
+        // as created by older versions, which stamped every row of the table
+        mDb.execSQL("CREATE TABLE a (_id INTEGER PRIMARY KEY, v TEXT, m INTEGER)");
+        mDb.execSQL("CREATE TRIGGER trigger_a_m_update AFTER UPDATE ON \"a\" FOR EACH ROW BEGIN "
+                + "UPDATE \"a\" SET \"m\" = ((julianday('now') - 2440587.5)*86400000);END");
+        mDb.execSQL("INSERT INTO a (_id, v, m) VALUES (1, 'one', 0)");
+        mDb.execSQL("INSERT INTO a (_id, v, m) VALUES (2, 'two', 0)");
+
+        assertEquals(1, DatetimeColumn.migrateAutoNowTriggers(mDb));
+        assertEquals(0, DatetimeColumn.migrateAutoNowTriggers(mDb));
+
+        mDb.execSQL("UPDATE a SET v = 'uno' WHERE _id = 1");
+        assertTrue(longForQuery("SELECT m FROM a WHERE _id = 1") > 1200000000000L);
+        assertEquals(0, longForQuery("SELECT m FROM a WHERE _id = 2"));
+
+        mDb.execSQL("CREATE TABLE b (_id INTEGER PRIMARY KEY, m INTEGER)");
+        for (final String sql : mDatetime.postTableSqlStatements("b", "m",
+                DatetimeColumn.FLAG_AUTO_NOW_ON_INSERT)) {
+            mDb.execSQL(sql);
+        }
+        mDb.execSQL("INSERT INTO b (_id, m) VALUES (1, 0)");
+        assertTrue(longForQuery("SELECT m FROM b WHERE _id = 1") > 1200000000000L);
+
+        // only on insert
+        mDb.execSQL("UPDATE b SET m = 0");
+        assertEquals(0, longForQuery("SELECT m FROM b WHERE _id = 1"));
+    }
+
+    private long longForQuery(String sql) {
+        return DatabaseUtils.longForQuery(mDb, sql, null);
+    }
+}
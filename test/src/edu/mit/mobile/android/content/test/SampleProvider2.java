@@ -34,6 +34,18 @@ public class SampleProvider2 extends SimpleContentProvider {
     public static final Uri SEARCH = ProviderUtils.toContentUri(AUTHORITY,
             getSearchPath(SEARCH_PATH));
 
+    public static final String SEARCH_FTS_PATH = "fts";
+    public static final Uri SEARCH_FTS = ProviderUtils.toContentUri(AUTHORITY,
+            getSearchPath(SEARCH_FTS_PATH));
+
+    public static final String SEARCH_PARALLEL_PATH = "parallel";
+    public static final Uri SEARCH_PARALLEL = ProviderUtils.toContentUri(AUTHORITY,
+            getSearchPath(SEARCH_PARALLEL_PATH));
+
+    private final SearchDBHelper mSearchHelper;
+
+    private final QuerystringWrapper mBlogPosts;
+
     public SampleProvider2() {
         // authority DB ver
         super(AUTHORITY, 1);
@@ -42,19 +54,24 @@ public class SampleProvider2 extends SimpleContentProvider {
         final QuerystringWrapper blogPosts = new QuerystringWrapper(blogPostsRaw);
 
         blogPosts.setOnSaveListener(BlogPost.ON_SAVE_LISTENER);
+        mBlogPosts = blogPosts;
 
         // creates a relationship between BlogPosts and Comments, using Comment.POST as the column.
         // It's also responsible for creating the tables for the child.
         final ForeignKeyDBHelper comments = new ForeignKeyDBHelper(BlogPost.class, Comment.class,
                 Comment.POST);
+        // comments can be filtered by the fields of their post, eg. post.title=foo
+        final QuerystringWrapper commentsQuery = new QuerystringWrapper(comments);
 
         addDirAndItemUri(blogPosts, BlogPost.PATH);
-        addChildDirAndItemUri(comments, BlogPost.PATH, Comment.PATH);
+        addChildDirAndItemUri(commentsQuery, BlogPost.PATH, Comment.PATH);
 
-        addDirAndItemUri(comments, Comment.PATH_ALL_COMMENTS);
+        addDirAndItemUri(commentsQuery, Comment.PATH_ALL_COMMENTS);
 
         // add in a search interface
         final SearchDBHelper searchHelper = new SearchDBHelper();
+        searchHelper.setPrefixCache(8, 50, 10000);
+        mSearchHelper = searchHelper;
 
         searchHelper.registerDBHelper(blogPostsRaw, BlogPost.CONTENT_URI, BlogPost.TITLE,
                 BlogPost.BODY, BlogPost.BODY, BlogPost.TITLE);
@@ -63,5 +80,44 @@ public class SampleProvider2 extends SimpleContentProvider {
                 Comment.BODY);
 
         addSearchUri(searchHelper, SEARCH_PATH);
+
+        // the same search, using a full-text index
+        final SearchDBHelper ftsSearchHelper = new SearchDBHelper();
+        ftsSearchHelper.setFullTextSearch(true);
+        ftsSearchHelper.setEarlyExit(true);
+
+        ftsSearchHelper.registerDBHelper(blogPostsRaw, BlogPost.CONTENT_URI, BlogPost.TITLE,
+                BlogPost.BODY, BlogPost.BODY, BlogPost.TITLE);
+
+        ftsSearchHelper.registerDBHelper(comments, Comment.ALL_COMMENTS, Comment.BODY, null,
+                Comment.BODY);
+
+        addSearchUri(ftsSearchHelper, SEARCH_FTS_PATH);
+
+        // and again, querying each helper on its own thread
+        final SearchDBHelper parallelSearchHelper = new SearchDBHelper();
+        parallelSearchHelper.setParallelSearch(true, SearchDBHelper.MERGE_FIRST_COME);
+
+        parallelSearchHelper.registerDBHelper(blogPostsRaw, BlogPost.CONTENT_URI, BlogPost.TITLE,
+                BlogPost.BODY, BlogPost.BODY, BlogPost.TITLE);
+
+        parallelSearchHelper.registerDBHelper(comments, Comment.ALL_COMMENTS, Comment.BODY, null,
+                Comment.BODY);
+
+        addSearchUri(parallelSearchHelper, SEARCH_PARALLEL_PATH);
+    }
+
+    /**
+     * @return the helper for {@link BlogPost#CONTENT_URI}
+     */
+    public QuerystringWrapper getBlogPostsHelper() {
+        return mBlogPosts;
+    }
+
+    /**
+     * @return the search helper for {@link #SEARCH}
+     */
+    public SearchDBHelper getSearchHelper() {
+        return mSearchHelper;
     }
 }
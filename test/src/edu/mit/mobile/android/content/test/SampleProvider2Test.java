@@ -17,10 +17,20 @@ package edu.mit.mobile.android.content.test;
  * along with this program; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
  */
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 import android.app.SearchManager;
@@ -34,16 +44,30 @@ import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.RemoteException;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 import edu.mit.mobile.android.content.AndroidVersions;
+import edu.mit.mobile.android.content.BatchedChildLoader;
+import edu.mit.mobile.android.content.BatchedChildLoader.OnChildrenLoadedListener;
+import edu.mit.mobile.android.content.BatchedManager;
 import edu.mit.mobile.android.content.DBSortOrder;
 import edu.mit.mobile.android.content.DBTable;
 import edu.mit.mobile.android.content.ForeignKeyDBHelper;
+import edu.mit.mobile.android.content.FileStore;
 import edu.mit.mobile.android.content.ForeignKeyManager;
 import edu.mit.mobile.android.content.QuerystringWrapper;
+import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.SimpleContentProvider;
 import edu.mit.mobile.android.content.UriPath;
+import edu.mit.mobile.android.content.WriteQueue;
+import edu.mit.mobile.android.content.dbhelper.SearchDBHelper;
+import edu.mit.mobile.android.content.query.QueryBuilder;
+import edu.mit.mobile.android.content.query.QueryTemplate;
+import edu.mit.mobile.android.content.query.QuerystringControls;
 import edu.mit.mobile.android.content.test.sample2.BlogPost;
 import edu.mit.mobile.android.content.test.sample2.Comment;
 
@@ -272,6 +296,42 @@ public class SampleProvider2Test extends ProviderTestCase2<SampleProvider2> {
                 .appendQueryParameter(BlogPost.BODY + "~", "body").build();
         ContentResolverTestUtils.testQuery(cr, queryLikeBody1, null, null, null, null, 2).close();
 
+        // the body has a trigram index, which must only narrow down the results
+        final Uri queryLikeBodyIndexed = BlogPost.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BlogPost.BODY + "~", "BLOGPOST BODY 2").build();
+        ContentResolverTestUtils.testQuery(cr, queryLikeBodyIndexed, null, null, null, null, 1)
+                .close();
+
+        final Uri queryLikeBodyWildcard = BlogPost.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BlogPost.BODY + "~", "test%dy_1").build();
+        ContentResolverTestUtils.testQuery(cr, queryLikeBodyWildcard, null, null, null, null, 1)
+                .close();
+
+        final Uri queryLikeBodyMissing = BlogPost.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BlogPost.BODY + "~", "body 3").build();
+        ContentResolverTestUtils.testQuery(cr, queryLikeBodyMissing, null, null, null, null, 0)
+                .close();
+
+        final Uri queryNotLikeBody = BlogPost.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BlogPost.BODY + "!~", "body 2").build();
+        ContentResolverTestUtils.testQuery(cr, queryNotLikeBody, null, null, null, null, 1)
+                .close();
+
+        // prefixes are case-sensitive on the default collation
+        final Uri queryTitlePrefix = new QueryBuilder(BlogPost.CONTENT_URI).startsWith(
+                BlogPost.TITLE, "test title").build();
+        ContentResolverTestUtils.testQuery(cr, queryTitlePrefix, null, null, null, null, 2)
+                .close();
+
+        final Uri queryTitlePrefix2 = new QueryBuilder(BlogPost.CONTENT_URI).startsWith(
+                BlogPost.TITLE, "test title 2").build();
+        testQueryItem(cr, queryTitlePrefix2, TEST_TITLE_2, TEST_BODY_2).close();
+
+        final Uri queryTitlePrefixCase = new QueryBuilder(BlogPost.CONTENT_URI).startsWith(
+                BlogPost.TITLE, "Test").build();
+        ContentResolverTestUtils.testQuery(cr, queryTitlePrefixCase, null, null, null, null, 0)
+                .close();
+
         final Uri queryIllegalName = BlogPost.CONTENT_URI.buildUpon()
                 .appendQueryParameter("Robert'); DROP TABLE Students; --", TEST_TITLE).build();
 
@@ -284,12 +344,197 @@ public class SampleProvider2Test extends ProviderTestCase2<SampleProvider2> {
         }
         assertTrue("expecting exception to be thrown", exceptionThrown);
 
+        // ///////////////////////////////////
+        // IN and BETWEEN
+
+        final Uri queryTitlesIn = new QueryBuilder(BlogPost.CONTENT_URI).in(BlogPost.TITLE,
+                TEST_TITLE, TEST_TITLE_2, "missing").build();
+        ContentResolverTestUtils.testQuery(cr, queryTitlesIn, null, null, null, null, 2).close();
+
+        final Uri queryTitlesNotIn = new QueryBuilder(BlogPost.CONTENT_URI).notIn(
+                BlogPost.TITLE, TEST_TITLE).build();
+        ContentResolverTestUtils.testQuery(cr, queryTitlesNotIn, null, null, null, null, 1)
+                .close();
+
+        final String itemId = String.valueOf(ContentUris.parseId(item));
+        final Uri queryIdBetween = new QueryBuilder(BlogPost.CONTENT_URI).between(BlogPost._ID,
+                itemId, itemId).build();
+        testQueryItem(cr, queryIdBetween, TEST_TITLE, TEST_BODY_1).close();
+
+        final Uri queryIdNotBetween = new QueryBuilder(BlogPost.CONTENT_URI).notBetween(
+                BlogPost._ID, itemId, itemId).build();
+        testQueryItem(cr, queryIdNotBetween, TEST_TITLE_2, TEST_BODY_2).close();
+
+        // lists that are too long to bind are looked up in a temporary table
+        final QuerystringWrapper blogPosts = getProvider().getBlogPostsHelper();
+        blogPosts.setMaxBoundListSize(1);
+
+        ContentResolverTestUtils.testQuery(cr, queryTitlesIn, null, null, null, null, 2).close();
+        ContentResolverTestUtils.testQuery(cr, queryTitlesIn, null, BlogPost.TITLE + "=?",
+                new String[] { TEST_TITLE_2 }, null, 1).close();
+
+        final Uri queryTitlesNotInLong = new QueryBuilder(BlogPost.CONTENT_URI).notIn(
+                BlogPost.TITLE, TEST_TITLE, "missing").build();
+        ContentResolverTestUtils.testQuery(cr, queryTitlesNotInLong, null, null, null, null, 1)
+                .close();
+
+        final ContentValues cv = new ContentValues();
+        cv.put(BlogPost.BODY, TEST_BODY_2);
+        assertEquals(2, cr.update(queryTitlesIn, cv, null, null));
+        assertEquals(0, cr.update(queryTitlesNotInLong, cv, BlogPost.TITLE + "=?",
+                new String[] { TEST_TITLE }));
+
+        blogPosts.setMaxBoundListSize(QuerystringWrapper.DEFAULT_MAX_BOUND_LIST_SIZE);
+
+        cv.put(BlogPost.BODY, TEST_BODY_1);
+        assertEquals(1, cr.update(queryTitle, cv, null, null));
+
         // ///////////////////////////////////
         // NOT
 
         final Uri queryNotTitle1 = BlogPost.CONTENT_URI.buildUpon()
                 .appendQueryParameter(BlogPost.TITLE + "!", TEST_TITLE).build();
         ContentResolverTestUtils.testQuery(cr, queryNotTitle1, null, null, null, null, 1).close();
+
+        // ///////////////////////////////////
+        // columns and values are checked against the BlogPost schema
+
+        final Uri queryPaddedId = new QueryBuilder(BlogPost.CONTENT_URI).is(BlogPost._ID,
+                "00" + itemId).build();
+        testQueryItem(cr, queryPaddedId, TEST_TITLE, TEST_BODY_1).close();
+
+        final Uri queryUnknownColumn = new QueryBuilder(BlogPost.CONTENT_URI).is("missing", "1")
+                .build();
+        exceptionThrown = false;
+        try {
+            cr.query(queryUnknownColumn, null, null, null, null);
+        } catch (final SQLGenerationException e) {
+            exceptionThrown = true;
+        }
+        assertTrue("expecting unknown column to be rejected", exceptionThrown);
+
+        final Uri queryNotANumber = new QueryBuilder(BlogPost.CONTENT_URI).greater(
+                BlogPost.CREATED_DATE, "yesterday").build();
+        exceptionThrown = false;
+        try {
+            cr.query(queryNotANumber, null, null, null, null);
+        } catch (final IllegalArgumentException e) {
+            exceptionThrown = true;
+        }
+        assertTrue("expecting non-numeric date to be rejected", exceptionThrown);
+
+        // ///////////////////////////////////
+        // compiled templates
+
+        final QueryTemplate.Compiled byTitle = new QueryTemplate()
+                .is(BlogPost.TITLE, QueryTemplate.Type.STRING)
+                .andGreater(BlogPost.CREATED_DATE, QueryTemplate.Type.LONG).compile();
+        Cursor c = ContentResolverTestUtils.testQuery(cr, BlogPost.CONTENT_URI, null,
+                byTitle.getSelection(), byTitle.bind(TEST_TITLE_2, 0L), null, 1);
+        assertEquals(TEST_TITLE_2, c.getString(c.getColumnIndex(BlogPost.TITLE)));
+        c.close();
+        ContentResolverTestUtils.testQuery(cr, BlogPost.CONTENT_URI, null,
+                byTitle.getSelection(), byTitle.bind(TEST_TITLE, Long.MAX_VALUE), null, 0)
+                .close();
+
+        // ///////////////////////////////////
+        // limit, offset, sort and projection
+
+        final Uri querySorted = new QueryBuilder(BlogPost.CONTENT_URI).like(BlogPost.TITLE,
+                "test title").sortByDescending(BlogPost.TITLE).build();
+        c = ContentResolverTestUtils.testQuery(cr, querySorted, null, null, null, null, 2);
+        assertEquals(TEST_TITLE_2, c.getString(c.getColumnIndex(BlogPost.TITLE)));
+        c.close();
+
+        // the query's sort order replaces the one passed in
+        c = ContentResolverTestUtils.testQuery(cr, querySorted, null, null, null, BlogPost.TITLE,
+                2);
+        assertEquals(TEST_TITLE_2, c.getString(c.getColumnIndex(BlogPost.TITLE)));
+        c.close();
+
+        final Uri queryFirstPage = new QueryBuilder(BlogPost.CONTENT_URI).sortBy(BlogPost.TITLE)
+                .limit(1).build();
+        testQueryItem(cr, queryFirstPage, TEST_TITLE, TEST_BODY_1).close();
+
+        final Uri querySecondPage = new QueryBuilder(BlogPost.CONTENT_URI)
+                .sortBy(BlogPost.TITLE).limit(1).offset(1).build();
+        testQueryItem(cr, querySecondPage, TEST_TITLE_2, TEST_BODY_2).close();
+
+        // uses the default sort order
+        final Uri queryLimitOnly = new QueryBuilder(BlogPost.CONTENT_URI).is(BlogPost.TITLE,
+                TEST_TITLE).limit(5).build();
+        testQueryItem(cr, queryLimitOnly, TEST_TITLE, TEST_BODY_1).close();
+
+        final Uri queryProjection = new QueryBuilder(BlogPost.CONTENT_URI).is(BlogPost.TITLE,
+                TEST_TITLE).projection(BlogPost._ID, BlogPost.TITLE).build();
+        c = ContentResolverTestUtils.testQuery(cr, queryProjection, null, null, null, null, 1);
+        assertEquals(2, c.getColumnCount());
+        assertEquals(TEST_TITLE, c.getString(c.getColumnIndex(BlogPost.TITLE)));
+        c.close();
+
+        // only declared columns can be used
+        final Uri queryBadSort = new QueryBuilder(BlogPost.CONTENT_URI).sortBy("missing").build();
+        exceptionThrown = false;
+        try {
+            cr.query(queryBadSort, null, null, null, null);
+        } catch (final SQLGenerationException e) {
+            exceptionThrown = true;
+        }
+        assertTrue("expecting exception to be thrown", exceptionThrown);
+
+        // aggregates
+        final Uri queryCount = new QueryBuilder(BlogPost.CONTENT_URI).like(BlogPost.TITLE,
+                "test title").count().min(BlogPost.TITLE).max(BlogPost.TITLE).build();
+        c = ContentResolverTestUtils.testQuery(cr, queryCount, null, null, null, null, 1);
+        assertEquals(3, c.getColumnCount());
+        assertEquals(2, c.getInt(c.getColumnIndex(QuerystringControls.COUNT_COLUMN)));
+        assertEquals(TEST_TITLE, c.getString(c.getColumnIndex(QuerystringControls
+                .getAggregateColumn(QuerystringWrapper.QUERY_KEY_MIN, BlogPost.TITLE))));
+        assertEquals(TEST_TITLE_2, c.getString(c.getColumnIndex(QuerystringControls
+                .getAggregateColumn(QuerystringWrapper.QUERY_KEY_MAX, BlogPost.TITLE))));
+        c.close();
+
+        final Uri queryGrouped = new QueryBuilder(BlogPost.CONTENT_URI).groupBy(BlogPost.TITLE)
+                .count().sortByDescending(BlogPost.TITLE).build();
+        c = ContentResolverTestUtils.testQuery(cr, queryGrouped, null, null, null, null, 2);
+        assertEquals(TEST_TITLE_2, c.getString(c.getColumnIndex(BlogPost.TITLE)));
+        assertEquals(1, c.getInt(c.getColumnIndex(QuerystringControls.COUNT_COLUMN)));
+        c.close();
+
+        // the aggregate can be sorted on and the groups limited
+        final Uri queryTopGroup = new QueryBuilder(BlogPost.CONTENT_URI).groupBy(BlogPost.BODY)
+                .count().sortByDescending(QuerystringControls.COUNT_COLUMN).limit(1).build();
+        ContentResolverTestUtils.testQuery(cr, queryTopGroup, null, null, null, null, 1).close();
+
+        // the reserved keys only apply to queries
+        exceptionThrown = false;
+        try {
+            cr.delete(queryLimitOnly, null, null);
+        } catch (final IllegalArgumentException e) {
+            exceptionThrown = true;
+        }
+        assertTrue("expecting exception to be thrown", exceptionThrown);
+
+        // ///////////////////////////////////
+        // parsed query cache
+
+        final int hits = blogPosts.getQueryCacheHitCount();
+        final int misses = blogPosts.getQueryCacheMissCount();
+
+        ContentResolverTestUtils.testQuery(cr, queryNotTitle1, null, null, null, null, 1).close();
+        assertEquals(hits + 1, blogPosts.getQueryCacheHitCount());
+
+        // the cached query must combine with a different selection each time
+        ContentResolverTestUtils.testQuery(cr, queryNotTitle1, null, BlogPost.BODY + "=?",
+                new String[] { TEST_BODY_1 }, null, 0).close();
+        ContentResolverTestUtils.testQuery(cr, queryNotTitle1, null, BlogPost.BODY + "=?",
+                new String[] { TEST_BODY_2 }, null, 1).close();
+        assertEquals(hits + 3, blogPosts.getQueryCacheHitCount());
+        assertEquals(misses, blogPosts.getQueryCacheMissCount());
+
+        blogPosts.setQueryCacheSize(0);
+        ContentResolverTestUtils.testQuery(cr, queryNotTitle1, null, null, null, null, 1).close();
+        assertEquals(hits + 3, blogPosts.getQueryCacheHitCount());
     }
 
     public void testForeignKeyCrud() {
@@ -345,6 +590,37 @@ public class SampleProvider2Test extends ProviderTestCase2<SampleProvider2> {
         ContentResolverTestUtils.testQuery(cr, Comment.ALL_COMMENTS, null, Comment.BODY + "=?",
                 new String[] { TEST_COMMENT_BODY_3 }, null, 0).close();
 
+        // filter by the fields of the parent
+        final String postTitle = Comment.POST + "." + BlogPost.TITLE;
+
+        final Uri commentsOfPost2 = new QueryBuilder(Comment.ALL_COMMENTS).is(postTitle,
+                TEST_TITLE_2).build();
+        Cursor c = ContentResolverTestUtils.testQuery(cr, commentsOfPost2, null, null, null,
+                null, 1);
+        assertEquals(TEST_COMMENT_BODY_1, c.getString(c.getColumnIndex(Comment.BODY)));
+        c.close();
+
+        final Uri commentsLikeTitle = new QueryBuilder(Comment.ALL_COMMENTS)
+                .like(postTitle, "title").andIs(Comment.BODY, TEST_COMMENT_BODY_1).build();
+        ContentResolverTestUtils.testQuery(cr, commentsLikeTitle, null, null, null, null, 2)
+                .close();
+
+        // the parent restriction of the path still applies
+        final Uri post1CommentsOfPost2 = new QueryBuilder(post1Comments).is(postTitle,
+                TEST_TITLE_2).build();
+        ContentResolverTestUtils.testQuery(cr, post1CommentsOfPost2, null, null, null, null, 0)
+                .close();
+
+        final Uri commentsUnknownParentColumn = new QueryBuilder(Comment.ALL_COMMENTS).is(
+                Comment.POST + ".missing", "1").build();
+        boolean exceptionThrown = false;
+        try {
+            cr.query(commentsUnknownParentColumn, null, null, null, null);
+        } catch (final SQLGenerationException e) {
+            exceptionThrown = true;
+        }
+        assertTrue("expecting unknown parent column to be rejected", exceptionThrown);
+
         // test wildcard searching with item ID
         ContentResolverTestUtils.testQuery(cr, ContentUris.withAppendedId(Comment.ALL_COMMENTS, 1),
                 null, null, null, null, 1).close();
@@ -423,6 +699,200 @@ public class SampleProvider2Test extends ProviderTestCase2<SampleProvider2> {
 
     }
 
+    public void testBatchedChildLoader() {
+        final MockContentResolver cr = getMockContentResolver();
+
+        final Uri post1 = createTestPost(cr, TEST_TITLE, TEST_BODY_1);
+        final Uri post2 = createTestPost(cr, TEST_TITLE_2, TEST_BODY_2);
+        final Uri post3 = createTestPost(cr, TEST_TITLE_3, TEST_BODY_3);
+
+        createTestComment(cr, post1, TEST_COMMENT_BODY_1);
+        createTestComment(cr, post1, TEST_COMMENT_BODY_2);
+        createTestComment(cr, post2, TEST_COMMENT_BODY_3);
+
+        final BatchedChildLoader loader = new BatchedChildLoader(cr, BlogPost.COMMENTS,
+                BlogPost.CONTENT_URI, new String[] { Comment._ID, Comment.BODY });
+
+        final BatchedChildLoader.Result result = loader.load(new long[] {
+                ContentUris.parseId(post1), ContentUris.parseId(post2),
+                ContentUris.parseId(post3) });
+
+        final Cursor c1 = result.getChildren(ContentUris.parseId(post1));
+        final Cursor c2 = result.getChildren(ContentUris.parseId(post2));
+        final Cursor c3 = result.getChildren(ContentUris.parseId(post3));
+        result.close();
+
+        try {
+            assertEquals(2, c1.getCount());
+            assertEquals(1, c2.getCount());
+            assertEquals(0, c3.getCount());
+            assertFalse(c3.moveToFirst());
+
+            final int bodyCol = c1.getColumnIndex(Comment.BODY);
+            final int postCol = c1.getColumnIndex(Comment.POST);
+            assertTrue(postCol != -1);
+
+            // interleaved access to the shared cursor
+            assertTrue(c2.moveToFirst());
+            final HashSet<String> bodies = new HashSet<String>();
+            while (c1.moveToNext()) {
+                assertEquals(ContentUris.parseId(post1), c1.getLong(postCol));
+                bodies.add(c1.getString(bodyCol));
+                assertEquals(TEST_COMMENT_BODY_3, c2.getString(bodyCol));
+            }
+            assertTrue(bodies.contains(TEST_COMMENT_BODY_1));
+            assertTrue(bodies.contains(TEST_COMMENT_BODY_2));
+
+        } finally {
+            c1.close();
+            c2.close();
+            c3.close();
+        }
+    }
+
+    /**
+     * Requests made on one turn of the looper are loaded by a single query, and the shared cursor
+     * is closed once the last of the per-parent views is.
+     */
+    public void testBatchedChildLoaderRequests() throws InterruptedException {
+        final MockContentResolver cr = getMockContentResolver();
+
+        final long post1 = ContentUris.parseId(createTestPost(cr, TEST_TITLE, TEST_BODY_1));
+        final long post2 = ContentUris.parseId(createTestPost(cr, TEST_TITLE_2, TEST_BODY_2));
+        final long post3 = ContentUris.parseId(createTestPost(cr, TEST_TITLE_3, TEST_BODY_3));
+
+        final Uri post1Uri = ContentUris.withAppendedId(BlogPost.CONTENT_URI, post1);
+        createTestComment(cr, post1Uri, TEST_COMMENT_BODY_1);
+        createTestComment(cr, post1Uri, TEST_COMMENT_BODY_2);
+        createTestComment(cr, ContentUris.withAppendedId(BlogPost.CONTENT_URI, post2),
+                TEST_COMMENT_BODY_3);
+
+        final CountingManager manager = new CountingManager(BlogPost.COMMENTS);
+        final BatchedChildLoader loader = new BatchedChildLoader(cr, manager,
+                BlogPost.CONTENT_URI, new String[] { Comment._ID, Comment.BODY });
+        // the batch is loaded on the looper's thread, so the test only has one other thread
+        loader.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        final HandlerThread thread = new HandlerThread(getName());
+        thread.start();
+        try {
+            final Handler handler = new Handler(thread.getLooper());
+
+            // post1 is requested twice, so there are four listener calls for three parents
+            final CountDownLatch loaded = new CountDownLatch(4);
+            final ArrayList<Cursor> views = new ArrayList<Cursor>();
+            final HashMap<Long, Integer> counts = new HashMap<Long, Integer>();
+            final OnChildrenLoadedListener listener = new OnChildrenLoadedListener() {
+
+                @Override
+                public void onChildrenLoaded(long parentId, Cursor children) {
+                    views.add(children);
+                    counts.put(parentId, children.getCount());
+                    loaded.countDown();
+                }
+            };
+
+            handler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    loader.request(post1, listener);
+                    loader.request(post2, listener);
+                    loader.request(post1, listener);
+                    loader.request(post3, listener);
+                }
+            });
+            assertTrue(loaded.await(5, TimeUnit.SECONDS));
+
+            assertEquals(1, manager.mQueries);
+            assertEquals(3, manager.mParentIds.length);
+            assertEquals(Integer.valueOf(2), counts.get(post1));
+            assertEquals(Integer.valueOf(1), counts.get(post2));
+            assertEquals(Integer.valueOf(0), counts.get(post3));
+
+            // the views are closed on the requesting thread, after the loader released its result
+            final boolean[] openUntilLast = new boolean[2];
+            final CountDownLatch closed = new CountDownLatch(1);
+            handler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < views.size() - 1; i++) {
+                        views.get(i).close();
+                    }
+                    openUntilLast[0] = !manager.mCursor.isClosed();
+                    views.get(views.size() - 1).close();
+                    openUntilLast[1] = manager.mCursor.isClosed();
+                    closed.countDown();
+                }
+            });
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertTrue(openUntilLast[0]);
+            assertTrue(openUntilLast[1]);
+
+        } finally {
+            thread.quit();
+        }
+    }
+
+    /**
+     * Counts the batched queries and keeps the last cursor, to check when it's closed.
+     */
+    private static class CountingManager implements BatchedManager {
+        private final BatchedManager mManager;
+        int mQueries;
+        long[] mParentIds;
+        Cursor mCursor;
+
+        public CountingManager(BatchedManager manager) {
+            mManager = manager;
+        }
+
+        @Override
+        public Cursor query(ContentResolver cr, Uri parentDir, long[] parentIds,
+                String[] projection) {
+            mQueries++;
+            mParentIds = parentIds;
+            mCursor = mManager.query(cr, parentDir, parentIds, projection);
+            return mCursor;
+        }
+
+        @Override
+        public String getParentIdColumn() {
+            return mManager.getParentIdColumn();
+        }
+
+        @Override
+        public Uri getUri(Uri parent) {
+            return mManager.getUri(parent);
+        }
+
+        @Override
+        public Uri insert(ContentResolver cr, Uri parent, ContentValues cv) {
+            return mManager.insert(cr, parent, cv);
+        }
+
+        @Override
+        public Cursor query(ContentResolver cr, Uri parent, String[] projection) {
+            return mManager.query(cr, parent, projection);
+        }
+
+        @Override
+        public String getSortOrder() {
+            return mManager.getSortOrder();
+        }
+
+        @Override
+        public String getPath() {
+            return mManager.getPath();
+        }
+    }
+
     private static final int BULK_INSERTS = 100;
 
     public void testBulkInsert() {
@@ -462,6 +932,185 @@ public class SampleProvider2Test extends ProviderTestCase2<SampleProvider2> {
         cr.applyBatch(SampleProvider2.AUTHORITY, ops);
     }
 
+    public void testFileColumn() throws IOException {
+        final MockContentResolver cr = getMockContentResolver();
+        final Context context = getProvider().getContext();
+
+        final Uri post = createTestPost(cr, TEST_TITLE, TEST_BODY_1);
+        final Uri comment = createTestComment(cr, post, TEST_COMMENT_BODY_1);
+
+        // there's no file until it's written
+        try {
+            cr.openInputStream(comment).close();
+            fail("expecting FileNotFoundException");
+        } catch (final FileNotFoundException e) {
+            // expected
+        }
+
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final OutputStream os = cr.openOutputStream(comment);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+
+        final File file = FileStore.getFile(context, getAttachmentName(cr, comment));
+        assertTrue(file.exists());
+        assertEquals(data.length, file.length());
+
+        final InputStream is = cr.openInputStream(comment);
+        try {
+            final byte[] read = new byte[data.length];
+            int len = 0;
+            for (int r; len < read.length && (r = is.read(read, len, read.length - len)) != -1;) {
+                len += r;
+            }
+            assertEquals(data.length, len);
+            assertEquals(-1, is.read());
+            assertTrue(Arrays.equals(data, read));
+        } finally {
+            is.close();
+        }
+
+        // names outside the directory are rejected
+        final ContentValues cv = new ContentValues();
+        cv.put(Comment.ATTACHMENT, "../databases/test.db");
+        try {
+            cr.update(comment, cv, null, null);
+            fail("expecting IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(file.exists());
+
+        // as is pointing another row at this one's file, which would be deleted along with it
+        final Uri other = createTestComment(cr, post, TEST_COMMENT_BODY_2);
+        cv.put(Comment.ATTACHMENT, file.getName());
+        try {
+            cr.update(other, cv, null, null);
+            fail("expecting IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, cr.delete(other, null, null));
+        assertTrue(file.exists());
+
+        // clearing the column deletes the file
+        cv.putNull(Comment.ATTACHMENT);
+        assertEquals(1, cr.update(comment, cv, null, null));
+        assertFalse(file.exists());
+
+        // as does deleting the row
+        cr.openOutputStream(comment).close();
+        final File file2 = FileStore.getFile(context, getAttachmentName(cr, comment));
+        assertTrue(file2.exists());
+        assertEquals(1, cr.delete(comment, null, null));
+        assertFalse(file2.exists());
+
+        // or its parent
+        if (AndroidVersions.SQLITE_SUPPORTS_FOREIGN_KEYS) {
+            final Uri comment2 = createTestComment(cr, post, TEST_COMMENT_BODY_2);
+            cr.openOutputStream(comment2).close();
+            final File file3 = FileStore.getFile(context, getAttachmentName(cr, comment2));
+            assertTrue(file3.exists());
+            assertEquals(1, cr.delete(post, null, null));
+            assertFalse(file3.exists());
+        }
+    }
+
+    private String getAttachmentName(ContentResolver cr, Uri comment) {
+        final Cursor c = cr.query(comment, new String[] { Comment.ATTACHMENT }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            final String name = c.getString(0);
+            assertNotNull(name);
+            return name;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testWriteQueue() throws InterruptedException {
+        final MockContentResolver cr = getMockContentResolver();
+        final WriteQueue queue = getProvider().getWriteQueue();
+
+        ContentValues cv = new ContentValues();
+        long sequence = 0;
+        for (int i = 0; i < 100; i++) {
+            cv.put(BlogPost.TITLE, TEST_TITLE + " " + i);
+            cv.put(BlogPost.BODY, TEST_BODY_1);
+            sequence = queue.enqueueInsert(BlogPost.CONTENT_URI, cv);
+        }
+        // a post needs a title, so this one fails without affecting the rest
+        cv = new ContentValues();
+        cv.put(BlogPost.BODY, TEST_BODY_2);
+        final long untitled = queue.enqueueInsert(BlogPost.CONTENT_URI, cv);
+
+        assertEquals(untitled, queue.flush());
+        assertTrue(queue.await(sequence, 1));
+        assertFalse(queue.await(untitled, 1));
+        assertNotNull(queue.getFailure(untitled));
+        assertNull(queue.getFailure(sequence));
+        assertEquals(1, queue.getFailedCount());
+        assertTrue(Arrays.equals(new long[] { untitled }, queue.getFailed(0, untitled)));
+        assertEquals(100, countPosts(cr, null));
+
+        cv = new ContentValues();
+        cv.put(BlogPost.BODY, TEST_BODY_1_MOD);
+        queue.enqueueUpdate(BlogPost.CONTENT_URI, cv, BlogPost.TITLE + " LIKE ?",
+                new String[] { TEST_TITLE + " 1%" });
+        final long updated = queue.flush();
+        assertEquals(11, countPosts(cr, TEST_BODY_1_MOD));
+
+        // URIs are checked right away
+        try {
+            queue.enqueueInsert(Uri.parse("content://" + SampleProvider2.AUTHORITY + "/foo"), cv);
+            fail("expecting IllegalArgumentException");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+
+        // the same, through call()
+        final Bundle extras = new Bundle();
+        final ContentValues[] values = new ContentValues[10];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(BlogPost.TITLE, TEST_TITLE_2 + " " + i);
+            values[i].put(BlogPost.BODY, TEST_BODY_2);
+        }
+        extras.putParcelableArray(SimpleContentProvider.EXTRA_VALUES, values);
+        final Bundle queued = getProvider().call(SimpleContentProvider.CALL_ENQUEUE_INSERT,
+                BlogPost.CONTENT_URI.toString(), extras);
+        assertEquals(queue.getEnqueued(), queued.getLong(SimpleContentProvider.EXTRA_SEQUENCE));
+
+        final Bundle since = new Bundle();
+        since.putLong(SimpleContentProvider.EXTRA_SINCE, updated);
+        final Bundle flushed = getProvider().call(SimpleContentProvider.CALL_FLUSH, null, since);
+        assertTrue(flushed.getBoolean(SimpleContentProvider.EXTRA_COMMITTED));
+        assertEquals(0, flushed.getLongArray(SimpleContentProvider.EXTRA_FAILED).length);
+
+        // the earlier failure is reported when asked about every write
+        final Bundle all = getProvider().call(SimpleContentProvider.CALL_FLUSH, null, null);
+        assertFalse(all.getBoolean(SimpleContentProvider.EXTRA_COMMITTED));
+        assertTrue(Arrays.equals(new long[] { untitled },
+                all.getLongArray(SimpleContentProvider.EXTRA_FAILED)));
+        assertEquals(10, countPosts(cr, TEST_BODY_2));
+    }
+
+    private int countPosts(ContentResolver cr, String body) {
+        final Cursor c = cr.query(BlogPost.CONTENT_URI, null, body != null ? BlogPost.BODY + "=?"
+                : null, body != null ? new String[] { body } : null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
     public void testAutoNow() {
         final ContentResolver cr = getMockContentResolver();
 
@@ -610,10 +1259,169 @@ public class SampleProvider2Test extends ProviderTestCase2<SampleProvider2> {
 
         // try limiting the search results.
         manualSearch(cr, null, 4, 4).close();
+
+        // ...by less than a single source has
+        manualSearch(cr, null, 2, 2).close();
+
+        // ...by more than there are
+        manualSearch(cr, null, 7, 10).close();
+    }
+
+    public void testSearchFullText() {
+        final ContentResolver cr = getMockContentResolver();
+
+        final Uri post1 = createTestPost(cr, TEST_TITLE, TEST_BODY_1);
+
+        final Uri post2 = createTestPost(cr, TEST_TITLE_2, TEST_BODY_2);
+
+        createTestPost(cr, TEST_TITLE_3, TEST_BODY_3);
+
+        createTestComment(cr, post1, TEST_COMMENT_BODY_1);
+
+        createTestComment(cr, post2, TEST_COMMENT_BODY_2);
+
+        createTestComment(cr, post1, TEST_COMMENT_BODY_3);
+
+        final Uri comment4 = createTestComment(cr, post1, TEST_COMMENT_BODY_1_MOD);
+
+        Cursor c = manualSearch(cr, SampleProvider2.SEARCH_FTS, "robot", 1, -1);
+        final int text1Col = c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_TEXT_1);
+        assertEquals(TEST_TITLE_3, c.getString(text1Col));
+        c.close();
+
+        // words are matched by prefix, so there's no kitten in the middle of the title
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, "kitten", 0, -1).close();
+
+        // but there is a television
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, "televis", 1, -1).close();
+
+        // case-insensitive, prefix robot
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, "ROB", 1, -1).close();
+
+        // all the words must match
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, "test title", 2, -1).close();
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, "test robot", 0, -1).close();
+
+        // query syntax is ignored
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, "\"banned\" -", 1, -1).close();
+
+        // a query without any words falls back to a substring search
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, "!!!", 1, -1).close();
+
+        // find all of them
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, null, 7, -1).close();
+
+        // this search stops early, so only the posts are needed
+        c = manualSearch(cr, SampleProvider2.SEARCH_FTS, null, 2, 2);
+        assertEquals(TEST_TITLE, c.getString(text1Col));
+        c.close();
+
+        // ...and some of the comments
+        c = manualSearch(cr, SampleProvider2.SEARCH_FTS, null, 5, 5);
+        c.moveToLast();
+        assertEquals(TEST_COMMENT_BODY_2, c.getString(text1Col));
+        c.close();
+
+        // the index follows updates and deletes
+        final ContentValues cv = new ContentValues();
+        cv.put(BlogPost.BODY, TEST_BODY_1_MOD);
+        cr.update(post2, cv, null, null);
+
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, "modified", 1, -1).close();
+
+        cr.delete(comment4, null, null);
+
+        manualSearch(cr, SampleProvider2.SEARCH_FTS, "banned", 0, -1).close();
+    }
+
+    public void testSearchParallel() {
+        final ContentResolver cr = getMockContentResolver();
+
+        final Uri post1 = createTestPost(cr, TEST_TITLE, TEST_BODY_1);
+
+        final Uri post2 = createTestPost(cr, TEST_TITLE_2, TEST_BODY_2);
+
+        createTestPost(cr, TEST_TITLE_3, TEST_BODY_3);
+
+        createTestComment(cr, post1, TEST_COMMENT_BODY_1);
+
+        createTestComment(cr, post2, TEST_COMMENT_BODY_2);
+
+        final Cursor c = manualSearch(cr, SampleProvider2.SEARCH_PARALLEL, "robot", 1, -1);
+        assertEquals(TEST_TITLE_3,
+                c.getString(c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_TEXT_1)));
+        assertEquals(c.getLong(c.getColumnIndexOrThrow(BlogPost._ID)),
+                c.getLong(c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID)));
+        c.close();
+
+        // one from each source
+        manualSearch(cr, SampleProvider2.SEARCH_PARALLEL, "is", 2, -1).close();
+
+        manualSearch(cr, SampleProvider2.SEARCH_PARALLEL, "fnord", 0, -1).close();
+
+        manualSearch(cr, SampleProvider2.SEARCH_PARALLEL, null, 5, -1).close();
+
+        manualSearch(cr, SampleProvider2.SEARCH_PARALLEL, null, 4, 4).close();
+
+        manualSearch(cr, SampleProvider2.SEARCH_PARALLEL, null, 1, 1).close();
+    }
+
+    public void testSearchPrefixCache() {
+        final ContentResolver cr = getMockContentResolver();
+        final SearchDBHelper searchHelper = getProvider().getSearchHelper();
+
+        final Uri post1 = createTestPost(cr, TEST_TITLE, TEST_BODY_1);
+
+        final Uri post2 = createTestPost(cr, TEST_TITLE_2, TEST_BODY_2);
+
+        createTestPost(cr, TEST_TITLE_3, TEST_BODY_3);
+
+        createTestComment(cr, post1, TEST_COMMENT_BODY_1);
+
+        createTestComment(cr, post2, TEST_COMMENT_BODY_2);
+
+        createTestComment(cr, post1, TEST_COMMENT_BODY_3);
+
+        createTestComment(cr, post1, TEST_COMMENT_BODY_1_MOD);
+
+        // type-ahead
+        manualSearch(cr, "t", 7, -1).close();
+        manualSearch(cr, "te", 5, -1).close();
+        manualSearch(cr, "tel", 1, -1).close();
+        manualSearch(cr, "test", 2, -1).close();
+        manualSearch(cr, "test t", 2, -1).close();
+
+        // limits are applied to the cached results too
+        manualSearch(cr, "te", 3, 3).close();
+
+        // backspace and type something else
+        final Cursor c = manualSearch(cr, "this", 1, -1);
+        assertEquals(TEST_TITLE_3,
+                c.getString(c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_TEXT_1)));
+        c.close();
+
+        assertEquals(1, searchHelper.getPrefixCacheMissCount());
+        assertEquals(6, searchHelper.getPrefixCacheHitCount());
+
+        // not a prefix of anything cached
+        manualSearch(cr, "co", 2, -1).close();
+        manualSearch(cr, "com", 2, -1).close();
+
+        // wildcards are left to the database
+        manualSearch(cr, "t_t", 2, -1).close();
+
+        assertEquals(2, searchHelper.getPrefixCacheMissCount());
+        assertEquals(7, searchHelper.getPrefixCacheHitCount());
+    }
+
+    private Cursor manualSearch(ContentResolver cr, String query, int expectedCount, int limit) {
+        return manualSearch(cr, SampleProvider2.SEARCH, query, expectedCount, limit);
     }
 
     /**
      * @param cr
+     * @param searchUri
+     *            the base URI of the search
      * @param query
      *            can be null
      * @param expectedCount
@@ -621,9 +1429,9 @@ public class SampleProvider2Test extends ProviderTestCase2<SampleProvider2> {
      *            -1 if undesired
      * @return
      */
-    private Cursor manualSearch(ContentResolver cr, String query, int expectedCount, int limit) {
-        Uri uri = query != null ? Uri.withAppendedPath(SampleProvider2.SEARCH, query)
-                : SampleProvider2.SEARCH;
+    private Cursor manualSearch(ContentResolver cr, Uri searchUri, String query,
+            int expectedCount, int limit) {
+        Uri uri = query != null ? Uri.withAppendedPath(searchUri, query) : searchUri;
 
         if (limit >= 0) {
             uri = uri.buildUpon().appendQueryParameter("limit", String.valueOf(limit)).build();
@@ -1,7 +1,12 @@
 package edu.mit.mobile.android.content.test;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
 import edu.mit.mobile.android.content.ForeignKeyDBHelper;
 import edu.mit.mobile.android.content.GenericDBHelper;
+import edu.mit.mobile.android.content.ProviderUtils;
+import edu.mit.mobile.android.content.QuerystringWrapper;
 import edu.mit.mobile.android.content.SimpleContentProvider;
 import edu.mit.mobile.android.content.test.sample4.Person;
 
@@ -18,6 +23,9 @@ public class SampleProvider4 extends SimpleContentProvider {
         final ForeignKeyDBHelper subordinateHelper = new ForeignKeyDBHelper(Person.class,
                 Person.class, Person.SUPERVISOR);
 
+        final QuerystringWrapper namedSubordinateHelper = new QuerystringWrapper(
+                new NamedSubordinateHelper());
+
         //
         // define the interface.
         //
@@ -27,5 +35,27 @@ public class SampleProvider4 extends SimpleContentProvider {
 
         // /person/1/subordinates/
         addChildDirAndItemUri(subordinateHelper, Person.PATH, Person.SUBORDINATE_PATH);
+
+        // /person/1/named_subordinates/
+        addChildDirAndItemUri(namedSubordinateHelper, Person.PATH, Person.NAMED_SUBORDINATE_PATH);
+    }
+
+    /**
+     * Restricts the subordinates to those with a name, the way helpers were customized before
+     * they took a {@link edu.mit.mobile.android.content.SelectionBuilder}.
+     */
+    private static class NamedSubordinateHelper extends ForeignKeyDBHelper {
+
+        public NamedSubordinateHelper() {
+            super(Person.class, Person.class, Person.SUPERVISOR);
+        }
+
+        @Override
+        public Cursor queryDir(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return super.queryDir(db, uri, projection,
+                    ProviderUtils.addExtraWhere(selection, Person.NAME + " IS NOT NULL"),
+                    selectionArgs, sortOrder);
+        }
     }
 }
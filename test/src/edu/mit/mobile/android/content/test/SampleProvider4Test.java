@@ -17,13 +17,23 @@ package edu.mit.mobile.android.content.test;
  * along with this program; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
  */
+import java.util.Arrays;
+
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import edu.mit.mobile.android.content.BlobStore;
 import edu.mit.mobile.android.content.ForeignKeyDBHelper;
+import edu.mit.mobile.android.content.GenericDBHelper;
+import edu.mit.mobile.android.content.SQLGenUtils;
+import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.WriteQueue;
+import edu.mit.mobile.android.content.m2m.M2MDBHelper;
 import edu.mit.mobile.android.content.test.sample4.Person;
 
 /**
@@ -142,6 +152,264 @@ public class SampleProvider4Test extends ProviderTestCase2<SampleProvider4> {
         }
     }
 
+    public void testDedupBlob() {
+        final MockContentResolver cr = getMockContentResolver();
+
+        final byte[] avatar1 = new byte[1000];
+        Arrays.fill(avatar1, (byte) 1);
+        final byte[] avatar2 = new byte[1000];
+        Arrays.fill(avatar2, (byte) 2);
+
+        final ContentValues cv = Person.toCv(PERSON1_NAME);
+        cv.put(Person.AVATAR, avatar1);
+        final Uri person1 = cr.insert(Person.CONTENT_URI, cv);
+        // the caller's values aren't changed
+        assertTrue(Arrays.equals(avatar1, cv.getAsByteArray(Person.AVATAR)));
+
+        cv.put(Person.NAME, PERSON2_NAME);
+        final Uri person2 = cr.insert(Person.CONTENT_URI, cv);
+        cv.put(Person.NAME, PERSON3_NAME);
+        final Uri person3 = cr.insert(Person.CONTENT_URI, cv);
+
+        // subordinates are read through a different helper
+        cv.put(Person.NAME, PERSON4_NAME);
+        final Uri person4 = cr.insert(Person.SUBORDINATES.getUri(person1), cv);
+
+        assertAvatar(person1, avatar1);
+        assertAvatar(person4, avatar1);
+        assertStored(1, 4);
+
+        final Cursor c = cr.query(Person.CONTENT_URI, null, null, null, null);
+        try {
+            assertEquals(4, c.getCount());
+            final int avatarCol = c.getColumnIndex(Person.AVATAR);
+            while (c.moveToNext()) {
+                assertTrue(Arrays.equals(avatar1, c.getBlob(avatarCol)));
+            }
+        } finally {
+            c.close();
+        }
+
+        cv.clear();
+        cv.put(Person.AVATAR, avatar2);
+        assertEquals(1, cr.update(person2, cv, null, null));
+        assertAvatar(person2, avatar2);
+        assertAvatar(person3, avatar1);
+        assertStored(2, 4);
+
+        // saving the same value again doesn't change the count
+        assertEquals(1, cr.update(person2, cv, null, null));
+        assertStored(2, 4);
+
+        assertEquals(1, cr.delete(person2, null, null));
+        assertStored(1, 3);
+
+        cv.putNull(Person.AVATAR);
+        assertEquals(1, cr.update(person3, cv, null, null));
+        assertStored(1, 2);
+
+        assertEquals(1, cr.delete(person4, null, null));
+        assertEquals(1, cr.delete(person1, null, null));
+        assertStored(0, 0);
+    }
+
+    /**
+     * A subclass that restricts its queries by overriding the String-based queryDir must still
+     * have its restriction applied when it's wrapped.
+     */
+    public void testWrappedSubclass() {
+        final MockContentResolver cr = getMockContentResolver();
+
+        final Uri person1 = cr.insert(Person.CONTENT_URI, Person.toCv(PERSON1_NAME));
+        Person.SUBORDINATES.insert(cr, person1, Person.toCv(PERSON2_NAME));
+        Person.SUBORDINATES.insert(cr, person1, Person.toCv(PERSON3_NAME));
+        Person.SUBORDINATES.insert(cr, person1, Person.toCv(null));
+
+        Cursor c = Person.SUBORDINATES.query(cr, person1, null);
+        try {
+            assertEquals(3, c.getCount());
+        } finally {
+            c.close();
+        }
+
+        c = Person.NAMED_SUBORDINATES.query(cr, person1, null);
+        try {
+            assertEquals(2, c.getCount());
+        } finally {
+            c.close();
+        }
+
+        // the query string is added to the restriction
+        c = cr.query(
+                Person.NAMED_SUBORDINATES.getUri(person1).buildUpon()
+                        .encodedQuery(Person.NAME + "=" + Uri.encode(PERSON2_NAME)).build(),
+                null, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+
+        c = cr.query(
+                Person.NAMED_SUBORDINATES.getUri(person1).buildUpon()
+                        .encodedQuery(Person.NAME + "!=" + Uri.encode(PERSON2_NAME)).build(),
+                null, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Compressed values are read back through the provider as they were saved.
+     */
+    public void testCompressedColumns() {
+        final MockContentResolver cr = getMockContentResolver();
+
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("the quick brown fox jumps over the lazy dog. ");
+        }
+        final String bio = sb.toString();
+        final byte[] photo = new byte[4096];
+
+        final ContentValues cv = Person.toCv(PERSON1_NAME);
+        cv.put(Person.BIO, bio);
+        cv.put(Person.PHOTO, photo);
+        final Uri person1 = cr.insert(Person.CONTENT_URI, cv);
+        final Uri person2 = Person.SUBORDINATES.insert(cr, person1, cv);
+        cr.insert(Person.CONTENT_URI, Person.toCv(PERSON3_NAME));
+
+        // they're stored compressed
+        final SQLiteDatabase db = getMockContext().openOrCreateDatabase(
+                SQLGenUtils.toValidName(SampleProvider4.class), 0, null);
+        try {
+            assertEquals(2, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM kittens WHERE "
+                    + "typeof(" + Person.BIO + ")='blob' AND length(" + Person.PHOTO + ")<"
+                    + photo.length, null));
+        } finally {
+            db.close();
+        }
+
+        assertCompressedColumns(cr.query(person1, null, null, null, null), bio, photo);
+        assertCompressedColumns(cr.query(person2, null, null, null, null), bio, photo);
+        assertCompressedColumns(Person.SUBORDINATES.query(cr, person1, null), bio, photo);
+
+        final Cursor c = cr.query(Person.CONTENT_URI, new String[] { Person.NAME, Person.BIO,
+                Person.PHOTO }, null, null, Person.NAME);
+        try {
+            assertEquals(3, c.getCount());
+            assertTrue(c.moveToNext());
+            assertEquals(PERSON3_NAME, c.getString(0));
+            assertNull(c.getString(1));
+            assertNull(c.getBlob(2));
+            assertTrue(c.moveToNext());
+            assertEquals(bio, c.getString(1));
+            assertTrue(Arrays.equals(photo, c.getBlob(2)));
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertCompressedColumns(Cursor c, String bio, byte[] photo) {
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(bio, c.getString(c.getColumnIndex(Person.BIO)));
+            assertTrue(Arrays.equals(photo, c.getBlob(c.getColumnIndex(Person.PHOTO))));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Many-to-many helpers join the tables directly, so they can't read stored values.
+     */
+    public void testDedupBlobM2M() {
+        final GenericDBHelper people = new GenericDBHelper(Person.class);
+        try {
+            new M2MDBHelper(people, people);
+            fail("expecting SQLGenerationException");
+        } catch (final SQLGenerationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A write that fails within its helper's own transaction must only lose that write, not the
+     * rest of its group.
+     */
+    public void testWriteQueueFailure() throws InterruptedException {
+        final WriteQueue queue = getProvider().getWriteQueue();
+
+        final byte[] avatar = new byte[100];
+        Arrays.fill(avatar, (byte) 3);
+
+        final ContentValues cv = Person.toCv(PERSON1_NAME);
+        cv.put(Person.AVATAR, avatar);
+        final long first = queue.enqueueInsert(Person.CONTENT_URI, cv);
+
+        // not a byte[], so storing it fails
+        cv.put(Person.NAME, PERSON2_NAME);
+        cv.put(Person.AVATAR, "not a blob");
+        final long bad = queue.enqueueInsert(Person.CONTENT_URI, cv);
+
+        cv.put(Person.NAME, PERSON3_NAME);
+        cv.put(Person.AVATAR, avatar);
+        final long last = queue.enqueueInsert(Person.CONTENT_URI, cv);
+
+        assertEquals(last, queue.flush());
+        assertTrue(queue.await(first, 1));
+        assertFalse(queue.await(bad, 1));
+        assertTrue(queue.getFailure(bad) instanceof IllegalArgumentException);
+        assertTrue(queue.await(last, 1));
+        assertEquals(1, queue.getFailedCount());
+        assertTrue(Arrays.equals(new long[] { bad }, queue.getFailed(0, last)));
+
+        final Cursor c = getMockContentResolver().query(Person.CONTENT_URI,
+                new String[] { Person.NAME, Person.AVATAR }, null, null, Person.NAME);
+        try {
+            assertEquals(2, c.getCount());
+            assertTrue(c.moveToNext());
+            assertEquals(PERSON3_NAME, c.getString(0));
+            assertTrue(Arrays.equals(avatar, c.getBlob(1)));
+            assertTrue(c.moveToNext());
+            assertEquals(PERSON1_NAME, c.getString(0));
+            assertTrue(Arrays.equals(avatar, c.getBlob(1)));
+        } finally {
+            c.close();
+        }
+        assertStored(1, 2);
+    }
+
+    private void assertAvatar(Uri person, byte[] expected) {
+        final Cursor c = getMockContentResolver().query(person, new String[] { Person.NAME,
+                Person.AVATAR }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertTrue(Arrays.equals(expected, c.getBlob(c.getColumnIndex(Person.AVATAR))));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Checks the number of distinct values in the {@link BlobStore} and the number of references
+     * to them.
+     */
+    private void assertStored(int values, int refs) {
+        final SQLiteDatabase db = getMockContext().openOrCreateDatabase(
+                SQLGenUtils.toValidName(SampleProvider4.class), 0, null);
+        try {
+            assertEquals(values, DatabaseUtils.queryNumEntries(db, BlobStore.TABLE));
+            assertEquals(refs, DatabaseUtils.longForQuery(db, "SELECT coalesce(sum("
+                    + BlobStore.REFS + "), 0) FROM " + BlobStore.TABLE, null));
+        } finally {
+            db.close();
+        }
+    }
+
     private void assertSupervisor(Uri uri, Uri supervisor) {
         final MockContentResolver cr = getMockContentResolver();
 
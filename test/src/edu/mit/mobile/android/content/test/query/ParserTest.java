@@ -4,8 +4,11 @@ import java.io.IOException;
 
 import android.test.AndroidTestCase;
 import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.query.QuerystringControls;
 import edu.mit.mobile.android.content.query.QuerystringParser;
 import edu.mit.mobile.android.content.query.QuerystringParser.ParseException;
+import edu.mit.mobile.android.content.query.QuerystringSchema;
+import edu.mit.mobile.android.content.query.QuerystringSchema.Affinity;
 
 public class ParserTest extends AndroidTestCase {
 
@@ -84,6 +87,15 @@ public class ParserTest extends AndroidTestCase {
         sql = testParser("a<=1", new String[] { "1" });
         assertEquals("\"a\" <= ?", sql);
 
+        // prefixes are ranges ending at the first string that doesn't start with them
+        sql = testParser("a^=foo", new String[] { "foo", "fop" });
+        assertEquals("\"a\" >= ? AND \"a\" < ?", sql);
+
+        sql = testParser("a^=x%F4%8F%BF%BF&b^=ab%ED%9F%BF", new String[] { "x\udbff\udfff",
+                "y", "ab\ud7ff", "ab\ue000" });
+        assertEquals("\"a\" >= ? AND \"a\" < ? AND \"b\" >= ? AND \"b\" < ?", sql);
+        assertNull(QuerystringParser.getPrefixUpperBound("\udbff\udfff", false));
+
         sql = testParser("(((a~=foo|b!=bar)))", new String[] { "%foo%", "bar" });
         assertEquals("(((\"a\" LIKE ? OR \"b\" IS NOT ?)))", sql);
 
@@ -94,6 +106,218 @@ public class ParserTest extends AndroidTestCase {
         // symbols
         sql = testParser("a=__%283.14152+*+2%29", new String[] { "__(3.14152 * 2)" });
         assertEquals(qIs("a"), sql);
+
+        // lists
+        sql = testParser("a=(1,2,3)", new String[] { "1", "2", "3" });
+        assertEquals("\"a\" IN (?,?,?)", sql);
+
+        sql = testParser("a!=(foo)&b=bar", new String[] { "foo", "bar" });
+        assertEquals("\"a\" NOT IN (?) AND " + qIs("b"), sql);
+
+        sql = testParser("a><(1,10)", new String[] { "1", "10" });
+        assertEquals("\"a\" BETWEEN ? AND ?", sql);
+
+        sql = testParser("(a!><(1,10)|b=(%2C,+))", new String[] { "1", "10", ",", " " });
+        assertEquals("(\"a\" NOT BETWEEN ? AND ? OR \"b\" IN (?,?))", sql);
+
+        // escaped unicode
+        sql = testParser("a=flamb%C3%A9e+%41&b~=%E2%98%83", new String[] { "flamb\u00e9e A",
+                "%\u2603%" });
+        assertEquals(qIs("a") + " AND \"b\" LIKE ?", sql);
+
+        // more arguments than are initially allocated
+        sql = testParser("a=1&b=2&c=3&d=4&e=5&f=6", new String[] { "1", "2", "3", "4", "5",
+                "6" });
+        assertEquals(qIs("a") + " AND " + qIs("b") + " AND " + qIs("c") + " AND " + qIs("d")
+                + " AND " + qIs("e") + " AND " + qIs("f"), sql);
+    }
+
+    public void testValueLists() throws IOException {
+        final QuerystringParser q = new QuerystringParser("a=(1,2)&b!=(3,4,5)&c=6");
+        q.setMaxBoundListSize(2);
+        q.parse();
+
+        assertEquals("\"a\" IN (?,?) AND \"b\" NOT IN (SELECT value FROM temp."
+                + QuerystringParser.VALUE_LIST_TABLE + " WHERE list = ?) AND " + qIs("c"),
+                q.getResult());
+
+        final String[] args = q.getSelectionArgs();
+        assertEquals(4, args.length);
+        assertEquals("2", args[1]);
+        assertNull(args[2]);
+        assertEquals("6", args[3]);
+
+        assertEquals(1, q.getValueLists().size());
+        final QuerystringParser.ValueList list = q.getValueLists().get(0);
+        assertEquals(2, list.argIndex);
+        assertEquals(3, list.values.length);
+        assertEquals("5", list.values[2]);
+
+        // by default, everything is bound
+        final QuerystringParser q2 = new QuerystringParser("a=(1,2,3,4,5,6,7,8,9,10)");
+        q2.parse();
+        assertEquals(10, q2.getSelectionArgs().length);
+        assertNull(q2.getValueLists());
+    }
+
+    public void testSchema() throws IOException {
+        final QuerystringSchema schema = new QuerystringSchema();
+        schema.addColumn("id", Affinity.INTEGER, true);
+        schema.addColumn("n", Affinity.INTEGER, false);
+        schema.addColumn("done", Affinity.BOOLEAN, false);
+        schema.addColumn("r", Affinity.REAL, false);
+        schema.addColumn("t", Affinity.TEXT, false);
+
+        final QuerystringParser q = new QuerystringParser(
+                "id=007&id!=3&n!=4&done=true&n=(1,2)&r><(1,2.5)&t~=abc");
+        q.setSchema(schema);
+        q.parse();
+
+        // "!=" skips nulls, so it's only used on NOT NULL columns
+        assertEquals("\"id\" = ? AND \"id\" != ? AND \"n\" IS NOT ? AND \"done\" = ? AND "
+                + "\"n\" IN (?,?) AND \"r\" BETWEEN ? AND ? AND \"t\" LIKE ?", q.getResult());
+
+        final String[] args = q.getSelectionArgs();
+        assertEquals(9, args.length);
+        assertEquals("7", args[0]);
+        assertEquals("1", args[3]);
+        assertEquals("1.0", args[6]);
+        assertEquals("%abc%", args[8]);
+
+        // prefixes of NOCASE columns are folded, as "[" comes after all the lower case letters
+        schema.addColumn("c", Affinity.TEXT, false, true);
+        final QuerystringParser prefix = new QuerystringParser("c^=AB%40|t^=AB%40");
+        prefix.setSchema(schema);
+        prefix.parse();
+        assertEquals("\"c\" >= ? AND \"c\" < ? OR \"t\" >= ? AND \"t\" < ?",
+                prefix.getResult());
+        final String[] prefixArgs = prefix.getSelectionArgs();
+        assertEquals("ab@", prefixArgs[0]);
+        assertEquals("ab[", prefixArgs[1]);
+        assertEquals("AB@", prefixArgs[2]);
+        assertEquals("ABA", prefixArgs[3]);
+
+        testExpectSchemaFailure(schema, "missing=1");
+        testExpectSchemaFailure(schema, "t=1&n=(1,x)");
+        testExpectSchemaFailure(schema, "n=abc");
+        testExpectSchemaFailure(schema, "done=yes");
+        testExpectSchemaFailure(schema, "r<NaN");
+        testExpectSchemaFailure(schema, "n^=1");
+
+        // the columns of a parent are queried through a subquery
+        final QuerystringSchema parent = new QuerystringSchema();
+        parent.addColumn("title", Affinity.TEXT, true);
+        schema.addColumn("post", Affinity.INTEGER, false);
+        schema.addParent("post", "posts", parent);
+
+        final QuerystringParser qualified = new QuerystringParser("post.title!=a|t=b");
+        qualified.setSchema(schema);
+        qualified.parse();
+        assertEquals("\"post\" IN (SELECT _id FROM \"posts\" WHERE \"title\" != ?) OR \"t\" = ?",
+                qualified.getResult());
+
+        testExpectSchemaFailure(schema, "post.missing=1");
+        testExpectSchemaFailure(schema, "t.title=1");
+        testExpectSchemaFailure(schema, "post.post.title=1");
+    }
+
+    private void testExpectSchemaFailure(QuerystringSchema schema, String query)
+            throws IOException {
+        final QuerystringParser q = new QuerystringParser(query);
+        q.setSchema(schema);
+        try {
+            q.parse();
+            fail("query '" + query + "' was accepted by the schema");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        } catch (final SQLGenerationException e) {
+            // expected
+        }
+    }
+
+    public void testInvalidEscapes() throws IOException {
+        testExpectInvalidEscape("a=%");
+        testExpectInvalidEscape("a=%4");
+        testExpectInvalidEscape("a=%zz");
+        testExpectInvalidEscape("a~=b%g0");
+    }
+
+    private void testExpectInvalidEscape(String query) throws IOException {
+        final QuerystringParser q = new QuerystringParser(query);
+        try {
+            q.parse();
+            fail("invalid escape in '" + query + "' was decoded");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testControls() {
+        // queries without reserved keys are left alone
+        assertNull(QuerystringControls.extract("a=1|b=_limit"));
+
+        QuerystringControls c = QuerystringControls.extract("a=1|b=2&_limit=10&_offset=20");
+        assertEquals("a=1|b=2", c.getQuery());
+        assertEquals(10, c.getLimit());
+        assertEquals(20, c.getOffset());
+        assertEquals("20,10", c.getSqlLimit());
+        assertNull(c.getSortOrder());
+        assertNull(c.getProjection());
+
+        c = QuerystringControls.extract("_sort=(a,-b)&(a=1|a=2)&_projection=c");
+        assertEquals("(a=1|a=2)", c.getQuery());
+        assertEquals("\"a\", \"b\" DESC", c.getSortOrder());
+        assertEquals(1, c.getProjection().length);
+        assertEquals("c", c.getProjection()[0]);
+        assertNull(c.getSqlLimit());
+
+        // an offset needs a limit in SQLite
+        c = QuerystringControls.extract("_offset=5");
+        assertNull(c.getQuery());
+        assertEquals("5," + Long.MAX_VALUE, c.getSqlLimit());
+
+        c = QuerystringControls.extract("_limit=7");
+        assertEquals("7", c.getSqlLimit());
+
+        c = QuerystringControls.extract("_group=a&a=1&_count=*&_sum=(b,c)&_sort=-_count");
+        assertEquals("a=1", c.getQuery());
+        assertTrue(c.isAggregate());
+        assertEquals("\"a\"", c.getGroupBy());
+        final String[] projection = c.getAggregateProjection();
+        assertEquals(4, projection.length);
+        assertEquals("a", projection[0]);
+        assertEquals("count(*) AS _count", projection[1]);
+        assertEquals("sum(\"c\") AS sum_c", projection[3]);
+        assertEquals("\"_count\" DESC", c.getSortOrder());
+
+        c = QuerystringControls.extract("_offset=5&_limit=10");
+        assertEquals("5,10", c.getSqlLimit());
+
+        testExpectControlFailure("a=1|_limit=5");
+        testExpectControlFailure("_limit=5|a=1");
+        testExpectControlFailure("(a=1&_limit=5)");
+        testExpectControlFailure("_limit!=5");
+        testExpectControlFailure("_limit=five");
+        testExpectControlFailure("_limit=-1");
+        testExpectControlFailure("_limit=1&_limit=2");
+        testExpectControlFailure("_sort=()");
+        testExpectControlFailure("_sort=(a,b+c)");
+        testExpectControlFailure("_projection=a%3Bb");
+        testExpectControlFailure("_sum=*");
+        testExpectControlFailure("_count=*&_projection=a");
+        testExpectControlFailure("_group=a");
+        testExpectControlFailure("_group=(a,b)&a=1&_sort=a");
+    }
+
+    private void testExpectControlFailure(String query) {
+        try {
+            QuerystringControls.extract(query);
+            fail("reserved keys in '" + query + "' were accepted");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        } catch (final SQLGenerationException e) {
+            // expected
+        }
     }
 
     public void testFailures() throws IOException {
@@ -145,6 +369,21 @@ public class ParserTest extends AndroidTestCase {
         // bad column name
         testExpectFailure("a%b=c");
 
+        // bad lists
+        testExpectFailure("a=()");
+        testExpectFailure("a=(1,)");
+        testExpectFailure("a=(1");
+        testExpectFailure("a=(1)(2)");
+        testExpectFailure("a><(1)");
+        testExpectFailure("a><(1,2,3)");
+        testExpectFailure("a>(1,2)");
+        testExpectFailure("a~=(1,2)");
+
+        // bad prefixes
+        testExpectFailure("a^=(1,2)");
+        testExpectFailure("a!^=1");
+        testExpectFailure("a^^=1");
+
         // whitespace is invalid
         testExpectFailure("a=b c");
     }
@@ -69,6 +69,13 @@ public class QueryBuilderTest extends AndroidTestCase {
 
         assertBuilderEquals("a!~=1&b!~=2|c!~=3", qb);
 
+        // starts with
+        qb.reset();
+
+        qb.startsWith("a", "1").andStartsWith("b", "2").orStartsWith("c", "3 4");
+
+        assertBuilderEquals("a^=1&b^=2|c^=3+4", qb);
+
         // >
         qb.reset();
 
@@ -96,6 +103,66 @@ public class QueryBuilderTest extends AndroidTestCase {
         qb.lessEquals("a", "1").andLessEquals("b", "2").orLessEquals("c", "3");
 
         assertBuilderEquals("a<=1&b<=2|c<=3", qb);
+
+        // in
+        qb.reset();
+
+        qb.in("a", "1", "2").andIn("b", "3").orIn("c", "4, 5", "(6)");
+
+        assertBuilderEquals("a=(1,2)&b=(3)|c=(4%2C+5,%286%29)", qb);
+
+        // not in
+        qb.reset();
+
+        qb.notIn("a", "1", "2").andNotIn("b", "3").orNotIn("c", "4");
+
+        assertBuilderEquals("a!=(1,2)&b!=(3)|c!=(4)", qb);
+
+        // between
+        qb.reset();
+
+        qb.between("a", "1", "2").andBetween("b", "3", "4").orBetween("c", "5", "6");
+
+        assertBuilderEquals("a><(1,2)&b><(3,4)|c><(5,6)", qb);
+
+        // not between
+        qb.reset();
+
+        qb.notBetween("a", "1", "2").andNotBetween("b", "3", "4").orNotBetween("c", "5", "6");
+
+        assertBuilderEquals("a!><(1,2)&b!><(3,4)|c!><(5,6)", qb);
+
+        // ///////// reserved keys /////////
+
+        qb.reset();
+
+        qb.limit(10).offset(20);
+
+        assertBuilderEquals("_limit=10&_offset=20", qb);
+
+        qb.reset();
+
+        qb.is("a", "1").sortBy("b").sortByDescending("c").projection("a", "b").limit(5);
+
+        assertBuilderEquals("a=1&_limit=5&_sort=(b,-c)&_projection=(a,b)", qb);
+
+        qb.reset();
+
+        qb.child(new QueryBuilder().is("a", "1").orIs("a", "2")).sortByDescending("b")
+                .projection("c");
+
+        assertBuilderEquals("(a=1|a=2)&_sort=-b&_projection=c", qb);
+
+        qb.reset();
+
+        qb.is("a", "1").groupBy("b", "c").count().sum("d").max("e").count("f");
+
+        assertBuilderEquals("a=1&_group=(b,c)&_count=(*,f)&_sum=d&_max=e", qb);
+
+        // reset clears the reserved keys too
+        qb.reset();
+
+        assertBuilderEquals(null, qb);
     }
 
     private void assertBuilderEquals(String expectedQueryString, QueryBuilder qb) {
@@ -0,0 +1,91 @@
+package edu.mit.mobile.android.content.test.query;
+
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+import edu.mit.mobile.android.content.SQLGenerationException;
+import edu.mit.mobile.android.content.query.QueryTemplate;
+import edu.mit.mobile.android.content.query.QueryTemplate.Type;
+import edu.mit.mobile.android.content.query.QuerystringParser;
+import edu.mit.mobile.android.content.query.QuerystringSchema;
+import edu.mit.mobile.android.content.query.QuerystringSchema.Affinity;
+
+public class QueryTemplateTest extends AndroidTestCase {
+
+    public void testTemplate() throws IOException {
+        final QueryTemplate.Compiled t = new QueryTemplate()
+                .is("a", Type.LONG)
+                .andLike("b", Type.STRING)
+                .orChild(
+                        new QueryTemplate().between("c", Type.DOUBLE).andIn("d", Type.STRING, 2))
+                .compile();
+
+        // the same SQL as the equivalent query string on known columns
+        final QuerystringSchema schema = new QuerystringSchema();
+        schema.addColumn("a", Affinity.INTEGER, false);
+        schema.addColumn("b", Affinity.TEXT, false);
+        schema.addColumn("c", Affinity.REAL, false);
+        schema.addColumn("d", Affinity.TEXT, false);
+        final QuerystringParser parser = new QuerystringParser("a=1&b~=x|(c><(1,2)&d=(e,f))");
+        parser.setSchema(schema);
+        parser.parse();
+        assertEquals(parser.getResult(), t.getSelection());
+
+        assertEquals(6, t.getPlaceholderCount());
+        assertEquals(Type.DOUBLE, t.getType(3));
+
+        final String[] args = t.bind(1L, "x", 1.5, 2, "e", "f");
+        assertEquals(6, args.length);
+        assertEquals("1", args[0]);
+        assertEquals("%x%", args[1]);
+        assertEquals("1.5", args[2]);
+        assertEquals("2.0", args[3]);
+        assertEquals("f", args[5]);
+
+        // bindings can be reused
+        final QueryTemplate.Binding b = t.newBinding();
+        b.setLong(0, 5).setString(1, "y").setDouble(2, 0).setDouble(3, 1).setString(4, "g")
+                .setString(5, "h");
+        assertEquals("5", b.getSelectionArgs()[0]);
+        b.setLong(0, 6);
+        assertEquals("6", b.getSelectionArgs()[0]);
+        assertEquals("%y%", b.getSelectionArgs()[1]);
+
+        try {
+            t.bind("1", "x", 1.5, 2, "e", "f");
+            fail("string bound to a long placeholder");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            t.bind(1L);
+            fail("too few values bound");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            t.newBinding().setLong(0, 1).getSelectionArgs();
+            fail("unbound placeholders weren't caught");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            new QueryTemplate().is("a", Type.LONG).andIs("b; --", Type.LONG);
+            fail("illegal column name was accepted");
+        } catch (final SQLGenerationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Values are never null, so equality is tested using operators that can use an index.
+     */
+    public void testEquality() {
+        assertEquals("\"a\" = ? AND \"b\" != ? OR \"c\" = ?",
+                new QueryTemplate().is("a", Type.LONG).andIsNot("b", Type.STRING)
+                        .orIs("c", Type.DOUBLE).compile().getSelection());
+    }
+}
@@ -59,7 +59,8 @@ public class BlogPost implements ContentItem {
     @DBColumn(type = TextColumn.class, notnull = true)
     public static final String TITLE = "title";
 
-    @DBColumn(type = TextColumn.class, notnull = true)
+    // the body is searched for substrings, so it's indexed for that
+    @DBColumn(type = TextColumn.class, notnull = true, flags = TextColumn.FLAG_TRIGRAM_INDEX)
     public static final String BODY = "body";
 
     @DBColumn(type = TextColumn.class, unique = true, notnull = true)
@@ -8,6 +8,7 @@ import edu.mit.mobile.android.content.UriPath;
 import edu.mit.mobile.android.content.column.DBColumn;
 import edu.mit.mobile.android.content.column.DBForeignKeyColumn;
 import edu.mit.mobile.android.content.column.DatetimeColumn;
+import edu.mit.mobile.android.content.column.FileColumn;
 import edu.mit.mobile.android.content.column.TextColumn;
 import edu.mit.mobile.android.content.test.SampleProvider2;
 
@@ -20,6 +21,10 @@ public class Comment implements ContentItem {
     @DBColumn(type = TextColumn.class)
     public static final String BODY = "body";
 
+    // attachments are stored in files, which are opened using the comment's URI
+    @DBColumn(type = FileColumn.class)
+    public static final String ATTACHMENT = "attachment";
+
     // this creates a foreign key relationship to the blog post. In effect, this
     // is the child storing the ID of its parent. The ForeignKeyManager will help
     // access this relationship.
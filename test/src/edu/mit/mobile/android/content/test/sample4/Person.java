@@ -7,8 +7,11 @@ import edu.mit.mobile.android.content.DBTable;
 import edu.mit.mobile.android.content.ForeignKeyManager;
 import edu.mit.mobile.android.content.ProviderUtils;
 import edu.mit.mobile.android.content.UriPath;
+import edu.mit.mobile.android.content.column.CompressedBlobColumn;
+import edu.mit.mobile.android.content.column.CompressedTextColumn;
 import edu.mit.mobile.android.content.column.DBColumn;
 import edu.mit.mobile.android.content.column.DBForeignKeyColumn;
+import edu.mit.mobile.android.content.column.DedupBlobColumn;
 import edu.mit.mobile.android.content.column.TextColumn;
 import edu.mit.mobile.android.content.test.SampleProvider4;
 
@@ -22,13 +25,28 @@ public class Person implements ContentItem {
     @DBForeignKeyColumn(parent = Person.class, notnull = false)
     public static final String SUPERVISOR = "supervisor";
 
+    // many people share the same avatar, which is only stored once
+    @DBColumn(type = DedupBlobColumn.class)
+    public static final String AVATAR = "avatar";
+
+    @DBColumn(type = CompressedTextColumn.class)
+    public static final String BIO = "bio";
+
+    @DBColumn(type = CompressedBlobColumn.class)
+    public static final String PHOTO = "photo";
+
     public static final String PATH = "person";
 
     public static final String SUBORDINATE_PATH = "subordinates";
 
+    public static final String NAMED_SUBORDINATE_PATH = "named_subordinates";
+
     public static final ForeignKeyManager SUBORDINATES = new ForeignKeyManager(Person.class,
             SUBORDINATE_PATH);
 
+    public static final ForeignKeyManager NAMED_SUBORDINATES = new ForeignKeyManager(
+            Person.class, NAMED_SUBORDINATE_PATH);
+
     public static final Uri CONTENT_URI = ProviderUtils.toContentUri(SampleProvider4.AUTHORITY,
             PATH);
 